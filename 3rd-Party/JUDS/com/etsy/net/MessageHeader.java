@@ -27,10 +27,15 @@
 
 package com.etsy.net;
 
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+
 public class MessageHeader {
 
 	Object[] iov;
+	ByteBuffer[] buffers;
 	String filePath;
+	FileDescriptor fileDescriptor;
 
 	/**
 	 * Constructor
@@ -53,6 +58,23 @@ public class MessageHeader {
 		this.iov = iov;
 	}
 
+	/**
+	 * @return the direct ByteBuffers to send in place of the iov, or null
+	 */
+	public ByteBuffer[] getBuffers() {
+		return buffers;
+	}
+
+	/**
+	 * Sets direct ByteBuffers, already encoded in wire order, to send instead of
+	 * the iov. The bytes between each buffer's position and limit are sent.
+	 *
+	 * @param buffers the buffers to set
+	 */
+	public void setBuffers(ByteBuffer[] buffers) {
+		this.buffers = buffers;
+	}
+
 	/**
 	 * @return the filePath String
 	 */
@@ -61,10 +83,30 @@ public class MessageHeader {
 	}
 
 	/**
+	 * Sets the path of a file to pass by descriptor. The file is opened for the
+	 * send and closed again once the message has been sent.
+	 *
 	 * @param filePath	the String to set
 	 */
 	public void setFilePath(String filePath) {
 		this.filePath = filePath;
 	}
 
+	/**
+	 * @return the open FileDescriptor to pass, or null
+	 */
+	public FileDescriptor getFileDescriptor() {
+		return fileDescriptor;
+	}
+
+	/**
+	 * Sets an open file to pass by descriptor instead of opening the file path.
+	 * The descriptor is passed as is and stays open; the caller closes it.
+	 *
+	 * @param fileDescriptor	the FileDescriptor to set
+	 */
+	public void setFileDescriptor(FileDescriptor fileDescriptor) {
+		this.fileDescriptor = fileDescriptor;
+	}
+
 }
\ No newline at end of file
@@ -16,6 +16,20 @@
 #include <errno.h>
 #include <stdint.h>
 #include <fcntl.h>
+#include <string.h>
+#include <limits.h>
+#include <sys/uio.h>
+#ifdef __linux__
+#include <sys/sendfile.h>
+#include <sys/syscall.h>
+#endif
+
+#ifndef IOV_MAX
+#define IOV_MAX 1024
+#endif
+
+/* The most sendfile will transfer in one call on Linux */
+#define SENDFILE_MAX 0x7ffff000
 
 #define ASSERTNOERR(cond, msg) do { \
     if (cond) { fprintf(stderr, "[%d] ", errno); perror(msg); return -1; }} while(0)
@@ -209,6 +223,30 @@ Java_com_etsy_net_UnixDomainSocket_nativeClose(JNIEnv * jEnv,
     return close(jSocketFileHandle);
 }
 
+/* Checks without blocking whether the other end has closed the connection.
+ * A byte is only peeked at, so nothing is taken from the socket. Returns 1 if
+ * the connection has been closed or has failed, and 0 if it is still open. */
+JNIEXPORT jint JNICALL
+Java_com_etsy_net_UnixDomainSocket_nativePeerClosed(JNIEnv * jEnv,
+                               jclass jClass,
+                               jint jSocketFileHandle)
+{
+    char byte;
+    ssize_t count;
+
+    do {
+        count = recv(jSocketFileHandle, &byte, 1, MSG_PEEK | MSG_DONTWAIT);
+    } while (count == -1 && errno == EINTR);
+
+    if (count > 0) {
+        return 0;
+    }
+    if (count == -1 && (errno == EAGAIN || errno == EWOULDBLOCK)) {
+        return 0;
+    }
+    return 1;
+}
+
 JNIEXPORT jint JNICALL
 Java_com_etsy_net_UnixDomainSocket_nativeCloseInput(JNIEnv * jEnv,
                                 jclass jClass,
@@ -246,179 +284,602 @@ Java_com_etsy_net_UnixDomainSocket_nativeUnlink(JNIEnv * jEnv,
     return ret;
 }
 
+/* Classes and member IDs used by the send functions. They are looked up once
+ * when the library is loaded instead of on every call. */
+static struct {
+	jclass shortClass;
+	jclass intClass;
+	jclass longClass;
+	jclass byteArrayClass;
+	jclass stringClass;
+	jclass byteBufferClass;
+	jmethodID shortValue;
+	jmethodID intValue;
+	jmethodID longValue;
+	jmethodID position;
+	jmethodID limit;
+	jmethodID getIov;
+	jmethodID getFilePath;
+	jmethodID getFileDescriptor;
+	jfieldID fileDescriptorFd;
+	jclass fileDescriptorClass;
+	jmethodID fileDescriptorInit;
+} ids;
+
+static jclass global_class(JNIEnv *jEnv, const char *name)
+{
+	jclass local = (*jEnv)->FindClass(jEnv, name);
+	if(local == NULL) {
+		return NULL;
+	}
+	jclass global = (jclass)(*jEnv)->NewGlobalRef(jEnv, local);
+	(*jEnv)->DeleteLocalRef(jEnv, local);
+	return global;
+}
+
+JNIEXPORT jint JNICALL
+JNI_OnLoad(JavaVM *vm, void *reserved)
+{
+	JNIEnv *jEnv;
+	if((*vm)->GetEnv(vm, (void**)&jEnv, JNI_VERSION_1_4) != JNI_OK) {
+		return JNI_ERR;
+	}
+
+	jclass bufferClass = (*jEnv)->FindClass(jEnv, "java/nio/Buffer");
+	jclass msghCls = (*jEnv)->FindClass(jEnv, "com/etsy/net/MessageHeader");
+	if(bufferClass == NULL || msghCls == NULL) {
+		return JNI_ERR;
+	}
+
+	if((ids.shortClass = global_class(jEnv, "java/lang/Short")) == NULL
+			|| (ids.intClass = global_class(jEnv, "java/lang/Integer")) == NULL
+			|| (ids.longClass = global_class(jEnv, "java/lang/Long")) == NULL
+			|| (ids.byteArrayClass = global_class(jEnv, "[B")) == NULL
+			|| (ids.stringClass = global_class(jEnv, "java/lang/String")) == NULL
+			|| (ids.byteBufferClass = global_class(jEnv, "java/nio/ByteBuffer")) == NULL
+			|| (ids.shortValue = (*jEnv)->GetMethodID(jEnv, ids.shortClass, "shortValue", "()S")) == NULL
+			|| (ids.intValue = (*jEnv)->GetMethodID(jEnv, ids.intClass, "intValue", "()I")) == NULL
+			|| (ids.longValue = (*jEnv)->GetMethodID(jEnv, ids.longClass, "longValue", "()J")) == NULL
+			|| (ids.position = (*jEnv)->GetMethodID(jEnv, bufferClass, "position", "()I")) == NULL
+			|| (ids.limit = (*jEnv)->GetMethodID(jEnv, bufferClass, "limit", "()I")) == NULL
+			|| (ids.getIov = (*jEnv)->GetMethodID(jEnv, msghCls, "getIov", "()[Ljava/lang/Object;")) == NULL
+			|| (ids.getFilePath = (*jEnv)->GetMethodID(jEnv, msghCls, "getFilePath", "()Ljava/lang/String;")) == NULL
+			|| (ids.getFileDescriptor = (*jEnv)->GetMethodID(jEnv, msghCls, "getFileDescriptor", "()Ljava/io/FileDescriptor;")) == NULL) {
+		return JNI_ERR;
+	}
+
+	(*jEnv)->DeleteLocalRef(jEnv, bufferClass);
+	(*jEnv)->DeleteLocalRef(jEnv, msghCls);
+
+	/* Only needed by nativeSendfile, which reports itself as unsupported
+	 * if this JVM's FileDescriptor has no int fd field, by the send functions,
+	 * which then can't pass an open FileDescriptor, and by nativeRecvmsg,
+	 * which then closes the descriptors it receives. */
+	jclass fdClass = (*jEnv)->FindClass(jEnv, "java/io/FileDescriptor");
+	if(fdClass != NULL) {
+		ids.fileDescriptorFd = (*jEnv)->GetFieldID(jEnv, fdClass, "fd", "I");
+		if(ids.fileDescriptorFd != NULL) {
+			ids.fileDescriptorInit = (*jEnv)->GetMethodID(jEnv, fdClass, "<init>", "()V");
+		}
+		if(ids.fileDescriptorInit != NULL) {
+			ids.fileDescriptorClass = (jclass)(*jEnv)->NewGlobalRef(jEnv, fdClass);
+		}
+		(*jEnv)->DeleteLocalRef(jEnv, fdClass);
+	}
+	if((*jEnv)->ExceptionCheck(jEnv)) {
+		(*jEnv)->ExceptionClear(jEnv);
+		ids.fileDescriptorFd = NULL;
+		ids.fileDescriptorInit = NULL;
+	}
+
+	return JNI_VERSION_1_4;
+}
+
+/* Points the iovec at the bytes between the position and the limit of a
+ * direct ByteBuffer. Returns -1 if the buffer is not direct. */
+static int buffer_iovec(JNIEnv *jEnv, jobject buf, struct iovec *iov)
+{
+	char *address = (char*)(*jEnv)->GetDirectBufferAddress(jEnv, buf);
+	if(address == NULL) {
+		return -1;
+	}
+	jint position = (*jEnv)->CallIntMethod(jEnv, buf, ids.position);
+	jint limit = (*jEnv)->CallIntMethod(jEnv, buf, ids.limit);
+	iov->iov_base = address + position;
+	iov->iov_len = limit - position;
+	return 0;
+}
+
+/* Sends the whole message, calling sendmsg again after a short write on a
+ * stream socket or an interrupted call. Ancillary data only goes out with the
+ * first call. msgh->msg_iov is advanced past the bytes that were sent.
+ * Returns the total number of bytes sent, or -1 on error. */
+static ssize_t sendmsg_fully(int fd, struct msghdr *msgh)
+{
+	size_t remaining = 0;
+	ssize_t total = 0;
+	size_t i;
+
+	for(i = 0; i < (size_t)msgh->msg_iovlen; i++) {
+		remaining += msgh->msg_iov[i].iov_len;
+	}
+
+	do {
+		ssize_t sent = sendmsg(fd, msgh, 0);
+		if(sent == -1) {
+			if(errno == EINTR) {
+				continue;
+			}
+			return -1;
+		}
+		total += sent;
+		remaining -= sent;
+
+		msgh->msg_control = NULL;
+		msgh->msg_controllen = 0;
+
+		while(sent > 0 && msgh->msg_iovlen > 0) {
+			if((size_t)sent >= msgh->msg_iov->iov_len) {
+				sent -= msgh->msg_iov->iov_len;
+				msgh->msg_iov++;
+				msgh->msg_iovlen--;
+			} else {
+				msgh->msg_iov->iov_base = (char*)msgh->msg_iov->iov_base + sent;
+				msgh->msg_iov->iov_len -= sent;
+				sent = 0;
+			}
+		}
+	} while(remaining > 0);
+
+	return total;
+}
+
+/* Gets the descriptor to pass with a message: the one held by fileDescriptor
+ * if it isn't NULL, otherwise a new one for the file at filePath. *opened is
+ * set when the descriptor was opened here, and must then be closed once the
+ * message has been sent; the receiver gets its own copy of the descriptor.
+ * Returns the descriptor, or -1 if there is none or it could not be got. */
+static int message_fd(JNIEnv *jEnv, jobject fileDescriptor, jstring filePath, int *opened)
+{
+	*opened = 0;
+	if(fileDescriptor != NULL) {
+		if(ids.fileDescriptorFd == NULL) {
+			return -1;
+		}
+		return (*jEnv)->GetIntField(jEnv, fileDescriptor, ids.fileDescriptorFd);
+	}
+	if(filePath == NULL) {
+		return -1;
+	}
+
+	const char *path = (*jEnv)->GetStringUTFChars(jEnv, filePath, NULL);
+	if(path == NULL) {
+		return -1;
+	}
+	int fd = open(path, O_RDONLY);
+	(*jEnv)->ReleaseStringUTFChars(jEnv, filePath, path);
+
+	if(fd != -1) {
+		*opened = 1;
+	}
+	return fd;
+}
+
+/* Attaches fd to msgh as SCM_RIGHTS ancillary data, using buffer as the
+ * control buffer. */
+static void attach_fd(int fd, struct msghdr *msgh, char *buffer, size_t bufferLen)
+{
+	struct cmsghdr *cmsg;
+
+	msgh->msg_control = buffer;
+	msgh->msg_controllen = bufferLen;
+
+	cmsg = CMSG_FIRSTHDR(msgh);
+	cmsg->cmsg_level = SOL_SOCKET;
+	cmsg->cmsg_type = SCM_RIGHTS;
+	cmsg->cmsg_len = CMSG_LEN(sizeof(fd));
+	memcpy(CMSG_DATA(cmsg), &fd, sizeof(fd));
+	msgh->msg_controllen = cmsg->cmsg_len;
+}
+
 JNIEXPORT jint JNICALL
 Java_com_etsy_net_UnixDomainSocket_nativeSendmsg(JNIEnv * jEnv,
                                jclass jClass,
                                jint jSocketFileHandle,
                                jobject messageHeader)
 {
-	jclass msghCls = (*jEnv)->GetObjectClass(jEnv, messageHeader);
-
 	// Get the iov from the message header
-	jmethodID mGetIov = (*jEnv)->GetMethodID(jEnv, msghCls, "getIov", "()[Ljava/lang/Object;");
-	jobjectArray iovArray = (jobjectArray)(*jEnv)->CallObjectMethod(jEnv, messageHeader, mGetIov);
+	jobjectArray iovArray = (jobjectArray)(*jEnv)->CallObjectMethod(jEnv, messageHeader, ids.getIov);
+	if(iovArray == NULL) {
+		return -1;
+	}
 
 	// Get the iovLen from the iovArray
 	int iovLen = (*jEnv)->GetArrayLength(jEnv, iovArray);
+	if(iovLen > IOV_MAX || (*jEnv)->EnsureLocalCapacity(jEnv, iovLen + 4) != 0) {
+		return -1;
+	}
 
-	// Create the msghdr struct and fill iov
+	// Create the msghdr struct and fill iov. Numbers are copied into scalars,
+	// arrays and strings are pinned until the message has been sent.
 	struct msghdr msgh;
 	memset(&msgh, 0, sizeof(msgh));
-	struct iovec iov[iovLen];
+	struct iovec iov[iovLen > 0 ? iovLen : 1];
+	uint64_t scalars[iovLen > 0 ? iovLen : 1];
+	jobject objs[iovLen > 0 ? iovLen : 1];
+	void *pinned[iovLen > 0 ? iovLen : 1];
 	msgh.msg_iovlen = iovLen;
 	msgh.msg_iov = iov;
 
-	jclass intClass = (*jEnv)->FindClass(jEnv, "java/lang/Integer");
-	jclass shortClass = (*jEnv)->FindClass(jEnv, "java/lang/Short");
-	jclass longClass = (*jEnv)->FindClass(jEnv, "java/lang/Long");
-	jclass byteArrayClass = (*jEnv)->FindClass(jEnv, "[B");
-	jclass stringClass = (*jEnv)->FindClass(jEnv, "java/lang/String");
-
-	int numShorts = 0;
-	int numInts = 0;
-	int numLongs = 0;
-	int numByteArrays = 0;
-	int numStrings = 0;
-
+	ssize_t bytes_sent = -1;
+	int fd = -1;
+	int opened = 0;
+	int filled = 0;
 	int i;
 	for(i = 0; i < iovLen; i++) {
 
 		jobject obj = (*jEnv)->GetObjectArrayElement(jEnv, iovArray, i);
-
-		if((*jEnv)->IsInstanceOf(jEnv, obj, shortClass) == JNI_TRUE) {
-			numShorts++;
-		} else if((*jEnv)->IsInstanceOf(jEnv, obj, intClass) == JNI_TRUE) {
-			numInts++;
-		} else if((*jEnv)->IsInstanceOf(jEnv, obj, longClass) == JNI_TRUE) {
-			numLongs++;
-		} else if((*jEnv)->IsInstanceOf(jEnv, obj, byteArrayClass) == JNI_TRUE) {
-			numByteArrays++;
-		} else if((*jEnv)->IsInstanceOf(jEnv, obj, stringClass) == JNI_TRUE) {
-			numStrings++;
+		objs[i] = obj;
+		pinned[i] = NULL;
+		filled = i + 1;
+
+		if(obj == NULL) {
+			goto cleanup;
+		} else if((*jEnv)->IsInstanceOf(jEnv, obj, ids.byteArrayClass) == JNI_TRUE) {
+			pinned[i] = (*jEnv)->GetByteArrayElements(jEnv, obj, NULL);
+			if(pinned[i] == NULL) {
+				goto cleanup;
+			}
+			iov[i].iov_base = pinned[i];
+			iov[i].iov_len = (*jEnv)->GetArrayLength(jEnv, obj);
+		} else if((*jEnv)->IsInstanceOf(jEnv, obj, ids.byteBufferClass) == JNI_TRUE) {
+			if(buffer_iovec(jEnv, obj, &iov[i]) != 0) {
+				goto cleanup;
+			}
+		} else if((*jEnv)->IsInstanceOf(jEnv, obj, ids.stringClass) == JNI_TRUE) {
+			pinned[i] = (void*)(*jEnv)->GetStringUTFChars(jEnv, obj, NULL);
+			if(pinned[i] == NULL) {
+				goto cleanup;
+			}
+			iov[i].iov_base = pinned[i];
+			iov[i].iov_len = strlen((const char*)pinned[i]);
+		} else if((*jEnv)->IsInstanceOf(jEnv, obj, ids.shortClass) == JNI_TRUE) {
+			uint16_t v = (uint16_t)(*jEnv)->CallShortMethod(jEnv, obj, ids.shortValue);
+			memcpy(&scalars[i], &v, sizeof(v));
+			iov[i].iov_base = &scalars[i];
+			iov[i].iov_len = sizeof(v);
+		} else if((*jEnv)->IsInstanceOf(jEnv, obj, ids.intClass) == JNI_TRUE) {
+			uint32_t v = (uint32_t)(*jEnv)->CallIntMethod(jEnv, obj, ids.intValue);
+			memcpy(&scalars[i], &v, sizeof(v));
+			iov[i].iov_base = &scalars[i];
+			iov[i].iov_len = sizeof(v);
+		} else if((*jEnv)->IsInstanceOf(jEnv, obj, ids.longClass) == JNI_TRUE) {
+			uint64_t v = (uint64_t)(*jEnv)->CallLongMethod(jEnv, obj, ids.longValue);
+			memcpy(&scalars[i], &v, sizeof(v));
+			iov[i].iov_base = &scalars[i];
+			iov[i].iov_len = sizeof(v);
+		} else {
+			// The class type sent isn't handled
+			goto cleanup;
 		}
 	}
 
-	uint16_t *shortVals = (uint16_t*) malloc(numShorts * sizeof(uint16_t));
-	uint32_t *intVals = (uint32_t*) malloc(numInts * sizeof(uint32_t));
-	uint64_t *longVals = (uint64_t*) malloc(numLongs * sizeof(uint64_t));
-	uint8_t **byteArrayVals = (uint8_t**) malloc(numByteArrays * sizeof(uint8_t*));
-	const char **stringVals = (const char**) malloc(numStrings * sizeof(const char*));
-	jobject *objs = (jobject*) malloc(numByteArrays * sizeof(jobject*));
-
-	int shortCounter = 0;
-	int intCounter = 0;
-	int longCounter = 0;
-	int byteArraysCounter = 0;
-	int stringCounter = 0;
-
-	for(i = 0; i < iovLen; i++) {
-
-		jobject obj = (*jEnv)->GetObjectArrayElement(jEnv, iovArray, i);
-
-		if((*jEnv)->IsInstanceOf(jEnv, obj, shortClass) == JNI_TRUE) {
-			jmethodID shortValueMID = (*jEnv)->GetMethodID(jEnv, shortClass, "shortValue", "()S");
-			shortVals[shortCounter] = (uint16_t)(*jEnv)->CallShortMethod(jEnv, obj, shortValueMID);
-
-			iov[i].iov_base = &shortVals[shortCounter];
-			iov[i].iov_len = sizeof(shortVals[shortCounter]);
+	// Get the open FileDescriptor or the filePath from the message header, if any
+	jobject fileDescriptor = (*jEnv)->CallObjectMethod(jEnv, messageHeader, ids.getFileDescriptor);
+	jstring filePath = (jstring)(*jEnv)->CallObjectMethod(jEnv, messageHeader, ids.getFilePath);
 
-			shortCounter++;
-
-		} else if((*jEnv)->IsInstanceOf(jEnv, obj, intClass) == JNI_TRUE) {
-			jmethodID intValueMID = (*jEnv)->GetMethodID(jEnv, intClass, "intValue", "()I");
-			intVals[intCounter] = (uint32_t)(*jEnv)->CallIntMethod(jEnv, obj, intValueMID);
+	char buffer[CMSG_SPACE(sizeof(fd))];
+	if(fileDescriptor != NULL || filePath != NULL) {
+		fd = message_fd(jEnv, fileDescriptor, filePath, &opened);
+		if(fd == -1) {
+			goto cleanup;
+		}
+		attach_fd(fd, &msgh, buffer, sizeof(buffer));
+	}
 
-			iov[i].iov_base = &intVals[intCounter];
-			iov[i].iov_len = sizeof(intVals[intCounter]);
+	bytes_sent = sendmsg_fully(jSocketFileHandle, &msgh);
 
-			intCounter++;
+	if(bytes_sent == -1) {
+		perror("nativeSendmsg: sendmsg");
+	}
 
-		} else if((*jEnv)->IsInstanceOf(jEnv, obj, longClass) == JNI_TRUE) {
-			jmethodID longValueMID = (*jEnv)->GetMethodID(jEnv, longClass, "longValue", "()J");
-			longVals[longCounter] = (uint64_t)(*jEnv)->CallLongMethod(jEnv, obj, longValueMID);
+cleanup:
+	if(opened) {
+		close(fd);
+	}
+	for(i = 0; i < filled; i++) {
+		if(pinned[i] != NULL) {
+			if((*jEnv)->IsInstanceOf(jEnv, objs[i], ids.byteArrayClass) == JNI_TRUE) {
+				(*jEnv)->ReleaseByteArrayElements(jEnv, objs[i], (jbyte*)pinned[i], JNI_ABORT);
+			} else {
+				(*jEnv)->ReleaseStringUTFChars(jEnv, objs[i], (const char*)pinned[i]);
+			}
+		}
+		if(objs[i] != NULL) {
+			(*jEnv)->DeleteLocalRef(jEnv, objs[i]);
+		}
+	}
 
-			iov[i].iov_base = &longVals[longCounter];
-			iov[i].iov_len = sizeof(longVals[longCounter]);
+	// return bytes_sent, will be -1 if there was an error
+	return bytes_sent;
+}
 
-			longCounter++;
+JNIEXPORT jlong JNICALL
+Java_com_etsy_net_UnixDomainSocket_nativeSendBuffers(JNIEnv * jEnv,
+                               jclass jClass,
+                               jint jSocketFileHandle,
+                               jobjectArray buffers,
+                               jstring filePath,
+                               jobject fileDescriptor)
+{
+	int count = (*jEnv)->GetArrayLength(jEnv, buffers);
+	if(count > IOV_MAX) {
+		return -1;
+	}
 
-		} else if((*jEnv)->IsInstanceOf(jEnv, obj, byteArrayClass) == JNI_TRUE) {
+	struct msghdr msgh;
+	memset(&msgh, 0, sizeof(msgh));
+	struct iovec iov[count > 0 ? count : 1];
+	msgh.msg_iovlen = count;
+	msgh.msg_iov = iov;
 
-			objs[byteArraysCounter] = obj;
-			byteArrayVals[byteArraysCounter] = (*jEnv)->GetByteArrayElements(jEnv, obj, NULL);
-			int arrayLen = (*jEnv)->GetArrayLength(jEnv, obj);
+	int i;
+	for(i = 0; i < count; i++) {
+		jobject buf = (*jEnv)->GetObjectArrayElement(jEnv, buffers, i);
+		int rc = buffer_iovec(jEnv, buf, &iov[i]);
+		(*jEnv)->DeleteLocalRef(jEnv, buf);
+		if(rc != 0) {
+			return -1;
+		}
+	}
 
-			iov[i].iov_base = (void*)byteArrayVals[byteArraysCounter];
-			iov[i].iov_len = arrayLen;
+	int fd = -1;
+	int opened = 0;
+	char buffer[CMSG_SPACE(sizeof(fd))];
+	if(fileDescriptor != NULL || filePath != NULL) {
+		fd = message_fd(jEnv, fileDescriptor, filePath, &opened);
+		if(fd == -1) {
+			return -1;
+		}
+		attach_fd(fd, &msgh, buffer, sizeof(buffer));
+	}
 
-			byteArraysCounter++;
+	ssize_t bytes_sent = sendmsg_fully(jSocketFileHandle, &msgh);
+	if(bytes_sent == -1) {
+		perror("nativeSendBuffers: sendmsg");
+	}
+	if(opened) {
+		close(fd);
+	}
+	return bytes_sent;
+}
 
-		} else if((*jEnv)->IsInstanceOf(jEnv, obj, stringClass) == JNI_TRUE) {
+/* Sends count bytes of the open file, starting at offset, with sendfile so the
+ * bytes go from the page cache to the socket without being copied into the
+ * process. Returns the number of bytes sent, which is less than count only if
+ * the file ended first, -1 on error, or -2 if nothing was sent because
+ * sendfile is not available on this platform or for this file. */
+JNIEXPORT jlong JNICALL
+Java_com_etsy_net_UnixDomainSocket_nativeSendfile(JNIEnv * jEnv,
+                               jclass jClass,
+                               jint jSocketFileHandle,
+                               jobject fileDescriptor,
+                               jlong offset,
+                               jlong count)
+{
+#ifdef __linux__
+	if(ids.fileDescriptorFd == NULL) {
+		return -2;
+	}
+	int in = (*jEnv)->GetIntField(jEnv, fileDescriptor, ids.fileDescriptorFd);
+	off_t off = (off_t)offset;
+	jlong total = 0;
+
+	while(total < count) {
+		size_t chunk = (count - total) > SENDFILE_MAX ? SENDFILE_MAX : (size_t)(count - total);
+		ssize_t sent = sendfile(jSocketFileHandle, in, &off, chunk);
+		if(sent == -1) {
+			if(errno == EINTR) {
+				continue;
+			}
+			if(total == 0 && (errno == EINVAL || errno == ENOSYS)) {
+				return -2;
+			}
+			perror("nativeSendfile: sendfile");
+			return -1;
+		}
+		if(sent == 0) {
+			break;
+		}
+		total += sent;
+	}
+	return total;
+#else
+	return -2;
+#endif
+}
 
-			stringVals[stringCounter] = (*jEnv)->GetStringUTFChars(jEnv, obj, NULL);
+#ifdef __linux__
+#ifndef MFD_CLOEXEC
+#define MFD_CLOEXEC 0x0001U
+#endif
+#ifndef MFD_ALLOW_SEALING
+#define MFD_ALLOW_SEALING 0x0002U
+#endif
 
-			iov[i].iov_base = (char*)stringVals[stringCounter];
-			iov[i].iov_len = strlen(stringVals[stringCounter]);
+/* Bytes copied out of the Java array for each write */
+#define MEMFD_CHUNK 16384
 
-			stringCounter++;
+#ifndef F_ADD_SEALS
+#define F_ADD_SEALS 1033
+#define F_SEAL_SEAL 0x0001
+#define F_SEAL_SHRINK 0x0002
+#define F_SEAL_GROW 0x0004
+#define F_SEAL_WRITE 0x0008
+#endif
+#endif
 
-		} else {
-			// Return -1 because the class type sent isn't handled
-			return -1;
+/* Creates a sealed anonymous file with length bytes of data from offset and
+ * stores its descriptor in fileDescriptor. The bytes are written in small
+ * chunks copied out of the Java array, which is faster than faulting in the
+ * pages of a mapping and doesn't hold up the garbage collector the way a
+ * critical section over the whole array would. Returns 0 on success, -1 on
+ * error, or -2 if memfd_create or sealing is not available. */
+JNIEXPORT jint JNICALL
+Java_com_etsy_net_UnixDomainSocket_nativeMemfd(JNIEnv * jEnv,
+                               jclass jClass,
+                               jstring name,
+                               jbyteArray data,
+                               jint offset,
+                               jint length,
+                               jobject fileDescriptor)
+{
+#if defined(__linux__) && defined(SYS_memfd_create)
+	if(ids.fileDescriptorFd == NULL) {
+		return -2;
+	}
+	const char *cName = (*jEnv)->GetStringUTFChars(jEnv, name, NULL);
+	if(cName == NULL) {
+		return -1;
+	}
+	int fd = (int)syscall(SYS_memfd_create, cName, MFD_CLOEXEC | MFD_ALLOW_SEALING);
+	(*jEnv)->ReleaseStringUTFChars(jEnv, name, cName);
+	if(fd == -1) {
+		if(errno == ENOSYS || errno == EINVAL) {
+			return -2;
 		}
+		perror("nativeMemfd: memfd_create");
+		return -1;
 	}
 
-	// Get the filePath from the message header, if any
-	jmethodID mGetFilePath = (*jEnv)->GetMethodID(jEnv, msghCls, "getFilePath", "()Ljava/lang/String;");
-	jstring filePath = (jobjectArray)(*jEnv)->CallObjectMethod(jEnv, messageHeader, mGetFilePath);
-
-	if(filePath != NULL) {
+	jbyte chunk[MEMFD_CHUNK];
+	jint written = 0;
+	while(written < length) {
+		jint count = length - written > MEMFD_CHUNK ? MEMFD_CHUNK : length - written;
+		(*jEnv)->GetByteArrayRegion(jEnv, data, offset + written, count, chunk);
+		jint done = 0;
+		while(done < count) {
+			ssize_t n = write(fd, chunk + done, count - done);
+			if(n == -1 && errno == EINTR) {
+				continue;
+			}
+			if(n <= 0) {
+				perror("nativeMemfd: write");
+				close(fd);
+				return -1;
+			}
+			done += n;
+		}
+		written += count;
+	}
 
-		const char *path = (*jEnv)->GetStringUTFChars(jEnv, filePath, NULL);
-		int fd = open(path, O_RDONLY);
+	/* The receiver shares the file offset, and reads from the start */
+	if(lseek(fd, 0, SEEK_SET) == -1) {
+		perror("nativeMemfd: lseek");
+		close(fd);
+		return -1;
+	}
 
-		if(fd == -1) {
-			return -1;
+	if(fcntl(fd, F_ADD_SEALS, F_SEAL_SHRINK | F_SEAL_GROW | F_SEAL_WRITE | F_SEAL_SEAL) == -1) {
+		int err = errno;
+		close(fd);
+		if(err == EINVAL) {
+			return -2;
 		}
+		errno = err;
+		perror("nativeMemfd: fcntl");
+		return -1;
+	}
 
-		char buffer[CMSG_SPACE(sizeof(fd))];
-		struct cmsghdr *cmsg;
-		int *fdptr;
-
-		msgh.msg_control = buffer;
-		msgh.msg_controllen = sizeof(buffer);
+	(*jEnv)->SetIntField(jEnv, fileDescriptor, ids.fileDescriptorFd, fd);
+	return 0;
+#else
+	return -2;
+#endif
+}
 
-		cmsg = CMSG_FIRSTHDR(&msgh);
-		cmsg->cmsg_level = SOL_SOCKET;
-		cmsg->cmsg_type = SCM_RIGHTS;
-		cmsg->cmsg_len = CMSG_LEN(sizeof(fd));
-		fdptr = (int *) CMSG_DATA(cmsg);
-		memcpy(fdptr, &fd, sizeof(fd));
-		msgh.msg_controllen = cmsg->cmsg_len;
+/* The most descriptors nativeRecvmsg accepts from one recvmsg call. A producer
+ * passes one per record, and a stream socket returns from recvmsg right after
+ * the data the descriptors were sent with. */
+#define RECV_MAX_FDS 16
 
-		free((char*)path);
+/* Receives up to the bytes remaining in a direct ByteBuffer with recvmsg.
+ * Descriptors passed with SCM_RIGHTS are stored in fds as FileDescriptor
+ * objects, in the order they were sent. Any that don't fit in fds are closed.
+ * Returns the number of bytes received, 0 at the end of the stream, or -1 on
+ * error. */
+JNIEXPORT jint JNICALL
+Java_com_etsy_net_UnixDomainSocket_nativeRecvmsg(JNIEnv * jEnv,
+                               jclass jClass,
+                               jint jSocketFileHandle,
+                               jobject buf,
+                               jobjectArray fds)
+{
+	struct iovec iov;
+	if(buffer_iovec(jEnv, buf, &iov) != 0) {
+		return -1;
 	}
 
+	union {
+		struct cmsghdr align;
+		char buffer[CMSG_SPACE(sizeof(int) * RECV_MAX_FDS)];
+	} control;
+
+	struct msghdr msgh;
+	memset(&msgh, 0, sizeof(msgh));
+	msgh.msg_iov = &iov;
+	msgh.msg_iovlen = 1;
+	msgh.msg_control = control.buffer;
+	msgh.msg_controllen = sizeof(control.buffer);
+
 	int flags = 0;
-	ssize_t bytes_sent = sendmsg(jSocketFileHandle, &msgh, flags);
+#ifdef MSG_CMSG_CLOEXEC
+	flags |= MSG_CMSG_CLOEXEC;
+#endif
 
-	ASSERTNOERR(bytes_sent == -1, "nativeSendmsg: sendmsg");
+	ssize_t count;
+	do {
+		count = recvmsg(jSocketFileHandle, &msgh, flags);
+	} while(count == -1 && errno == EINTR);
 
-	for(i = 0; i < numByteArrays; i++) {
-		(*jEnv)->ReleaseByteArrayElements(jEnv,  objs[i], byteArrayVals[i], JNI_ABORT);
+	if(count == -1) {
+		perror("nativeRecvmsg: recvmsg");
+		return -1;
 	}
 
-	for(i = 0; i < numStrings; i++) {
-		free((char*)stringVals[i]);
+	jsize slots = fds == NULL ? 0 : (*jEnv)->GetArrayLength(jEnv, fds);
+	jsize filled = 0;
+	struct cmsghdr *cmsg;
+	for(cmsg = CMSG_FIRSTHDR(&msgh); cmsg != NULL; cmsg = CMSG_NXTHDR(&msgh, cmsg)) {
+		if(cmsg->cmsg_level != SOL_SOCKET || cmsg->cmsg_type != SCM_RIGHTS) {
+			continue;
+		}
+		size_t n = (cmsg->cmsg_len - CMSG_LEN(0)) / sizeof(int);
+		size_t i;
+		for(i = 0; i < n; i++) {
+			int received;
+			memcpy(&received, CMSG_DATA(cmsg) + i * sizeof(int), sizeof(int));
+
+			jobject fdObj = NULL;
+			if(filled < slots && ids.fileDescriptorClass != NULL
+					&& !(*jEnv)->ExceptionCheck(jEnv)) {
+				fdObj = (*jEnv)->NewObject(jEnv, ids.fileDescriptorClass, ids.fileDescriptorInit);
+			}
+			if(fdObj == NULL) {
+				close(received);
+				continue;
+			}
+			(*jEnv)->SetIntField(jEnv, fdObj, ids.fileDescriptorFd, received);
+			(*jEnv)->SetObjectArrayElement(jEnv, fds, filled++, fdObj);
+			(*jEnv)->DeleteLocalRef(jEnv, fdObj);
+		}
+	}
+	if(msgh.msg_flags & MSG_CTRUNC) {
+		/* The kernel also sets MSG_CTRUNC when it can't install a passed
+		 * descriptor because this process has run out of them. */
+		fprintf(stderr, "nativeRecvmsg: passed file descriptors were dropped, either more than %d "
+				"were passed at once or this process is out of file descriptors\n", RECV_MAX_FDS);
 	}
 
-	free(shortVals);
-	free(intVals);
-	free(longVals);
-	free(byteArrayVals);
-	free(stringVals);
-	free(objs);
-
-	// return bytes_sent, will be -1 if there was an error
-	return bytes_sent;
+	return (jint)count;
 }
@@ -8,11 +8,14 @@ import java.io.InterruptedIOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.util.Arrays;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 
 /**
  * 
@@ -175,6 +178,8 @@ public abstract class UnixDomainSocket {
 
     protected native static int nativeClose(int nativeSocketFileHandle);
 
+    protected native static int nativePeerClosed(int nativeSocketFileHandle);
+
     protected native static int nativeCloseInput(int nativeSocketFileHandle);
 
     protected native static int nativeCloseOutput(int nativeSocketFileHandle);
@@ -184,11 +189,55 @@ public abstract class UnixDomainSocket {
     protected native static int nativeSendmsg(int nativeSocketFileHandle,
             MessageHeader messageHeader);
 
+    protected native static long nativeSendBuffers(int nativeSocketFileHandle,
+            ByteBuffer[] buffers, String filePath, FileDescriptor fileDescriptor);
+
+    protected native static long nativeSendfile(int nativeSocketFileHandle,
+            FileDescriptor fileDescriptor, long offset, long count);
+
+    protected native static int nativeRecvmsg(int nativeSocketFileHandle,
+            ByteBuffer buffer, FileDescriptor[] fds);
+
+    protected native static int nativeMemfd(String name, byte[] data,
+            int offset, int length, FileDescriptor fileDescriptor);
+
     protected UnixDomainSocket()
     {
     // default constructor
     }
 
+    /**
+     * Creates an anonymous in-memory file holding length bytes of data from
+     * offset, and seals it so its size and contents can't change any more. The
+     * file can then be passed by descriptor like a file on disk, and a receiver
+     * can map it without having to trust the sender to leave it alone.
+     *
+     * @param name		a name for the file, only used for debugging
+     * @param data		the bytes to put in the file
+     * @param offset	the offset in data of the first byte
+     * @param length	the number of bytes
+     * @return a FileDescriptor of the file, open for reading, which the caller
+     *         closes, or null if memfd_create or file sealing is not available
+     * @throws IOException	if the file can't be created
+     */
+    public static FileDescriptor createSealedMemfd(String name, byte[] data, int offset, int length) throws IOException {
+        if (name == null || data == null) {
+            throw new NullPointerException("Name and data must not be null.");
+        }
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        FileDescriptor fileDescriptor = new FileDescriptor();
+        int result = nativeMemfd(name, data, offset, length, fileDescriptor);
+        if (result == -2) {
+            return null;
+        }
+        if (result == -1) {
+            throw new IOException("Unable to create a sealed memory file");
+        }
+        return fileDescriptor;
+    }
+
     protected UnixDomainSocket(int pSocketFileHandle, int pSocketType)
     throws IOException
     {
@@ -244,6 +293,19 @@ public abstract class UnixDomainSocket {
         nativeClose(nativeSocketFileHandle);
     }
 
+    /**
+     * Checks, without blocking or reading anything, whether the other end has
+     * closed the connection, for example because it was restarted. A
+     * connection that has been idle may be closed without the writer knowing
+     * until its next write fails.
+     *
+     * @return true if the connection has been closed by the other end or has
+     *         failed
+     */
+    public boolean isPeerClosed() {
+        return nativePeerClosed(nativeSocketFileHandle) != 0;
+    }
+
     /**
      * Unlink socket file
      */
@@ -254,7 +316,7 @@ public abstract class UnixDomainSocket {
         }
     }
 
-    protected class UnixDomainSocketInputStream extends InputStream {
+    public class UnixDomainSocketInputStream extends InputStream {
         @Override
         public int read() throws IOException {
             byte[] b = new byte[1];
@@ -328,6 +390,43 @@ public abstract class UnixDomainSocket {
             return count;
         }
 
+        /**
+         * Receives bytes into a direct ByteBuffer with recvmsg, along with any file
+         * descriptors the peer passed with them. The bytes are put between the
+         * position and the limit of the buffer and the position is advanced past
+         * them. Received descriptors are stored at the start of fds, in the order
+         * they were sent, and the rest of fds is set to null. Descriptors that
+         * don't fit in fds are closed. The timeout is not used.
+         *
+         * @param buffer	the direct ByteBuffer to receive into
+         * @param fds		the array to store received descriptors in, may be null
+         * @return the number of bytes received, or -1 at the end of the stream
+         * @throws IOException, NullPointerException, IllegalArgumentException
+         */
+        public int recvmsg(ByteBuffer buffer, FileDescriptor[] fds) throws IOException, NullPointerException {
+            if (buffer == null) {
+                throw new NullPointerException("Buffer must not be null.");
+            }
+            if (!buffer.isDirect()) {
+                throw new IllegalArgumentException("Only direct ByteBuffers can be received into.");
+            }
+            if (fds != null) {
+                Arrays.fill(fds, null);
+            }
+            if (!buffer.hasRemaining()) {
+                return 0;
+            }
+            int count = nativeRecvmsg(nativeSocketFileHandle, buffer, fds);
+            if (count == -1) {
+                throw new IOException("Unable to read from Unix domain socket");
+            }
+            if (count == 0) {
+                return -1;
+            }
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
         // Closes the socket input stream
         public void close() throws IOException {
             nativeCloseInput(nativeSocketFileHandle);
@@ -358,21 +457,90 @@ public abstract class UnixDomainSocket {
         }
 
         /**
-         * Checks that message header is not null and then calls nativeSendmsg
+         * Checks that message header is not null and then calls nativeSendmsg. If the
+         * message header holds buffers they are sent as with {@link #sendmsg(ByteBuffer[])}
+         * and its iov is ignored.
          *
-         * @param messageHeader		a MessageHeader object which should contain an iov object array and length
+         * @param messageHeader		a MessageHeader object which should contain an iov object array or direct buffers
          * @throws IOException, NullPointerException
          */
         public void sendmsg(MessageHeader messageHeader) throws IOException, NullPointerException {
             if (messageHeader == null) {
                 throw new NullPointerException("Message Header must not be null.");
             }
+            if (messageHeader.getBuffers() != null) {
+                sendBuffers(messageHeader.getBuffers(), messageHeader.getFilePath(), messageHeader.getFileDescriptor());
+                return;
+            }
             int bytesSent = nativeSendmsg(nativeSocketFileHandle, messageHeader);
             if (bytesSent == -1) {
                 throw new IOException("Unable to write to Unix domain socket");
             }
         }
 
+        /**
+         * Sends the remaining bytes of each buffer, in order, with one gathering
+         * sendmsg. The buffers must be direct so the kernel can read them in place
+         * without the bytes being copied. When this returns the position of every
+         * buffer has been moved to its limit.
+         *
+         * @param buffers	the direct ByteBuffers to send
+         * @return the number of bytes sent
+         * @throws IOException, NullPointerException, IllegalArgumentException
+         */
+        public long sendmsg(ByteBuffer[] buffers) throws IOException, NullPointerException {
+            return sendBuffers(buffers, null, null);
+        }
+
+        private long sendBuffers(ByteBuffer[] buffers, String filePath, FileDescriptor fileDescriptor) throws IOException {
+            if (buffers == null) {
+                throw new NullPointerException("Buffers must not be null.");
+            }
+            for (ByteBuffer buffer : buffers) {
+                if (buffer == null) {
+                    throw new NullPointerException("Buffers must not be null.");
+                }
+                if (!buffer.isDirect()) {
+                    throw new IllegalArgumentException("Only direct ByteBuffers can be sent.");
+                }
+            }
+            long bytesSent = nativeSendBuffers(nativeSocketFileHandle, buffers, filePath, fileDescriptor);
+            if (bytesSent == -1) {
+                throw new IOException("Unable to write to Unix domain socket");
+            }
+            for (ByteBuffer buffer : buffers) {
+                buffer.position(buffer.limit());
+            }
+            return bytesSent;
+        }
+
+        /**
+         * Sends count bytes of an open file, starting at offset, with sendfile, so the
+         * bytes go from the file to the socket inside the kernel. The position of the
+         * file is not changed.
+         *
+         * @param fileDescriptor	the FileDescriptor of the file, open for reading
+         * @param offset			the offset in the file of the first byte to send
+         * @param count				the number of bytes to send
+         * @return the number of bytes sent, which is less than count only if the file
+         *         ended first, or -1 if nothing was sent because sendfile is not
+         *         available on this platform or for this file
+         * @throws IOException, NullPointerException, IllegalArgumentException
+         */
+        public long sendfile(FileDescriptor fileDescriptor, long offset, long count) throws IOException, NullPointerException {
+            if (fileDescriptor == null) {
+                throw new NullPointerException("File descriptor must not be null.");
+            }
+            if (offset < 0 || count < 0) {
+                throw new IllegalArgumentException("Offset and count must not be negative.");
+            }
+            long bytesSent = nativeSendfile(nativeSocketFileHandle, fileDescriptor, offset, count);
+            if (bytesSent == -1) {
+                throw new IOException("Unable to write to Unix domain socket");
+            }
+            return bytesSent == -2 ? -1 : bytesSent;
+        }
+
         // Closes the socket output stream
         public void close() throws IOException {
             nativeCloseOutput(nativeSocketFileHandle);
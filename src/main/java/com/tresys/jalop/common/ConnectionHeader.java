@@ -24,11 +24,20 @@
 
 package com.tresys.jalop.common;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * Holds connection info for sending using sendmsg
  */
 public class ConnectionHeader {
 
+	/**
+	 * The number of bytes {@link #encode(ByteBuffer)} writes: the protocol version and
+	 * message type as 16 bit values, then the data and metadata lengths as 64 bit values.
+	 */
+	public static final int ENCODED_LENGTH = 20;
+
 	short protocolVersion;
 	short messageType;
 	long dataLen;
@@ -122,6 +131,46 @@ public class ConnectionHeader {
 		this.metaLen = metaLen;
 	}
 
+	/**
+	 * Writes the header in its wire layout, in native byte order, at the position of
+	 * dst and advances the position past it. The byte order of dst is set to the
+	 * native order.
+	 *
+	 * @param dst	the buffer to write to, with at least {@link #ENCODED_LENGTH} bytes remaining
+	 * @return	dst
+	 */
+	public ByteBuffer encode(ByteBuffer dst) {
+		dst.order(ByteOrder.nativeOrder());
+		dst.putShort(protocolVersion);
+		dst.putShort(messageType);
+		dst.putLong(dataLen);
+		dst.putLong(metaLen);
+		return dst;
+	}
+
+	/**
+	 * Reads a header written by {@link #encode(ByteBuffer)} from the position of src
+	 * and advances the position past it. The byte order of src is set to the native
+	 * order.
+	 *
+	 * @param src	the buffer to read from, with at least {@link #ENCODED_LENGTH} bytes remaining
+	 * @return	the ConnectionHeader
+	 * @throws JALException	if the message type is not one of the MessageTypes
+	 */
+	public static ConnectionHeader decode(ByteBuffer src) throws JALException {
+		src.order(ByteOrder.nativeOrder());
+		short protocolVersion = src.getShort();
+		short type = src.getShort();
+		long dataLen = src.getLong();
+		long metaLen = src.getLong();
+
+		MessageType messageType = MessageType.fromType(type);
+		if(messageType == null) {
+			throw new JALException("Unknown message type: " + type);
+		}
+		return new ConnectionHeader(protocolVersion, messageType, dataLen, metaLen);
+	}
+
 	/**
 	 * An enum for the different message types
 	 */
@@ -138,6 +187,21 @@ public class ConnectionHeader {
 		}
 
 		private short type() { return type; }
+
+		/**
+		 * Gets the MessageType sent on the socket as the given value
+		 *
+		 * @param type	the value from a connection header
+		 * @return	the MessageType, or null if no type has that value
+		 */
+		public static MessageType fromType(short type) {
+			for(MessageType messageType : values()) {
+				if(messageType.type == type) {
+					return messageType;
+				}
+			}
+			return null;
+		}
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,668 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.common;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A connection to a UNIX domain socket made and used through the Foreign
+ * Function and Memory API, so a file descriptor can be passed with
+ * SCM_RIGHTS without the JUDS native library. The msghdr, iovec and cmsghdr
+ * for sendmsg are built in off-heap memory and libc is called directly.
+ * <p>
+ * jJALoP is built for older releases, so the API is found by reflection
+ * once, when the class is loaded, and every function and memory access used
+ * afterwards is an exactly typed method handle. It is only available on 64
+ * bit Linux with Java 21, where the API is a preview, or later. Only methods
+ * that are the same in Java 21 and 22 are used.
+ * <p>
+ * Java warns the first time a class on the class path calls native code,
+ * and later releases refuse to, unless the JVM is started with
+ * --enable-native-access=ALL-UNNAMED. Passing an already open
+ * FileDescriptor also needs --add-opens java.base/java.io=ALL-UNNAMED;
+ * without it {@link #canPassDescriptors()} is false and callers fall back to
+ * JUDS, or to reopening the file by its path.
+ */
+public final class ForeignUnixSocket {
+
+	private static final int AF_UNIX = 1;
+	private static final int SOCK_STREAM = 1;
+	private static final int SOCK_CLOEXEC = 0x80000;
+	private static final int O_RDONLY = 0;
+	private static final int O_CLOEXEC = 0x80000;
+	private static final int SOL_SOCKET = 1;
+	private static final int SCM_RIGHTS = 1;
+	private static final int MSG_PEEK = 0x2;
+	private static final int MSG_DONTWAIT = 0x40;
+	private static final int MSG_NOSIGNAL = 0x4000;
+	private static final int EINTR = 4;
+	private static final int EAGAIN = 11;
+
+	private static final int SOCKADDR_UN_SIZE = 110;
+	private static final int SUN_PATH_OFFSET = 2;
+	private static final int MSGHDR_SIZE = 56;
+	private static final int IOVEC_SIZE = 16;
+	// CMSG_SPACE(sizeof(int)) and CMSG_LEN(sizeof(int))
+	private static final int CMSG_SPACE = 24;
+	private static final int CMSG_LEN = 20;
+	private static final int MAX_IOV = 64;
+	private static final int PATH_MAX = 4096;
+
+	private static final Field DESCRIPTOR_FD = descriptorField();
+
+	/*
+	 * Each thread keeps one block of native memory for its calls: the msghdr,
+	 * the cmsghdr, the captured errno, the iovecs and a path. It is freed
+	 * when the thread has gone.
+	 */
+	private static final long MSGHDR_OFFSET = 0;
+	private static final long CONTROL_OFFSET = MSGHDR_OFFSET + MSGHDR_SIZE;
+	private static final long STATE_OFFSET = CONTROL_OFFSET + CMSG_SPACE;
+	private static final long IOV_OFFSET = STATE_OFFSET + (Native.STATE_SIZE + 7) / 8 * 8;
+	private static final long PATH_OFFSET = IOV_OFFSET + MAX_IOV * IOVEC_SIZE;
+	private static final long SCRATCH_SIZE = PATH_OFFSET + PATH_MAX;
+
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>();
+
+	private int fd = -1;
+	private boolean closed;
+
+	private ForeignUnixSocket() {
+	}
+
+	/**
+	 * Checks whether the running Java can call libc through the Foreign
+	 * Function and Memory API.
+	 *
+	 * @return true if sockets can be made with {@link #connect(String)}
+	 */
+	public static boolean isAvailable() {
+		return Native.AVAILABLE;
+	}
+
+	/**
+	 * Checks whether an open FileDescriptor can be passed as is, which needs
+	 * java.io to be opened to this class.
+	 *
+	 * @return true if {@link #sendmsg(ByteBuffer[], FileDescriptor, String)}
+	 * 			passes the descriptor it is given
+	 */
+	public static boolean canPassDescriptors() {
+		return DESCRIPTOR_FD != null;
+	}
+
+	/**
+	 * Connects to the socket at socketFile.
+	 *
+	 * @param socketFile	the path to the socket
+	 * @return	the connected ForeignUnixSocket
+	 * @throws IOException	if the connection can't be made
+	 * @throws UnsupportedOperationException	if the API can't be used
+	 */
+	public static ForeignUnixSocket connect(String socketFile) throws IOException {
+		if(!Native.AVAILABLE) {
+			throw new UnsupportedOperationException("The Foreign Function and Memory API is not available");
+		}
+		byte[] sunPath = socketFile.getBytes("utf-8");
+		if(sunPath.length >= SOCKADDR_UN_SIZE - SUN_PATH_OFFSET) {
+			throw new IOException("Socket path is too long: " + socketFile);
+		}
+
+		ForeignUnixSocket socket = new ForeignUnixSocket();
+		try {
+			socket.open(socketFile, sunPath);
+			return socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	private void open(String socketFile, byte[] sunPath) throws IOException {
+		Scratch scratch = scratch();
+		fd = Native.socket(scratch.state, AF_UNIX, SOCK_STREAM | SOCK_CLOEXEC, 0);
+		if(fd < 0) {
+			throw new IOException("socket failed, errno " + Native.errno(scratch.state));
+		}
+
+		// sun_family is a native short, and the supported platforms are little endian
+		byte[] address = new byte[SOCKADDR_UN_SIZE];
+		address[0] = (byte) AF_UNIX;
+		System.arraycopy(sunPath, 0, address, SUN_PATH_OFFSET, sunPath.length);
+		Native.copy(address, scratch.path, 0);
+		int result;
+		do {
+			result = Native.connect(scratch.state, fd, scratch.path, SOCKADDR_UN_SIZE);
+		} while(result < 0 && Native.errno(scratch.state) == EINTR);
+		if(result < 0) {
+			throw new IOException("connect to " + socketFile + " failed, errno " + Native.errno(scratch.state));
+		}
+	}
+
+	/**
+	 * Sends the bytes between the position and limit of each buffer, in order,
+	 * advancing their positions. If filePath is given, the file is opened and
+	 * its descriptor is passed with the first byte, then closed again.
+	 *
+	 * @param buffers	direct buffers to send
+	 * @param filePath	the path of a file to pass by descriptor, or null
+	 * @return	the number of bytes sent
+	 * @throws IOException	if the file can't be opened or sendmsg fails
+	 */
+	public long sendmsg(ByteBuffer[] buffers, String filePath) throws IOException {
+		return sendmsg(buffers, null, filePath);
+	}
+
+	/**
+	 * Sends the bytes between the position and limit of each buffer, in order,
+	 * advancing their positions, and passes an already open file with the first
+	 * byte. The descriptor stays open. Java only lets the number of a
+	 * FileDescriptor be read when java.io is opened to this class, with
+	 * --add-opens java.base/java.io=ALL-UNNAMED; otherwise filePath is opened
+	 * and passed instead, as with {@link #sendmsg(ByteBuffer[], String)}.
+	 *
+	 * @param buffers			direct buffers to send
+	 * @param fileDescriptor	an open file to pass, or null
+	 * @param filePath			the path of the same file, or null
+	 * @return	the number of bytes sent
+	 * @throws IOException	if the file can't be passed or sendmsg fails
+	 */
+	public synchronized long sendmsg(ByteBuffer[] buffers, FileDescriptor fileDescriptor, String filePath) throws IOException {
+		if(closed) {
+			throw new IOException("Socket is closed");
+		}
+		for(ByteBuffer buffer : buffers) {
+			if(!buffer.isDirect()) {
+				throw new IllegalArgumentException("sendmsg needs direct buffers");
+			}
+		}
+
+		Scratch scratch = scratch();
+		int passedFd = descriptorOf(fileDescriptor);
+		if(passedFd >= 0) {
+			return send(scratch, buffers, passedFd);
+		}
+		if(fileDescriptor != null && filePath == null) {
+			throw new IOException("The descriptor can't be read, and no file path was given");
+		}
+
+		int fileFd = -1;
+		if(filePath != null) {
+			byte[] pathBytes = filePath.getBytes("utf-8");
+			if(pathBytes.length >= PATH_MAX) {
+				throw new IOException("Path is too long: " + filePath);
+			}
+			Native.copy(Arrays.copyOf(pathBytes, pathBytes.length + 1), scratch.path, 0);
+			fileFd = Native.open(scratch.state, scratch.path, O_RDONLY | O_CLOEXEC, 0);
+			if(fileFd < 0) {
+				throw new IOException("open " + filePath + " failed, errno " + Native.errno(scratch.state));
+			}
+		}
+		try {
+			return send(scratch, buffers, fileFd);
+		} finally {
+			if(fileFd >= 0) {
+				Native.close(scratch.state, fileFd);
+			}
+		}
+	}
+
+	/*
+	 * Calls sendmsg until every buffer is empty. The descriptor goes with the
+	 * first call only; the receiver gets it with the bytes of that call.
+	 */
+	private long send(Scratch scratch, ByteBuffer[] buffers, int fileFd) throws IOException {
+		Object segment = scratch.segment;
+		boolean control = fileFd >= 0;
+		if(control) {
+			Native.setInt(segment, CONTROL_OFFSET + 16, fileFd);
+		}
+
+		long total = 0;
+		int first = 0;
+		while(true) {
+			while(first < buffers.length && !buffers[first].hasRemaining()) {
+				first++;
+			}
+			int count = 0;
+			for(int i = first; i < buffers.length && count < MAX_IOV; i++) {
+				ByteBuffer buffer = buffers[i];
+				long iov = IOV_OFFSET + count * IOVEC_SIZE;
+				Native.setLong(segment, iov, Native.address(buffer));
+				Native.setLong(segment, iov + 8, buffer.remaining());
+				count++;
+			}
+			if(count == 0 && !control) {
+				return total;
+			}
+			Native.setLong(segment, MSGHDR_OFFSET + 24, count);
+			Native.setLong(segment, MSGHDR_OFFSET + 32, control ? scratch.address + CONTROL_OFFSET : 0);
+			Native.setLong(segment, MSGHDR_OFFSET + 40, control ? CMSG_SPACE : 0);
+
+			long sent = Native.sendmsg(scratch.state, fd, segment, MSG_NOSIGNAL);
+			if(sent < 0) {
+				int errno = Native.errno(scratch.state);
+				if(errno == EINTR) {
+					continue;
+				}
+				throw new IOException("sendmsg failed, errno " + errno);
+			}
+			control = false;
+			total += sent;
+			for(int i = first; i < buffers.length && sent > 0; i++) {
+				int step = (int) Math.min(sent, buffers[i].remaining());
+				buffers[i].position(buffers[i].position() + step);
+				sent -= step;
+			}
+		}
+	}
+
+	/**
+	 * Checks, without blocking or reading anything, whether the other end has
+	 * closed the connection, for example because it was restarted.
+	 *
+	 * @return true if the socket is closed, or the connection has been closed
+	 * 			by the other end or has failed
+	 */
+	public synchronized boolean isPeerClosed() {
+		if(closed) {
+			return true;
+		}
+		try {
+			Scratch scratch = scratch();
+			long count;
+			do {
+				count = Native.recv(scratch.state, fd, scratch.path, 1, MSG_PEEK | MSG_DONTWAIT);
+			} while(count < 0 && Native.errno(scratch.state) == EINTR);
+			return count == 0 || (count < 0 && Native.errno(scratch.state) != EAGAIN);
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private static Scratch scratch() throws IOException {
+		Scratch scratch = SCRATCH.get();
+		if(scratch == null) {
+			scratch = new Scratch();
+			SCRATCH.set(scratch);
+		}
+		return scratch;
+	}
+
+	private static int descriptorOf(FileDescriptor fileDescriptor) {
+		if(fileDescriptor == null || DESCRIPTOR_FD == null || !fileDescriptor.valid()) {
+			return -1;
+		}
+		try {
+			return DESCRIPTOR_FD.getInt(fileDescriptor);
+		} catch (IllegalAccessException e) {
+			return -1;
+		}
+	}
+
+	private static Field descriptorField() {
+		try {
+			Field field = FileDescriptor.class.getDeclaredField("fd");
+			field.setAccessible(true);
+			return field;
+		} catch (Exception e) {
+			// java.io isn't opened to this module
+			return null;
+		}
+	}
+
+	/**
+	 * Closes the socket
+	 */
+	public synchronized void close() {
+		if(!closed) {
+			closed = true;
+			if(fd >= 0) {
+				try {
+					Native.close(scratch().state, fd);
+				} catch (IOException e) {
+					// nothing else can be done with the descriptor
+				}
+			}
+		}
+	}
+
+	/*
+	 * A thread's native memory, with the parts of the msghdr and cmsghdr that
+	 * never change filled in
+	 */
+	private static final class Scratch {
+		final Object segment;
+		final Object state;
+		final Object path;
+		final long address;
+
+		Scratch() throws IOException {
+			segment = Native.allocate(SCRATCH_SIZE);
+			state = Native.slice(segment, STATE_OFFSET, Native.STATE_SIZE);
+			path = Native.slice(segment, PATH_OFFSET, PATH_MAX);
+			address = Native.address(segment);
+			Native.setLong(segment, MSGHDR_OFFSET + 16, address + IOV_OFFSET);
+			Native.setLong(segment, CONTROL_OFFSET, CMSG_LEN);
+			Native.setInt(segment, CONTROL_OFFSET + 8, SOL_SOCKET);
+			Native.setInt(segment, CONTROL_OFFSET + 12, SCM_RIGHTS);
+		}
+	}
+
+	/**
+	 * The libc functions and memory operations, looked up once. Each handle
+	 * has its API types erased to Object so it can be called with
+	 * invokeExact from code compiled without them. Every libc call also
+	 * captures errno, which the JVM may otherwise overwrite before it can be
+	 * read.
+	 */
+	private static final class Native {
+		static final boolean AVAILABLE;
+		static final long STATE_SIZE;
+		static final long ERRNO_OFFSET;
+
+		private static final MethodHandle SOCKET;
+		private static final MethodHandle CONNECT;
+		private static final MethodHandle SENDMSG;
+		private static final MethodHandle OPEN;
+		private static final MethodHandle CLOSE;
+		private static final MethodHandle RECV;
+		private static final MethodHandle OF_AUTO;
+		private static final MethodHandle ALLOCATE;
+		private static final MethodHandle SLICE;
+		private static final MethodHandle ADDRESS;
+		private static final MethodHandle BUFFER_ADDRESS;
+		private static final MethodHandle SET_INT;
+		private static final MethodHandle SET_LONG;
+		private static final MethodHandle GET_INT;
+		private static final MethodHandle COPY_BYTES;
+
+		static {
+			MethodHandle[] handles = new MethodHandle[15];
+			long[] state = new long[2];
+			AVAILABLE = load(handles, state);
+			SOCKET = handles[0];
+			CONNECT = handles[1];
+			SENDMSG = handles[2];
+			OPEN = handles[3];
+			CLOSE = handles[4];
+			OF_AUTO = handles[5];
+			ALLOCATE = handles[6];
+			SLICE = handles[7];
+			ADDRESS = handles[8];
+			BUFFER_ADDRESS = handles[9];
+			SET_INT = handles[10];
+			SET_LONG = handles[11];
+			GET_INT = handles[12];
+			COPY_BYTES = handles[13];
+			RECV = handles[14];
+			STATE_SIZE = state[0];
+			ERRNO_OFFSET = state[1];
+		}
+
+		private static boolean load(MethodHandle[] handles, long[] state) {
+			String os = System.getProperty("os.name", "");
+			String arch = System.getProperty("os.arch", "");
+			if(!os.startsWith("Linux") || !("amd64".equals(arch) || "x86_64".equals(arch) || "aarch64".equals(arch))) {
+				return false;
+			}
+			try {
+				init(handles, state);
+				return true;
+			} catch (Throwable t) {
+				// Before Java 21
+				return false;
+			}
+		}
+
+		private static void init(MethodHandle[] handles, long[] state) throws Exception {
+			Class<?> linkerClass = Class.forName("java.lang.foreign.Linker");
+			Class<?> optionClass = Class.forName("java.lang.foreign.Linker$Option");
+			Class<?> layoutClass = Class.forName("java.lang.foreign.MemoryLayout");
+			Class<?> valueLayoutClass = Class.forName("java.lang.foreign.ValueLayout");
+			Class<?> pathElementClass = Class.forName("java.lang.foreign.MemoryLayout$PathElement");
+			Class<?> descriptorClass = Class.forName("java.lang.foreign.FunctionDescriptor");
+			Class<?> segmentClass = Class.forName("java.lang.foreign.MemorySegment");
+			Class<?> arenaClass = Class.forName("java.lang.foreign.Arena");
+			Class<?> allocatorClass = Class.forName("java.lang.foreign.SegmentAllocator");
+			Class<?> lookupClass = Class.forName("java.lang.foreign.SymbolLookup");
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+			Object javaByte = valueLayoutClass.getField("JAVA_BYTE").get(null);
+			Object javaInt = valueLayoutClass.getField("JAVA_INT").get(null);
+			Object javaLong = valueLayoutClass.getField("JAVA_LONG").get(null);
+			Object addressLayout = valueLayoutClass.getField("ADDRESS").get(null);
+
+			Object linker = linkerClass.getMethod("nativeLinker").invoke(null);
+			Object symbols = linkerClass.getMethod("defaultLookup").invoke(linker);
+			Method find = lookupClass.getMethod("find", String.class);
+
+			Object captureErrno = optionClass.getMethod("captureCallState", String[].class)
+					.invoke(null, (Object) new String[] { "errno" });
+			Object stateLayout = optionClass.getMethod("captureStateLayout").invoke(null);
+			state[0] = ((Long) layoutClass.getMethod("byteSize").invoke(stateLayout)).longValue();
+			Object[] path = (Object[]) Array.newInstance(pathElementClass, 1);
+			path[0] = pathElementClass.getMethod("groupElement", String.class).invoke(null, "errno");
+			state[1] = ((Long) layoutClass.getMethod("byteOffset", path.getClass()).invoke(stateLayout, (Object) path)).longValue();
+
+			Method of = descriptorClass.getMethod("of", layoutClass, Array.newInstance(layoutClass, 0).getClass());
+			Method downcall = linkerClass.getMethod("downcallHandle", segmentClass, descriptorClass,
+					Array.newInstance(optionClass, 0).getClass());
+
+			Object[] options = (Object[]) Array.newInstance(optionClass, 1);
+			options[0] = captureErrno;
+			Object[] openOptions = (Object[]) Array.newInstance(optionClass, 2);
+			openOptions[0] = captureErrno;
+			openOptions[1] = optionClass.getMethod("firstVariadicArg", int.class).invoke(null, 2);
+
+			handles[0] = downcall(downcall, linker, find, symbols, "socket", options,
+					of.invoke(null, javaInt, layouts(layoutClass, javaInt, javaInt, javaInt)));
+			handles[1] = downcall(downcall, linker, find, symbols, "connect", options,
+					of.invoke(null, javaInt, layouts(layoutClass, javaInt, addressLayout, javaInt)));
+			handles[2] = downcall(downcall, linker, find, symbols, "sendmsg", options,
+					of.invoke(null, javaLong, layouts(layoutClass, javaInt, addressLayout, javaInt)));
+			handles[3] = downcall(downcall, linker, find, symbols, "open", openOptions,
+					of.invoke(null, javaInt, layouts(layoutClass, addressLayout, javaInt, javaInt)));
+			handles[4] = downcall(downcall, linker, find, symbols, "close", options,
+					of.invoke(null, javaInt, layouts(layoutClass, javaInt)));
+			handles[14] = downcall(downcall, linker, find, symbols, "recv", options,
+					of.invoke(null, javaLong, layouts(layoutClass, javaInt, addressLayout, javaLong, javaInt)));
+
+			handles[5] = erase(lookup.unreflect(arenaClass.getMethod("ofAuto")));
+			handles[6] = erase(lookup.unreflect(allocatorClass.getMethod("allocate", long.class, long.class)));
+			handles[7] = erase(lookup.unreflect(segmentClass.getMethod("asSlice", long.class, long.class)));
+			MethodHandle address = lookup.unreflect(segmentClass.getMethod("address"));
+			handles[8] = erase(address);
+			// The address of a buffer's position, without keeping its segment
+			handles[9] = erase(MethodHandles.filterReturnValue(
+					lookup.unreflect(segmentClass.getMethod("ofBuffer", Buffer.class)), address));
+			handles[10] = erase(MethodHandles.insertArguments(lookup.unreflect(segmentClass.getMethod("set",
+					Class.forName("java.lang.foreign.ValueLayout$OfInt"), long.class, int.class)), 1, javaInt));
+			handles[11] = erase(MethodHandles.insertArguments(lookup.unreflect(segmentClass.getMethod("set",
+					Class.forName("java.lang.foreign.ValueLayout$OfLong"), long.class, long.class)), 1, javaLong));
+			handles[12] = erase(MethodHandles.insertArguments(lookup.unreflect(segmentClass.getMethod("get",
+					Class.forName("java.lang.foreign.ValueLayout$OfInt"), long.class)), 1, javaInt));
+			handles[13] = erase(MethodHandles.insertArguments(lookup.unreflect(segmentClass.getMethod("copy",
+					Object.class, int.class, segmentClass, valueLayoutClass, long.class, int.class)), 3, javaByte));
+		}
+
+		private static Object layouts(Class<?> layoutClass, Object... layouts) {
+			Object array = Array.newInstance(layoutClass, layouts.length);
+			for(int i = 0; i < layouts.length; i++) {
+				Array.set(array, i, layouts[i]);
+			}
+			return array;
+		}
+
+		private static MethodHandle downcall(Method downcall, Object linker, Method find, Object symbols,
+				String name, Object[] options, Object descriptor) throws Exception {
+			Object symbol = find.invoke(symbols, name);
+			Object segment = symbol.getClass().getMethod("get").invoke(symbol);
+			return erase((MethodHandle) downcall.invoke(linker, segment, descriptor, options));
+		}
+
+		private static MethodHandle erase(MethodHandle handle) {
+			MethodType type = handle.type();
+			return handle.asType(type.erase());
+		}
+
+		static int socket(Object state, int domain, int type, int protocol) throws IOException {
+			try {
+				return (int) SOCKET.invokeExact(state, domain, type, protocol);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		static int connect(Object state, int fd, Object address, int length) throws IOException {
+			try {
+				return (int) CONNECT.invokeExact(state, fd, address, length);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		static long sendmsg(Object state, int fd, Object message, int flags) throws IOException {
+			try {
+				return (long) SENDMSG.invokeExact(state, fd, message, flags);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		static int open(Object state, Object path, int flags, int mode) throws IOException {
+			try {
+				return (int) OPEN.invokeExact(state, path, flags, mode);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		static int close(Object state, int fd) throws IOException {
+			try {
+				return (int) CLOSE.invokeExact(state, fd);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		static long recv(Object state, int fd, Object buffer, long length, int flags) throws IOException {
+			try {
+				return (long) RECV.invokeExact(state, fd, buffer, length, flags);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		/*
+		 * Allocates zeroed memory that is freed once it can't be reached
+		 */
+		static Object allocate(long size) throws IOException {
+			try {
+				Object arena = (Object) OF_AUTO.invokeExact();
+				return (Object) ALLOCATE.invokeExact(arena, size, 8L);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		static Object slice(Object segment, long offset, long size) throws IOException {
+			try {
+				return (Object) SLICE.invokeExact(segment, offset, size);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		static long address(Object segment) throws IOException {
+			try {
+				return (long) ADDRESS.invokeExact(segment);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		static long address(ByteBuffer buffer) throws IOException {
+			try {
+				return (long) BUFFER_ADDRESS.invokeExact((Object) buffer);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		static void setInt(Object segment, long offset, int value) throws IOException {
+			try {
+				SET_INT.invokeExact(segment, offset, value);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		static void setLong(Object segment, long offset, long value) throws IOException {
+			try {
+				SET_LONG.invokeExact(segment, offset, value);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		static int errno(Object state) throws IOException {
+			try {
+				return (int) GET_INT.invokeExact(state, ERRNO_OFFSET);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		static void copy(byte[] bytes, Object segment, long offset) throws IOException {
+			try {
+				COPY_BYTES.invokeExact((Object) bytes, 0, segment, offset, bytes.length);
+			} catch (Throwable t) {
+				throw failure(t);
+			}
+		}
+
+		private static IOException failure(Throwable t) {
+			if(t instanceof RuntimeException) {
+				throw (RuntimeException) t;
+			}
+			if(t instanceof Error) {
+				throw (Error) t;
+			}
+			return new IOException(t);
+		}
+	}
+}
@@ -26,55 +26,48 @@ package com.tresys.jalop.common;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
-import java.security.cert.X509Certificate;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.GregorianCalendar;
-import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
-import javax.xml.XMLConstants;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
+import javax.xml.bind.MarshalException;
+import javax.xml.bind.DatatypeConverter;
 import javax.xml.bind.Marshaller;
-import javax.xml.crypto.dsig.CanonicalizationMethod;
 import javax.xml.crypto.dsig.DigestMethod;
 import javax.xml.crypto.dsig.Reference;
-import javax.xml.crypto.dsig.SignatureMethod;
-import javax.xml.crypto.dsig.SignedInfo;
 import javax.xml.crypto.dsig.Transform;
 import javax.xml.crypto.dsig.XMLSignature;
-import javax.xml.crypto.dsig.XMLSignatureFactory;
-import javax.xml.crypto.dsig.dom.DOMSignContext;
-import javax.xml.crypto.dsig.keyinfo.KeyInfo;
-import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
-import javax.xml.crypto.dsig.keyinfo.KeyValue;
-import javax.xml.crypto.dsig.keyinfo.X509Data;
-import javax.xml.crypto.dsig.keyinfo.X509IssuerSerial;
-import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
-import javax.xml.crypto.dsig.spec.TransformParameterSpec;
-import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 
+import com.etsy.net.UnixDomainSocket;
 import com.etsy.net.UnixDomainSocketClient;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import com.tresys.jalop.common.ConnectionHeader.MessageType;
 import com.tresys.jalop.producer.ApplicationMetadataXML;
+import com.tresys.jalop.producer.ConnectionPool;
 import com.tresys.jalop.producer.Producer;
+import com.tresys.jalop.producer.RecordSpool;
+import com.tresys.jalop.producer.Request;
+import com.tresys.jalop.producer.ValidationMetrics;
 import com.tresys.jalop.schemas.org.w3._2000._09.xmldsig_.DigestMethodType;
 import com.tresys.jalop.schemas.org.w3._2000._09.xmldsig_.ManifestType;
 import com.tresys.jalop.schemas.org.w3._2000._09.xmldsig_.ObjectFactory;
@@ -89,84 +82,547 @@ public class JALUtils {
 
 	public static final String SCHEMA_LOCATION = "/com/tresys/jalop/applicationMetadataTypes.xsd";
 
+	private static final String PAYLOAD_REFERENCE_URI = "jalop:payload";
+	private static final String AUDIT_TRANSFORM_ALGORITHM = "http://www.w3.org/TR/2001/REC-xml-c14n-20010315#WithComments";
+
+	private static final Map<Producer, SigningEngine> signingEngines = new WeakHashMap<Producer, SigningEngine>();
+
 	/**
-	 * Starts the send process. Creates InputStreams and calls methods to create the document and send.
+	 * Starts the send process for the Producer's xml and last message type.
 	 *
 	 * @param producer	the Producer
 	 * @param file		a File which contains the buffer
 	 * @throws Exception
+	 * @deprecated	use {@link #processSend(Request, File)} with a Request from
+	 * 				{@link Producer#createRequest(MessageType)}
 	 */
+	@Deprecated
 	public static void processSend(Producer producer, File file) throws Exception {
+		processSend(producer.createRequest(producer.getMessageType()), file);
+	}
 
-		InputStream digestStream =  new FileInputStream(file);
-		Document doc = processXML(producer, digestStream);
+	/**
+	 * Starts the send process for the Producer's xml and last message type.
+	 *
+	 * @param producer	the Producer
+	 * @param buffer	a String which is the buffer
+	 * @throws Exception
+	 * @deprecated	use {@link #processSend(Request, String)} with a Request from
+	 * 				{@link Producer#createRequest(MessageType)}
+	 */
+	@Deprecated
+	public static void processSend(Producer producer, String buffer) throws Exception {
+		processSend(producer.createRequest(producer.getMessageType()), buffer);
+	}
 
-		if(producer.getMessageType().equals(MessageType.JALP_JOURNAL_FD_MSG)) {
-			send(doc, producer.getSocket(), null, file, file.length(), producer.getMessageType());
-		} else {
-			InputStream sendStream = new FileInputStream(file);
-			send(doc, producer.getSocket(), sendStream, null, file.length(), producer.getMessageType());
+	/**
+	 * Starts the send process. Creates InputStreams and calls methods to create the document and send.
+	 * If the Producer has single pass digests turned on, the payload is digested while it
+	 * is being sent instead of being read once for the digest and again for the send.
+	 *
+	 * @param request	the Request for the record
+	 * @param file		a File which contains the buffer
+	 * @throws Exception
+	 */
+	public static void processSend(Request request, File file) throws Exception {
+
+		if(request != null && request.isSinglePassDigest() && request.getSpool() == null && request.getXml() != null
+				&& request.getDigestMethod() != null
+				&& !MessageType.JALP_JOURNAL_FD_MSG.equals(request.getMessageType())) {
+			processSinglePassSend(request, file);
+			return;
+		}
+
+		if(MessageType.JALP_JOURNAL_FD_MSG.equals(request.getMessageType())) {
+			// The file is opened once, for the digest and the descriptor that is passed.
+			FileInputStream fileStream = new FileInputStream(file);
+			try {
+				processSend(request, fileStream, file);
+			} finally {
+				closeQuietly(fileStream);
+			}
+			return;
+		}
+
+		InputStream digestStream = null;
+		InputStream sendStream = null;
+		try {
+			if(request != null && request.getDigestMethod() != null) {
+				digestStream = new FileInputStream(file);
+			}
+			byte[] meta = createMetadata(request, digestStream);
+
+			sendStream = new FileInputStream(file);
+			sendRecord(request, meta, sendStream, null, null, file.length());
+		} finally {
+			closeQuietly(digestStream);
+			closeQuietly(sendStream);
 		}
 	}
 
+	/**
+	 * Starts the send process for a JALP_JOURNAL_FD_MSG record whose file is already
+	 * open. The digest is read from the stream's channel and its descriptor is the
+	 * one passed to the local store, so the file is not opened again. The stream
+	 * stays open and its position is not changed; the local store reads the
+	 * descriptor from that position, so it should be at the start of the file.
+	 *
+	 * @param request		the Request for the record
+	 * @param fileStream	an open FileInputStream for the buffer
+	 * @param file			the File fileStream was opened on, or null if unknown
+	 * @throws Exception
+	 */
+	public static void processSend(Request request, FileInputStream fileStream, File file) throws Exception {
+		FileChannel fileChannel = fileStream.getChannel();
+		InputStream digestStream = null;
+		if(request != null && request.getDigestMethod() != null) {
+			digestStream = new PositionalInputStream(fileChannel);
+		}
+		byte[] meta = createMetadata(request, digestStream);
+		sendRecord(request, meta, null, file, fileStream.getFD(), fileChannel.size());
+	}
+
 	/**
 	 * Starts the send process. Creates InputStreams and calls methods to create the document and send.
+	 * The buffer is only encoded once; the digest and the send read from the same bytes.
+	 * A journal buffer of at least the Request's memfd threshold is sent in a sealed memory file,
+	 * see {@link Producer#setMemfdThreshold(long)}.
 	 *
-	 * @param producer	the Producer
+	 * @param request	the Request for the record
 	 * @param buffer	a String which is the buffer
 	 * @throws Exception
 	 */
-	public static void processSend(Producer producer, String buffer) throws Exception {
+	public static void processSend(Request request, String buffer) throws Exception {
 
+		byte[] bufferBytes = null;
 		InputStream digestStream = null;
 		if(buffer != null) {
-			digestStream = new ByteArrayInputStream(buffer.getBytes());
+			bufferBytes = buffer.getBytes();
+			digestStream = new ByteArrayInputStream(bufferBytes);
+		}
+
+		FileDescriptor memfd = null;
+		if(bufferBytes != null && MessageType.JALP_JOURNAL_MSG.equals(request.getMessageType())
+				&& request.getMemfdThreshold() > 0 && bufferBytes.length >= request.getMemfdThreshold()) {
+			memfd = UnixDomainSocket.createSealedMemfd("jalop-journal", bufferBytes, 0, bufferBytes.length);
+		}
+		if(memfd != null) {
+			FileInputStream memfdStream = new FileInputStream(memfd);
+			try {
+				Request fdRequest = request.forMessageType(MessageType.JALP_JOURNAL_FD_MSG);
+				byte[] meta = createMetadata(fdRequest, digestStream);
+				sendRecord(fdRequest, meta, null, null, memfd, bufferBytes.length);
+			} finally {
+				closeQuietly(memfdStream);
+			}
+			return;
 		}
-		Document doc = processXML(producer, digestStream);
+
+		byte[] meta = createMetadata(request, digestStream);
 
 		InputStream sendStream = null;
 		int bufferLength = 0;
-		if(buffer != null) {
-			sendStream = new ByteArrayInputStream(buffer.getBytes());
-			bufferLength = buffer.length();
+		if(bufferBytes != null) {
+			sendStream = new ByteArrayInputStream(bufferBytes);
+			bufferLength = bufferBytes.length;
+		}
+		sendRecord(request, meta, sendStream, null, null, bufferLength);
+	}
+
+	/**
+	 * Sends one record on a lane of the Producer's connection pool. Other threads
+	 * sending through the same Producer use other lanes, or wait for this one.
+	 * When the Producer has a spool, a record that isn't sent by file descriptor
+	 * is appended to the spool instead.
+	 *
+	 * @param request		the Request for the record
+	 * @param appMetaBytes	the application metadata as bytes
+	 * @param is			an InputStream for the buffer
+	 * @param file			a File for the buffer if sending by file descriptor
+	 * @param fileDescriptor	the open file to pass if sending by file descriptor, or null
+	 * @param bufferLength	the length of the buffer
+	 * @throws Exception
+	 */
+	private static void sendRecord(Request request, byte[] appMetaBytes, InputStream is, File file,
+			FileDescriptor fileDescriptor, long bufferLength) throws Exception {
+		RecordSpool spool = request.getSpool();
+		if(spool != null && file == null && fileDescriptor == null) {
+			spool.append(request.getMessageType(), is, bufferLength, appMetaBytes);
+			return;
+		}
+		ConnectionPool.Lane lane = request.getProducer().getConnectionPool().acquire();
+		try {
+			if(lane.usesChannel(request.getMessageType())) {
+				send(appMetaBytes, lane.getChannel(), is, bufferLength, request.getMessageType());
+			} else if(lane.usesForeignSocket(request.getMessageType())
+					&& (file != null || ForeignUnixSocket.canPassDescriptors())) {
+				send(appMetaBytes, lane.getForeignSocket(), is, file, fileDescriptor, bufferLength, request.getMessageType());
+			} else {
+				send(appMetaBytes, lane.getSocket(), is, file, fileDescriptor, bufferLength, request.getMessageType());
+			}
+		} catch (IOException e) {
+			// Part of the record may already be on the socket, so the connection can't be reused.
+			lane.discard();
+			throw e;
+		} finally {
+			lane.release();
+		}
+	}
+
+	/**
+	 * Sends a file payload while digesting it, so that every byte of the file is only read once.
+	 * The connection header has to carry the length of the application metadata before the payload
+	 * goes out, so the metadata is first built with a placeholder digest. The digest and, when signing,
+	 * the signature value are fixed length, so the real metadata built after the last chunk has the
+	 * same length. The length of the signature is learned from the first signed record, which is
+	 * sent with two reads of the file.
+	 *
+	 * @param request	the Request for the record
+	 * @param file		a File which contains the buffer
+	 * @throws Exception
+	 */
+	private static void processSinglePassSend(final Request request, File file) throws Exception {
+
+		final MessageType messageType = request.getMessageType();
+		final DMType dmType = request.getDigestMethod();
+		final boolean signing = request.isSigning();
+		final ApplicationMetadataXML xml = request.getXml();
+
+		final MessageDigest md = MessageDigest.getInstance(dmType.digestType());
+		byte[] placeholder = new byte[md.getDigestLength()];
+
+		if(!signing) {
+			long metaLength = writeMetadata(request, placeholder).length;
+			sendSinglePass(request, file, md, metaLength, new SendUtils.MetadataSource() {
+				public byte[] getMetadata() throws Exception {
+					// The xml is the same as in the placeholder metadata, which was already validated.
+					return writeMetadata(xml, dmType, md.digest(), messageType, false);
+				}
+			});
+			return;
+		}
+
+		final Document doc = marshal(request);
+		createManifest(doc, dmType, placeholder, messageType);
+		final int unsignedLength = toBytes(doc).length;
+
+		Long signatureLength = getSignatureLength(request);
+		if(signatureLength == null) {
+			// The first signed record is sent the two pass way to learn the signature length.
+			InputStream digestStream = new FileInputStream(file);
+			try {
+				setManifestDigest(doc, createDigest(digestStream, dmType));
+			} finally {
+				closeQuietly(digestStream);
+			}
+			byte[] meta = finishManifestDocument(doc, request, signing);
+			setSignatureLength(request, meta.length - unsignedLength);
+
+			InputStream sendStream = new FileInputStream(file);
+			try {
+				sendRecord(request, meta, sendStream, null, null, file.length());
+			} finally {
+				closeQuietly(sendStream);
+			}
+			return;
+		}
+
+		sendSinglePass(request, file, md, unsignedLength + signatureLength.longValue(), new SendUtils.MetadataSource() {
+			public byte[] getMetadata() throws Exception {
+				setManifestDigest(doc, md.digest());
+				return finishManifestDocument(doc, request, signing);
+			}
+		});
+	}
+
+	/**
+	 * Sends the file through md and asks metadataSource for the metadata once the
+	 * whole file has been digested.
+	 *
+	 * @param request			the Request for the record
+	 * @param file				a File which contains the buffer
+	 * @param md				the MessageDigest the payload is fed through
+	 * @param metaLength		the length the metadata is expected to have
+	 * @param metadataSource	builds the metadata from the finished digest
+	 * @throws Exception
+	 */
+	private static void sendSinglePass(final Request request, File file, MessageDigest md, final long metaLength,
+			final SendUtils.MetadataSource metadataSource) throws Exception {
+
+		SendUtils.MetadataSource checkedSource = new SendUtils.MetadataSource() {
+			public byte[] getMetadata() throws Exception {
+				byte[] meta = metadataSource.getMetadata();
+				if(meta.length != metaLength) {
+					setSignatureLength(request, null);
+					throw new JALException("Application metadata length changed from " + metaLength
+							+ " to " + meta.length + " bytes while the payload was being sent.");
+				}
+				return meta;
+			}
+		};
+
+		InputStream sendStream = new DigestInputStream(new FileInputStream(file), md);
+		ConnectionPool.Lane lane = request.getProducer().getConnectionPool().acquire();
+		try {
+			if(lane.usesChannel(request.getMessageType())) {
+				SendUtils.createAndSendHeaders(request.getMessageType(), file.length(), metaLength, sendStream, checkedSource, lane.getChannel());
+			} else {
+				SendUtils.createAndSendHeaders(request.getMessageType(), file.length(), metaLength, sendStream, checkedSource, lane.getSocket());
+			}
+		} catch (Exception e) {
+			// Part of the record may already be on the socket, so the connection can't be reused.
+			lane.discard();
+			throw e;
+		} finally {
+			lane.release();
+			closeQuietly(sendStream);
+		}
+	}
+
+	/**
+	 * Signs the document if needed, moves the manifest to the end of the document and
+	 * converts the document to bytes.
+	 *
+	 * @param doc		the Document which already contains the manifest
+	 * @param request	the Request for the record
+	 * @param signing	true if the document should be signed
+	 * @return	the bytes of the application metadata
+	 * @throws Exception
+	 */
+	private static byte[] finishManifestDocument(Document doc, Request request, boolean signing) throws Exception {
+		if(signing) {
+			sign(doc, request);
+		}
+		Node manifest = doc.getElementsByTagName("Manifest").item(0);
+		doc.getDocumentElement().appendChild(manifest);
+		return toBytes(doc);
+	}
+
+	/**
+	 * Replaces the DigestValue of the payload reference in the document's manifest.
+	 *
+	 * @param doc		the Document containing the manifest
+	 * @param digest	the digest of the payload
+	 * @throws JALException	if the document has no manifest
+	 */
+	private static void setManifestDigest(Document doc, byte[] digest) throws JALException {
+		Element manifest = (Element) doc.getElementsByTagName("Manifest").item(0);
+		if(manifest == null) {
+			throw new JALException("The document does not contain a manifest.");
+		}
+		Node digestValue = manifest.getElementsByTagNameNS(XMLSignature.XMLNS, "DigestValue").item(0);
+		digestValue.setTextContent(DatatypeConverter.printBase64Binary(digest));
+	}
+
+	/**
+	 * Gets the length the signature adds to a document signed by the Request's keys.
+	 *
+	 * @param request	the Request for the record
+	 * @return	the length in bytes, or null if it is not known yet
+	 * @throws Exception
+	 */
+	private static Long getSignatureLength(Request request) throws Exception {
+		return getSigningEngine(request).getSignatureLength();
+	}
+
+	/**
+	 * Records the length the signature adds to a document signed by the Request's keys.
+	 *
+	 * @param request	the Request for the record
+	 * @param length	the length in bytes, or null to forget the recorded length
+	 * @throws Exception
+	 */
+	private static void setSignatureLength(Request request, Integer length) throws Exception {
+		getSigningEngine(request).setSignatureLength(length == null ? null : Long.valueOf(length.longValue()));
+	}
+
+	/**
+	 * Gets the SigningEngine of the Request's Producer for the Request's keys, creating
+	 * a new one the first time and whenever the keys have been replaced.
+	 *
+	 * @param request	the Request for the record
+	 * @return	the SigningEngine
+	 * @throws Exception
+	 */
+	private static SigningEngine getSigningEngine(Request request) throws Exception {
+		synchronized (signingEngines) {
+			SigningEngine engine = signingEngines.get(request.getProducer());
+			if(engine == null || !engine.isFor(request.getPrivateKey(), request.getPublicKey(), request.getCertificate())) {
+				engine = new SigningEngine(request.getPrivateKey(), request.getPublicKey(), request.getCertificate());
+				signingEngines.put(request.getProducer(), engine);
+			}
+			return engine;
+		}
+	}
+
+	/**
+	 * Closes the stream, ignoring any error.
+	 *
+	 * @param is	the InputStream to close, may be null
+	 */
+	private static void closeQuietly(InputStream is) {
+		if(is != null) {
+			try {
+				is.close();
+			} catch (IOException e) {
+				// Nothing more can be done with the stream
+			}
+		}
+	}
+
+	/**
+	 * Creates the application metadata bytes for the Request's xml. Unsigned metadata is
+	 * streamed straight into bytes. Signing needs a document to sign, so signed metadata
+	 * is built with {@link #processXML(Request, InputStream)}.
+	 *
+	 * @param request		the Request for the record
+	 * @param digestStream	an InputStream for the buffer
+	 * @return	the bytes of the application metadata, or null if there is no xml to send
+	 * @throws Exception
+	 */
+	private static byte[] createMetadata(Request request, InputStream digestStream) throws Exception {
+
+		if(request != null && request.getXml() != null && !request.isSigning()) {
+			byte[] digest = null;
+			if(request.getDigestMethod() != null && digestStream != null) {
+				if(request.getMessageType() == null) {
+					throw new JALException("DMType and MessageType must be set in the Request first.");
+				}
+				digest = createDigest(digestStream, request.getDigestMethod());
+			}
+			return writeMetadata(request, digest);
+		}
+
+		Document doc = processXML(request, digestStream);
+		if(doc == null) {
+			return null;
+		}
+		return toBytes(doc);
+	}
+
+	/**
+	 * Writes the xml, followed by a manifest for the digest if there is one, straight into bytes.
+	 *
+	 * @param xml			the ApplicationMetadataXML, already prepared for sending
+	 * @param dmType		the DMType which was used for the digest
+	 * @param digest		the digest of the payload, or null for no manifest
+	 * @param messageType	the MessageType
+	 * @return	the bytes of the application metadata
+	 * @throws Exception
+	 */
+	private static byte[] writeMetadata(ApplicationMetadataXML xml, DMType dmType, byte[] digest, MessageType messageType) throws Exception {
+		return writeMetadata(xml, dmType, digest, messageType, true);
+	}
+
+	/**
+	 * Writes the xml, followed by a manifest for the digest if there is one, straight into bytes.
+	 *
+	 * @param xml			the ApplicationMetadataXML, already prepared for sending
+	 * @param dmType		the DMType which was used for the digest
+	 * @param digest		the digest of the payload, or null for no manifest
+	 * @param messageType	the MessageType
+	 * @param validate		true to validate the xml against the schema
+	 * @return	the bytes of the application metadata
+	 * @throws Exception
+	 */
+	private static byte[] writeMetadata(ApplicationMetadataXML xml, DMType dmType, byte[] digest, MessageType messageType, boolean validate) throws Exception {
+		MetadataWriter writer = XMLCache.getMetadataWriter();
+		writer.writeStartDocument();
+		writer.setHoldDocumentElement(true);
+		xml.write(writer, validate);
+		if(digest != null) {
+			writeManifest(writer, dmType, digest, messageType);
+		}
+		writer.writeEndDocument();
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Writes the Request's xml, followed by a manifest for the digest if there is
+	 * one, validating the xml if the Producer's ValidationPolicy calls for it.
+	 *
+	 * @param request	the Request for the record
+	 * @param digest	the digest of the payload, or null for no manifest
+	 * @return	the bytes of the application metadata
+	 * @throws Exception
+	 */
+	private static byte[] writeMetadata(Request request, byte[] digest) throws Exception {
+		boolean validate = request.isValidating();
+		byte[] meta;
+		try {
+			meta = writeMetadata(request.getXml(), request.getDigestMethod(), digest, request.getMessageType(), validate);
+		} catch (MarshalException e) {
+			countValidation(request, validate, false);
+			throw e;
+		}
+		countValidation(request, validate, true);
+		return meta;
+	}
+
+	/**
+	 * Marshals the Request's xml into a document, validating it if the
+	 * Producer's ValidationPolicy calls for it.
+	 *
+	 * @param request	the Request for the record
+	 * @return	the marshaled document
+	 * @throws Exception
+	 */
+	private static Document marshal(Request request) throws Exception {
+		boolean validate = request.isValidating();
+		Document doc;
+		try {
+			doc = request.getXml().marshal(validate);
+		} catch (MarshalException e) {
+			countValidation(request, validate, false);
+			throw e;
+		}
+		countValidation(request, validate, true);
+		return doc;
+	}
+
+	private static void countValidation(Request request, boolean validate, boolean passed) {
+		ValidationMetrics metrics = request.getProducer().getValidationMetrics();
+		if(!validate) {
+			metrics.recordSkipped();
+		} else if(passed) {
+			metrics.recordValidated();
+		} else {
+			metrics.recordFailure();
 		}
-		send(doc, producer.getSocket(), sendStream, null, bufferLength, producer.getMessageType());
 	}
 
 	/**
 	 * Creates a Document, signs and creates the manifest if applicable.
 	 *
-	 * @param producer		the Producer
+	 * @param request		the Request for the record
 	 * @param digestStream	an InputStream for the buffer
 	 * @throws Exception
 	 */
-	private static Document processXML(Producer producer, InputStream digestStream) throws Exception {
+	private static Document processXML(Request request, InputStream digestStream) throws Exception {
 
-		if(producer == null) {
-			throw new JALException("The Producer must not be null.");
+		if(request == null) {
+			throw new JALException("The Request must not be null.");
 		}
 
 		Document doc = null;
-		ApplicationMetadataXML xml = producer.getXml();
+		ApplicationMetadataXML xml = request.getXml();
 
-		if(xml == null && !MessageType.JALP_LOG_MSG.equals(producer.getMessageType())) {
+		if(xml == null && !MessageType.JALP_LOG_MSG.equals(request.getMessageType())) {
 			throw new JALException("The ApplicationMetadataXML must be set in the Producer.");
 		}
 
 		if(xml != null) {
-			xml.prepareSend(producer.getHostName(), producer.getApplicationName());
-
-			doc = xml.marshal();
+			doc = marshal(request);
 
-			if(producer.getDigestMethod() != null && digestStream != null) {
-				createManifest(doc, producer.getDigestMethod(), digestStream, producer.getMessageType());
+			if(request.getDigestMethod() != null && digestStream != null) {
+				createManifest(doc, request.getDigestMethod(), digestStream, request.getMessageType());
 			}
 
-			if(producer.getPrivateKey() != null && producer.getPublicKey() != null) {
-				sign(doc, producer);
+			if(request.isSigning()) {
+				sign(doc, request);
 			}
 
-			if(producer.getDigestMethod() != null && digestStream != null) {
+			if(request.getDigestMethod() != null && digestStream != null) {
 				//Move the manifest to the end of the document
 				Node manifest = doc.getElementsByTagName("Manifest").item(0);
 				doc.getDocumentElement().appendChild(manifest);
@@ -186,17 +642,23 @@ public class JALUtils {
 	 * @throws Exception
 	 */
 	public static Document marshal(JAXBContext jc, JAXBElement element) throws Exception {
-		Marshaller m = jc.createMarshaller();
-		m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+		return marshal(jc, element, true);
+	}
 
-		SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-		Schema schema = sf.newSchema(JALUtils.class.getResource(SCHEMA_LOCATION));
-		m.setSchema(schema);
+	/**
+	 * Builds a document and marshals the xml into the document.
+	 *
+	 * @param jc		the JAXBContext of the correct class
+	 * @param element	the JAXBElement created by ObjectFactory for the correct class
+	 * @param validate	true to validate the xml against the given schema
+	 * @return	the marshaled document
+	 * @throws Exception
+	 */
+	public static Document marshal(JAXBContext jc, JAXBElement element, boolean validate) throws Exception {
+		Marshaller m = XMLCache.getMarshaller(jc);
+		m.setSchema(validate ? XMLCache.getSchema(SCHEMA_LOCATION) : null);
 
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(true);
-		DocumentBuilder db = dbf.newDocumentBuilder();
-		Document document = db.newDocument();
+		Document document = XMLCache.getDocumentBuilder().newDocument();
 
 		m.marshal(element, document);
 
@@ -204,79 +666,48 @@ public class JALUtils {
 	}
 
 	/**
-	 * Adds a signature to the given document
+	 * Marshals the xml straight to a writer as a fragment, without building a document.
+	 * This also validates the xml against the given schema.
 	 *
-	 * @param doc		the marshaled document to be signed
-	 * @param producer	the Producer
+	 * @param jc		the JAXBContext of the correct class
+	 * @param element	the JAXBElement created by ObjectFactory for the correct class
+	 * @param writer	the XMLStreamWriter to marshal to
 	 * @throws Exception
 	 */
-	private static void sign(Document doc, Producer producer) throws Exception {
-		ApplicationMetadataXML xml = producer.getXml();
-		String jid = xml.getJID();
-
-		DOMSignContext domSignContext = new DOMSignContext(producer.getPrivateKey(), doc.getDocumentElement());
-
-		//This allows the xpointer below to resolve JID as an ID
-		domSignContext.setIdAttributeNS(doc.getDocumentElement(), null, "JID");
-
-		XMLSignatureFactory xmlSigFactory = XMLSignatureFactory.getInstance("DOM");
-
-		List<Transform> transformList = new ArrayList<Transform>();
-
-		transformList.add(xmlSigFactory.newTransform(
-				Transform.ENVELOPED,
-				(TransformParameterSpec) null));
-
-		transformList.add(xmlSigFactory.newTransform(
-				"http://www.w3.org/2001/10/xml-exc-c14n#WithComments",
-				(TransformParameterSpec) null));
-
-		String uri = "#xpointer(id(\'"+jid+"\'))";
-		Reference reference = xmlSigFactory.newReference(uri,
-			xmlSigFactory.newDigestMethod(DigestMethod.SHA256, null),
-		    transformList, null, null);
-
-		CanonicalizationMethod canonicalizationMethod = xmlSigFactory.newCanonicalizationMethod(
-				CanonicalizationMethod.INCLUSIVE_WITH_COMMENTS,
-				(C14NMethodParameterSpec) null);
-
-		SignatureMethod signatureMethod = xmlSigFactory.newSignatureMethod(
-				"http://www.w3.org/2001/04/xmldsig-more#rsa-sha256",
-				null);
-
-		SignedInfo signedInfo = xmlSigFactory.newSignedInfo(
-			canonicalizationMethod,
-			signatureMethod,
-			Collections.singletonList(reference));
-
-		KeyInfoFactory keyInfoFactory = xmlSigFactory.getKeyInfoFactory();
-
-		KeyValue keyValue = keyInfoFactory.newKeyValue(producer.getPublicKey());
-
-		List keyInfoList = new ArrayList();
-		keyInfoList.add(keyValue);
-
-		if(producer.getCertificate() != null) {
-			X509Certificate cert = producer.getCertificate();
-			List content = new ArrayList();
-			content.add(cert.getSubjectX500Principal().getName());
-
-			X509IssuerSerial issuerSerial = keyInfoFactory.newX509IssuerSerial(
-					cert.getIssuerX500Principal().getName(),
-					cert.getSerialNumber());
-			content.add(issuerSerial);
-
-			content.add(cert);
+	public static void marshal(JAXBContext jc, JAXBElement element, XMLStreamWriter writer) throws Exception {
+		marshal(jc, element, writer, true);
+	}
 
-			X509Data xd = keyInfoFactory.newX509Data(content);
-			keyInfoList.add(xd);
+	/**
+	 * Marshals the xml straight to a writer as a fragment, without building a document.
+	 *
+	 * @param jc		the JAXBContext of the correct class
+	 * @param element	the JAXBElement created by ObjectFactory for the correct class
+	 * @param writer	the XMLStreamWriter to marshal to
+	 * @param validate	true to validate the xml against the given schema
+	 * @throws Exception
+	 */
+	public static void marshal(JAXBContext jc, JAXBElement element, XMLStreamWriter writer, boolean validate) throws Exception {
+		Marshaller m = XMLCache.getMarshaller(jc);
+		m.setSchema(validate ? XMLCache.getSchema(SCHEMA_LOCATION) : null);
+
+		m.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+		try {
+			m.marshal(element, writer);
+		} finally {
+			m.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.FALSE);
 		}
+	}
 
-		KeyInfo keyInfo = keyInfoFactory.newKeyInfo(keyInfoList);
-
-		XMLSignature signature = xmlSigFactory.newXMLSignature(signedInfo, keyInfo);
-
-		signature.sign(domSignContext);
+	/**
+	 * Adds a signature to the given document
+	 *
+	 * @param doc		the marshaled document to be signed
+	 * @param request	the Request for the record
+	 * @throws Exception
+	 */
+	private static void sign(Document doc, Request request) throws Exception {
+		getSigningEngine(request).sign(doc, request.getXml().getJID());
 	}
 
 	/**
@@ -315,20 +746,39 @@ public class JALUtils {
 			throw new JALException("DMType and MessageType must be set in the Producer first.");
 		}
 
+		createManifest(doc, dmType, createDigest(is, dmType), messageType);
+	}
+
+	/**
+	 * Creates a manifest document for an already computed digest, marshals it and
+	 * appends it to the original document.
+	 *
+	 * @param doc			the signed Document
+	 * @param dmType		the DMType which was used for the digest
+	 * @param digest		the digest of the payload
+	 * @param messageType	the MessageType
+	 * @throws Exception
+	 */
+	private static void createManifest(Document doc, DMType dmType, byte[] digest, MessageType messageType) throws Exception {
+
+		if(dmType == null || messageType == null) {
+			throw new JALException("DMType and MessageType must be set in the Producer first.");
+		}
+
 		ManifestType manifest = new ManifestType();
 
 		ReferenceType ref = new ReferenceType();
-		ref.setURI("jalop:payload");
+		ref.setURI(PAYLOAD_REFERENCE_URI);
 
 		DigestMethodType digestMethod = new DigestMethodType();
 		digestMethod.setAlgorithm(dmType.digestMethod());
 
 		ref.setDigestMethod(digestMethod);
-		ref.setDigestValue(createDigest(is, dmType));
+		ref.setDigestValue(digest);
 
 		if(MessageType.JALP_AUDIT_MSG.equals(messageType)) {
 			TransformType transform = new TransformType();
-			transform.setAlgorithm("http://www.w3.org/TR/2001/REC-xml-c14n-20010315#WithComments");
+			transform.setAlgorithm(AUDIT_TRANSFORM_ALGORITHM);
 			TransformsType transforms = new TransformsType();
 			transforms.getTransform().add(transform);
 			ref.setTransforms(transforms);
@@ -338,11 +788,50 @@ public class JALUtils {
 
 		ObjectFactory of = new ObjectFactory();
 		JAXBElement<ManifestType> man = of.createManifest(manifest);
-		JAXBContext jc = JAXBContext.newInstance(ManifestType.class.getPackage().getName());
+		JAXBContext jc = XMLCache.getContext(ManifestType.class.getPackage().getName());
 		Document manifestDocument = marshal(jc, man);
 		doc.getDocumentElement().appendChild(doc.importNode(manifestDocument.getFirstChild(),true));
 	}
 
+	/**
+	 * Writes a manifest for an already computed digest. The output matches the manifest
+	 * {@link #createManifest(Document, DMType, byte[], MessageType)} adds to a document.
+	 *
+	 * @param writer		the XMLStreamWriter, inside the ApplicationMetadata element
+	 * @param dmType		the DMType which was used for the digest
+	 * @param digest		the digest of the payload
+	 * @param messageType	the MessageType
+	 * @throws Exception
+	 */
+	private static void writeManifest(XMLStreamWriter writer, DMType dmType, byte[] digest, MessageType messageType) throws Exception {
+
+		if(dmType == null || messageType == null) {
+			throw new JALException("DMType and MessageType must be set in the Producer first.");
+		}
+
+		writer.writeStartElement("", "Manifest", XMLSignature.XMLNS);
+		writer.writeDefaultNamespace(XMLSignature.XMLNS);
+		writer.writeStartElement("", "Reference", XMLSignature.XMLNS);
+		writer.writeAttribute("URI", PAYLOAD_REFERENCE_URI);
+
+		if(MessageType.JALP_AUDIT_MSG.equals(messageType)) {
+			writer.writeStartElement("", "Transforms", XMLSignature.XMLNS);
+			writer.writeEmptyElement("", "Transform", XMLSignature.XMLNS);
+			writer.writeAttribute("Algorithm", AUDIT_TRANSFORM_ALGORITHM);
+			writer.writeEndElement();
+		}
+
+		writer.writeEmptyElement("", "DigestMethod", XMLSignature.XMLNS);
+		writer.writeAttribute("Algorithm", dmType.digestMethod());
+
+		writer.writeStartElement("", "DigestValue", XMLSignature.XMLNS);
+		writer.writeCharacters(DatatypeConverter.printBase64Binary(digest));
+		writer.writeEndElement();
+
+		writer.writeEndElement();
+		writer.writeEndElement();
+	}
+
 	/**
 	 * Creates the digest for the buffer. If isPath is true, this reads the file into a buffer
 	 * in chunks, adding each chunk to the MessageDigest. When the file has been read completely
@@ -382,35 +871,145 @@ public class JALUtils {
 			throw new JALException("Error in JALUtils.send - doc and buffer cannot both be null");
 		}
 
-		long appMetaLength = 0;
 		byte[] appMetaBytes = null;
 
 		if(doc != null) {
-			TransformerFactory transFactory = TransformerFactory.newInstance();
-			Transformer trans = transFactory.newTransformer();
-			StringWriter writer = new StringWriter();
-			trans.transform(new DOMSource(doc), new StreamResult(writer));
-			String appMeta = writer.toString();
-
-			if(appMeta != null) {
-				appMetaBytes = appMeta.getBytes();
-				appMetaLength = appMetaBytes.length;
-			}
+			appMetaBytes = toBytes(doc);
+		}
+
+		send(appMetaBytes, socket, is, file, null, bufferLength, messageType);
+	}
+
+	/**
+	 * Sends already serialized application metadata with the buffer by calling createAndSendHeaders
+	 *
+	 * @param appMetaBytes	the application metadata as bytes
+	 * @param socket		the socket to send on
+	 * @param is			an InputStream for the buffer
+	 * @param file			a File for the buffer if sending by file descriptor
+	 * @param fileDescriptor	the open file to pass instead of file, or null
+	 * @param messageType	the type of message to send
+	 * @throws Exception
+	 */
+	private static void send(byte[] appMetaBytes, UnixDomainSocketClient socket, InputStream is, File file,
+			FileDescriptor fileDescriptor, long bufferLength, MessageType messageType) throws Exception {
+		if(appMetaBytes == null && is == null && file == null && fileDescriptor == null) {
+			throw new JALException("Error in JALUtils.send - doc and buffer cannot both be null");
+		}
+
+		long appMetaLength = 0;
+		if(appMetaBytes != null) {
+			appMetaLength = appMetaBytes.length;
+		}
+
+		SendUtils.createAndSendHeaders(messageType, bufferLength, appMetaLength, is, file, fileDescriptor, appMetaBytes, socket);
+
+	}
+
+	/**
+	 * Writes already serialized application metadata with the buffer to a channel
+	 * by calling createAndSendHeaders
+	 *
+	 * @param appMetaBytes	the application metadata as bytes
+	 * @param channel		the channel to write to
+	 * @param is			an InputStream for the buffer
+	 * @param messageType	the type of message to send
+	 * @throws Exception
+	 */
+	private static void send(byte[] appMetaBytes, GatheringByteChannel channel, InputStream is, long bufferLength, MessageType messageType) throws Exception {
+		if(appMetaBytes == null && is == null) {
+			throw new JALException("Error in JALUtils.send - doc and buffer cannot both be null");
+		}
+
+		long appMetaLength = 0;
+		if(appMetaBytes != null) {
+			appMetaLength = appMetaBytes.length;
 		}
 
-		SendUtils.createAndSendHeaders(messageType, bufferLength, appMetaLength, is, file, appMetaBytes, socket);
+		SendUtils.createAndSendHeaders(messageType, bufferLength, appMetaLength, is, appMetaBytes, channel);
+	}
+
+	/**
+	 * Sends already serialized application metadata with the buffer on a
+	 * ForeignUnixSocket by calling createAndSendHeaders
+	 *
+	 * @param appMetaBytes	the application metadata as bytes
+	 * @param socket		the socket to send on
+	 * @param is			an InputStream for the buffer
+	 * @param file			a File for the buffer if sending by file descriptor
+	 * @param fileDescriptor	the open file to pass instead of file, or null
+	 * @param messageType	the type of message to send
+	 * @throws Exception
+	 */
+	private static void send(byte[] appMetaBytes, ForeignUnixSocket socket, InputStream is, File file,
+			FileDescriptor fileDescriptor, long bufferLength, MessageType messageType) throws Exception {
+		if(appMetaBytes == null && is == null && file == null && fileDescriptor == null) {
+			throw new JALException("Error in JALUtils.send - doc and buffer cannot both be null");
+		}
 
+		long appMetaLength = 0;
+		if(appMetaBytes != null) {
+			appMetaLength = appMetaBytes.length;
+		}
+
+		SendUtils.createAndSendHeaders(messageType, bufferLength, appMetaLength, is, file, fileDescriptor, appMetaBytes, socket);
+	}
+
+	/**
+	 * Reads a FileChannel from its start with positional reads, so the position
+	 * of the channel, and of any descriptor sharing it, is not moved. Closing
+	 * the stream leaves the channel open.
+	 */
+	private static class PositionalInputStream extends InputStream {
+		private final FileChannel channel;
+		private long position;
+
+		PositionalInputStream(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0) {
+				return 0;
+			}
+			int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+			if(n > 0) {
+				position += n;
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Converts the document to the bytes that are sent as application metadata.
+	 *
+	 * @param doc	the marshaled xml doc
+	 * @return	the document as bytes
+	 * @throws Exception
+	 */
+	private static byte[] toBytes(Document doc) throws Exception {
+		Transformer trans = XMLCache.getTransformer();
+		StringWriter writer = new StringWriter();
+		trans.transform(new DOMSource(doc), new StreamResult(writer));
+		return writer.toString().getBytes("UTF-8");
 	}
 
 	/**
-	 * Creates a calendar with the current date and time to set the timestamp
+	 * Creates a calendar with the current date and time to set the timestamp.
+	 * See {@link RecordIdentity#now()}.
 	 *
 	 * @return	XMLGregorianCalendar with the current date
 	 * @throws Exception
 	 */
 	public static XMLGregorianCalendar getCurrentTime() throws Exception {
-		GregorianCalendar gc = new GregorianCalendar();
-		XMLGregorianCalendar xmlCal = DatatypeFactory.newInstance().newXMLGregorianCalendar(gc);
-		return xmlCal;
+		return RecordIdentity.now();
 	}
 }
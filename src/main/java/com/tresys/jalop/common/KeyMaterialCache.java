@@ -0,0 +1,157 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process-wide cache of the keys and certificates used to sign application
+ * metadata. Each file is read and parsed the first time it is requested. Later
+ * requests only check the file's modification time and length, and the file
+ * is parsed again if either has changed. Until then the same PrivateKey,
+ * PublicKey or X509Certificate instance is returned every time.
+ */
+public class KeyMaterialCache {
+
+	private static final ConcurrentMap<String, Entry> privateKeys = new ConcurrentHashMap<String, Entry>();
+	private static final ConcurrentMap<String, Entry> publicKeys = new ConcurrentHashMap<String, Entry>();
+	private static final ConcurrentMap<String, Entry> certificates = new ConcurrentHashMap<String, Entry>();
+
+	private KeyMaterialCache() {
+	}
+
+	/**
+	 * Gets the RSA private key in a PKCS#8 DER file.
+	 *
+	 * @param path	the path to the private key file
+	 * @return	the PrivateKey
+	 * @throws Exception	if the file cannot be read or parsed
+	 */
+	public static PrivateKey getPrivateKey(String path) throws Exception {
+		File file = new File(path);
+		Entry entry = current(privateKeys, file);
+		if(entry == null) {
+			entry = new Entry(file);
+			byte[] bytes = readFile(file);
+			entry.value = KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(bytes));
+			privateKeys.put(file.getAbsolutePath(), entry);
+		}
+		return (PrivateKey) entry.value;
+	}
+
+	/**
+	 * Gets the RSA public key in an X.509 DER file.
+	 *
+	 * @param path	the path to the public key file
+	 * @return	the PublicKey
+	 * @throws Exception	if the file cannot be read or parsed
+	 */
+	public static PublicKey getPublicKey(String path) throws Exception {
+		File file = new File(path);
+		Entry entry = current(publicKeys, file);
+		if(entry == null) {
+			entry = new Entry(file);
+			byte[] bytes = readFile(file);
+			entry.value = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(bytes));
+			publicKeys.put(file.getAbsolutePath(), entry);
+		}
+		return (PublicKey) entry.value;
+	}
+
+	/**
+	 * Gets the X.509 certificate in a DER or PEM file.
+	 *
+	 * @param path	the path to the certificate file
+	 * @return	the X509Certificate
+	 * @throws Exception	if the file cannot be read or parsed
+	 */
+	public static X509Certificate getCertificate(String path) throws Exception {
+		File file = new File(path);
+		Entry entry = current(certificates, file);
+		if(entry == null) {
+			entry = new Entry(file);
+			byte[] bytes = readFile(file);
+			entry.value = CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(bytes));
+			certificates.put(file.getAbsolutePath(), entry);
+		}
+		return (X509Certificate) entry.value;
+	}
+
+	/**
+	 * Forgets every cached key and certificate.
+	 */
+	public static void clear() {
+		privateKeys.clear();
+		publicKeys.clear();
+		certificates.clear();
+	}
+
+	private static Entry current(ConcurrentMap<String, Entry> cache, File file) {
+		Entry entry = cache.get(file.getAbsolutePath());
+		if(entry != null && entry.lastModified == file.lastModified() && entry.length == file.length()) {
+			return entry;
+		}
+		return null;
+	}
+
+	private static byte[] readFile(File file) throws Exception {
+		DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		try {
+			byte[] bytes = new byte[(int) file.length()];
+			dis.readFully(bytes);
+			return bytes;
+		} finally {
+			dis.close();
+		}
+	}
+
+	/**
+	 * A parsed file along with the modification time and length it had. These are
+	 * taken before the file is read, so a change made while it is being read is
+	 * picked up by the next request.
+	 */
+	private static class Entry {
+		final long lastModified;
+		final long length;
+		Object value;
+
+		Entry(File file) {
+			this.lastModified = file.lastModified();
+			this.length = file.length();
+		}
+	}
+}
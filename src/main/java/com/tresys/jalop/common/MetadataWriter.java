@@ -0,0 +1,611 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * XMLStreamWriter that encodes straight into a reusable UTF-8 byte buffer.
+ * The output is the same as the identity Transformer produces for a DOM of
+ * the same document: namespace declarations come before the other attributes,
+ * attributes are sorted by name, empty elements are written as &lt;x/&gt; and
+ * characters are escaped the same way. This lets application metadata skip the
+ * DOM and String copies without changing what the local store receives.
+ *
+ * If the document element is held, its end tag is not written by
+ * writeEndElement but by writeEndDocument, so elements such as the Manifest
+ * can be appended after a Marshaller has finished with the document.
+ */
+public class MetadataWriter implements XMLStreamWriter {
+
+	private static final int INITIAL_CAPACITY = 8192;
+	private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator", "\n");
+
+	private static final Comparator<String[]> BY_NAME = new Comparator<String[]>() {
+		public int compare(String[] a, String[] b) {
+			return a[0].compareTo(b[0]);
+		}
+	};
+
+	private byte[] buf = new byte[INITIAL_CAPACITY];
+	private int count;
+
+	private final List<String> elements = new ArrayList<String>();
+	private final List<Integer> bindingMarks = new ArrayList<Integer>();
+	private final List<String[]> bindings = new ArrayList<String[]>();
+	private final List<String[]> namespaceDecls = new ArrayList<String[]>();
+	private final List<String[]> attributes = new ArrayList<String[]>();
+	private NamespaceContext rootContext;
+
+	private boolean startTagOpen;
+	private boolean emptyElement;
+	private boolean holdDocumentElement;
+
+	/**
+	 * Clears the buffer and all element state so the writer can be used for
+	 * another document. A buffer that grew very large is not kept.
+	 */
+	public void reset() {
+		if(buf.length > MAX_RETAINED_CAPACITY) {
+			buf = new byte[INITIAL_CAPACITY];
+		}
+		count = 0;
+		elements.clear();
+		bindingMarks.clear();
+		bindings.clear();
+		namespaceDecls.clear();
+		attributes.clear();
+		rootContext = null;
+		startTagOpen = false;
+		emptyElement = false;
+		holdDocumentElement = false;
+	}
+
+	/**
+	 * Sets whether the end tag of the document element is held back until
+	 * writeEndDocument is called.
+	 *
+	 * @param hold	true to hold the document element open
+	 */
+	public void setHoldDocumentElement(boolean hold) {
+		this.holdDocumentElement = hold;
+	}
+
+	/**
+	 * Gets the number of bytes written so far.
+	 *
+	 * @return	the number of bytes in the buffer
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Copies the bytes written so far into a new array.
+	 *
+	 * @return	the encoded document
+	 */
+	public byte[] toByteArray() {
+		byte[] bytes = new byte[count];
+		System.arraycopy(buf, 0, bytes, 0, count);
+		return bytes;
+	}
+
+	/**
+	 * Writes the bytes written so far to the given stream.
+	 *
+	 * @param out	the OutputStream to write to
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(buf, 0, count);
+	}
+
+	/**
+	 * Writes bytes that are already encoded, such as the parts of a document
+	 * kept by a template. They are written as they are, without escaping.
+	 *
+	 * @param bytes	the encoded bytes
+	 * @param off	the offset of the first byte to write
+	 * @param len	the number of bytes to write
+	 * @throws XMLStreamException
+	 */
+	public void writeEncoded(byte[] bytes, int off, int len) throws XMLStreamException {
+		closeStartTag();
+		ensureCapacity(len);
+		System.arraycopy(bytes, off, buf, count, len);
+		count += len;
+	}
+
+	/**
+	 * Writes a value escaped the same way as text or attribute values written
+	 * through the XMLStreamWriter methods. Nothing else is written, so this can
+	 * fill in a value in between calls to writeEncoded.
+	 *
+	 * @param value		the text to escape
+	 * @param attribute	true if the value is inside an attribute
+	 * @throws XMLStreamException
+	 */
+	public void writeEscapedValue(String value, boolean attribute) throws XMLStreamException {
+		writeEscaped(value, 0, value.length(), attribute);
+	}
+
+	/**
+	 * Records that the start tag of an element has already been written with
+	 * writeEncoded, so the element is ended by writeEndElement or
+	 * writeEndDocument like any other.
+	 *
+	 * @param qname	the qualified name of the element
+	 * @throws XMLStreamException
+	 */
+	public void openEncodedElement(String qname) throws XMLStreamException {
+		closeStartTag();
+		elements.add(qname);
+		bindingMarks.add(Integer.valueOf(bindings.size()));
+	}
+
+	public void writeStartDocument() throws XMLStreamException {
+		writeStartDocument("UTF-8", "1.0");
+	}
+
+	public void writeStartDocument(String version) throws XMLStreamException {
+		writeStartDocument("UTF-8", version);
+	}
+
+	public void writeStartDocument(String encoding, String version) throws XMLStreamException {
+		if(encoding != null && !"UTF-8".equalsIgnoreCase(encoding)) {
+			throw new XMLStreamException("Only UTF-8 output is supported, not " + encoding);
+		}
+		writeAscii("<?xml version=\"");
+		writeAscii(version == null ? "1.0" : version);
+		writeAscii("\" encoding=\"UTF-8\" standalone=\"no\"?>");
+	}
+
+	public void writeEndDocument() throws XMLStreamException {
+		holdDocumentElement = false;
+		while(!elements.isEmpty()) {
+			writeEndElement();
+		}
+	}
+
+	public void writeStartElement(String localName) throws XMLStreamException {
+		writeStartElement(XMLConstants.DEFAULT_NS_PREFIX, localName, XMLConstants.NULL_NS_URI);
+	}
+
+	public void writeStartElement(String namespaceURI, String localName) throws XMLStreamException {
+		writeStartElement(requirePrefix(namespaceURI), localName, namespaceURI);
+	}
+
+	public void writeStartElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+		closeStartTag();
+		String qname = qualify(prefix, localName);
+		elements.add(qname);
+		bindingMarks.add(Integer.valueOf(bindings.size()));
+		startTagOpen = true;
+		emptyElement = false;
+	}
+
+	public void writeEmptyElement(String localName) throws XMLStreamException {
+		writeStartElement(localName);
+		emptyElement = true;
+	}
+
+	public void writeEmptyElement(String namespaceURI, String localName) throws XMLStreamException {
+		writeStartElement(namespaceURI, localName);
+		emptyElement = true;
+	}
+
+	public void writeEmptyElement(String prefix, String localName, String namespaceURI) throws XMLStreamException {
+		writeStartElement(prefix, localName, namespaceURI);
+		emptyElement = true;
+	}
+
+	public void writeEndElement() throws XMLStreamException {
+		if(startTagOpen && emptyElement) {
+			closeStartTag();
+		}
+		if(elements.isEmpty()) {
+			throw new XMLStreamException("There is no element to end.");
+		}
+		if(elements.size() == 1 && holdDocumentElement) {
+			return;
+		}
+		if(startTagOpen) {
+			writeStartTag();
+			writeAscii("/>");
+		} else {
+			writeAscii("</");
+			writeName(elements.get(elements.size() - 1));
+			write('>');
+		}
+		popElement();
+	}
+
+	public void writeNamespace(String prefix, String namespaceURI) throws XMLStreamException {
+		if(prefix == null || prefix.length() == 0 || XMLConstants.XMLNS_ATTRIBUTE.equals(prefix)) {
+			writeDefaultNamespace(namespaceURI);
+			return;
+		}
+		requireStartTag();
+		namespaceDecls.add(new String[] {XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix, namespaceURI});
+		bindings.add(new String[] {prefix, namespaceURI});
+	}
+
+	public void writeDefaultNamespace(String namespaceURI) throws XMLStreamException {
+		requireStartTag();
+		namespaceDecls.add(new String[] {XMLConstants.XMLNS_ATTRIBUTE, namespaceURI});
+		bindings.add(new String[] {XMLConstants.DEFAULT_NS_PREFIX, namespaceURI});
+	}
+
+	public void writeAttribute(String localName, String value) throws XMLStreamException {
+		requireStartTag();
+		attributes.add(new String[] {localName, value});
+	}
+
+	public void writeAttribute(String namespaceURI, String localName, String value) throws XMLStreamException {
+		String prefix = XMLConstants.DEFAULT_NS_PREFIX;
+		if(namespaceURI != null && namespaceURI.length() > 0) {
+			prefix = requirePrefix(namespaceURI);
+		}
+		writeAttribute(prefix, namespaceURI, localName, value);
+	}
+
+	public void writeAttribute(String prefix, String namespaceURI, String localName, String value) throws XMLStreamException {
+		requireStartTag();
+		attributes.add(new String[] {qualify(prefix, localName), value});
+	}
+
+	public void writeCharacters(String text) throws XMLStreamException {
+		if(text.length() == 0) {
+			return;
+		}
+		closeStartTag();
+		writeEscaped(text, 0, text.length(), false);
+	}
+
+	public void writeCharacters(char[] text, int start, int len) throws XMLStreamException {
+		writeCharacters(new String(text, start, len));
+	}
+
+	public void writeCData(String data) throws XMLStreamException {
+		closeStartTag();
+		writeAscii("<![CDATA[");
+		writeRaw(data);
+		writeAscii("]]>");
+	}
+
+	public void writeComment(String data) throws XMLStreamException {
+		closeStartTag();
+		writeAscii("<!--");
+		writeRaw(data);
+		writeAscii("-->");
+	}
+
+	public void writeProcessingInstruction(String target) throws XMLStreamException {
+		writeProcessingInstruction(target, null);
+	}
+
+	public void writeProcessingInstruction(String target, String data) throws XMLStreamException {
+		closeStartTag();
+		writeAscii("<?");
+		writeRaw(target);
+		if(data != null && data.length() > 0) {
+			write(' ');
+			writeRaw(data);
+		}
+		writeAscii("?>");
+	}
+
+	public void writeDTD(String dtd) throws XMLStreamException {
+		writeRaw(dtd);
+	}
+
+	public void writeEntityRef(String name) throws XMLStreamException {
+		closeStartTag();
+		write('&');
+		writeRaw(name);
+		write(';');
+	}
+
+	public String getPrefix(String uri) throws XMLStreamException {
+		return lookupPrefix(uri);
+	}
+
+	public void setPrefix(String prefix, String uri) throws XMLStreamException {
+		bindings.add(new String[] {prefix, uri});
+	}
+
+	public void setDefaultNamespace(String uri) throws XMLStreamException {
+		bindings.add(new String[] {XMLConstants.DEFAULT_NS_PREFIX, uri});
+	}
+
+	public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+		this.rootContext = context;
+	}
+
+	public NamespaceContext getNamespaceContext() {
+		return new NamespaceContext() {
+			public String getNamespaceURI(String prefix) {
+				for(int i = bindings.size() - 1; i >= 0; i--) {
+					if(bindings.get(i)[0].equals(prefix)) {
+						return bindings.get(i)[1];
+					}
+				}
+				return rootContext == null ? null : rootContext.getNamespaceURI(prefix);
+			}
+
+			public String getPrefix(String namespaceURI) {
+				return lookupPrefix(namespaceURI);
+			}
+
+			public Iterator getPrefixes(String namespaceURI) {
+				List<String> prefixes = new ArrayList<String>();
+				for(int i = bindings.size() - 1; i >= 0; i--) {
+					if(bindings.get(i)[1].equals(namespaceURI)) {
+						prefixes.add(bindings.get(i)[0]);
+					}
+				}
+				return prefixes.iterator();
+			}
+		};
+	}
+
+	public Object getProperty(String name) {
+		throw new IllegalArgumentException("Property " + name + " is not supported.");
+	}
+
+	public void flush() throws XMLStreamException {
+		// Everything is already in the buffer
+	}
+
+	public void close() throws XMLStreamException {
+		// There is no underlying stream to close
+	}
+
+	private String lookupPrefix(String uri) {
+		for(int i = bindings.size() - 1; i >= 0; i--) {
+			if(bindings.get(i)[1].equals(uri)) {
+				return bindings.get(i)[0];
+			}
+		}
+		return rootContext == null ? null : rootContext.getPrefix(uri);
+	}
+
+	private String requirePrefix(String namespaceURI) throws XMLStreamException {
+		String prefix = lookupPrefix(namespaceURI);
+		if(prefix == null) {
+			throw new XMLStreamException("No prefix is bound to " + namespaceURI);
+		}
+		return prefix;
+	}
+
+	private void requireStartTag() throws XMLStreamException {
+		if(!startTagOpen) {
+			throw new XMLStreamException("Attributes and namespaces must directly follow a start element.");
+		}
+	}
+
+	private static String qualify(String prefix, String localName) {
+		if(prefix == null || prefix.length() == 0) {
+			return localName;
+		}
+		return prefix + ":" + localName;
+	}
+
+	/**
+	 * Finishes the open start tag, if any, so content can follow it.
+	 */
+	private void closeStartTag() throws XMLStreamException {
+		if(!startTagOpen) {
+			return;
+		}
+		writeStartTag();
+		if(emptyElement) {
+			writeAscii("/>");
+			popElement();
+		} else {
+			write('>');
+		}
+	}
+
+	/**
+	 * Writes the pending start tag and its attributes, without the closing '&gt;'.
+	 */
+	private void writeStartTag() throws XMLStreamException {
+		write('<');
+		writeName(elements.get(elements.size() - 1));
+		if(namespaceDecls.size() > 1) {
+			Collections.sort(namespaceDecls, BY_NAME);
+		}
+		writeAttributes(namespaceDecls);
+		if(attributes.size() > 1) {
+			Collections.sort(attributes, BY_NAME);
+		}
+		writeAttributes(attributes);
+		startTagOpen = false;
+	}
+
+	private void writeAttributes(List<String[]> list) throws XMLStreamException {
+		for(String[] attr : list) {
+			write(' ');
+			writeName(attr[0]);
+			writeAscii("=\"");
+			writeEscaped(attr[1], 0, attr[1].length(), true);
+			write('"');
+		}
+		list.clear();
+	}
+
+	private void popElement() {
+		elements.remove(elements.size() - 1);
+		int mark = bindingMarks.remove(bindingMarks.size() - 1).intValue();
+		while(bindings.size() > mark) {
+			bindings.remove(bindings.size() - 1);
+		}
+		emptyElement = false;
+	}
+
+	private void writeName(String name) throws XMLStreamException {
+		writeRaw(name);
+	}
+
+	/**
+	 * Writes text or an attribute value, escaping it the way the identity
+	 * Transformer does.
+	 */
+	private void writeEscaped(String s, int start, int end, boolean attribute) throws XMLStreamException {
+		for(int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '&':
+					writeAscii("&amp;");
+					continue;
+				case '<':
+					writeAscii("&lt;");
+					continue;
+				case '>':
+					writeAscii("&gt;");
+					continue;
+				case '"':
+					if(attribute) {
+						writeAscii("&quot;");
+					} else {
+						write('"');
+					}
+					continue;
+				case '\n':
+					if(attribute) {
+						writeCharRef(c);
+					} else {
+						writeAscii(LINE_SEPARATOR);
+					}
+					continue;
+				case '\t':
+					if(attribute) {
+						writeCharRef(c);
+					} else {
+						write('\t');
+					}
+					continue;
+				default:
+					break;
+			}
+			if(c < 0x20) {
+				writeCharRef(c);
+			} else if(c < 0x7F) {
+				write(c);
+			} else if(c <= 0x9F && !attribute) {
+				writeCharRef(c);
+			} else if(Character.isHighSurrogate(c)) {
+				if(i + 1 >= end || !Character.isLowSurrogate(s.charAt(i + 1))) {
+					throw new XMLStreamException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(c));
+				}
+				writeCharRef(Character.toCodePoint(c, s.charAt(++i)));
+			} else if(Character.isLowSurrogate(c)) {
+				throw new XMLStreamException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(c));
+			} else {
+				writeUtf8(c);
+			}
+		}
+	}
+
+	private void writeCharRef(int codePoint) {
+		writeAscii("&#");
+		writeAscii(Integer.toString(codePoint));
+		write(';');
+	}
+
+	/**
+	 * Writes a string that needs no escaping as UTF-8.
+	 */
+	private void writeRaw(String s) throws XMLStreamException {
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c < 0x80) {
+				write(c);
+			} else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				ensureCapacity(4);
+				buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+				buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if(Character.isSurrogate(c)) {
+				throw new XMLStreamException("Invalid UTF-16 surrogate detected: " + Integer.toHexString(c));
+			} else {
+				writeUtf8(c);
+			}
+		}
+	}
+
+	private void writeUtf8(char c) {
+		if(c < 0x80) {
+			write(c);
+		} else if(c < 0x800) {
+			ensureCapacity(2);
+			buf[count++] = (byte) (0xC0 | (c >> 6));
+			buf[count++] = (byte) (0x80 | (c & 0x3F));
+		} else {
+			ensureCapacity(3);
+			buf[count++] = (byte) (0xE0 | (c >> 12));
+			buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buf[count++] = (byte) (0x80 | (c & 0x3F));
+		}
+	}
+
+	private void writeAscii(String s) {
+		int len = s.length();
+		ensureCapacity(len);
+		for(int i = 0; i < len; i++) {
+			buf[count++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void write(char c) {
+		ensureCapacity(1);
+		buf[count++] = (byte) c;
+	}
+
+	private void ensureCapacity(int needed) {
+		if(count + needed > buf.length) {
+			byte[] bigger = new byte[Math.max(buf.length * 2, count + needed)];
+			System.arraycopy(buf, 0, bigger, 0, count);
+			buf = bigger;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.common;
+
+import java.security.SecureRandom;
+import java.util.GregorianCalendar;
+import java.util.UUID;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * Timestamps and JIDs for records.
+ * <p>
+ * The DatatypeFactory is looked up once instead of for every timestamp. Each
+ * thread keeps its own GregorianCalendar and the last timestamp it made, and
+ * records made in the same millisecond get copies of that timestamp.
+ * <p>
+ * JIDs are random (version 4) UUIDs. Each thread draws them from its own
+ * SecureRandom, a batch of bytes at a time, so threads don't contend on the
+ * one SecureRandom used by UUID.randomUUID().
+ */
+public final class RecordIdentity {
+
+	private static final String JID_PREFIX = "UUID-";
+	private static final int UUID_LENGTH = 16;
+	private static final int RANDOM_BATCH = 64 * UUID_LENGTH;
+
+	private static volatile DatatypeFactory datatypeFactory;
+
+	private static final ThreadLocal<ThreadState> threadStates = new ThreadLocal<ThreadState>() {
+		@Override
+		protected ThreadState initialValue() {
+			return new ThreadState();
+		}
+	};
+
+	private RecordIdentity() {
+	}
+
+	/**
+	 * Gets a timestamp for the current time
+	 *
+	 * @return	a new XMLGregorianCalendar which the caller may change
+	 * @throws DatatypeConfigurationException	if there is no DatatypeFactory
+	 */
+	public static XMLGregorianCalendar now() throws DatatypeConfigurationException {
+		return timestamp(System.currentTimeMillis());
+	}
+
+	/**
+	 * Gets a timestamp for the given time in the default time zone
+	 *
+	 * @param millis	the time in milliseconds since the epoch
+	 * @return	a new XMLGregorianCalendar which the caller may change
+	 * @throws DatatypeConfigurationException	if there is no DatatypeFactory
+	 */
+	public static XMLGregorianCalendar timestamp(long millis) throws DatatypeConfigurationException {
+		DatatypeFactory factory = getDatatypeFactory();
+		ThreadState state = threadStates.get();
+		if(state.timestamp == null || state.factory != factory || state.millis != millis) {
+			state.calendar.setTimeInMillis(millis);
+			state.timestamp = factory.newXMLGregorianCalendar(state.calendar);
+			state.factory = factory;
+			state.millis = millis;
+		}
+		return (XMLGregorianCalendar) state.timestamp.clone();
+	}
+
+	/**
+	 * Creates a new JID, "UUID-" followed by a random UUID
+	 *
+	 * @return	the JID
+	 */
+	public static String newJID() {
+		return JID_PREFIX + threadStates.get().nextUUID().toString();
+	}
+
+	/**
+	 * Forgets the cached DatatypeFactory, so it is looked up again for the next
+	 * timestamp.
+	 */
+	public static void clear() {
+		datatypeFactory = null;
+	}
+
+	private static DatatypeFactory getDatatypeFactory() throws DatatypeConfigurationException {
+		DatatypeFactory factory = datatypeFactory;
+		if(factory == null) {
+			// Two threads may both look it up; either result can be kept.
+			factory = DatatypeFactory.newInstance();
+			datatypeFactory = factory;
+		}
+		return factory;
+	}
+
+	/**
+	 * What one thread reuses between records.
+	 */
+	private static class ThreadState {
+		final GregorianCalendar calendar = new GregorianCalendar();
+		DatatypeFactory factory;
+		XMLGregorianCalendar timestamp;
+		long millis;
+
+		final SecureRandom random = new SecureRandom();
+		final byte[] randomBytes = new byte[RANDOM_BATCH];
+		int randomPosition = RANDOM_BATCH;
+
+		UUID nextUUID() {
+			if(randomPosition == RANDOM_BATCH) {
+				random.nextBytes(randomBytes);
+				randomPosition = 0;
+			}
+			byte[] bytes = randomBytes;
+			int p = randomPosition;
+			randomPosition += UUID_LENGTH;
+
+			// Version 4, IETF variant, as in UUID.randomUUID()
+			bytes[p + 6] = (byte) ((bytes[p + 6] & 0x0f) | 0x40);
+			bytes[p + 8] = (byte) ((bytes[p + 8] & 0x3f) | 0x80);
+
+			long msb = 0;
+			long lsb = 0;
+			for(int i = 0; i < 8; i++) {
+				msb = (msb << 8) | (bytes[p + i] & 0xff);
+				lsb = (lsb << 8) | (bytes[p + 8 + i] & 0xff);
+			}
+			// The bytes are handed out once, so don't leave them in memory.
+			for(int i = 0; i < UUID_LENGTH; i++) {
+				bytes[p + i] = 0;
+			}
+			return new UUID(msb, lsb);
+		}
+	}
+}
@@ -25,7 +25,15 @@
 package com.tresys.jalop.common;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.etsy.net.JUDS;
 import com.etsy.net.MessageHeader;
@@ -41,6 +49,31 @@ public class SendUtils {
 	public static final String JALP_BREAK_STR = "BREAK";
 	public static final int BUFFER_SIZE = 102400;
 
+	private static final byte[] JALP_BREAK_BYTES = {'B', 'R', 'E', 'A', 'K'};
+
+	private static final ThreadLocal<FrameBuffers> frameBuffers = new ThreadLocal<FrameBuffers>() {
+		@Override
+		protected FrameBuffers initialValue() {
+			return new FrameBuffers();
+		}
+	};
+
+	/**
+	 * Supplies the application metadata for a record once its payload has been sent.
+	 */
+	public interface MetadataSource {
+
+		/**
+		 * Gets the application metadata. This is called after the last byte of the
+		 * payload has been read and must return exactly the number of bytes given as
+		 * the metadata length of the record.
+		 *
+		 * @return	a byte array which is the metadata
+		 * @throws Exception
+		 */
+		byte[] getMetadata() throws Exception;
+	}
+
 	/**
 	 * Connects to the socket, creates the MessageHeaders and sends them with sendmsg.
 	 *
@@ -61,120 +94,649 @@ public class SendUtils {
 											byte[] meta,
 											UnixDomainSocketClient socket) throws Exception {
 
+		createAndSendHeaders(messageType, dataLen, metaLen, is, file, null, meta, socket);
+	}
+
+	/**
+	 * Creates the MessageHeaders and sends them with sendmsg. A JALP_JOURNAL_FD_MSG
+	 * record passes fileDescriptor, which is already open, instead of opening file
+	 * again. The descriptor is left open for the caller to close.
+	 *
+	 * @param messageType		the MessageType
+	 * @param dataLen			a long which is the length of the data
+	 * @param metaLen			a long which is the length of the metadata
+	 * @param is				the data as an InputStream
+	 * @param file				a File for the buffer if sending by file descriptor
+	 * @param fileDescriptor	an open file to pass instead of file, or null
+	 * @param meta				a byte array which is the metadata
+	 * @param socket			the socket to send on
+	 * @throws Exception
+	 */
+	public static void createAndSendHeaders(MessageType messageType,
+											long dataLen,
+											long metaLen,
+											InputStream is,
+											File file,
+											FileDescriptor fileDescriptor,
+											byte[] meta,
+											UnixDomainSocketClient socket) throws Exception {
+
 		synchronized (socket) {
-			UnixDomainSocketOutputStream out = (UnixDomainSocketOutputStream)socket.getOutputStream();
+			sendRecord(messageType, dataLen, metaLen, is, file, fileDescriptor, meta, null, new RecordFramer(socket));
+		}
+	}
 
-			ConnectionHeader connectionHeader = new ConnectionHeader((short)1, messageType, dataLen, metaLen);
+	/**
+	 * Creates the MessageHeaders and writes them to channel with gathering writes.
+	 * The bytes written are the same as those sent on a JUDS socket. A channel
+	 * can't pass a file descriptor, so JALP_JOURNAL_FD_MSG records can't be sent
+	 * this way.
+	 *
+	 * @param messageType	the MessageType
+	 * @param dataLen		a long which is the length of the data
+	 * @param metaLen		a long which is the length of the metadata
+	 * @param is			the data as an InputStream
+	 * @param meta			a byte array which is the metadata
+	 * @param channel		the channel to write to, in blocking mode
+	 * @throws Exception
+	 */
+	public static void createAndSendHeaders(MessageType messageType,
+											long dataLen,
+											long metaLen,
+											InputStream is,
+											byte[] meta,
+											GatheringByteChannel channel) throws Exception {
 
-			// Create MessageHeader with ConnectionHeader info - send
-			out.sendmsg(createHeader(connectionHeader, file));
+		checkChannelType(messageType);
+		synchronized (channel) {
+			sendRecord(messageType, dataLen, metaLen, is, null, null, meta, null, new RecordFramer(channel));
+		}
+	}
 
-			// If messageType != 4 (fd) create MessageHeader with data info - send
-			if(MessageType.JALP_JOURNAL_FD_MSG != messageType) {
+	/**
+	 * Connects to the socket, creates the MessageHeaders and sends them with sendmsg.
+	 * The metadata is requested from metaSource after the payload and its BREAK have
+	 * been sent, so it may depend on the bytes read from is.
+	 *
+	 * @param messageType	the MessageType
+	 * @param dataLen		a long which is the length of the data
+	 * @param metaLen		a long which is the length the metadata will have
+	 * @param is			the data as an InputStream
+	 * @param metaSource	the MetadataSource that supplies the metadata
+	 * @param socket		the socket to send on
+	 * @throws Exception
+	 */
+	public static void createAndSendHeaders(MessageType messageType,
+											long dataLen,
+											long metaLen,
+											InputStream is,
+											MetadataSource metaSource,
+											UnixDomainSocketClient socket) throws Exception {
 
-				if(is != null) {
-					byte[] bufferBytes = new byte[BUFFER_SIZE];
-					int read;
+		if(metaSource == null) {
+			throw new JALException("The MetadataSource must not be null.");
+		}
+		synchronized (socket) {
+			sendRecord(messageType, dataLen, metaLen, is, null, null, null, metaSource, new RecordFramer(socket));
+		}
+	}
 
-					while((read = is.read(bufferBytes, 0, bufferBytes.length)) > 0) {
-						MessageHeader dataHeader = createDataHeader(bufferBytes, read);
-						out.sendmsg(dataHeader);
-					}
+	/**
+	 * Writes a record to channel, requesting the metadata from metaSource after the
+	 * payload and its BREAK have been written, as for a JUDS socket.
+	 *
+	 * @param messageType	the MessageType, anything but JALP_JOURNAL_FD_MSG
+	 * @param dataLen		a long which is the length of the data
+	 * @param metaLen		a long which is the length the metadata will have
+	 * @param is			the data as an InputStream
+	 * @param metaSource	the MetadataSource that supplies the metadata
+	 * @param channel		the channel to write to, in blocking mode
+	 * @throws Exception
+	 */
+	public static void createAndSendHeaders(MessageType messageType,
+											long dataLen,
+											long metaLen,
+											InputStream is,
+											MetadataSource metaSource,
+											GatheringByteChannel channel) throws Exception {
+
+		if(metaSource == null) {
+			throw new JALException("The MetadataSource must not be null.");
+		}
+		checkChannelType(messageType);
+		synchronized (channel) {
+			sendRecord(messageType, dataLen, metaLen, is, null, null, null, metaSource, new RecordFramer(channel));
+		}
+	}
+
+	/**
+	 * Sends a record on a ForeignUnixSocket, the same way as on a JUDS socket.
+	 * This is how JALP_JOURNAL_FD_MSG records are sent without the JUDS native
+	 * library: the file is passed by descriptor with the header.
+	 *
+	 * @param messageType	the MessageType
+	 * @param dataLen		a long which is the length of the data
+	 * @param metaLen		a long which is the length of the metadata
+	 * @param is			the data as an InputStream
+	 * @param file			a File for the buffer if sending by file descriptor
+	 * @param meta			a byte array which is the metadata
+	 * @param socket		the socket to send on
+	 * @throws Exception
+	 */
+	public static void createAndSendHeaders(MessageType messageType,
+											long dataLen,
+											long metaLen,
+											InputStream is,
+											File file,
+											byte[] meta,
+											ForeignUnixSocket socket) throws Exception {
+
+		createAndSendHeaders(messageType, dataLen, metaLen, is, file, null, meta, socket);
+	}
+
+	/**
+	 * Sends a record on a ForeignUnixSocket, passing fileDescriptor, which is
+	 * already open, for a JALP_JOURNAL_FD_MSG record. See
+	 * {@link ForeignUnixSocket#sendmsg(ByteBuffer[], FileDescriptor, String)}
+	 * for when file is opened instead.
+	 *
+	 * @param messageType		the MessageType
+	 * @param dataLen			a long which is the length of the data
+	 * @param metaLen			a long which is the length of the metadata
+	 * @param is				the data as an InputStream
+	 * @param file				a File for the buffer if sending by file descriptor
+	 * @param fileDescriptor	an open file to pass instead of file, or null
+	 * @param meta				a byte array which is the metadata
+	 * @param socket			the socket to send on
+	 * @throws Exception
+	 */
+	public static void createAndSendHeaders(MessageType messageType,
+											long dataLen,
+											long metaLen,
+											InputStream is,
+											File file,
+											FileDescriptor fileDescriptor,
+											byte[] meta,
+											ForeignUnixSocket socket) throws Exception {
+
+		synchronized (socket) {
+			sendRecord(messageType, dataLen, metaLen, is, file, fileDescriptor, meta, null, new RecordFramer(socket));
+		}
+	}
+
+	private static void checkChannelType(MessageType messageType) throws JALException {
+		if(MessageType.JALP_JOURNAL_FD_MSG == messageType) {
+			throw new JALException("A JALP_JOURNAL_FD_MSG record must be sent on a JUDS socket.");
+		}
+	}
+
+	/**
+	 * Gets the number of bytes a record takes on the socket when its payload is
+	 * sent inline, which is every message type except JALP_JOURNAL_FD_MSG.
+	 *
+	 * @param dataLen	a long which is the length of the data
+	 * @param metaLen	a long which is the length of the metadata
+	 * @return	the length of the encoded record
+	 */
+	public static long encodedLength(long dataLen, long metaLen) {
+		return ConnectionHeader.ENCODED_LENGTH + dataLen + JALP_BREAK_BYTES.length + metaLen + JALP_BREAK_BYTES.length;
+	}
+
+	/**
+	 * Encodes a whole record, exactly as it is sent on the socket, into dst. The
+	 * payload is read from is, which must supply dataLen bytes. Records with a
+	 * JALP_JOURNAL_FD_MSG type can't be encoded because their payload is passed
+	 * as a file descriptor.
+	 *
+	 * @param messageType	the MessageType
+	 * @param dataLen		a long which is the length of the data
+	 * @param is			the data as an InputStream, may be null if dataLen is 0
+	 * @param meta			a byte array which is the metadata, may be null
+	 * @param dst			the buffer to write to, with at least
+	 * 						{@link #encodedLength(long, long)} bytes remaining
+	 * @throws IOException	if is ends before dataLen bytes are read
+	 * @throws JALException	if the message type is JALP_JOURNAL_FD_MSG
+	 */
+	public static void encodeRecord(MessageType messageType,
+									long dataLen,
+									InputStream is,
+									byte[] meta,
+									ByteBuffer dst) throws IOException, JALException {
+
+		if(MessageType.JALP_JOURNAL_FD_MSG == messageType) {
+			throw new JALException("A JALP_JOURNAL_FD_MSG record can't be encoded.");
+		}
+		long metaLen = 0;
+		if(meta != null) {
+			metaLen = meta.length;
+		}
+		new ConnectionHeader((short)1, messageType, dataLen, metaLen).encode(dst);
+
+		byte[] bufferBytes = frameBuffers.get().bytes;
+		long remaining = dataLen;
+		while(remaining > 0) {
+			int read = -1;
+			if(is != null) {
+				read = fill(is, bufferBytes, (int) Math.min(bufferBytes.length, remaining));
+			}
+			if(read <= 0) {
+				throw new IOException("The payload ended after " + (dataLen - remaining)
+						+ " of " + dataLen + " bytes.");
+			}
+			dst.put(bufferBytes, 0, read);
+			remaining -= read;
+		}
+		dst.put(JALP_BREAK_BYTES);
+		if(meta != null) {
+			dst.put(meta);
+		}
+		dst.put(JALP_BREAK_BYTES);
+	}
+
+	/**
+	 * Sends a record made by {@link #encodeRecord} with one sendmsg.
+	 *
+	 * @param record	a direct buffer holding the whole record between its
+	 * 					position and limit
+	 * @param socket	the socket to send on
+	 * @throws IOException
+	 */
+	public static void sendEncodedRecord(ByteBuffer record, UnixDomainSocketClient socket) throws IOException {
+		synchronized (socket) {
+			((UnixDomainSocketOutputStream)socket.getOutputStream()).sendmsg(new ByteBuffer[] { record });
+		}
+	}
+
+	/**
+	 * Writes a record made by {@link #encodeRecord} to channel.
+	 *
+	 * @param record	a buffer holding the whole record between its position
+	 * 					and limit
+	 * @param channel	the channel to write to, in blocking mode
+	 * @throws IOException
+	 */
+	public static void sendEncodedRecord(ByteBuffer record, GatheringByteChannel channel) throws IOException {
+		synchronized (channel) {
+			while(record.hasRemaining()) {
+				channel.write(record);
+			}
+		}
+	}
+
+	/**
+	 * Sends the headers, payload, and metadata of one record. The pieces are gathered
+	 * into as few sendmsg calls or gathering writes as possible: a record whose payload
+	 * fits in one buffer goes out in a single call, and a larger payload only adds one
+	 * call per extra buffer. The caller holds the socket's or channel's lock.
+	 */
+	private static void sendRecord(MessageType messageType,
+									long dataLen,
+									long metaLen,
+									InputStream is,
+									File file,
+									FileDescriptor fileDescriptor,
+									byte[] meta,
+									MetadataSource metaSource,
+									RecordFramer framer) throws Exception {
+
+		ConnectionHeader connectionHeader = new ConnectionHeader((short)1, messageType, dataLen, metaLen);
+
+		framer.add(createHeader(connectionHeader, file, fileDescriptor));
+
+		// If messageType != 4 (fd) add the data and a BREAK
+		if(MessageType.JALP_JOURNAL_FD_MSG != messageType) {
+
+			if(is instanceof FileInputStream) {
+				sendFileData(framer, (FileInputStream)is, dataLen);
+			} else if(is != null) {
+				sendStreamData(framer, is, dataLen);
+			}
+			framer.add(createBreakHeader());
+		}
+
+		if(metaSource != null) {
+			meta = metaSource.getMetadata();
+		}
+
+		framer.add(createMetaHeader(meta));
+		framer.flush();
+	}
+
+	/**
+	 * Sends a file payload from its current position. The headers are sent first and
+	 * the payload then goes from the file to the socket inside the kernel with sendfile,
+	 * or FileChannel.transferTo for a channel.
+	 * Where neither can be used the file is read into this thread's direct data buffer
+	 * instead. The header announced dataLen bytes, so sending stops there even if the
+	 * file has grown since, and an IOException is thrown if the file ends first.
+	 *
+	 * @param framer	the RecordFramer holding the record so far
+	 * @param fis		the FileInputStream to read the payload from
+	 * @param dataLen	a long which is the length of the data
+	 * @throws IOException	if the file ends before dataLen bytes, or the send fails
+	 */
+	private static void sendFileData(RecordFramer framer, FileInputStream fis, long dataLen) throws IOException {
+		if(dataLen <= 0) {
+			return;
+		}
+		FileChannel channel = fis.getChannel();
+		long position = channel.position();
+
+		framer.flush();
+		long sent = framer.sendfile(fis, position, dataLen);
+		if(sent >= 0) {
+			channel.position(position + sent);
+			if(sent < dataLen) {
+				throw new IOException("The payload ended after " + sent
+						+ " of " + dataLen + " bytes.");
+			}
+			return;
+		}
+
+		ByteBuffer buffer = frameBuffers.get().data;
+		long remaining = dataLen;
+
+		while(remaining > 0) {
+			buffer.clear();
+			if(remaining < buffer.capacity()) {
+				buffer.limit((int) remaining);
+			}
+			while(buffer.hasRemaining() && channel.read(buffer) > 0) {
+				// keep reading until the buffer is full or the file ends
+			}
+			buffer.flip();
+			if(!buffer.hasRemaining()) {
+				throw new IOException("The payload ended after " + (dataLen - remaining)
+						+ " of " + dataLen + " bytes.");
+			}
+			remaining -= buffer.remaining();
+			framer.add(buffer);
+			if(remaining > 0) {
+				framer.flush();
+			}
+		}
+	}
+
+	/**
+	 * Sends a payload read from any other InputStream, one buffer at a time. Reading
+	 * stops once dataLen bytes have been read, and an IOException is thrown if the
+	 * stream ends first.
+	 *
+	 * @param framer	the RecordFramer holding the record so far
+	 * @param is		the InputStream to read the payload from
+	 * @param dataLen	a long which is the length of the data
+	 * @throws IOException	if the stream ends before dataLen bytes, or the send fails
+	 */
+	private static void sendStreamData(RecordFramer framer, InputStream is, long dataLen) throws IOException {
+		byte[] bufferBytes = frameBuffers.get().bytes;
+		long remaining = dataLen;
+
+		while(remaining > 0) {
+			int read = fill(is, bufferBytes, (int) Math.min(bufferBytes.length, remaining));
+			if(read <= 0) {
+				throw new IOException("The payload ended after " + (dataLen - remaining)
+						+ " of " + dataLen + " bytes.");
+			}
+			framer.add(createDataHeader(bufferBytes, read));
+			remaining -= read;
+			if(remaining > 0) {
+				framer.flush();
+			}
+		}
+	}
+
+	/**
+	 * Reads from the stream until length bytes have been read or the stream ends.
+	 *
+	 * @param is		the InputStream to read
+	 * @param buffer	the buffer to fill
+	 * @param length	the number of bytes to read into the start of buffer
+	 * @return	the number of bytes read, or -1 if the stream had already ended
+	 * @throws IOException
+	 */
+	private static int fill(InputStream is, byte[] buffer, int length) throws IOException {
+		int total = 0;
+		while(total < length) {
+			int read = is.read(buffer, total, length - total);
+			if(read <= 0) {
+				break;
+			}
+			total += read;
+		}
+		return total == 0 ? -1 : total;
+	}
+
+	/**
+	 * Direct buffers a thread frames its records in. They are reused for every
+	 * record the thread sends, one record at a time, so the header, BREAKs and
+	 * payload chunks are encoded without allocating. The two BREAKs of a record
+	 * can go out in the same gathered write, so each has its own buffer; a short
+	 * write moves the position of the first without touching the second.
+	 */
+	private static class FrameBuffers {
+		private static final int META_SIZE = 8192;
+		private static final int MAX_RETAINED_META_SIZE = 1024 * 1024;
+
+		final ByteBuffer header = ByteBuffer.allocateDirect(ConnectionHeader.ENCODED_LENGTH);
+		final ByteBuffer dataBreak = ByteBuffer.allocateDirect(JALP_BREAK_BYTES.length);
+		final ByteBuffer metaBreak = ByteBuffer.allocateDirect(JALP_BREAK_BYTES.length);
+		final ByteBuffer data = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		final byte[] bytes = new byte[BUFFER_SIZE];
+		private ByteBuffer meta = ByteBuffer.allocateDirect(META_SIZE);
+
+		FrameBuffers() {
+			dataBreak.put(JALP_BREAK_BYTES).flip();
+			metaBreak.put(JALP_BREAK_BYTES).flip();
+		}
+
+		/**
+		 * Gets an empty direct buffer with room for length bytes of metadata. Buffers
+		 * over 1MB are not kept for the next record.
+		 */
+		ByteBuffer meta(int length) {
+			if(length > meta.capacity()) {
+				if(length > MAX_RETAINED_META_SIZE) {
+					return ByteBuffer.allocateDirect(length);
+				}
+				meta = ByteBuffer.allocateDirect(Math.min(Math.max(length, meta.capacity() * 2), MAX_RETAINED_META_SIZE));
+			}
+			meta.clear();
+			return meta;
+		}
+	}
+
+	/**
+	 * Gathers the buffers of several MessageHeaders so they can be sent with one sendmsg,
+	 * or written to a channel with one gathering write.
+	 */
+	private static class RecordFramer {
+		private final UnixDomainSocketOutputStream out;
+		private final GatheringByteChannel channel;
+		private final ForeignUnixSocket foreignSocket;
+		private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		private String filePath;
+		private FileDescriptor fileDescriptor;
+
+		RecordFramer(UnixDomainSocketClient socket) {
+			this.out = (UnixDomainSocketOutputStream)socket.getOutputStream();
+			this.channel = null;
+			this.foreignSocket = null;
+		}
+
+		RecordFramer(GatheringByteChannel channel) {
+			this.out = null;
+			this.channel = channel;
+			this.foreignSocket = null;
+		}
+
+		RecordFramer(ForeignUnixSocket foreignSocket) {
+			this.out = null;
+			this.channel = null;
+			this.foreignSocket = foreignSocket;
+		}
+
+		/**
+		 * Sends length bytes of the file from position without copying them
+		 * through the JVM.
+		 *
+		 * @return	the number of bytes sent, or -1 if nothing could be sent this way
+		 */
+		long sendfile(FileInputStream fis, long position, long length) throws IOException {
+			if(out != null) {
+				return out.sendfile(fis.getFD(), position, length);
+			}
+			if(foreignSocket != null) {
+				return -1;
+			}
+			FileChannel file = fis.getChannel();
+			long sent = 0;
+			while(sent < length) {
+				long count = file.transferTo(position + sent, length - sent, channel);
+				if(count <= 0) {
+					break;
 				}
-				out.sendmsg(createBreakHeader());
+				sent += count;
 			}
+			return sent;
+		}
 
-			// Create MessageHeader with meta info - send
-			out.sendmsg(createMetaHeader(meta));
+		void add(MessageHeader mh) {
+			for(ByteBuffer buffer : mh.getBuffers()) {
+				buffers.add(buffer);
+			}
+			if(mh.getFilePath() != null) {
+				filePath = mh.getFilePath();
+			}
+			if(mh.getFileDescriptor() != null) {
+				fileDescriptor = mh.getFileDescriptor();
+			}
 		}
 
+		void add(ByteBuffer buffer) {
+			buffers.add(buffer);
+		}
+
+		void flush() throws IOException {
+			if(buffers.isEmpty() && filePath == null && fileDescriptor == null) {
+				return;
+			}
+			ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers.size()]);
+			if(channel != null) {
+				write(array);
+			} else if(foreignSocket != null) {
+				foreignSocket.sendmsg(array, fileDescriptor, filePath);
+			} else if(filePath == null && fileDescriptor == null) {
+				out.sendmsg(array);
+			} else {
+				MessageHeader mh = new MessageHeader();
+				mh.setBuffers(array);
+				if(fileDescriptor != null) {
+					mh.setFileDescriptor(fileDescriptor);
+				} else {
+					mh.setFilePath(filePath);
+				}
+				out.sendmsg(mh);
+			}
+			buffers.clear();
+			filePath = null;
+			fileDescriptor = null;
+		}
+
+		private void write(ByteBuffer[] array) throws IOException {
+			int first = 0;
+			while(first < array.length) {
+				channel.write(array, first, array.length - first);
+				while(first < array.length && !array[first].hasRemaining()) {
+					first++;
+				}
+			}
+		}
 	}
 
 	/**
-	 * Creates a MessageHeader object with the info from connectionHeader in iov.
+	 * Creates a MessageHeader object with connectionHeader encoded into this thread's
+	 * header buffer.
 	 *
 	 * @param connectionHeader	A ConnectionHeader object filled in with the correct data
 	 * @param file				a File for the buffer if sending by file descriptor
+	 * @param fileDescriptor	an open file to pass instead of opening file, or null
 	 * @return the MessageHeader object
 	 */
-	private static MessageHeader createHeader(ConnectionHeader connectionHeader, File file) {
+	private static MessageHeader createHeader(ConnectionHeader connectionHeader, File file, FileDescriptor fileDescriptor) {
 
-		Object[] iov = new Object[4];
-		iov[0] = connectionHeader.getProtocolVersion();
-		iov[1]= connectionHeader.getMessageType();
-		iov[2] = connectionHeader.getDataLen();
-		iov[3] = connectionHeader.getMetaLen();
+		ByteBuffer header = frameBuffers.get().header;
+		header.clear();
+		connectionHeader.encode(header).flip();
 
 		MessageHeader mh = new MessageHeader();
-		mh.setIov(iov);
+		mh.setBuffers(new ByteBuffer[] { header });
 		if(file != null) {
 			mh.setFilePath(file.getAbsolutePath());
 		}
+		mh.setFileDescriptor(fileDescriptor);
 
 		return mh;
 	}
 
 	/**
-	 * Creates a MessageHeader object with a byte[] buffer and corrects the byte[] size if necessary.
+	 * Creates a MessageHeader object with the first length bytes of bufferBytes copied
+	 * into this thread's direct data buffer.
 	 *
-	 * @param bufferBytes	A byte array which is put into iov
+	 * @param bufferBytes	A byte array which holds the data
 	 * @param length		An int which is the length of bytes read into the buffer.
 	 * @return the MessageHeader object
 	 */
 	private static MessageHeader createDataHeader(byte[] bufferBytes, int length) {
 
-		Object[] iov = new Object[1];
-
-		if (length != BUFFER_SIZE) {
-			byte[] lastBuffer = new byte[length];
-			System.arraycopy(bufferBytes, 0, lastBuffer, 0, length);
-			bufferBytes = lastBuffer;
-		}
-		iov[0] = bufferBytes;
+		ByteBuffer data = frameBuffers.get().data;
+		data.clear();
+		data.put(bufferBytes, 0, length).flip();
 
 		MessageHeader mh = new MessageHeader();
-		mh.setIov(iov);
+		mh.setBuffers(new ByteBuffer[] { data });
 
 		return mh;
 	}
 
 	/**
-	 * Creates a MessageHeader object and with the meta byte[] and JALP_BREAK_STR in iov.
+	 * Creates a MessageHeader object with the meta bytes and JALP_BREAK_STR in direct buffers.
 	 *
 	 * @param meta	A byte array with the metadata
 	 * @return the MessageHeader object
 	 */
 	private static MessageHeader createMetaHeader(byte[] meta) {
-		Object[] iov;
+		FrameBuffers fb = frameBuffers.get();
+		ByteBuffer[] buffers;
 		if(meta != null) {
-			iov = new Object[2];
-			iov[0] = meta;
-			iov[1] = JALP_BREAK_STR;
+			ByteBuffer metaBuffer = fb.meta(meta.length);
+			metaBuffer.put(meta).flip();
+			buffers = new ByteBuffer[] { metaBuffer, breakBuffer(fb.metaBreak) };
 		} else {
-			iov = new Object[1];
-			iov[0] = JALP_BREAK_STR;
+			buffers = new ByteBuffer[] { breakBuffer(fb.metaBreak) };
 		}
 
 		MessageHeader mh = new MessageHeader();
-		mh.setIov(iov);
+		mh.setBuffers(buffers);
 
 		return mh;
 	}
 
 	/**
-	 * Create a MessageHeader with the JALP_BREAK_STR in iov.
+	 * Create a MessageHeader with the JALP_BREAK_STR in a direct buffer.
 	 *
 	 * @return the MessageHeader object
 	 */
 	private static MessageHeader createBreakHeader() {
 
-		Object[] iov = new Object[1];
-		iov[0] = JALP_BREAK_STR;
-
 		MessageHeader mh = new MessageHeader();
-		mh.setIov(iov);
+		mh.setBuffers(new ByteBuffer[] { breakBuffer(frameBuffers.get().dataBreak) });
 
 		return mh;
 	}
 
+	private static ByteBuffer breakBuffer(ByteBuffer breakStr) {
+		breakStr.rewind();
+		return breakStr;
+	}
+
 }
@@ -0,0 +1,232 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.common;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.keyinfo.KeyValue;
+import javax.xml.crypto.dsig.keyinfo.X509Data;
+import javax.xml.crypto.dsig.keyinfo.X509IssuerSerial;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Signs application metadata documents with one set of keys. Everything in a
+ * signature except the reference to the record's JID is the same for every
+ * record, so the KeyInfo is built once and the signature and digest methods
+ * once per thread. The signature method keeps the thread's
+ * java.security.Signature between records. After a thread's first signature
+ * the marshaled KeyInfo element is copied into later signatures instead of
+ * being marshaled again.
+ * <p>
+ * Transforms and canonicalization methods hold on to the document they were
+ * first applied to, so those are still created for each signature.
+ */
+public class SigningEngine {
+
+	private static final String EXC_C14N_WITH_COMMENTS = "http://www.w3.org/2001/10/xml-exc-c14n#WithComments";
+	private static final String RSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+
+	private final PrivateKey privateKey;
+	private final PublicKey publicKey;
+	private final X509Certificate certificate;
+	private final KeyInfo keyInfo;
+
+	private volatile Long signatureLength;
+
+	private final ThreadLocal<Signer> signers = new ThreadLocal<Signer>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param privateKey	the PrivateKey to sign with
+	 * @param publicKey		the PublicKey put in the KeyInfo
+	 * @param certificate	the X509Certificate put in the KeyInfo, may be null
+	 * @throws Exception
+	 */
+	public SigningEngine(PrivateKey privateKey, PublicKey publicKey, X509Certificate certificate) throws Exception {
+		this.privateKey = privateKey;
+		this.publicKey = publicKey;
+		this.certificate = certificate;
+		this.keyInfo = createKeyInfo(XMLSignatureFactory.getInstance("DOM").getKeyInfoFactory());
+	}
+
+	/**
+	 * Gets whether this engine signs with exactly the given keys.
+	 *
+	 * @param privateKey	the PrivateKey
+	 * @param publicKey		the PublicKey
+	 * @param certificate	the X509Certificate, may be null
+	 * @return	true if the keys are the ones this engine was created with
+	 */
+	public boolean isFor(PrivateKey privateKey, PublicKey publicKey, X509Certificate certificate) {
+		return this.privateKey == privateKey && this.publicKey == publicKey && this.certificate == certificate;
+	}
+
+	/**
+	 * Adds an enveloped signature over the document to its document element.
+	 *
+	 * @param doc	the marshaled document to be signed
+	 * @param jid	the JID of the document, which the signature references
+	 * @throws Exception
+	 */
+	public void sign(Document doc, String jid) throws Exception {
+		Signer signer = signers.get();
+		if(signer == null) {
+			signer = new Signer();
+			signers.set(signer);
+		}
+		signer.sign(doc, jid);
+	}
+
+	/**
+	 * Gets the length a signature by this engine adds to a document.
+	 *
+	 * @return	the length in bytes, or null if it is not known yet
+	 */
+	Long getSignatureLength() {
+		return signatureLength;
+	}
+
+	/**
+	 * Records the length a signature by this engine adds to a document.
+	 *
+	 * @param signatureLength	the length in bytes, or null to forget the recorded length
+	 */
+	void setSignatureLength(Long signatureLength) {
+		this.signatureLength = signatureLength;
+	}
+
+	private KeyInfo createKeyInfo(KeyInfoFactory keyInfoFactory) throws Exception {
+		KeyValue keyValue = keyInfoFactory.newKeyValue(publicKey);
+
+		List keyInfoList = new ArrayList();
+		keyInfoList.add(keyValue);
+
+		if(certificate != null) {
+			List content = new ArrayList();
+			content.add(certificate.getSubjectX500Principal().getName());
+
+			X509IssuerSerial issuerSerial = keyInfoFactory.newX509IssuerSerial(
+					certificate.getIssuerX500Principal().getName(),
+					certificate.getSerialNumber());
+			content.add(issuerSerial);
+
+			content.add(certificate);
+
+			X509Data xd = keyInfoFactory.newX509Data(content);
+			keyInfoList.add(xd);
+		}
+
+		return keyInfoFactory.newKeyInfo(keyInfoList);
+	}
+
+	/**
+	 * The signature structures used by one thread.
+	 */
+	private class Signer {
+		private final XMLSignatureFactory xmlSigFactory;
+		private final DigestMethod digestMethod;
+		private final SignatureMethod signatureMethod;
+		private Element keyInfoTemplate;
+
+		Signer() throws Exception {
+			xmlSigFactory = XMLSignatureFactory.getInstance("DOM");
+			digestMethod = xmlSigFactory.newDigestMethod(DigestMethod.SHA256, null);
+			signatureMethod = xmlSigFactory.newSignatureMethod(RSA_SHA256, null);
+		}
+
+		void sign(Document doc, String jid) throws Exception {
+			Element root = doc.getDocumentElement();
+			DOMSignContext domSignContext = new DOMSignContext(privateKey, root);
+
+			//This allows the xpointer below to resolve JID as an ID
+			domSignContext.setIdAttributeNS(root, null, "JID");
+
+			List<Transform> transformList = new ArrayList<Transform>();
+
+			transformList.add(xmlSigFactory.newTransform(
+					Transform.ENVELOPED,
+					(TransformParameterSpec) null));
+
+			transformList.add(xmlSigFactory.newTransform(
+					EXC_C14N_WITH_COMMENTS,
+					(TransformParameterSpec) null));
+
+			String uri = "#xpointer(id(\'"+jid+"\'))";
+			Reference reference = xmlSigFactory.newReference(uri, digestMethod, transformList, null, null);
+
+			CanonicalizationMethod canonicalizationMethod = xmlSigFactory.newCanonicalizationMethod(
+					CanonicalizationMethod.INCLUSIVE_WITH_COMMENTS,
+					(C14NMethodParameterSpec) null);
+
+			SignedInfo signedInfo = xmlSigFactory.newSignedInfo(
+				canonicalizationMethod,
+				signatureMethod,
+				Collections.singletonList(reference));
+
+			if(keyInfoTemplate == null) {
+				xmlSigFactory.newXMLSignature(signedInfo, keyInfo).sign(domSignContext);
+				Element signature = lastSignature(root);
+				Element marshaled = (Element) signature.getElementsByTagNameNS(XMLSignature.XMLNS, "KeyInfo").item(0);
+				Document templateDoc = XMLCache.getDocumentBuilder().newDocument();
+				keyInfoTemplate = (Element) templateDoc.importNode(marshaled, true);
+			} else {
+				// The KeyInfo is outside of what is signed, so it can be added afterwards.
+				xmlSigFactory.newXMLSignature(signedInfo, null).sign(domSignContext);
+				lastSignature(root).appendChild(doc.importNode(keyInfoTemplate, true));
+			}
+		}
+
+		private Element lastSignature(Element root) {
+			Node child = root.getLastChild();
+			while(!(child instanceof Element && XMLSignature.XMLNS.equals(child.getNamespaceURI())
+					&& "Signature".equals(child.getLocalName()))) {
+				child = child.getPreviousSibling();
+			}
+			return (Element) child;
+		}
+	}
+}
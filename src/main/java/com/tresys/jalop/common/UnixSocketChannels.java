@@ -0,0 +1,122 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.common;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Opens connections to a UNIX domain socket with the NIO SocketChannel
+ * support added in Java 16. jJALoP is built for older releases, so the
+ * Java 16 address class is looked up by reflection, and these channels are
+ * only available when running on Java 16 or later.
+ */
+public final class UnixSocketChannels {
+
+	private static final Method ADDRESS_OF = findAddressFactory();
+
+	private UnixSocketChannels() {
+	}
+
+	/**
+	 * Checks whether the running Java can connect to UNIX domain sockets
+	 * with a SocketChannel.
+	 *
+	 * @return true on Java 16 or later
+	 */
+	public static boolean isAvailable() {
+		return ADDRESS_OF != null;
+	}
+
+	/**
+	 * Connects a blocking SocketChannel to the socket at socketFile.
+	 *
+	 * @param socketFile	the path to the socket
+	 * @return	the connected SocketChannel
+	 * @throws IOException	if the connection can't be made
+	 * @throws UnsupportedOperationException	if the running Java is older than 16
+	 */
+	public static SocketChannel open(String socketFile) throws IOException {
+		if(ADDRESS_OF == null) {
+			throw new UnsupportedOperationException("UNIX domain SocketChannels need Java 16 or later");
+		}
+		SocketAddress address;
+		try {
+			address = (SocketAddress) ADDRESS_OF.invoke(null, socketFile);
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+		return SocketChannel.open(address);
+	}
+
+	/**
+	 * Checks, without blocking, whether the other end has closed a connected
+	 * channel. The channel is briefly made non-blocking to try a read; the
+	 * local store never writes to a producer's connection, so there is
+	 * nothing there to lose.
+	 *
+	 * @param channel	a channel made by {@link #open(String)}
+	 * @return true if the connection has been closed by the other end or has
+	 * 			failed
+	 */
+	public static boolean isPeerClosed(SocketChannel channel) {
+		ByteBuffer probe = ByteBuffer.allocate(1);
+		synchronized(channel.blockingLock()) {
+			try {
+				boolean blocking = channel.isBlocking();
+				channel.configureBlocking(false);
+				try {
+					return channel.read(probe) < 0;
+				} finally {
+					channel.configureBlocking(blocking);
+				}
+			} catch (IOException e) {
+				return true;
+			}
+		}
+	}
+
+	private static Method findAddressFactory() {
+		try {
+			Class<?> addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+			return addressClass.getMethod("of", String.class);
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.common;
+
+import java.net.URL;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.xml.sax.SAXException;
+
+/**
+ * Process-wide cache of the XML infrastructure used to build application
+ * metadata. JAXBContexts, compiled Schemas and the parser and transformer
+ * factories are thread-safe and are created once. Marshallers,
+ * DocumentBuilders, Transformers and MetadataWriters are not thread-safe, so
+ * one of each is kept per thread.
+ */
+public class XMLCache {
+
+	private static final ConcurrentMap<String, JAXBContext> contexts = new ConcurrentHashMap<String, JAXBContext>();
+	private static final ConcurrentMap<String, Schema> schemas = new ConcurrentHashMap<String, Schema>();
+
+	private static final DocumentBuilderFactory documentBuilderFactory;
+	private static final TransformerFactory transformerFactory;
+
+	static {
+		documentBuilderFactory = DocumentBuilderFactory.newInstance();
+		documentBuilderFactory.setNamespaceAware(true);
+		transformerFactory = TransformerFactory.newInstance();
+	}
+
+	private static final ThreadLocal<Map<JAXBContext, Marshaller>> marshallers = new ThreadLocal<Map<JAXBContext, Marshaller>>() {
+		@Override
+		protected Map<JAXBContext, Marshaller> initialValue() {
+			return new IdentityHashMap<JAXBContext, Marshaller>();
+		}
+	};
+
+	private static final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>();
+	private static final ThreadLocal<Transformer> transformers = new ThreadLocal<Transformer>();
+	private static final ThreadLocal<MetadataWriter> metadataWriters = new ThreadLocal<MetadataWriter>();
+
+	private XMLCache() {
+	}
+
+	/**
+	 * Gets the JAXBContext for the given context path, creating it the first time
+	 * it is requested.
+	 *
+	 * @param contextPath	the package name(s) the context is built from
+	 * @return	the shared JAXBContext
+	 * @throws JAXBException
+	 */
+	public static JAXBContext getContext(String contextPath) throws JAXBException {
+		JAXBContext jc = contexts.get(contextPath);
+		if(jc == null) {
+			jc = JAXBContext.newInstance(contextPath);
+			JAXBContext existing = contexts.putIfAbsent(contextPath, jc);
+			if(existing != null) {
+				jc = existing;
+			}
+		}
+		return jc;
+	}
+
+	/**
+	 * Gets the compiled Schema for a schema resource on the classpath, compiling
+	 * it the first time it is requested.
+	 *
+	 * @param location	the resource path of the schema, such as {@link JALUtils#SCHEMA_LOCATION}
+	 * @return	the shared compiled Schema
+	 * @throws JALException	if the resource cannot be found
+	 * @throws SAXException	if the schema cannot be compiled
+	 */
+	public static Schema getSchema(String location) throws JALException, SAXException {
+		Schema schema = schemas.get(location);
+		if(schema == null) {
+			URL url = XMLCache.class.getResource(location);
+			if(url == null) {
+				throw new JALException("Could not find schema " + location);
+			}
+			// SchemaFactory is not thread-safe, so a new one is used for each compile.
+			SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+			schema = sf.newSchema(url);
+			Schema existing = schemas.putIfAbsent(location, schema);
+			if(existing != null) {
+				schema = existing;
+			}
+		}
+		return schema;
+	}
+
+	/**
+	 * Gets this thread's Marshaller for the given context. The Marshaller has
+	 * formatted output turned on and no schema set.
+	 *
+	 * @param jc	the JAXBContext the Marshaller belongs to
+	 * @return	the Marshaller for the calling thread
+	 * @throws JAXBException
+	 */
+	public static Marshaller getMarshaller(JAXBContext jc) throws JAXBException {
+		Map<JAXBContext, Marshaller> map = marshallers.get();
+		Marshaller m = map.get(jc);
+		if(m == null) {
+			m = jc.createMarshaller();
+			m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+			map.put(jc, m);
+		}
+		return m;
+	}
+
+	/**
+	 * Gets this thread's namespace aware DocumentBuilder.
+	 *
+	 * @return	the DocumentBuilder for the calling thread
+	 * @throws ParserConfigurationException
+	 */
+	public static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+		DocumentBuilder db = documentBuilders.get();
+		if(db == null) {
+			synchronized (documentBuilderFactory) {
+				db = documentBuilderFactory.newDocumentBuilder();
+			}
+			documentBuilders.set(db);
+		}
+		return db;
+	}
+
+	/**
+	 * Gets this thread's identity Transformer.
+	 *
+	 * @return	the Transformer for the calling thread
+	 * @throws TransformerConfigurationException
+	 */
+	public static Transformer getTransformer() throws TransformerConfigurationException {
+		Transformer trans = transformers.get();
+		if(trans == null) {
+			synchronized (transformerFactory) {
+				trans = transformerFactory.newTransformer();
+			}
+			transformers.set(trans);
+		} else {
+			trans.reset();
+		}
+		return trans;
+	}
+
+	/**
+	 * Gets this thread's MetadataWriter, emptied and ready for a new document.
+	 *
+	 * @return	the MetadataWriter for the calling thread
+	 */
+	public static MetadataWriter getMetadataWriter() {
+		MetadataWriter writer = metadataWriters.get();
+		if(writer == null) {
+			writer = new MetadataWriter();
+			metadataWriters.set(writer);
+		} else {
+			writer.reset();
+		}
+		return writer;
+	}
+}
@@ -24,15 +24,17 @@
 
 package com.tresys.jalop.producer;
 
-import java.util.UUID;
-
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.w3c.dom.Document;
 
 import com.tresys.jalop.common.JALException;
 import com.tresys.jalop.common.JALUtils;
+import com.tresys.jalop.common.MetadataWriter;
+import com.tresys.jalop.common.RecordIdentity;
+import com.tresys.jalop.common.XMLCache;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.AES128CBCType;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.AES192CBCType;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.AES256CBCType;
@@ -48,7 +50,7 @@ import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.XorEC
  * Abstract class that has an ApplicationMetadataType and holds common info
  * for the three possible types: logger, syslog, and custom.
  */
-public abstract class ApplicationMetadataXML {
+public abstract class ApplicationMetadataXML implements Cloneable {
 
 	private static ObjectFactory of;
 	private ApplicationMetadataType amt;
@@ -257,10 +259,149 @@ public abstract class ApplicationMetadataXML {
 	 * @throws Exception
 	 */
 	public Document marshal() throws Exception {
+		return marshal(true);
+	}
+
+	/**
+	 * Builds a document and marshals the xml into the document.
+	 *
+	 * @param validate	true to validate the xml against the given schema
+	 * @return	the marshalled document
+	 * @throws Exception
+	 */
+	public Document marshal(boolean validate) throws Exception {
 		JAXBElement<ApplicationMetadataType> appMeta = of.createApplicationMetadata(amt);
-		JAXBContext jc = JAXBContext.newInstance(ApplicationMetadataType.class.getPackage().getName());
+		JAXBContext jc = XMLCache.getContext(ApplicationMetadataType.class.getPackage().getName());
+
+		return JALUtils.marshal(jc, appMeta, validate);
+	}
+
+	/**
+	 * Marshals the xml straight to a writer without building a document.
+	 * This also validates the xml against the given schema.
+	 *
+	 * @param writer	the XMLStreamWriter to write the xml to
+	 * @throws Exception
+	 */
+	public void marshal(XMLStreamWriter writer) throws Exception {
+		marshal(writer, true);
+	}
+
+	/**
+	 * Marshals the xml straight to a writer without building a document.
+	 *
+	 * @param writer	the XMLStreamWriter to write the xml to
+	 * @param validate	true to validate the xml against the given schema
+	 * @throws Exception
+	 */
+	public void marshal(XMLStreamWriter writer, boolean validate) throws Exception {
+		JAXBElement<ApplicationMetadataType> appMeta = of.createApplicationMetadata(amt);
+		JAXBContext jc = XMLCache.getContext(ApplicationMetadataType.class.getPackage().getName());
+
+		JALUtils.marshal(jc, appMeta, writer, validate);
+	}
+
+	/**
+	 * Writes the xml to a MetadataWriter. Logger and syslog metadata is
+	 * written from a cached {@link MetadataTemplate} when it can be, which
+	 * gives the same bytes as {@link #marshal(XMLStreamWriter)} without
+	 * marshaling the invariant parts of the document again.
+	 *
+	 * @param writer	the MetadataWriter to write the xml to
+	 * @throws Exception
+	 */
+	public void write(MetadataWriter writer) throws Exception {
+		write(writer, true);
+	}
+
+	/**
+	 * Writes the xml to a MetadataWriter, like {@link #write(MetadataWriter)}.
+	 * A template is validated when it is built, and the values put in it
+	 * are valid for any content, so validate only affects records that are
+	 * marshaled.
+	 *
+	 * @param writer	the MetadataWriter to write the xml to
+	 * @param validate	true to validate marshaled xml against the given schema
+	 * @throws Exception
+	 */
+	public void write(MetadataWriter writer, boolean validate) throws Exception {
+		if(!MetadataTemplate.write(amt, writer)) {
+			marshal(writer, validate);
+		}
+	}
+
+	/**
+	 * Creates a copy of this xml and prepares the copy for sending. This xml
+	 * is not changed, so it can be sent by several threads at once.
+	 *
+	 * @param hostName			the name of the host
+	 * @param applicationName	the name of the application
+	 * @return	the prepared copy
+	 * @throws Exception
+	 */
+	public ApplicationMetadataXML prepareCopy(String hostName, String applicationName) throws Exception {
+		ApplicationMetadataXML copy = copy();
+		copy.prepareSend(hostName, applicationName);
+		return copy;
+	}
+
+	/**
+	 * Creates a copy of this xml that can be prepared for sending without
+	 * changing this one. The logger and syslog are copied since prepareSend
+	 * fills in their timestamp, host name and application name; the rest
+	 * of the metadata is shared with this xml. Subclasses that change
+	 * anything else in prepareSend should override this to copy it too.
+	 *
+	 * @return	the copy
+	 * @throws Exception
+	 */
+	protected ApplicationMetadataXML copy() throws Exception {
+		ApplicationMetadataXML copy = (ApplicationMetadataXML) clone();
+		copy.amt = new ApplicationMetadataType();
+		copy.amt.setEventID(amt.getEventID());
+		copy.amt.setJID(amt.getJID());
+		copy.amt.setCustom(amt.getCustom());
+		copy.amt.setJournalMetadata(amt.getJournalMetadata());
+		copy.amt.setSignature(amt.getSignature());
+		copy.amt.setManifest(amt.getManifest());
+		if(amt.getLogger() != null) {
+			copy.amt.setLogger(copyOf(amt.getLogger()));
+		}
+		if(amt.getSyslog() != null) {
+			copy.amt.setSyslog(copyOf(amt.getSyslog()));
+		}
+		return copy;
+	}
+
+	private static LoggerType copyOf(LoggerType logger) {
+		LoggerType copy = new LoggerType();
+		copy.setLoggerName(logger.getLoggerName());
+		copy.setSeverity(logger.getSeverity());
+		copy.setTimestamp(logger.getTimestamp());
+		copy.setHostname(logger.getHostname());
+		copy.setApplicationName(logger.getApplicationName());
+		copy.setProcessID(logger.getProcessID());
+		copy.setThreadID(logger.getThreadID());
+		copy.setMessage(logger.getMessage());
+		copy.setLocation(logger.getLocation());
+		copy.setNestedDiagnosticContext(logger.getNestedDiagnosticContext());
+		copy.setMappedDiagnosticContext(logger.getMappedDiagnosticContext());
+		copy.getStructuredData().addAll(logger.getStructuredData());
+		return copy;
+	}
 
-		return JALUtils.marshal(jc, appMeta);
+	private static SyslogType copyOf(SyslogType syslog) {
+		SyslogType copy = new SyslogType();
+		copy.setEntry(syslog.getEntry());
+		copy.getStructuredData().addAll(syslog.getStructuredData());
+		copy.setFacility(syslog.getFacility());
+		copy.setSeverity(syslog.getSeverity());
+		copy.setTimestamp(syslog.getTimestamp());
+		copy.setHostname(syslog.getHostname());
+		copy.setApplicationName(syslog.getApplicationName());
+		copy.setProcessID(syslog.getProcessID());
+		copy.setMessageID(syslog.getMessageID());
+		return copy;
 	}
 
 	/**
@@ -273,8 +414,7 @@ public abstract class ApplicationMetadataXML {
 	 */
 	public void prepareSend(String hostName, String applicationName) throws Exception {
 		// To be overridden in subclasses if necessary
-		UUID jid = UUID.randomUUID();
-		amt.setJID("UUID-"+jid.toString());
+		amt.setJID(RecordIdentity.newJID());
 	}
 
 }
\ No newline at end of file
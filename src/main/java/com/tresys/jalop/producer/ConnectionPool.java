@@ -0,0 +1,394 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.producer;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.etsy.net.JUDS;
+import com.etsy.net.UnixDomainSocketClient;
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+import com.tresys.jalop.common.ForeignUnixSocket;
+import com.tresys.jalop.common.UnixSocketChannels;
+
+/**
+ * A fixed number of connections to the local store, called lanes. A record
+ * is sent on one lane while that lane is held, so records sent at the same
+ * time by different threads go out on different connections instead of
+ * waiting for one socket.
+ * <p>
+ * Lanes connect the first time they are used. A lane whose send fails is
+ * discarded: its socket is closed and it connects again the next time it is
+ * used, so one broken connection doesn't affect the other lanes. A lane that
+ * has been idle for a while is also checked when it is acquired, and
+ * discarded if the local store has closed one of its connections, for
+ * example by restarting, so that a record isn't started on a connection that
+ * is already dead. Lanes in steady use aren't checked, since the check costs
+ * a system call or more.
+ * <p>
+ * With the NIO transport a lane sends on a SocketChannel, and opens a second
+ * connection only when it first sends a journal record by file descriptor.
+ * That connection is a {@link ForeignUnixSocket} where the Foreign Function
+ * and Memory API is available, and a JUDS socket otherwise. Those records are
+ * then on a different connection from the lane's other records, so
+ * THREAD_AFFINE keeps them in order with each other but not with the rest.
+ */
+public class ConnectionPool {
+
+	/**
+	 * How a thread picks the lane to send on.
+	 */
+	public enum LaneSelection {
+		/**
+		 * Take any free lane. When every lane is in use, wait for the one
+		 * with the fewest threads already waiting.
+		 */
+		LEAST_BUSY,
+		/**
+		 * Always use the same lane from the same thread, so the records of
+		 * one thread reach the local store in the order they were sent.
+		 */
+		THREAD_AFFINE
+	}
+
+	/*
+	 * How long a lane must have been unused before acquiring it checks its
+	 * connections
+	 */
+	static final long IDLE_CHECK_NANOS = 1000L * 1000;
+
+	private final String socketFile;
+	private final LaneSelection laneSelection;
+	private final Transport transport;
+	private final Lane[] lanes;
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Constructor
+	 *
+	 * @param socketFile	the path to the local store's socket
+	 * @param size			the number of lanes, at least 1
+	 * @param laneSelection	how a thread picks its lane
+	 */
+	public ConnectionPool(String socketFile, int size, LaneSelection laneSelection) {
+		this(socketFile, size, laneSelection, Transport.JUDS);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param socketFile	the path to the local store's socket
+	 * @param size			the number of lanes, at least 1
+	 * @param laneSelection	how a thread picks its lane
+	 * @param transport		how the lanes connect to the local store
+	 */
+	public ConnectionPool(String socketFile, int size, LaneSelection laneSelection, Transport transport) {
+		if(size < 1) {
+			throw new IllegalArgumentException("size must be at least 1");
+		}
+		if(laneSelection == null) {
+			throw new NullPointerException("laneSelection must not be null");
+		}
+		if(transport == null) {
+			throw new NullPointerException("transport must not be null");
+		}
+		this.socketFile = socketFile;
+		this.laneSelection = laneSelection;
+		this.transport = transport;
+		this.lanes = new Lane[size];
+		for(int i = 0; i < size; i++) {
+			lanes[i] = new Lane(socketFile, transport);
+		}
+	}
+
+	/**
+	 * Gets the path to the local store's socket
+	 *
+	 * @return the socketFile String
+	 */
+	public String getSocketFile() {
+		return socketFile;
+	}
+
+	/**
+	 * Gets the number of lanes
+	 *
+	 * @return the size of the pool
+	 */
+	public int getSize() {
+		return lanes.length;
+	}
+
+	/**
+	 * Gets how a thread picks its lane
+	 *
+	 * @return the LaneSelection
+	 */
+	public LaneSelection getLaneSelection() {
+		return laneSelection;
+	}
+
+	/**
+	 * Gets how the lanes connect to the local store
+	 *
+	 * @return the Transport
+	 */
+	public Transport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Gets the number of lanes that currently have an open connection.
+	 *
+	 * @return the number of connected lanes
+	 */
+	public int getConnectedCount() {
+		int count = 0;
+		for(Lane lane : lanes) {
+			if(lane.connected) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Holds a lane for the calling thread, waiting if it is in use. The lane
+	 * must be given back with {@link Lane#release()}.
+	 *
+	 * @return the Lane to send on
+	 */
+	public Lane acquire() {
+		Lane lane = hold();
+		lane.discardIfPeerClosed();
+		return lane;
+	}
+
+	private Lane hold() {
+		if(laneSelection == LaneSelection.THREAD_AFFINE) {
+			Lane lane = lanes[(int) (Thread.currentThread().getId() % lanes.length)];
+			lane.hold();
+			return lane;
+		}
+
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE) % lanes.length;
+		for(int i = 0; i < lanes.length; i++) {
+			Lane lane = lanes[(start + i) % lanes.length];
+			if(lane.tryHold()) {
+				return lane;
+			}
+		}
+
+		Lane best = lanes[start];
+		for(int i = 1; i < lanes.length; i++) {
+			Lane lane = lanes[(start + i) % lanes.length];
+			if(lane.users.get() < best.users.get()) {
+				best = lane;
+			}
+		}
+		best.hold();
+		return best;
+	}
+
+	/**
+	 * Closes every lane's connection. A lane that is being sent on is closed
+	 * once its record has been sent. Lanes connect again when next used.
+	 */
+	public void close() {
+		for(Lane lane : lanes) {
+			lane.hold();
+			try {
+				lane.discard();
+			} finally {
+				lane.release();
+			}
+		}
+	}
+
+	/**
+	 * One connection to the local store. Only the thread holding the lane may
+	 * use its socket.
+	 */
+	public static final class Lane {
+		private final String socketFile;
+		private final Transport transport;
+		private final ReentrantLock lock = new ReentrantLock();
+		private final AtomicInteger users = new AtomicInteger();
+		private UnixDomainSocketClient socket;
+		private SocketChannel channel;
+		private ForeignUnixSocket foreignSocket;
+		private volatile boolean connected;
+		private long releasedAt;
+
+		Lane(String socketFile) {
+			this(socketFile, Transport.JUDS);
+		}
+
+		Lane(String socketFile, Transport transport) {
+			this.socketFile = socketFile;
+			this.transport = transport;
+		}
+
+		private boolean tryHold() {
+			if(lock.tryLock()) {
+				users.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+		private void hold() {
+			users.incrementAndGet();
+			lock.lock();
+		}
+
+		/**
+		 * Gets the lane's socket, connecting first if needed.
+		 *
+		 * @return the UnixDomainSocketClient
+		 * @throws IOException	if the connection can't be made
+		 */
+		public UnixDomainSocketClient getSocket() throws IOException {
+			if(socket == null) {
+				socket = new UnixDomainSocketClient(socketFile, JUDS.SOCK_STREAM);
+				connected = true;
+			}
+			return socket;
+		}
+
+		/**
+		 * Checks whether records of the given type are sent on the lane's
+		 * channel rather than its JUDS socket.
+		 *
+		 * @param messageType	the type of the record to send
+		 * @return true if the record should be sent on {@link #getChannel()}
+		 */
+		public boolean usesChannel(MessageType messageType) {
+			return transport == Transport.NIO && messageType != MessageType.JALP_JOURNAL_FD_MSG;
+		}
+
+		/**
+		 * Gets the lane's channel, connecting first if needed. Only lanes of a
+		 * pool using the NIO transport have a channel.
+		 *
+		 * @return the SocketChannel, in blocking mode
+		 * @throws IOException	if the connection can't be made
+		 */
+		public SocketChannel getChannel() throws IOException {
+			if(transport != Transport.NIO) {
+				throw new IllegalStateException("Only NIO lanes have a channel");
+			}
+			if(channel == null) {
+				channel = UnixSocketChannels.open(socketFile);
+				connected = true;
+			}
+			return channel;
+		}
+
+		/**
+		 * Checks whether records of the given type are sent on the lane's
+		 * ForeignUnixSocket rather than its JUDS socket.
+		 *
+		 * @param messageType	the type of the record to send
+		 * @return true if the record should be sent on {@link #getForeignSocket()}
+		 */
+		public boolean usesForeignSocket(MessageType messageType) {
+			return transport == Transport.NIO && messageType == MessageType.JALP_JOURNAL_FD_MSG
+					&& ForeignUnixSocket.isAvailable();
+		}
+
+		/**
+		 * Gets the lane's ForeignUnixSocket, connecting first if needed. Only
+		 * lanes of a pool using the NIO transport have one.
+		 *
+		 * @return the ForeignUnixSocket
+		 * @throws IOException	if the connection can't be made
+		 */
+		public ForeignUnixSocket getForeignSocket() throws IOException {
+			if(transport != Transport.NIO) {
+				throw new IllegalStateException("Only NIO lanes have a foreign socket");
+			}
+			if(foreignSocket == null) {
+				foreignSocket = ForeignUnixSocket.connect(socketFile);
+				connected = true;
+			}
+			return foreignSocket;
+		}
+
+		/**
+		 * Closes the lane's connections. This is called when a send fails,
+		 * since part of the record may already be on the connection. The
+		 * lane connects again the next time it is used.
+		 */
+		public void discard() {
+			if(socket != null || channel != null || foreignSocket != null) {
+				connected = false;
+			}
+			if(foreignSocket != null) {
+				foreignSocket.close();
+				foreignSocket = null;
+			}
+			if(socket != null) {
+				socket.close();
+				socket = null;
+			}
+			if(channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// The channel is being thrown away anyway.
+				}
+				channel = null;
+			}
+		}
+
+		/*
+		 * Checks each open connection of an idle lane without blocking, and
+		 * discards the lane if the local store has closed any of them
+		 */
+		private void discardIfPeerClosed() {
+			if(System.nanoTime() - releasedAt < IDLE_CHECK_NANOS) {
+				return;
+			}
+			if((socket != null && socket.isPeerClosed())
+					|| (channel != null && UnixSocketChannels.isPeerClosed(channel))
+					|| (foreignSocket != null && foreignSocket.isPeerClosed())) {
+				discard();
+			}
+		}
+
+		/**
+		 * Gives the lane back to the pool.
+		 */
+		public void release() {
+			releasedAt = System.nanoTime();
+			users.decrementAndGet();
+			lock.unlock();
+		}
+	}
+}
@@ -24,29 +24,22 @@
 
 package com.tresys.jalop.producer;
 
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
+import java.io.IOException;
 import java.math.BigInteger;
-import java.security.KeyFactory;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
-import java.security.spec.KeySpec;
-import java.security.spec.PKCS8EncodedKeySpec;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.GregorianCalendar;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.xml.datatype.DatatypeConfigurationException;
-import javax.xml.datatype.DatatypeFactory;
 
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LocationInfo;
 import org.apache.log4j.spi.LoggingEvent;
 
+import com.tresys.jalop.common.KeyMaterialCache;
+import com.tresys.jalop.common.RecordIdentity;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.ApplicationMetadataType;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerSeverityType;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
@@ -65,42 +58,311 @@ public class JalopAppender extends AppenderSkeleton {
 	private String certPath;
 	private boolean useLocation;
 
+	private boolean async;
+	private int bufferSize;
+	private WaitStrategy waitStrategy;
+	private OverflowPolicy overflowPolicy;
+	private long shutdownTimeout;
+	private ValidationPolicy validationPolicy;
+	private int validationSampleRate;
+	private Transport transport;
+
+	private volatile Producer producer;
+
+	private RingBuffer<LoggingEvent> ringBuffer;
+	private volatile Thread worker;
+	private volatile boolean workerWaiting;
+	private volatile boolean stopping;
+	private final AtomicInteger appending = new AtomicInteger();
+	private final AtomicLong droppedCount = new AtomicLong();
+
 	private static final String LOG4J = "LOG4J";
+	private static final int DEFAULT_BUFFER_SIZE = 1024;
+	private static final long MAX_PARK_NANOS = 100L * 1000 * 1000;
+
+	/**
+	 * How the background worker waits for events, and how appending threads
+	 * wait for room when the overflow policy is BLOCK.
+	 */
+	public enum WaitStrategy {
+		/** Park the thread until it is woken up. Lowest CPU use. */
+		BLOCKING,
+		/** Sleep for a short time between checks. */
+		SLEEPING,
+		/** Yield the processor between checks. */
+		YIELDING,
+		/** Spin without giving up the processor. Lowest latency. */
+		BUSY_SPIN
+	}
+
+	/**
+	 * What append() does when the ring buffer is full.
+	 */
+	public enum OverflowPolicy {
+		/** Wait for room in the buffer. */
+		BLOCK,
+		/** Discard the event being appended. */
+		DROP_NEWEST,
+		/** Discard the oldest queued event to make room. */
+		DROP_OLDEST
+	}
 
 	public JalopAppender() {
 		useLocation = true;
+		bufferSize = DEFAULT_BUFFER_SIZE;
+		waitStrategy = WaitStrategy.BLOCKING;
+		overflowPolicy = OverflowPolicy.BLOCK;
+		validationPolicy = ValidationPolicy.ALWAYS;
+		validationSampleRate = 100;
+		transport = Transport.JUDS;
 	}
 
 	/**
-	 * Does nothing.
+	 * Sets up the Producer that every event is sent with, and starts the
+	 * background worker when the appender is asynchronous. The connection to
+	 * the local store is made when the first event is sent and kept open
+	 * until the appender is closed.
 	 */
 	public void activateOptions() {
+		Producer old = producer;
+		producer = null;
+		if (old != null) {
+			old.closeConnections();
+		}
+		try {
+			producer = createProducer(null, path, hostName, appName,
+					privateKeyPath, publicKeyPath, certPath);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		if (async && worker == null) {
+			ringBuffer = new RingBuffer<LoggingEvent>(bufferSize);
+			worker = new Thread(new Runnable() {
+				public void run() {
+					drain();
+				}
+			}, "JalopAppender-" + getName());
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * When the appender is asynchronous, events are queued without taking the
+	 * appender's lock so that logging threads don't wait on each other.
+	 */
+	public void doAppend(LoggingEvent event) {
+		if (worker == null) {
+			super.doAppend(event);
+			return;
+		}
+		if (closed || !isAsSevereAsThreshold(event.getLevel())) {
+			return;
+		}
+		Filter f = getFirstFilter();
+		while (f != null) {
+			int decision = f.decide(event);
+			if (decision == Filter.DENY) {
+				return;
+			} else if (decision == Filter.ACCEPT) {
+				break;
+			}
+			f = f.getNext();
+		}
+		append(event);
 	}
 
 	/**
-	 * This method is where logs get sent to the local store
+	 * This method is where logs get sent to the local store. When the
+	 * appender is asynchronous the event is only queued here.
 	 */
 	public void append(LoggingEvent event) {
+		// Once close() has stopped the worker, late events are counted as
+		// dropped instead of opening a new connection.
+		if (worker == null && !stopping) {
+			send(event);
+			return;
+		}
+
+		// Capture the thread specific parts of the event on the calling thread
+		event.getNDC();
+		event.getThreadName();
+		event.getMDCCopy();
+		if (useLocation) {
+			event.getLocationInformation();
+		}
+
+		enqueue(event);
+	}
+
+	/*
+	 * Puts an event in the ring buffer, applying the overflow policy if it is full.
+	 * A thread may pass the closed check in doAppend just before close() runs,
+	 * so the event is counted as dropped if the worker is already stopping, and
+	 * the worker doesn't finish while any thread is still in here.
+	 */
+	private void enqueue(LoggingEvent event) {
+		appending.incrementAndGet();
+		try {
+			if (stopping) {
+				droppedCount.incrementAndGet();
+				return;
+			}
+			int attempts = 0;
+			while (!ringBuffer.offer(event)) {
+				if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+					droppedCount.incrementAndGet();
+					return;
+				} else if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+					if (ringBuffer.poll() != null) {
+						droppedCount.incrementAndGet();
+					}
+				} else {
+					if (stopping) {
+						droppedCount.incrementAndGet();
+						return;
+					}
+					wakeWorker();
+					idle(attempts++);
+				}
+			}
+			if (workerWaiting) {
+				wakeWorker();
+			}
+		} finally {
+			appending.decrementAndGet();
+		}
+	}
+
+	/*
+	 * Sends queued events until the appender is closed, no thread is still
+	 * enqueueing, and the buffer is empty
+	 */
+	private void drain() {
+		int attempts = 0;
+		while (true) {
+			LoggingEvent event = ringBuffer.poll();
+			if (event != null) {
+				attempts = 0;
+				send(event);
+				continue;
+			}
+			if (stopping) {
+				if (appending.get() == 0 && ringBuffer.isEmpty()) {
+					closeProducer();
+					return;
+				}
+				Thread.yield();
+			} else if (waitStrategy == WaitStrategy.BLOCKING) {
+				workerWaiting = true;
+				if (ringBuffer.isEmpty() && !stopping) {
+					LockSupport.parkNanos(this, MAX_PARK_NANOS);
+				}
+				workerWaiting = false;
+			} else {
+				idle(attempts++);
+			}
+		}
+	}
+
+	/*
+	 * Waits a little according to the wait strategy
+	 */
+	private void idle(int attempts) {
+		switch (waitStrategy) {
+			case BUSY_SPIN:
+				break;
+			case YIELDING:
+				Thread.yield();
+				break;
+			case SLEEPING:
+				LockSupport.parkNanos(100 * 1000);
+				break;
+			default:
+				LockSupport.parkNanos(Math.min(1000L << Math.min(attempts, 16), 1000L * 1000));
+				break;
+		}
+	}
+
+	private void wakeWorker() {
+		Thread t = worker;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/*
+	 * Sends a single event to the local store. Events are sent either by the
+	 * worker or while holding the appender's lock, so only one thread at a
+	 * time uses the Producer and its connection.
+	 */
+	private void send(LoggingEvent event) {
 
 		ApplicationMetadataXML xml = createLoggerMetadata(event);
-		Producer producer;
+		Producer p = producer;
 		try {
-			producer = createProducer(xml, path, hostName, appName,
-					privateKeyPath, publicKeyPath, certPath);
+			if (p == null) {
+				p = createProducer(null, path, hostName, appName,
+						privateKeyPath, publicKeyPath, certPath);
+				producer = p;
+			} else {
+				setKeys(p, privateKeyPath, publicKeyPath, certPath);
+			}
 
-			producer.jalpLog((String) null);
+			try {
+				p.jalpLog(xml, (String) null);
+			} catch (IOException e) {
+				// The connection pool replaces connections the local store
+				// closed while they were idle, but one may still break while
+				// a record is being sent, for example if the store restarts.
+				// Part of the record may already have been written, so send
+				// the whole record again on a new connection.
+				p.closeConnections();
+				p.jalpLog(xml, (String) null);
+			}
 		} catch (Exception e) {
+			if (p != null) {
+				p.closeConnections();
+			}
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Close this appender instance.
+	 * Close this appender instance. When the appender is asynchronous, this
+	 * waits until every queued event has been sent, or until the shutdown
+	 * timeout has passed if one is set.
 	 */
 	public synchronized void close() {
 		if (this.closed)
 			return;
 		this.closed = true;
+
+		Thread t = worker;
+		if (t != null) {
+			stopping = true;
+			wakeWorker();
+			try {
+				t.join(shutdownTimeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (t.isAlive()) {
+				// The worker closes the connection once it has finished.
+				worker = null;
+				return;
+			}
+			worker = null;
+		}
+		closeProducer();
+	}
+
+	private void closeProducer() {
+		Producer p = producer;
+		if (p != null) {
+			p.closeConnections();
+		}
 	}
 
 	/*
@@ -115,44 +377,29 @@ public class JalopAppender extends AppenderSkeleton {
 		producer.setSocketFile(socketPath);
 		producer.setApplicationName(appname);
 		producer.setHostName(hostname);
+		producer.setValidationPolicy(validationPolicy);
+		producer.setValidationSampleRate(validationSampleRate);
+		producer.setTransport(transport);
+		setKeys(producer, privateKeyPath, publicKeyPath, certPath);
 
-		if (privateKeyPath != null && !"".equals(privateKeyPath)) {
+		return producer;
+	}
 
-			File privateKeyFile = new File(privateKeyPath);
-			DataInputStream privateDis = new DataInputStream(
-					new FileInputStream(privateKeyFile));
-			byte[] privateKeyBytes = new byte[(int) privateKeyFile.length()];
-			privateDis.readFully(privateKeyBytes);
-			privateDis.close();
-
-			KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-			KeySpec privateKs = new PKCS8EncodedKeySpec(privateKeyBytes);
-			PrivateKey privateKey = keyFactory.generatePrivate(privateKs);
-
-			File publicKeyFile = new File(publicKeyPath);
-			DataInputStream publicDis = new DataInputStream(
-					new FileInputStream(publicKeyFile));
-			byte[] publicKeyBytes = new byte[(int) publicKeyFile.length()];
-			publicDis.readFully(publicKeyBytes);
-			publicDis.close();
-
-			KeySpec publicKs = new X509EncodedKeySpec(publicKeyBytes);
-			PublicKey publicKey = keyFactory.generatePublic(publicKs);
-
-			producer.setPrivateKey(privateKey);
-			producer.setPublicKey(publicKey);
+	/*
+	 * Sets the keys and certificate on the Producer. The cache hands back the
+	 * same instances until a file changes, so the Producer's signing engine
+	 * is kept unless a key is replaced on disk.
+	 */
+	private void setKeys(Producer producer, String privateKeyPath,
+			String publicKeyPath, String certPath) throws Exception {
+		if (privateKeyPath != null && !"".equals(privateKeyPath)) {
+			producer.setPrivateKey(KeyMaterialCache.getPrivateKey(privateKeyPath));
+			producer.setPublicKey(KeyMaterialCache.getPublicKey(publicKeyPath));
 		}
 
 		if (certPath != null && !"".equals(certPath)) {
-			InputStream inputStream = new FileInputStream(certPath);
-			CertificateFactory cf = CertificateFactory.getInstance("X.509");
-			X509Certificate cert = (X509Certificate) cf
-					.generateCertificate(inputStream);
-			inputStream.close();
-			producer.setCertificate(cert);
+			producer.setCertificate(KeyMaterialCache.getCertificate(certPath));
 		}
-
-		return producer;
 	}
 
 	public boolean requiresLayout() {
@@ -228,11 +475,8 @@ public class JalopAppender extends AppenderSkeleton {
 		lt.setThreadID(event.getThreadName());
 
 		// Timestamp
-		GregorianCalendar calendar = new GregorianCalendar();
-		calendar.setTimeInMillis(event.getTimeStamp());
 		try {
-			lt.setTimestamp(DatatypeFactory.newInstance()
-					.newXMLGregorianCalendar(calendar));
+			lt.setTimestamp(RecordIdentity.timestamp(event.getTimeStamp()));
 		} catch (DatatypeConfigurationException e1) {
 			// timestamp is optional, fall though
 		}
@@ -307,4 +551,91 @@ public class JalopAppender extends AppenderSkeleton {
 		return useLocation;
 	}
 
+	public void setAsync(boolean async) {
+		this.async = async;
+	}
+
+	public boolean getAsync() {
+		return async;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setWaitStrategy(String waitStrategy) {
+		this.waitStrategy = WaitStrategy.valueOf(waitStrategy.trim().toUpperCase());
+	}
+
+	public String getWaitStrategy() {
+		return waitStrategy.name();
+	}
+
+	public void setOverflowPolicy(String overflowPolicy) {
+		this.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase());
+	}
+
+	public String getOverflowPolicy() {
+		return overflowPolicy.name();
+	}
+
+	public void setValidationPolicy(String validationPolicy) {
+		this.validationPolicy = ValidationPolicy.valueOf(validationPolicy.trim().toUpperCase());
+	}
+
+	public String getValidationPolicy() {
+		return validationPolicy.name();
+	}
+
+	/**
+	 * Sets the number of events for each one validated with ValidationPolicy.SAMPLED.
+	 *
+	 * @param validationSampleRate	the sample rate, at least 1
+	 */
+	public void setValidationSampleRate(int validationSampleRate) {
+		if(validationSampleRate < 1) {
+			throw new IllegalArgumentException("validationSampleRate must be at least 1");
+		}
+		this.validationSampleRate = validationSampleRate;
+	}
+
+	public int getValidationSampleRate() {
+		return validationSampleRate;
+	}
+
+	public void setTransport(String transport) {
+		this.transport = Transport.valueOf(transport.trim().toUpperCase());
+	}
+
+	public String getTransport() {
+		return transport.name();
+	}
+
+	/**
+	 * Sets how long close() waits for queued events to be sent.
+	 *
+	 * @param shutdownTimeout	the time in milliseconds, 0 to wait until all are sent
+	 */
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	/**
+	 * Gets the number of events that were discarded because the ring buffer
+	 * was full.
+	 *
+	 * @return	the number of dropped events
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
 }
@@ -0,0 +1,391 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.producer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import com.tresys.jalop.common.JALUtils;
+import com.tresys.jalop.common.MetadataWriter;
+import com.tresys.jalop.common.XMLCache;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.ApplicationMetadataType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerSeverityType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.MetadataType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.ObjectFactory;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.StructuredDataType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.SyslogType;
+
+/**
+ * Pre-encoded application metadata for logger and syslog records. Records
+ * from one application usually differ only in their JID, timestamp, thread
+ * and message. Everything else is marshaled once, with placeholder values in
+ * those fields, and the encoded bytes between the placeholders are kept. A
+ * record with the same invariant fields is then written by copying those
+ * bytes and escaping its own values into the gaps.
+ * <p>
+ * The first record written with a new template is also marshaled the usual
+ * way, and the template is only used if both give the same bytes. Records
+ * the template can't express, such as ones with a Location or journal
+ * metadata, are marshaled as before.
+ */
+final class MetadataTemplate {
+
+	private static final int MAX_TEMPLATES = 256;
+
+	private static final int JID = 0;
+	private static final int TIMESTAMP = 1;
+	private static final int THREAD = 2;
+	private static final int MESSAGE = 3;
+
+	private static final String[] PLACEHOLDERS = {
+		"jalopTemplateJID0c5e",
+		"1111-11-11T11:11:11.111Z",
+		"jalopTemplateThread0c5e",
+		"jalopTemplateMessage0c5e"
+	};
+
+	private static final MetadataTemplate UNUSABLE = new MetadataTemplate(null, null, null, null, null);
+
+	private static final ConcurrentMap<List<Object>, MetadataTemplate> templates =
+		new ConcurrentHashMap<List<Object>, MetadataTemplate>();
+
+	private static final ObjectFactory of = new ObjectFactory();
+
+	private final byte[] bytes;
+	private final int[] offsets;
+	private final int[] slots;
+	private final boolean[] attributes;
+	private final String rootName;
+
+	private MetadataTemplate(byte[] bytes, int[] offsets, int[] slots, boolean[] attributes, String rootName) {
+		this.bytes = bytes;
+		this.offsets = offsets;
+		this.slots = slots;
+		this.attributes = attributes;
+		this.rootName = rootName;
+	}
+
+	/**
+	 * Writes the metadata with a template if it can be.
+	 *
+	 * @param amt		the ApplicationMetadataType, already prepared for sending
+	 * @param writer	the MetadataWriter to write to, after its start document
+	 * @return	true if the metadata was written, false if it has to be marshaled
+	 * @throws Exception
+	 */
+	static boolean write(ApplicationMetadataType amt, MetadataWriter writer) throws Exception {
+		String[] values = new String[PLACEHOLDERS.length];
+		List<Object> key = key(amt, values);
+		if(key == null) {
+			return false;
+		}
+		MetadataTemplate template = templates.get(key);
+		if(template == null) {
+			template = build(amt, key, values);
+			if(templates.size() >= MAX_TEMPLATES) {
+				templates.clear();
+			}
+			templates.put(key, template);
+		}
+		if(template == UNUSABLE) {
+			return false;
+		}
+		template.render(values, writer);
+		return true;
+	}
+
+	/**
+	 * Forgets every template.
+	 */
+	static void clear() {
+		templates.clear();
+	}
+
+	private void render(String[] values, MetadataWriter writer) throws Exception {
+		int start = 0;
+		for(int i = 0; i < slots.length; i++) {
+			writer.writeEncoded(bytes, start, offsets[i] - start);
+			writer.writeEscapedValue(values[slots[i]], attributes[i]);
+			start = offsets[i] + PLACEHOLDERS[slots[i]].length();
+		}
+		writer.writeEncoded(bytes, start, bytes.length - start);
+		writer.openEncodedElement(rootName);
+		// Written now unless the writer is holding the document element open
+		writer.writeEndElement();
+	}
+
+	/*
+	 * Gets everything a template depends on, or null if the metadata can't be
+	 * written with one. The values that change between records are put in values.
+	 */
+	private static List<Object> key(ApplicationMetadataType amt, String[] values) {
+		if(amt.getCustom() != null || amt.getJournalMetadata() != null
+				|| amt.getSignature() != null || amt.getManifest() != null || !isName(amt.getJID())) {
+			return null;
+		}
+		values[JID] = amt.getJID();
+
+		List<Object> key = new ArrayList<Object>();
+		key.add(amt.getEventID());
+		LoggerType logger = amt.getLogger();
+		SyslogType syslog = amt.getSyslog();
+		if(logger != null && syslog == null) {
+			if(logger.getLocation() != null) {
+				return null;
+			}
+			key.add("Logger");
+			key.add(logger.getLoggerName());
+			LoggerSeverityType severity = logger.getSeverity();
+			key.add(Boolean.valueOf(severity != null));
+			if(severity != null) {
+				key.add(severity.getValue());
+				key.add(severity.getName());
+			}
+			key.add(logger.getHostname());
+			key.add(logger.getApplicationName());
+			key.add(logger.getProcessID());
+			key.add(logger.getNestedDiagnosticContext());
+			key.add(logger.getMappedDiagnosticContext());
+			if(logger.getTimestamp() != null) {
+				values[TIMESTAMP] = format(logger.getTimestamp());
+				if(values[TIMESTAMP] == null) {
+					return null;
+				}
+			}
+			values[THREAD] = logger.getThreadID();
+			values[MESSAGE] = logger.getMessage();
+			addStructuredData(key, logger.getStructuredData());
+		} else if(syslog != null && logger == null) {
+			key.add("Syslog");
+			key.add(syslog.getFacility());
+			key.add(syslog.getSeverity());
+			key.add(syslog.getHostname());
+			key.add(syslog.getApplicationName());
+			key.add(syslog.getProcessID());
+			key.add(syslog.getMessageID());
+			if(syslog.getTimestamp() != null) {
+				values[TIMESTAMP] = format(syslog.getTimestamp());
+				if(values[TIMESTAMP] == null) {
+					return null;
+				}
+			}
+			values[MESSAGE] = syslog.getEntry();
+			addStructuredData(key, syslog.getStructuredData());
+		} else {
+			return null;
+		}
+		// Which of the changing values are present is part of the shape of the document.
+		// An empty value is written as an empty element, which a template can't do.
+		for(int i = TIMESTAMP; i < values.length; i++) {
+			if(values[i] != null && values[i].length() == 0) {
+				return null;
+			}
+			key.add(Boolean.valueOf(values[i] != null));
+		}
+		return key;
+	}
+
+	private static void addStructuredData(List<Object> key, List<StructuredDataType> structuredData) {
+		for(StructuredDataType sd : structuredData) {
+			key.add(sd.getSDID());
+			key.add(Integer.valueOf(sd.getField().size()));
+			for(MetadataType field : sd.getField()) {
+				key.add(field.getKey());
+				key.add(field.getValue());
+			}
+		}
+	}
+
+	/*
+	 * Builds the template for key, or returns UNUSABLE if the template would
+	 * not write the same bytes as the Marshaller.
+	 */
+	private static MetadataTemplate build(ApplicationMetadataType amt, List<Object> key, String[] values) throws Exception {
+		MetadataWriter marshaled = new MetadataWriter();
+		marshal(amt, marshaled);
+
+		MetadataWriter placeholder = new MetadataWriter();
+		int start = marshal(withPlaceholders(amt), placeholder);
+		byte[] all = placeholder.toByteArray();
+		byte[] body = Arrays.copyOfRange(all, start, all.length);
+
+		List<int[]> found = new ArrayList<int[]>();
+		for(int slot = 0; slot < PLACEHOLDERS.length; slot++) {
+			if(values[slot] == null) {
+				continue;
+			}
+			byte[] placeholderBytes = PLACEHOLDERS[slot].getBytes("UTF-8");
+			int offset = indexOf(body, placeholderBytes, 0);
+			if(offset < 0 || indexOf(body, placeholderBytes, offset + 1) >= 0) {
+				return UNUSABLE;
+			}
+			found.add(new int[] {offset, slot});
+		}
+		Collections.sort(found, new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+			}
+		});
+
+		int[] offsets = new int[found.size()];
+		int[] slots = new int[found.size()];
+		boolean[] attributes = new boolean[found.size()];
+		for(int i = 0; i < found.size(); i++) {
+			offsets[i] = found.get(i)[0];
+			slots[i] = found.get(i)[1];
+			attributes[i] = offsets[i] > 0 && body[offsets[i] - 1] == '"';
+		}
+
+		int nameEnd = 1;
+		while(nameEnd < body.length && body[nameEnd] != ' ' && body[nameEnd] != '>' && body[nameEnd] != '/') {
+			nameEnd++;
+		}
+		if(body.length == 0 || body[0] != '<' || body[nameEnd] == '/') {
+			return UNUSABLE;
+		}
+		MetadataTemplate template = new MetadataTemplate(body, offsets, slots, attributes,
+				new String(body, 1, nameEnd - 1, "UTF-8"));
+
+		MetadataWriter rendered = new MetadataWriter();
+		rendered.writeStartDocument();
+		rendered.setHoldDocumentElement(true);
+		template.render(values, rendered);
+		if(!Arrays.equals(rendered.toByteArray(), marshaled.toByteArray())) {
+			return UNUSABLE;
+		}
+		return template;
+	}
+
+	/*
+	 * Marshals amt the way JALUtils writes metadata, with the document element
+	 * held open, and returns where the document element starts.
+	 */
+	private static int marshal(ApplicationMetadataType amt, MetadataWriter writer) throws Exception {
+		JAXBContext jc = XMLCache.getContext(ApplicationMetadataType.class.getPackage().getName());
+		writer.writeStartDocument();
+		int start = writer.size();
+		writer.setHoldDocumentElement(true);
+		JALUtils.marshal(jc, of.createApplicationMetadata(amt), writer);
+		return start;
+	}
+
+	private static ApplicationMetadataType withPlaceholders(ApplicationMetadataType amt) throws Exception {
+		ApplicationMetadataType copy = new ApplicationMetadataType();
+		copy.setEventID(amt.getEventID());
+		copy.setJID(PLACEHOLDERS[JID]);
+		XMLGregorianCalendar timestamp = DatatypeFactory.newInstance().newXMLGregorianCalendar(PLACEHOLDERS[TIMESTAMP]);
+
+		LoggerType logger = amt.getLogger();
+		if(logger != null) {
+			LoggerType l = new LoggerType();
+			l.setLoggerName(logger.getLoggerName());
+			l.setSeverity(logger.getSeverity());
+			l.setTimestamp(logger.getTimestamp() == null ? null : timestamp);
+			l.setHostname(logger.getHostname());
+			l.setApplicationName(logger.getApplicationName());
+			l.setProcessID(logger.getProcessID());
+			l.setThreadID(logger.getThreadID() == null ? null : PLACEHOLDERS[THREAD]);
+			l.setMessage(logger.getMessage() == null ? null : PLACEHOLDERS[MESSAGE]);
+			l.setNestedDiagnosticContext(logger.getNestedDiagnosticContext());
+			l.setMappedDiagnosticContext(logger.getMappedDiagnosticContext());
+			l.getStructuredData().addAll(logger.getStructuredData());
+			copy.setLogger(l);
+		}
+		SyslogType syslog = amt.getSyslog();
+		if(syslog != null) {
+			SyslogType s = new SyslogType();
+			s.setEntry(syslog.getEntry() == null ? null : PLACEHOLDERS[MESSAGE]);
+			s.getStructuredData().addAll(syslog.getStructuredData());
+			s.setFacility(syslog.getFacility());
+			s.setSeverity(syslog.getSeverity());
+			s.setTimestamp(syslog.getTimestamp() == null ? null : timestamp);
+			s.setHostname(syslog.getHostname());
+			s.setApplicationName(syslog.getApplicationName());
+			s.setProcessID(syslog.getProcessID());
+			s.setMessageID(syslog.getMessageID());
+			copy.setSyslog(s);
+		}
+		return copy;
+	}
+
+	/*
+	 * Formats a dateTime the way the Marshaller does, or returns null for
+	 * values it may print differently or reject.
+	 */
+	private static String format(XMLGregorianCalendar calendar) {
+		if(calendar.getEon() != null || calendar.getYear() < 1 || calendar.getYear() > 9999
+				|| calendar.getMonth() == DatatypeConstants.FIELD_UNDEFINED
+				|| calendar.getDay() == DatatypeConstants.FIELD_UNDEFINED
+				|| calendar.getHour() == DatatypeConstants.FIELD_UNDEFINED
+				|| calendar.getMinute() == DatatypeConstants.FIELD_UNDEFINED
+				|| calendar.getSecond() == DatatypeConstants.FIELD_UNDEFINED) {
+			return null;
+		}
+		return calendar.toXMLFormat();
+	}
+
+	/*
+	 * Gets whether the JID is a plain ASCII NCName, as the schema's ID type
+	 * requires. Anything else is left for the Marshaller to reject.
+	 */
+	private static boolean isName(String jid) {
+		if(jid == null || jid.length() == 0) {
+			return false;
+		}
+		for(int i = 0; i < jid.length(); i++) {
+			char c = jid.charAt(i);
+			boolean letter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+			boolean other = (c >= '0' && c <= '9') || c == '-' || c == '.';
+			if(!letter && (i == 0 || !other)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(byte[] haystack, byte[] needle, int from) {
+		outer:
+		for(int i = from; i <= haystack.length - needle.length; i++) {
+			for(int j = 0; j < needle.length; j++) {
+				if(haystack[i + j] != needle[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+}
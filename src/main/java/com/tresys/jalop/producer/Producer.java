@@ -25,22 +25,32 @@
 package com.tresys.jalop.producer;
 
 import java.io.File;
-import java.io.IOException;
+import java.io.FileInputStream;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.X509Certificate;
-
-import com.etsy.net.JUDS;
-import com.etsy.net.UnixDomainSocketClient;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.tresys.jalop.common.ConnectionHeader.MessageType;
 import com.tresys.jalop.common.JALException;
 import com.tresys.jalop.common.JALUtils;
 import com.tresys.jalop.common.JALUtils.DMType;
+import com.tresys.jalop.common.UnixSocketChannels;
+import com.tresys.jalop.producer.ConnectionPool.LaneSelection;
 
 /**
  * Producer class stores relevant application data and is the primary class
  * for the producer library.
+ * <p>
+ * One Producer can be shared by many threads. Each record is sent with its
+ * own {@link Request} on one of the connections in the Producer's
+ * {@link ConnectionPool}, which only one thread uses at a time. The settings
+ * should not be changed while records are being sent.
  */
 public class Producer {
 
@@ -53,8 +63,20 @@ public class Producer {
 	private X509Certificate certificate;
 	private DMType digestMethod;
 	private String socketFile;
-	private UnixDomainSocketClient socket;
-	private MessageType messageType;
+	private int poolSize = 1;
+	private LaneSelection laneSelection = LaneSelection.LEAST_BUSY;
+	private Transport transport = Transport.JUDS;
+	private ConnectionPool pool;
+	private Executor sendExecutor;
+	private volatile RecordSpool spool;
+	private volatile MessageType messageType;
+	private boolean singlePassDigest;
+	private long memfdThreshold;
+	private ValidationPolicy validationPolicy = ValidationPolicy.ALWAYS;
+	private int validationSampleRate = 100;
+	private final ValidationMetrics validationMetrics = new ValidationMetrics();
+	private final AtomicLong validationSequence = new AtomicLong();
+	private final Set<String> validatedTypes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 	/**
 	 * Constructor
@@ -228,15 +250,107 @@ public class Producer {
 	}
 
 	/**
-	 * Gets the String which is a path to the socket file
+	 * Gets the pool of connections records are sent on, creating it the
+	 * first time.
 	 *
-	 * @return the socketFile String
+	 * @return the ConnectionPool
+	 */
+	public synchronized ConnectionPool getConnectionPool() {
+		if (this.pool == null) {
+			pool = new ConnectionPool(getSocketFile(), poolSize, laneSelection, transport);
+		}
+		return this.pool;
+	}
+
+	/**
+	 * Closes every open connection. New connections are made the next
+	 * time records are sent.
+	 */
+	public synchronized void closeConnections() {
+		if (this.pool != null) {
+			this.pool.close();
+		}
+	}
+
+	/*
+	 * Closes the pool so that a new one is made with the current settings.
+	 */
+	private void resetConnectionPool() {
+		closeConnections();
+		this.pool = null;
+	}
+
+	/**
+	 * Gets the number of connections records can be sent on at once
+	 *
+	 * @return the pool size
+	 */
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * Sets the number of connections records can be sent on at once. The
+	 * default is 1, which sends one record at a time.
+	 *
+	 * @param poolSize the pool size, at least 1
+	 */
+	public synchronized void setPoolSize(int poolSize) {
+		if (poolSize < 1) {
+			throw new IllegalArgumentException("poolSize must be at least 1");
+		}
+		this.poolSize = poolSize;
+		resetConnectionPool();
+	}
+
+	/**
+	 * Gets how a sending thread picks its connection
+	 *
+	 * @return the LaneSelection
+	 */
+	public LaneSelection getLaneSelection() {
+		return laneSelection;
+	}
+
+	/**
+	 * Sets how a sending thread picks its connection. The default is
+	 * LEAST_BUSY.
+	 *
+	 * @param laneSelection the LaneSelection to set
+	 */
+	public synchronized void setLaneSelection(LaneSelection laneSelection) {
+		if (laneSelection != null) {
+			this.laneSelection = laneSelection;
+			resetConnectionPool();
+		}
+	}
+
+	/**
+	 * Gets how records are sent to the local store
+	 *
+	 * @return the Transport
 	 */
-	public UnixDomainSocketClient getSocket() throws IOException {
-		if (this.socket == null) {
-			socket = new UnixDomainSocketClient(getSocketFile(), JUDS.SOCK_STREAM);
+	public Transport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Sets how records are sent to the local store. The default is JUDS.
+	 * Either way the local store receives the same bytes.
+	 *
+	 * @param transport the Transport to set
+	 * @throws IllegalArgumentException	if transport is null, or is NIO
+	 * 									before Java 16
+	 */
+	public synchronized void setTransport(Transport transport) {
+		if (transport == null) {
+			throw new IllegalArgumentException("transport cannot be null");
 		}
-		return this.socket;
+		if (transport == Transport.NIO && !UnixSocketChannels.isAvailable()) {
+			throw new IllegalArgumentException("The NIO transport needs Java 16 or later");
+		}
+		this.transport = transport;
+		resetConnectionPool();
 	}
 
 	/**
@@ -253,118 +367,716 @@ public class Producer {
 	 *
 	 * @param socketFile the String path to the socket file to set
 	 */
-	public void setSocketFile(String socketFile) {
+	public synchronized void setSocketFile(String socketFile) {
 		if (socketFile != null) {
 			this.socketFile = socketFile;
-			// Reset the socket file, this will be re-created later.
-			this.socket = null;
+			// Reset the connections, these will be re-created later.
+			resetConnectionPool();
+		}
+	}
+
+	/**
+	 * Gets whether file payloads are digested while they are sent
+	 *
+	 * @return true if file payloads are only read once
+	 */
+	public boolean isSinglePassDigest() {
+		return singlePassDigest;
+	}
+
+	/**
+	 * Sets whether file payloads are digested while they are sent. When true,
+	 * a digested file payload is read once instead of once for the digest
+	 * and again for the send. An error while reading the file then closes
+	 * the socket, since part of the record may already have been sent.
+	 *
+	 * @param singlePassDigest true to only read file payloads once
+	 */
+	public void setSinglePassDigest(boolean singlePassDigest) {
+		this.singlePassDigest = singlePassDigest;
+	}
+
+	/**
+	 * Gets the size from which a journal String buffer is sent in a memory file
+	 *
+	 * @return the size in bytes, or 0 if buffers are always sent on the socket
+	 */
+	public long getMemfdThreshold() {
+		return memfdThreshold;
+	}
+
+	/**
+	 * Sets the size from which a journal String buffer is sent in a memory file.
+	 * A buffer of at least this many bytes is written once into a sealed
+	 * anonymous file made with memfd_create and sent as a JALP_JOURNAL_FD_MSG,
+	 * so the socket only carries the header and the metadata. Like other
+	 * records sent by file descriptor, these records are never spooled. Where
+	 * memfd_create isn't available the buffer is sent on the socket as usual.
+	 *
+	 * @param memfdThreshold	the size in bytes, or 0 to turn this off
+	 * @throws IllegalArgumentException	if memfdThreshold is negative
+	 */
+	public void setMemfdThreshold(long memfdThreshold) {
+		if(memfdThreshold < 0) {
+			throw new IllegalArgumentException("The memfd threshold must not be negative");
 		}
+		this.memfdThreshold = memfdThreshold;
 	}
 
 	/**
-	 * Gets messageType from an enum in ConnectionHeader
+	 * Gets the executor that asynchronous sends run on
 	 *
-	 * @return the MessageType
+	 * @return the Executor, or null if the default is used
 	 */
+	public Executor getSendExecutor() {
+		return sendExecutor;
+	}
+
+	/**
+	 * Sets the executor that asynchronous sends run on. When it is not set,
+	 * {@link SendExecutors#getDefault()} is used.
+	 *
+	 * @param sendExecutor the Executor, or null to use the default
+	 */
+	public void setSendExecutor(Executor sendExecutor) {
+		this.sendExecutor = sendExecutor;
+	}
+
+	/**
+	 * Gets the spool records are appended to instead of being sent directly
+	 *
+	 * @return the RecordSpool, or null if records are sent directly
+	 */
+	public RecordSpool getSpool() {
+		return spool;
+	}
+
+	/**
+	 * Sets the spool records are appended to instead of being sent directly.
+	 * The spool replays them on this Producer's connections, so sending a
+	 * record doesn't wait for the local store. JALP_JOURNAL_FD_MSG records
+	 * are still sent directly, since their payload is passed as a file
+	 * descriptor. The caller closes the spool when it is no longer needed.
+	 * <p>
+	 * With a spool set, the futures returned by the asynchronous methods
+	 * complete once the record is in the spool, which can be long before the
+	 * replay thread writes it to the local store.
+	 *
+	 * @param spool the RecordSpool, or null to send records directly
+	 */
+	public void setSpool(RecordSpool spool) {
+		this.spool = spool;
+	}
+
+	/**
+	 * Gets how often the application metadata is validated against the schema
+	 *
+	 * @return the ValidationPolicy
+	 */
+	public ValidationPolicy getValidationPolicy() {
+		return validationPolicy;
+	}
+
+	/**
+	 * Sets how often the application metadata is validated against the schema.
+	 * Validation is the most expensive part of marshaling a record, so an
+	 * application that always builds its xml the same way can validate only
+	 * some of its records. Records that are sent after this is set start the
+	 * policy over.
+	 *
+	 * @param validationPolicy the ValidationPolicy to set
+	 */
+	public void setValidationPolicy(ValidationPolicy validationPolicy) {
+		if(validationPolicy == null) {
+			throw new IllegalArgumentException("validationPolicy cannot be null");
+		}
+		this.validationPolicy = validationPolicy;
+		validationSequence.set(0);
+		validatedTypes.clear();
+	}
+
+	/**
+	 * Gets the number of records for each one validated with ValidationPolicy.SAMPLED
+	 *
+	 * @return the sample rate
+	 */
+	public int getValidationSampleRate() {
+		return validationSampleRate;
+	}
+
+	/**
+	 * Sets the number of records for each one validated with ValidationPolicy.SAMPLED.
+	 * The first record is always validated.
+	 *
+	 * @param validationSampleRate the sample rate, at least 1
+	 */
+	public void setValidationSampleRate(int validationSampleRate) {
+		if(validationSampleRate < 1) {
+			throw new IllegalArgumentException("validationSampleRate must be at least 1");
+		}
+		this.validationSampleRate = validationSampleRate;
+		validationSequence.set(0);
+	}
+
+	/**
+	 * Gets the counts of validated, skipped and failed records
+	 *
+	 * @return the ValidationMetrics
+	 */
+	public ValidationMetrics getValidationMetrics() {
+		return validationMetrics;
+	}
+
+	/**
+	 * Decides whether the metadata of the next record should be validated.
+	 *
+	 * @param messageType	the type of message being sent
+	 * @param xml			the ApplicationMetadataXML for the record, may be null
+	 * @return true if the record's metadata should be validated
+	 */
+	boolean isValidationDue(MessageType messageType, ApplicationMetadataXML xml) {
+		switch(validationPolicy) {
+		case OFF:
+			return false;
+		case SAMPLED:
+			return validationSequence.getAndIncrement() % validationSampleRate == 0;
+		case FIRST_PER_TYPE:
+			String type = xml == null ? "none" : xml.getClass().getName();
+			return validatedTypes.add(messageType + ":" + type);
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Creates the Request for one record, using the Producer's xml.
+	 *
+	 * @param messageType	the type of message to send
+	 * @return the Request
+	 * @throws Exception
+	 */
+	public Request createRequest(MessageType messageType) throws Exception {
+		return createRequest(messageType, this.xml);
+	}
+
+	/**
+	 * Creates the Request for one record. The xml is copied for the record,
+	 * so the same xml can be used by several threads at once.
+	 *
+	 * @param messageType	the type of message to send
+	 * @param xml			the ApplicationMetadataXML for the record, may be null
+	 * @return the Request
+	 * @throws Exception
+	 */
+	public Request createRequest(MessageType messageType, ApplicationMetadataXML xml) throws Exception {
+		this.messageType = messageType;
+		return new Request(this, messageType, xml);
+	}
+
+	/**
+	 * Gets the messageType of the last Request created by this Producer
+	 *
+	 * @return	the MessageType, or null if no Request has been created
+	 * @deprecated	records are sent with their own {@link Request}, so when the
+	 * 				Producer is shared by several threads this may be the type
+	 * 				of another thread's record; use {@link Request#getMessageType()}
+	 */
+	@Deprecated
 	public MessageType getMessageType() {
-		return messageType;
+		return this.messageType;
 	}
 
 	/**
-	 * Sets the messageType to JALP_LOG_MSG and calls processSend in JALUtils
+	 * Sends a JALP_LOG_MSG by calling processSend in JALUtils
 	 *
 	 * @param buffer		optional,a String which is a buffer
 	 * @throws Exception
 	 */
 	public void jalpLog(String buffer) throws Exception {
-		this.messageType = MessageType.JALP_LOG_MSG;
-		JALUtils.processSend(this, buffer);
+		jalpLog(this.xml, buffer);
 	}
 
 	/**
-	 * Sets the messageType to JALP_LOG_MSG and calls processSend in JALUtils
+	 * Sends a JALP_LOG_MSG with the given xml by calling processSend in JALUtils
+	 *
+	 * @param xml			the ApplicationMetadataXML for this record
+	 * @param buffer		optional,a String which is a buffer
+	 * @throws Exception
+	 */
+	public void jalpLog(ApplicationMetadataXML xml, String buffer) throws Exception {
+		JALUtils.processSend(createRequest(MessageType.JALP_LOG_MSG, xml), buffer);
+	}
+
+	/**
+	 * Sends a JALP_LOG_MSG by calling processSend in JALUtils
 	 *
 	 * @param file		optional, a File which contains the buffer
 	 * @throws Exception
 	 */
 	public void jalpLog(File file) throws Exception {
-		this.messageType = MessageType.JALP_LOG_MSG;
-		JALUtils.processSend(this, file);
+		jalpLog(this.xml, file);
+	}
+
+	/**
+	 * Sends a JALP_LOG_MSG with the given xml by calling processSend in JALUtils
+	 *
+	 * @param xml		the ApplicationMetadataXML for this record
+	 * @param file		optional, a File which contains the buffer
+	 * @throws Exception
+	 */
+	public void jalpLog(ApplicationMetadataXML xml, File file) throws Exception {
+		JALUtils.processSend(createRequest(MessageType.JALP_LOG_MSG, xml), file);
 	}
 
 	/**
-	 * Sets the messageType to JALP_AUDIT_MSG and calls processSend in JALUtils
+	 * Sends a JALP_AUDIT_MSG by calling processSend in JALUtils
 	 *
 	 * @param buffer		required, a String which is a buffer
 	 * @throws Exception
 	 */
 	public void jalpAudit(String buffer) throws Exception {
+		jalpAudit(this.xml, buffer);
+	}
+
+	/**
+	 * Sends a JALP_AUDIT_MSG with the given xml by calling processSend in JALUtils
+	 *
+	 * @param xml			the ApplicationMetadataXML for this record
+	 * @param buffer		required, a String which is a buffer
+	 * @throws Exception
+	 */
+	public void jalpAudit(ApplicationMetadataXML xml, String buffer) throws Exception {
 		if(buffer == null || "".equals(buffer)) {
 			throw new JALException("String buffer is required");
 		}
 
-		this.messageType = MessageType.JALP_AUDIT_MSG;
-		JALUtils.processSend(this, buffer);
+		JALUtils.processSend(createRequest(MessageType.JALP_AUDIT_MSG, xml), buffer);
 	}
 
 	/**
-	 * Sets the messageType to JALP_AUDIT_MSG and calls processSend in JALUtils
+	 * Sends a JALP_AUDIT_MSG by calling processSend in JALUtils
 	 *
 	 * @param file		required, a File which contains the buffer
 	 * @throws Exception
 	 */
 	public void jalpAudit(File file) throws Exception {
+		jalpAudit(this.xml, file);
+	}
+
+	/**
+	 * Sends a JALP_AUDIT_MSG with the given xml by calling processSend in JALUtils
+	 *
+	 * @param xml		the ApplicationMetadataXML for this record
+	 * @param file		required, a File which contains the buffer
+	 * @throws Exception
+	 */
+	public void jalpAudit(ApplicationMetadataXML xml, File file) throws Exception {
 		if(file == null) {
 			throw new JALException("File is required");
 		}
 
-		this.messageType = MessageType.JALP_AUDIT_MSG;
-		JALUtils.processSend(this, file);
+		JALUtils.processSend(createRequest(MessageType.JALP_AUDIT_MSG, xml), file);
 	}
 
 	/**
-	 * Sets the messageType to JALP_JOURNAL_MSG and calls processSend in JALUtils
+	 * Sends a JALP_JOURNAL_MSG by calling processSend in JALUtils
 	 *
 	 * @param buffer		required, a String which is a buffer
 	 * @throws Exception
 	 */
 	public void jalpJournal(String buffer) throws Exception {
+		jalpJournal(this.xml, buffer);
+	}
+
+	/**
+	 * Sends a JALP_JOURNAL_MSG with the given xml by calling processSend in JALUtils
+	 *
+	 * @param xml			the ApplicationMetadataXML for this record
+	 * @param buffer		required, a String which is a buffer
+	 * @throws Exception
+	 */
+	public void jalpJournal(ApplicationMetadataXML xml, String buffer) throws Exception {
 		if(buffer == null || "".equals(buffer)) {
 			throw new JALException("String buffer is required");
 		}
 
-		this.messageType = MessageType.JALP_JOURNAL_MSG;
-		JALUtils.processSend(this, buffer);
+		JALUtils.processSend(createRequest(MessageType.JALP_JOURNAL_MSG, xml), buffer);
 	}
 
 	/**
-	 * Sets the messageType to JALP_JOURNAL_MSG and calls processSend in JALUtils
+	 * Sends a JALP_JOURNAL_MSG by calling processSend in JALUtils
 	 *
 	 * @param file		required, a File which contains the buffer
 	 * @throws Exception
 	 */
 	public void jalpJournal(File file) throws Exception {
+		jalpJournal(this.xml, file);
+	}
+
+	/**
+	 * Sends a JALP_JOURNAL_MSG with the given xml by calling processSend in JALUtils
+	 *
+	 * @param xml		the ApplicationMetadataXML for this record
+	 * @param file		required, a File which contains the buffer
+	 * @throws Exception
+	 */
+	public void jalpJournal(ApplicationMetadataXML xml, File file) throws Exception {
 		if(file == null) {
 			throw new JALException("File is required");
 		}
 
-		this.messageType = MessageType.JALP_JOURNAL_MSG;
-		JALUtils.processSend(this, file);
+		JALUtils.processSend(createRequest(MessageType.JALP_JOURNAL_MSG, xml), file);
 	}
 
 	/**
-	 * Sets the messageType to JALP_JOURNAL_FD_MSG and calls processSend in JALUtils
+	 * Sends a JALP_JOURNAL_FD_MSG by calling processSend in JALUtils
 	 *
 	 * @param file		required, a File which contains the buffer
 	 * @throws Exception
 	 */
 	public void jalpJournalFD(File file) throws Exception {
+		jalpJournalFD(this.xml, file);
+	}
+
+	/**
+	 * Sends a JALP_JOURNAL_FD_MSG with the given xml by calling processSend in JALUtils
+	 *
+	 * @param xml		the ApplicationMetadataXML for this record
+	 * @param file		required, a File which contains the buffer
+	 * @throws Exception
+	 */
+	public void jalpJournalFD(ApplicationMetadataXML xml, File file) throws Exception {
 		if(file == null) {
 			throw new JALException("File is required");
 		}
 
-		this.messageType = MessageType.JALP_JOURNAL_FD_MSG;
-		JALUtils.processSend(this, file);
+		JALUtils.processSend(createRequest(MessageType.JALP_JOURNAL_FD_MSG, xml), file);
+	}
+
+	/**
+	 * Sends a JALP_JOURNAL_FD_MSG for a file that is already open. The descriptor of
+	 * fileStream is passed as is, and also used for the digest, so the file is not
+	 * opened again. fileStream is left open for the caller to close, and should be
+	 * at the start of the file.
+	 *
+	 * @param fileStream	required, an open FileInputStream for the buffer
+	 * @throws Exception
+	 */
+	public void jalpJournalFD(FileInputStream fileStream) throws Exception {
+		jalpJournalFD(this.xml, fileStream);
+	}
+
+	/**
+	 * Sends a JALP_JOURNAL_FD_MSG with the given xml for a file that is already open.
+	 * See {@link #jalpJournalFD(FileInputStream)}.
+	 *
+	 * @param xml			the ApplicationMetadataXML for this record
+	 * @param fileStream	required, an open FileInputStream for the buffer
+	 * @throws Exception
+	 */
+	public void jalpJournalFD(ApplicationMetadataXML xml, FileInputStream fileStream) throws Exception {
+		if(fileStream == null) {
+			throw new JALException("FileInputStream is required");
+		}
+
+		JALUtils.processSend(createRequest(MessageType.JALP_JOURNAL_FD_MSG, xml), fileStream, null);
+	}
+
+	/**
+	 * Sends a JALP_LOG_MSG on the send executor
+	 *
+	 * @param buffer		optional, a String which is a buffer
+	 * @return a CompletableFuture that completes once the record has been written to
+	 * 			the socket, or, if a spool is set, once it has been appended to the spool
+	 */
+	public CompletableFuture<Void> jalpLogAsync(String buffer) {
+		return jalpLogAsync(this.xml, buffer);
+	}
+
+	/**
+	 * Sends a JALP_LOG_MSG with the given xml on the send executor. The xml is
+	 * copied before this returns, so it can be changed while the record is
+	 * being sent.
+	 *
+	 * @param xml			the ApplicationMetadataXML for this record
+	 * @param buffer		optional, a String which is a buffer
+	 * @return a CompletableFuture that completes once the record has been written to
+	 * 			the socket, or, if a spool is set, once it has been appended to the spool
+	 */
+	public CompletableFuture<Void> jalpLogAsync(ApplicationMetadataXML xml, final String buffer) {
+		final Request request;
+		try {
+			request = createRequest(MessageType.JALP_LOG_MSG, xml);
+		} catch (Exception e) {
+			return failed(e);
+		}
+		return submit(new SendTask() {
+			public void send() throws Exception {
+				JALUtils.processSend(request, buffer);
+			}
+		});
+	}
+
+	/**
+	 * Sends a JALP_LOG_MSG on the send executor
+	 *
+	 * @param file		optional, a File which contains the buffer
+	 * @return a CompletableFuture that completes once the record has been written to
+	 * 			the socket, or, if a spool is set, once it has been appended to the spool
+	 */
+	public CompletableFuture<Void> jalpLogAsync(File file) {
+		return jalpLogAsync(this.xml, file);
+	}
+
+	/**
+	 * Sends a JALP_LOG_MSG with the given xml on the send executor. The xml is
+	 * copied before this returns, so it can be changed while the record is
+	 * being sent.
+	 *
+	 * @param xml		the ApplicationMetadataXML for this record
+	 * @param file		optional, a File which contains the buffer
+	 * @return a CompletableFuture that completes once the record has been written to
+	 * 			the socket, or, if a spool is set, once it has been appended to the spool
+	 */
+	public CompletableFuture<Void> jalpLogAsync(ApplicationMetadataXML xml, final File file) {
+		final Request request;
+		try {
+			request = createRequest(MessageType.JALP_LOG_MSG, xml);
+		} catch (Exception e) {
+			return failed(e);
+		}
+		return submit(new SendTask() {
+			public void send() throws Exception {
+				JALUtils.processSend(request, file);
+			}
+		});
+	}
+
+	/**
+	 * Sends a JALP_AUDIT_MSG on the send executor
+	 *
+	 * @param buffer		required, a String which is a buffer
+	 * @return a CompletableFuture that completes once the record has been written to
+	 * 			the socket, or, if a spool is set, once it has been appended to the spool
+	 */
+	public CompletableFuture<Void> jalpAuditAsync(String buffer) {
+		return jalpAuditAsync(this.xml, buffer);
+	}
+
+	/**
+	 * Sends a JALP_AUDIT_MSG with the given xml on the send executor. The xml is
+	 * copied before this returns, so it can be changed while the record is
+	 * being sent.
+	 *
+	 * @param xml			the ApplicationMetadataXML for this record
+	 * @param buffer		required, a String which is a buffer
+	 * @return a CompletableFuture that completes once the record has been written to
+	 * 			the socket, or, if a spool is set, once it has been appended to the spool
+	 */
+	public CompletableFuture<Void> jalpAuditAsync(ApplicationMetadataXML xml, final String buffer) {
+		if(buffer == null || "".equals(buffer)) {
+			return failed(new JALException("String buffer is required"));
+		}
+		final Request request;
+		try {
+			request = createRequest(MessageType.JALP_AUDIT_MSG, xml);
+		} catch (Exception e) {
+			return failed(e);
+		}
+		return submit(new SendTask() {
+			public void send() throws Exception {
+				JALUtils.processSend(request, buffer);
+			}
+		});
+	}
+
+	/**
+	 * Sends a JALP_AUDIT_MSG on the send executor
+	 *
+	 * @param file		required, a File which contains the buffer
+	 * @return a CompletableFuture that completes once the record has been written to
+	 * 			the socket, or, if a spool is set, once it has been appended to the spool
+	 */
+	public CompletableFuture<Void> jalpAuditAsync(File file) {
+		return jalpAuditAsync(this.xml, file);
+	}
+
+	/**
+	 * Sends a JALP_AUDIT_MSG with the given xml on the send executor. The xml is
+	 * copied before this returns, so it can be changed while the record is
+	 * being sent.
+	 *
+	 * @param xml		the ApplicationMetadataXML for this record
+	 * @param file		required, a File which contains the buffer
+	 * @return a CompletableFuture that completes once the record has been written to
+	 * 			the socket, or, if a spool is set, once it has been appended to the spool
+	 */
+	public CompletableFuture<Void> jalpAuditAsync(ApplicationMetadataXML xml, final File file) {
+		if(file == null) {
+			return failed(new JALException("File is required"));
+		}
+		final Request request;
+		try {
+			request = createRequest(MessageType.JALP_AUDIT_MSG, xml);
+		} catch (Exception e) {
+			return failed(e);
+		}
+		return submit(new SendTask() {
+			public void send() throws Exception {
+				JALUtils.processSend(request, file);
+			}
+		});
+	}
+
+	/**
+	 * Sends a JALP_JOURNAL_MSG on the send executor
+	 *
+	 * @param buffer		required, a String which is a buffer
+	 * @return a CompletableFuture that completes once the record has been written to
+	 * 			the socket, or, if a spool is set, once it has been appended to the spool
+	 */
+	public CompletableFuture<Void> jalpJournalAsync(String buffer) {
+		return jalpJournalAsync(this.xml, buffer);
+	}
+
+	/**
+	 * Sends a JALP_JOURNAL_MSG with the given xml on the send executor. The xml is
+	 * copied before this returns, so it can be changed while the record is
+	 * being sent.
+	 *
+	 * @param xml			the ApplicationMetadataXML for this record
+	 * @param buffer		required, a String which is a buffer
+	 * @return a CompletableFuture that completes once the record has been written to
+	 * 			the socket, or, if a spool is set, once it has been appended to the spool
+	 */
+	public CompletableFuture<Void> jalpJournalAsync(ApplicationMetadataXML xml, final String buffer) {
+		if(buffer == null || "".equals(buffer)) {
+			return failed(new JALException("String buffer is required"));
+		}
+		final Request request;
+		try {
+			request = createRequest(MessageType.JALP_JOURNAL_MSG, xml);
+		} catch (Exception e) {
+			return failed(e);
+		}
+		return submit(new SendTask() {
+			public void send() throws Exception {
+				JALUtils.processSend(request, buffer);
+			}
+		});
+	}
+
+	/**
+	 * Sends a JALP_JOURNAL_MSG on the send executor
+	 *
+	 * @param file		required, a File which contains the buffer
+	 * @return a CompletableFuture that completes once the record has been written to
+	 * 			the socket, or, if a spool is set, once it has been appended to the spool
+	 */
+	public CompletableFuture<Void> jalpJournalAsync(File file) {
+		return jalpJournalAsync(this.xml, file);
+	}
+
+	/**
+	 * Sends a JALP_JOURNAL_MSG with the given xml on the send executor. The xml is
+	 * copied before this returns, so it can be changed while the record is
+	 * being sent.
+	 *
+	 * @param xml		the ApplicationMetadataXML for this record
+	 * @param file		required, a File which contains the buffer
+	 * @return a CompletableFuture that completes once the record has been written to
+	 * 			the socket, or, if a spool is set, once it has been appended to the spool
+	 */
+	public CompletableFuture<Void> jalpJournalAsync(ApplicationMetadataXML xml, final File file) {
+		if(file == null) {
+			return failed(new JALException("File is required"));
+		}
+		final Request request;
+		try {
+			request = createRequest(MessageType.JALP_JOURNAL_MSG, xml);
+		} catch (Exception e) {
+			return failed(e);
+		}
+		return submit(new SendTask() {
+			public void send() throws Exception {
+				JALUtils.processSend(request, file);
+			}
+		});
+	}
+
+	/**
+	 * Sends a JALP_JOURNAL_FD_MSG on the send executor
+	 *
+	 * @param file		required, a File which contains the buffer
+	 * @return a CompletableFuture that completes once the record has been written to the socket
+	 */
+	public CompletableFuture<Void> jalpJournalFDAsync(File file) {
+		return jalpJournalFDAsync(this.xml, file);
+	}
+
+	/**
+	 * Sends a JALP_JOURNAL_FD_MSG with the given xml on the send executor. The xml is
+	 * copied before this returns, so it can be changed while the record is
+	 * being sent.
+	 *
+	 * @param xml		the ApplicationMetadataXML for this record
+	 * @param file		required, a File which contains the buffer
+	 * @return a CompletableFuture that completes once the record has been written to the socket
+	 */
+	public CompletableFuture<Void> jalpJournalFDAsync(ApplicationMetadataXML xml, final File file) {
+		if(file == null) {
+			return failed(new JALException("File is required"));
+		}
+		final Request request;
+		try {
+			request = createRequest(MessageType.JALP_JOURNAL_FD_MSG, xml);
+		} catch (Exception e) {
+			return failed(e);
+		}
+		return submit(new SendTask() {
+			public void send() throws Exception {
+				JALUtils.processSend(request, file);
+			}
+		});
+	}
+
+	/*
+	 * The work of one asynchronous send
+	 */
+	private interface SendTask {
+		void send() throws Exception;
+	}
+
+	/*
+	 * Runs the task on the send executor and completes the future when it is done.
+	 * Like CompletableFuture.runAsync, this throws RejectedExecutionException if the
+	 * executor refuses the task.
+	 */
+	private CompletableFuture<Void> submit(final SendTask task) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		Runnable send = new Runnable() {
+			public void run() {
+				try {
+					task.send();
+					future.complete(null);
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				}
+			}
+		};
+		executor().execute(send);
+		return future;
+	}
+
+	private Executor executor() {
+		Executor executor = sendExecutor;
+		return executor != null ? executor : SendExecutors.getDefault();
+	}
+
+	private static CompletableFuture<Void> failed(Throwable t) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		future.completeExceptionally(t);
+		return future;
 	}
 
 }
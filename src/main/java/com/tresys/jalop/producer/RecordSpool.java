@@ -0,0 +1,771 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.producer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+import com.tresys.jalop.common.JALException;
+import com.tresys.jalop.common.SendUtils;
+
+/**
+ * A write-ahead spool that lets records be sent while the local store is
+ * slow or down. Each record is encoded exactly as it goes on the socket and
+ * appended to a memory-mapped segment file in the spool directory, so
+ * sending a record never waits on the store. A background thread replays the
+ * records, in the order they were appended, on the Producer's
+ * {@link ConnectionPool}, and retries with a growing delay while the store
+ * can't be reached.
+ * <p>
+ * After each replayed record the position of the next one is written to a
+ * checkpoint file. The checkpoint has two slots which are written in turn,
+ * each with its own checksum, so a crash while it is being written leaves
+ * the previous checkpoint in place. Records carry a CRC32 and their length is
+ * written last, so a record torn by a crash is found and dropped when the
+ * spool is opened again. A record that reached the store just before a crash
+ * may be sent again.
+ * <p>
+ * An append only holds the spool's lock to reserve space for its record and
+ * later to publish it, and encodes the record and computes its CRC32 in
+ * between, so threads appending at once don't wait on each other's payloads.
+ * The replay thread stops at a record that is still being written.
+ * <p>
+ * A mapping stays in place, and so does the disk space of its file, until it
+ * is garbage collected. A segment that has been replayed is therefore kept as
+ * a spare, and the next new segment reuses its file and mapping rather than
+ * deleting one file and creating another.
+ * <p>
+ * Disk use is bounded by the maximum size given to the constructor. When a
+ * new segment would go over it the record is rejected with a JALException
+ * instead of waiting for the store.
+ * <p>
+ * Only one RecordSpool may use a directory at a time.
+ */
+public class RecordSpool {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+	public static final long DEFAULT_MAX_SIZE = 1024L * 1024 * 1024;
+
+	private static final int MAGIC = 0x4a53504c;
+	private static final int SEGMENT_HEADER_LENGTH = 8;
+	private static final int RECORD_HEADER_LENGTH = 8;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final String SPARE_FILE = "spare";
+	// The CRC field of a slot given up because its payload couldn't be read
+	private static final int ABANDONED = 1;
+	private static final long MIN_RETRY_DELAY = 100;
+	private static final long MAX_RETRY_DELAY = 5000;
+
+	private final Producer producer;
+	private final File directory;
+	private final int segmentSize;
+	private final long maxSize;
+	private final Checkpoint checkpoint;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private Segment spare;
+
+	private int readPosition;
+	private long diskUsage;
+	private long pendingRecords;
+	private long pendingBytes;
+	private boolean forceOnAppend;
+	private boolean closed;
+	private Thread replayer;
+
+	private final AtomicLong appendedCount = new AtomicLong();
+	private final AtomicLong replayedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong replayFailureCount = new AtomicLong();
+
+	/**
+	 * Constructor that uses the default segment and maximum sizes
+	 *
+	 * @param producer	the Producer whose connections records are replayed on
+	 * @param directory	the directory the spool files are kept in
+	 * @throws IOException
+	 */
+	public RecordSpool(Producer producer, File directory) throws IOException {
+		this(producer, directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Constructor. Opens the spool in directory, creating it if needed. Records
+	 * left from an earlier run are replayed from the last checkpoint.
+	 *
+	 * @param producer		the Producer whose connections records are replayed on
+	 * @param directory		the directory the spool files are kept in
+	 * @param segmentSize	the size of each segment file in bytes. A record that
+	 * 						doesn't fit in one gets a segment of its own.
+	 * @param maxSize		the most bytes the segment files may use together,
+	 * 						at least segmentSize
+	 * @throws IOException
+	 */
+	public RecordSpool(Producer producer, File directory, int segmentSize, long maxSize) throws IOException {
+		if(producer == null) {
+			throw new NullPointerException("producer must not be null");
+		}
+		if(segmentSize <= SEGMENT_HEADER_LENGTH + RECORD_HEADER_LENGTH) {
+			throw new IllegalArgumentException("segmentSize is too small");
+		}
+		if(maxSize < segmentSize) {
+			throw new IllegalArgumentException("maxSize must be at least segmentSize");
+		}
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create spool directory " + directory);
+		}
+		this.producer = producer;
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.maxSize = maxSize;
+		this.checkpoint = new Checkpoint(new File(directory, CHECKPOINT_FILE));
+		recover();
+		if(pendingRecords > 0) {
+			startReplayer();
+		}
+	}
+
+	/**
+	 * Appends one record to the spool. The record is replayed to the store
+	 * later, after every record appended before it.
+	 *
+	 * @param messageType	the MessageType, anything but JALP_JOURNAL_FD_MSG
+	 * @param is			the data as an InputStream, may be null if dataLen is 0
+	 * @param dataLen		a long which is the length of the data
+	 * @param meta			a byte array which is the metadata, may be null
+	 * @throws IOException	if the payload can't be read
+	 * @throws JALException	if the spool is full or closed
+	 */
+	public void append(MessageType messageType, InputStream is, long dataLen, byte[] meta)
+			throws IOException, JALException {
+
+		long length = SendUtils.encodedLength(dataLen, meta == null ? 0 : meta.length);
+		if(length > Integer.MAX_VALUE - SEGMENT_HEADER_LENGTH - RECORD_HEADER_LENGTH) {
+			rejectedCount.incrementAndGet();
+			throw new JALException("A record of " + length + " bytes is too large to spool.");
+		}
+		int needed = RECORD_HEADER_LENGTH + (int) length;
+
+		Segment segment;
+		int offset;
+		boolean force;
+		synchronized (this) {
+			if(closed) {
+				throw new JALException("The spool in " + directory + " is closed.");
+			}
+			segment = segments.isEmpty() ? null : segments.getLast();
+			if(segment == null || segment.writePosition + needed > segment.capacity()) {
+				segment = addSegment(needed);
+			}
+
+			// Until it is published the slot holds no record, and the next one
+			// marks the end of the records in case the segment is a reused one.
+			offset = segment.writePosition;
+			segment.writePosition = offset + needed;
+			segment.buffer.putInt(offset + 4, 0);
+			segment.buffer.putInt(offset, -(int) length);
+			if(segment.writePosition + 4 <= segment.capacity()) {
+				segment.buffer.putInt(segment.writePosition, 0);
+			}
+			force = forceOnAppend;
+		}
+
+		int crc = 0;
+		boolean encoded = false;
+		try {
+			ByteBuffer body = segment.slice(offset + RECORD_HEADER_LENGTH, (int) length);
+			SendUtils.encodeRecord(messageType, dataLen, is, meta, body);
+			body.flip();
+
+			CRC32 crc32 = new CRC32();
+			crc32.update(body);
+			crc = (int) crc32.getValue();
+			encoded = true;
+		} finally {
+			synchronized (this) {
+				if(encoded) {
+					segment.buffer.putInt(offset + 4, crc);
+					// The length goes in last, so a record is only seen once it is complete.
+					segment.buffer.putInt(offset, (int) length);
+					pendingRecords++;
+					pendingBytes += length;
+					appendedCount.incrementAndGet();
+					startReplayer();
+				} else {
+					segment.buffer.putInt(offset + 4, ABANDONED);
+				}
+				notifyAll();
+			}
+		}
+		if(force) {
+			segment.buffer.force();
+		}
+	}
+
+	/**
+	 * Waits until every record appended so far has been replayed.
+	 *
+	 * @param timeoutMillis	the longest time to wait in milliseconds
+	 * @return true if the spool is empty
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while(pendingRecords > 0 && !closed) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				break;
+			}
+			wait(remaining);
+		}
+		return pendingRecords == 0;
+	}
+
+	/**
+	 * Stops the replay thread and closes the spool files. Records that haven't
+	 * been replayed stay in the directory and are replayed by the next
+	 * RecordSpool opened on it.
+	 */
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			thread = replayer;
+			notifyAll();
+		}
+		if(thread != null && thread != Thread.currentThread()) {
+			try {
+				thread.join(MAX_RETRY_DELAY);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			for(Segment segment : segments) {
+				segment.buffer.force();
+				segment.close();
+			}
+			if(spare != null) {
+				spare.close();
+			}
+			checkpoint.close();
+		}
+	}
+
+	/**
+	 * Gets the directory the spool files are kept in
+	 *
+	 * @return the directory
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Gets whether each record is forced to disk when it is appended
+	 *
+	 * @return true if appends are forced
+	 */
+	public synchronized boolean isForceOnAppend() {
+		return forceOnAppend;
+	}
+
+	/**
+	 * Sets whether each record is forced to disk when it is appended. Records
+	 * that are only in the mapped files survive the process crashing but not
+	 * the machine going down. The default is false.
+	 *
+	 * @param forceOnAppend true to force every append
+	 */
+	public synchronized void setForceOnAppend(boolean forceOnAppend) {
+		this.forceOnAppend = forceOnAppend;
+	}
+
+	/**
+	 * Gets the number of records appended since the spool was opened
+	 *
+	 * @return the count
+	 */
+	public long getAppendedCount() {
+		return appendedCount.get();
+	}
+
+	/**
+	 * Gets the number of records replayed to the store since the spool was opened
+	 *
+	 * @return the count
+	 */
+	public long getReplayedCount() {
+		return replayedCount.get();
+	}
+
+	/**
+	 * Gets the number of records turned away because the spool was full
+	 *
+	 * @return the count
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * Gets the number of times a record could not be replayed and had to be retried
+	 *
+	 * @return the count
+	 */
+	public long getReplayFailureCount() {
+		return replayFailureCount.get();
+	}
+
+	/**
+	 * Gets the number of records waiting to be replayed
+	 *
+	 * @return the count
+	 */
+	public synchronized long getPendingRecords() {
+		return pendingRecords;
+	}
+
+	/**
+	 * Gets the encoded size of the records waiting to be replayed
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long getPendingBytes() {
+		return pendingBytes;
+	}
+
+	/**
+	 * Gets the number of bytes the segment files use
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long getDiskUsage() {
+		return diskUsage;
+	}
+
+	/*
+	 * Opens the segments in the directory, drops the ones before the checkpoint
+	 * and finds the end of the records in each of the others.
+	 */
+	private void recover() throws IOException {
+		File[] files = directory.listFiles();
+		List<Long> sequences = new ArrayList<Long>();
+		if(files != null) {
+			for(File file : files) {
+				String name = file.getName();
+				if(name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						sequences.add(Long.valueOf(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						// not one of ours
+					}
+				}
+			}
+		}
+		Collections.sort(sequences);
+
+		File spareFile = new File(directory, SPARE_FILE);
+		if(spareFile.exists()) {
+			spare = Segment.open(-1, spareFile);
+			if(spare == null) {
+				spareFile.delete();
+			} else {
+				diskUsage += spare.capacity();
+			}
+		}
+
+		for(Long sequence : sequences) {
+			File file = segmentFile(sequence.longValue());
+			if(sequence.longValue() < checkpoint.sequence) {
+				file.delete();
+				continue;
+			}
+			Segment segment = Segment.open(sequence.longValue(), file);
+			if(segment == null) {
+				file.delete();
+				continue;
+			}
+			int start = SEGMENT_HEADER_LENGTH;
+			if(segments.isEmpty()) {
+				if(sequence.longValue() == checkpoint.sequence) {
+					start = Math.max(SEGMENT_HEADER_LENGTH, checkpoint.position);
+				}
+				readPosition = start;
+			}
+			int position = SEGMENT_HEADER_LENGTH;
+			while(position + RECORD_HEADER_LENGTH <= segment.capacity()) {
+				int length = segment.buffer.getInt(position);
+				if(length < 0 && length >= -(segment.capacity() - position - RECORD_HEADER_LENGTH)) {
+					// A slot that was abandoned, or still being written when the process
+					// stopped. Nothing will finish it now, so the replayer must skip it.
+					segment.buffer.putInt(position + 4, ABANDONED);
+					position += RECORD_HEADER_LENGTH - length;
+					continue;
+				}
+				if(length <= 0 || length > segment.capacity() - position - RECORD_HEADER_LENGTH) {
+					break;
+				}
+				CRC32 crc = new CRC32();
+				crc.update(segment.slice(position + RECORD_HEADER_LENGTH, length));
+				if((int) crc.getValue() != segment.buffer.getInt(position + 4)) {
+					break;
+				}
+				if(position >= start) {
+					pendingRecords++;
+					pendingBytes += length;
+				}
+				position += RECORD_HEADER_LENGTH + length;
+			}
+			if(position + 4 <= segment.capacity()) {
+				// Clear what is left of a torn record so it isn't read as the end of a new one.
+				segment.buffer.putInt(position, 0);
+			}
+			segment.writePosition = position;
+			if(segments.isEmpty() && readPosition > position) {
+				readPosition = position;
+			}
+			segments.add(segment);
+			diskUsage += segment.capacity();
+		}
+	}
+
+	private Segment addSegment(int needed) throws IOException, JALException {
+		int size = Math.max(segmentSize, SEGMENT_HEADER_LENGTH + needed);
+		// A new segment always comes after the checkpoint, so none of it is skipped on recovery.
+		long sequence = checkpoint.sequence + 1;
+		if(!segments.isEmpty()) {
+			sequence = segments.getLast().sequence + 1;
+		}
+		Segment segment;
+		if(spare != null && spare.capacity() >= size) {
+			segment = spare.reuse(sequence, segmentFile(sequence));
+			spare = null;
+		} else {
+			if(diskUsage + size > maxSize) {
+				rejectedCount.incrementAndGet();
+				throw new JALException("The spool in " + directory + " is full.");
+			}
+			segment = Segment.create(sequence, segmentFile(sequence), size);
+			diskUsage += size;
+		}
+		if(segments.isEmpty()) {
+			readPosition = SEGMENT_HEADER_LENGTH;
+		}
+		segments.add(segment);
+		return segment;
+	}
+
+	/*
+	 * Keeps a segment that has been replayed as the spare. Only a segment
+	 * retired while there is already a spare is deleted.
+	 */
+	private void retire(Segment segment) {
+		if(spare == null) {
+			try {
+				spare = segment.reuse(-1, new File(directory, SPARE_FILE));
+				return;
+			} catch (IOException e) {
+				// delete it instead
+			}
+		}
+		diskUsage -= segment.capacity();
+		segment.close();
+		segment.file.delete();
+	}
+
+	private File segmentFile(long sequence) {
+		return new File(directory, String.format("%020d", Long.valueOf(sequence)) + SEGMENT_SUFFIX);
+	}
+
+	private void startReplayer() {
+		if(replayer == null && !closed) {
+			replayer = new Thread(new Runnable() {
+				public void run() {
+					replay();
+				}
+			}, "jalop-spool-replay");
+			replayer.setDaemon(true);
+			replayer.start();
+		}
+	}
+
+	/*
+	 * Replays records until the spool is closed. Only this thread moves the
+	 * read position or removes segments.
+	 */
+	private void replay() {
+		long retryDelay = MIN_RETRY_DELAY;
+		while(true) {
+			Segment segment;
+			int position;
+			int length;
+			synchronized (this) {
+				while(true) {
+					if(closed) {
+						return;
+					}
+					segment = segments.isEmpty() ? null : segments.getFirst();
+					if(segment != null && readPosition < segment.writePosition) {
+						int next = segment.buffer.getInt(readPosition);
+						if(next > 0) {
+							break;
+						}
+						if(segment.buffer.getInt(readPosition + 4) == ABANDONED) {
+							readPosition += RECORD_HEADER_LENGTH - next;
+							continue;
+						}
+						// The next record is still being written, and its appender wakes this thread.
+					} else if(segment != null && segments.size() > 1) {
+						segments.removeFirst();
+						retire(segment);
+						readPosition = SEGMENT_HEADER_LENGTH;
+						continue;
+					}
+					waitQuietly(0);
+				}
+				position = readPosition;
+				length = segment.buffer.getInt(position);
+			}
+
+			try {
+				send(segment.slice(position + RECORD_HEADER_LENGTH, length));
+			} catch (Exception e) {
+				replayFailureCount.incrementAndGet();
+				synchronized (this) {
+					if(!closed) {
+						waitQuietly(retryDelay);
+					}
+				}
+				retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+				continue;
+			}
+			retryDelay = MIN_RETRY_DELAY;
+
+			synchronized (this) {
+				readPosition = position + RECORD_HEADER_LENGTH + length;
+				pendingRecords--;
+				pendingBytes -= length;
+				replayedCount.incrementAndGet();
+				checkpoint.write(segment.sequence, readPosition);
+				notifyAll();
+			}
+		}
+	}
+
+	private void send(ByteBuffer record) throws Exception {
+		ConnectionPool.Lane lane = producer.getConnectionPool().acquire();
+		try {
+			// Spooled records are never sent by file descriptor, so any other type picks the same connection.
+			if(lane.usesChannel(MessageType.JALP_LOG_MSG)) {
+				SendUtils.sendEncodedRecord(record, lane.getChannel());
+			} else {
+				SendUtils.sendEncodedRecord(record, lane.getSocket());
+			}
+		} catch (IOException e) {
+			// Part of the record may already be on the socket, so the connection can't be reused.
+			lane.discard();
+			throw e;
+		} finally {
+			lane.release();
+		}
+	}
+
+	private void waitQuietly(long millis) {
+		try {
+			wait(millis);
+		} catch (InterruptedException e) {
+			closed = true;
+		}
+	}
+
+	/**
+	 * One memory-mapped segment file. It starts with a magic number and a
+	 * version, followed by records, each of which is its length, its CRC32 and
+	 * the encoded record. A length of 0 marks the end of the records. A
+	 * negative length is a slot of that many bytes which holds no record: one
+	 * still being written, with a CRC32 of 0, or one that was abandoned.
+	 */
+	private static final class Segment {
+		final long sequence;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		int writePosition;
+
+		private Segment(long sequence, File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+			this.sequence = sequence;
+			this.file = file;
+			this.raf = raf;
+			this.buffer = buffer;
+		}
+
+		static Segment create(long sequence, File file, int size) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(size);
+				MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, 1);
+				Segment segment = new Segment(sequence, file, raf, buffer);
+				segment.writePosition = SEGMENT_HEADER_LENGTH;
+				return segment;
+			} catch (IOException e) {
+				raf.close();
+				file.delete();
+				throw e;
+			}
+		}
+
+		/*
+		 * Returns null if the file isn't a segment, for example because it was
+		 * being created when the process stopped.
+		 */
+		static Segment open(long sequence, File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			long size = raf.length();
+			if(size < SEGMENT_HEADER_LENGTH || size > Integer.MAX_VALUE) {
+				raf.close();
+				return null;
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			if(buffer.getInt(0) != MAGIC) {
+				raf.close();
+				return null;
+			}
+			return new Segment(sequence, file, raf, buffer);
+		}
+
+		int capacity() {
+			return buffer.capacity();
+		}
+
+		/*
+		 * Renames the file to be used as a new segment, keeping its mapping.
+		 * The first record is cleared before the rename, so none of the old
+		 * records can be read as part of the new segment.
+		 */
+		Segment reuse(long sequence, File newFile) throws IOException {
+			buffer.putInt(SEGMENT_HEADER_LENGTH, 0);
+			if(!file.renameTo(newFile)) {
+				throw new IOException("Unable to rename " + file + " to " + newFile);
+			}
+			Segment segment = new Segment(sequence, newFile, raf, buffer);
+			segment.writePosition = SEGMENT_HEADER_LENGTH;
+			return segment;
+		}
+
+		ByteBuffer slice(int offset, int length) {
+			ByteBuffer slice = buffer.duplicate();
+			slice.limit(offset + length).position(offset);
+			return slice.slice();
+		}
+
+		/*
+		 * The mapping stays valid until it is garbage collected, so a record
+		 * being replayed can still be read after this.
+		 */
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// nothing else to do with it
+			}
+		}
+	}
+
+	/**
+	 * The position of the next record to replay. It is kept in two slots of a
+	 * mapped file which are written in turn. Each slot holds a generation, the
+	 * segment sequence and position, and a CRC32 of those.
+	 */
+	private static final class Checkpoint {
+		private static final int SLOT_LENGTH = 32;
+
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer buffer;
+		private long generation;
+		long sequence;
+		int position;
+
+		Checkpoint(File file) throws IOException {
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(2 * SLOT_LENGTH);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 2 * SLOT_LENGTH);
+			for(int slot = 0; slot < 2; slot++) {
+				int offset = slot * SLOT_LENGTH;
+				long slotGeneration = buffer.getLong(offset);
+				if(slotGeneration > generation && buffer.getLong(offset + 24) == checksum(offset)) {
+					generation = slotGeneration;
+					sequence = buffer.getLong(offset + 8);
+					position = (int) buffer.getLong(offset + 16);
+				}
+			}
+		}
+
+		void write(long sequence, int position) {
+			this.sequence = sequence;
+			this.position = position;
+			generation++;
+			int offset = (int) (generation & 1) * SLOT_LENGTH;
+			buffer.putLong(offset, generation);
+			buffer.putLong(offset + 8, sequence);
+			buffer.putLong(offset + 16, position);
+			buffer.putLong(offset + 24, checksum(offset));
+		}
+
+		private long checksum(int offset) {
+			CRC32 crc = new CRC32();
+			ByteBuffer slot = buffer.duplicate();
+			slot.limit(offset + 24).position(offset);
+			crc.update(slot);
+			return crc.getValue();
+		}
+
+		void close() {
+			buffer.force();
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// nothing else to do with it
+			}
+		}
+	}
+}
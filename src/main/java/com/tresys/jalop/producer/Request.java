@@ -0,0 +1,238 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.producer;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+import com.tresys.jalop.common.JALUtils.DMType;
+
+/**
+ * Everything needed to send one record: the message type, the application
+ * metadata prepared for this record, and a snapshot of the Producer's
+ * settings. A Request never changes once it is created, so any number of
+ * threads can send through the same Producer at once.
+ */
+public final class Request {
+
+	private final Producer producer;
+	private final MessageType messageType;
+	private final ApplicationMetadataXML xml;
+	private final String hostName;
+	private final String applicationName;
+	private final PrivateKey privateKey;
+	private final PublicKey publicKey;
+	private final X509Certificate certificate;
+	private final DMType digestMethod;
+	private final boolean singlePassDigest;
+	private final long memfdThreshold;
+	private final RecordSpool spool;
+	private final boolean validating;
+
+	/**
+	 * Constructor. The xml is copied and the copy is prepared for sending,
+	 * so the given xml is left as it is.
+	 *
+	 * @param producer		the Producer the record is sent through
+	 * @param messageType	the type of message to send
+	 * @param xml			the ApplicationMetadataXML, may be null
+	 * @throws Exception
+	 */
+	Request(Producer producer, MessageType messageType, ApplicationMetadataXML xml) throws Exception {
+		this.producer = producer;
+		this.messageType = messageType;
+		this.hostName = producer.getHostName();
+		this.applicationName = producer.getApplicationName();
+		this.privateKey = producer.getPrivateKey();
+		this.publicKey = producer.getPublicKey();
+		this.certificate = producer.getCertificate();
+		this.digestMethod = producer.getDigestMethod();
+		this.singlePassDigest = producer.isSinglePassDigest();
+		this.memfdThreshold = producer.getMemfdThreshold();
+		this.spool = producer.getSpool();
+		if (xml != null) {
+			this.xml = xml.prepareCopy(hostName, applicationName);
+		} else {
+			this.xml = null;
+		}
+		this.validating = producer.isValidationDue(messageType, xml);
+	}
+
+	private Request(Request request, MessageType messageType) {
+		this.producer = request.producer;
+		this.messageType = messageType;
+		this.xml = request.xml;
+		this.hostName = request.hostName;
+		this.applicationName = request.applicationName;
+		this.privateKey = request.privateKey;
+		this.publicKey = request.publicKey;
+		this.certificate = request.certificate;
+		this.digestMethod = request.digestMethod;
+		this.singlePassDigest = request.singlePassDigest;
+		this.memfdThreshold = request.memfdThreshold;
+		this.spool = request.spool;
+		this.validating = request.validating;
+	}
+
+	/**
+	 * Gets a Request for the same record sent as another message type, such
+	 * as a journal buffer that is sent by file descriptor instead
+	 *
+	 * @param messageType	the type of message to send
+	 * @return a Request with the same metadata and settings
+	 */
+	public Request forMessageType(MessageType messageType) {
+		return new Request(this, messageType);
+	}
+
+	/**
+	 * Gets the Producer the record is sent through
+	 *
+	 * @return the Producer
+	 */
+	public Producer getProducer() {
+		return producer;
+	}
+
+	/**
+	 * Gets the type of message to send
+	 *
+	 * @return the MessageType
+	 */
+	public MessageType getMessageType() {
+		return messageType;
+	}
+
+	/**
+	 * Gets the application metadata for this record, already prepared for sending
+	 *
+	 * @return the ApplicationMetadataXML, or null if there is none
+	 */
+	public ApplicationMetadataXML getXml() {
+		return xml;
+	}
+
+	/**
+	 * Gets the name of the host
+	 *
+	 * @return the hostName String
+	 */
+	public String getHostName() {
+		return hostName;
+	}
+
+	/**
+	 * Gets the name of the application
+	 *
+	 * @return the applicationName String
+	 */
+	public String getApplicationName() {
+		return applicationName;
+	}
+
+	/**
+	 * Gets the private key to sign with
+	 *
+	 * @return the PrivateKey, or null if the metadata isn't signed
+	 */
+	public PrivateKey getPrivateKey() {
+		return privateKey;
+	}
+
+	/**
+	 * Gets the public key put in the signature
+	 *
+	 * @return the PublicKey, or null if the metadata isn't signed
+	 */
+	public PublicKey getPublicKey() {
+		return publicKey;
+	}
+
+	/**
+	 * Gets the certificate put in the signature
+	 *
+	 * @return the X509Certificate, may be null
+	 */
+	public X509Certificate getCertificate() {
+		return certificate;
+	}
+
+	/**
+	 * Gets the digest method for the payload
+	 *
+	 * @return the DMType, or null if the payload isn't digested
+	 */
+	public DMType getDigestMethod() {
+		return digestMethod;
+	}
+
+	/**
+	 * Gets whether a file payload is digested while it is being sent
+	 *
+	 * @return true if single pass digests are turned on
+	 */
+	public boolean isSinglePassDigest() {
+		return singlePassDigest;
+	}
+
+	/**
+	 * Gets the size from which a journal String buffer is sent in a memory file
+	 *
+	 * @return the size in bytes, or 0 if buffers are always sent on the socket
+	 */
+	public long getMemfdThreshold() {
+		return memfdThreshold;
+	}
+
+	/**
+	 * Gets the spool the record is appended to
+	 *
+	 * @return the RecordSpool, or null if the record is sent directly
+	 */
+	public RecordSpool getSpool() {
+		return spool;
+	}
+
+	/**
+	 * Gets whether the metadata is validated against the schema
+	 *
+	 * @return true if the Producer's ValidationPolicy calls for this record to be validated
+	 */
+	public boolean isValidating() {
+		return validating;
+	}
+
+	/**
+	 * Gets whether the metadata is signed
+	 *
+	 * @return true if both keys are set
+	 */
+	public boolean isSigning() {
+		return privateKey != null && publicKey != null;
+	}
+}
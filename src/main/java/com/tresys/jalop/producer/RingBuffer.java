@@ -0,0 +1,151 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.producer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue backed by a preallocated array. Any number of
+ * threads may offer and poll. Each slot carries a sequence number that says
+ * whether it is ready to be written or read, so producers and consumers only
+ * contend on a compare-and-set of the tail or head counter.
+ *
+ * @param <E>	the type of element held in the buffer
+ */
+public class RingBuffer<E> {
+
+	private final int mask;
+	private final AtomicReferenceArray<E> elements;
+	private final AtomicLongArray sequences;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity	the minimum number of elements the buffer can hold, rounded
+	 * 					up to the next power of two
+	 */
+	public RingBuffer(int capacity) {
+		if(capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+		}
+		int size = 1;
+		while(size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.elements = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for(int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds an element to the tail of the buffer if there is room.
+	 *
+	 * @param element	the element to add, must not be null
+	 * @return	true if the element was added, false if the buffer was full
+	 */
+	public boolean offer(E element) {
+		if(element == null) {
+			throw new NullPointerException("element must not be null");
+		}
+		while(true) {
+			long pos = tail.get();
+			int index = (int) pos & mask;
+			long seq = sequences.get(index);
+			long diff = seq - pos;
+			if(diff == 0) {
+				if(tail.compareAndSet(pos, pos + 1)) {
+					elements.lazySet(index, element);
+					sequences.set(index, pos + 1);
+					return true;
+				}
+			} else if(diff < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Removes the element at the head of the buffer.
+	 *
+	 * @return	the element, or null if the buffer was empty
+	 */
+	public E poll() {
+		while(true) {
+			long pos = head.get();
+			int index = (int) pos & mask;
+			long seq = sequences.get(index);
+			long diff = seq - (pos + 1);
+			if(diff == 0) {
+				if(head.compareAndSet(pos, pos + 1)) {
+					E element = elements.get(index);
+					elements.lazySet(index, null);
+					sequences.set(index, pos + mask + 1);
+					return element;
+				}
+			} else if(diff < 0) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of elements in the buffer. The value is only a snapshot
+	 * while other threads are offering or polling.
+	 *
+	 * @return	the number of elements in the buffer
+	 */
+	public int size() {
+		long size = tail.get() - head.get();
+		if(size < 0) {
+			return 0;
+		}
+		return (int) Math.min(size, capacity());
+	}
+
+	/**
+	 * Gets whether the buffer currently holds no elements.
+	 *
+	 * @return	true if the buffer is empty
+	 */
+	public boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+
+	/**
+	 * Gets the number of elements the buffer can hold.
+	 *
+	 * @return	the capacity
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+}
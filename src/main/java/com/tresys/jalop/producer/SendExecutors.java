@@ -0,0 +1,126 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.producer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the Producer's asynchronous sends. Each send blocks its
+ * thread while the record is written to the socket. The default executor
+ * therefore starts a virtual thread for each send when the JVM has virtual
+ * threads, and otherwise uses a fixed pool of daemon threads, one for each
+ * processor, with the sends that are waiting for a thread in a queue.
+ */
+public final class SendExecutors {
+
+	private static volatile Executor defaultExecutor;
+
+	private SendExecutors() {
+	}
+
+	/**
+	 * Gets the executor used by Producers that weren't given one. It is
+	 * created the first time it is needed and shared by every Producer.
+	 *
+	 * @return	the default Executor
+	 */
+	public static Executor getDefault() {
+		Executor executor = defaultExecutor;
+		if (executor == null) {
+			synchronized (SendExecutors.class) {
+				executor = defaultExecutor;
+				if (executor == null) {
+					executor = newVirtualThreadExecutor();
+					if (executor == null) {
+						executor = newDaemonThreadExecutor();
+					}
+					defaultExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread.
+	 *
+	 * @return	the ExecutorService, or null if this JVM has no virtual threads
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			// Looked up by name so that the library still runs on JVMs without virtual threads
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			// No virtual threads, or they are a preview feature that isn't turned on
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a pool of daemon threads, one for each processor, so that
+	 * sends still in progress don't keep the JVM from exiting.
+	 *
+	 * @return	the ExecutorService
+	 */
+	public static ExecutorService newDaemonThreadExecutor() {
+		return newDaemonThreadExecutor(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a pool of at most threads daemon threads. Sends that are
+	 * submitted while every thread is busy wait in a queue, so a burst of
+	 * sends doesn't start a thread for each one. Idle threads stop after a
+	 * minute.
+	 *
+	 * @param threads	the most threads in the pool, must be at least 1
+	 * @return	the ExecutorService
+	 */
+	public static ExecutorService newDaemonThreadExecutor(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		final AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "jalop-send-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}
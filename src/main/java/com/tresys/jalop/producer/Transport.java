@@ -0,0 +1,42 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.producer;
+
+/**
+ * How a {@link Producer} connects to the local store.
+ */
+public enum Transport {
+	/** Every record is sent with the JUDS JNI library. */
+	JUDS,
+	/**
+	 * Records are written to a NIO SocketChannel with gathering writes, which
+	 * needs Java 16 or later. Journal records sent by file descriptor need
+	 * SCM_RIGHTS, which SocketChannel can't send, so they go on a connection
+	 * of their own: a {@link com.tresys.jalop.common.ForeignUnixSocket} on
+	 * Java 21 or later, or JUDS on older releases.
+	 */
+	NIO
+}
@@ -0,0 +1,87 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.producer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how the application metadata of a {@link Producer}'s records
+ * was handled by its {@link ValidationPolicy}.
+ */
+public class ValidationMetrics {
+
+	private final AtomicLong validated = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	/**
+	 * Gets the number of records whose metadata was validated and passed
+	 *
+	 * @return the number of validated records
+	 */
+	public long getValidated() {
+		return validated.get();
+	}
+
+	/**
+	 * Gets the number of records whose metadata was not validated
+	 *
+	 * @return the number of skipped records
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Gets the number of records whose metadata failed validation
+	 *
+	 * @return the number of failed records
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * Counts a record whose metadata was validated and passed
+	 */
+	public void recordValidated() {
+		validated.incrementAndGet();
+	}
+
+	/**
+	 * Counts a record whose metadata was not validated
+	 */
+	public void recordSkipped() {
+		skipped.incrementAndGet();
+	}
+
+	/**
+	 * Counts a record whose metadata failed validation
+	 */
+	public void recordFailure() {
+		failures.incrementAndGet();
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.producer;
+
+/**
+ * How often a {@link Producer} validates application metadata against the
+ * JALoP schema before sending it.
+ * <p>
+ * Logger and syslog records written from a cached template are not
+ * marshaled, so they are never validated on their own. The template was
+ * validated when it was built and the values put into it are escaped, so
+ * they are counted as validated whenever the policy calls for validation.
+ */
+public enum ValidationPolicy {
+	/** Every record is validated. */
+	ALWAYS,
+	/** One record in every sample rate records is validated. */
+	SAMPLED,
+	/** Only the first record of each message type and kind of xml is validated. */
+	FIRST_PER_TYPE,
+	/** No record is validated. */
+	OFF
+}
@@ -0,0 +1,282 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.receiver;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.etsy.net.JUDS;
+import com.etsy.net.UnixDomainSocket;
+import com.etsy.net.UnixDomainSocket.UnixDomainSocketInputStream;
+import com.etsy.net.UnixDomainSocketClient;
+import com.etsy.net.UnixDomainSocketServer;
+import com.tresys.jalop.common.SendUtils;
+
+/**
+ * Listens on a JALoP socket the way the local store does and decodes the
+ * records producers send on it. Each connection is read by a thread of its
+ * own with recvmsg, so descriptors passed with JALP_JOURNAL_FD_MSG records
+ * are received along with the bytes, and is decoded by a
+ * {@link RecordDecoder} feeding a {@link RecordHandler} made for it.
+ * <p>
+ * A connection that breaks the protocol, or whose handler throws, is closed.
+ * The other connections are not affected.
+ */
+public class Receiver {
+
+	private static final int BACKLOG = 128;
+	private static final int MAX_DESCRIPTORS = 16;
+
+	private final String socketFile;
+	private final RecordHandlerFactory factory;
+	private long maxDataLength = Long.MAX_VALUE;
+	private long maxMetaLength = Long.MAX_VALUE;
+
+	private final Set<UnixDomainSocket> connections =
+			Collections.newSetFromMap(new ConcurrentHashMap<UnixDomainSocket, Boolean>());
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong records = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	private UnixDomainSocketServer server;
+	private volatile boolean closed;
+
+	/**
+	 * Constructor
+	 *
+	 * @param socketFile	the path of the socket to listen on
+	 * @param factory		the RecordHandlerFactory to make each connection's handler with
+	 */
+	public Receiver(String socketFile, RecordHandlerFactory factory) {
+		this.socketFile = socketFile;
+		this.factory = factory;
+	}
+
+	/**
+	 * Gets the path of the socket
+	 *
+	 * @return the socket file
+	 */
+	public String getSocketFile() {
+		return socketFile;
+	}
+
+	/**
+	 * Sets the longest payload a record may announce. A connection that
+	 * announces a longer one is closed. This must be set before start.
+	 *
+	 * @param maxDataLength the length in bytes
+	 */
+	public void setMaxDataLength(long maxDataLength) {
+		this.maxDataLength = maxDataLength;
+	}
+
+	/**
+	 * Sets the longest application metadata a record may announce. A connection
+	 * that announces a longer one is closed. This must be set before start.
+	 *
+	 * @param maxMetaLength the length in bytes
+	 */
+	public void setMaxMetaLength(long maxMetaLength) {
+		this.maxMetaLength = maxMetaLength;
+	}
+
+	/**
+	 * Creates the socket and starts accepting connections. A stale socket file
+	 * left at the path is removed first.
+	 *
+	 * @throws IOException	if the socket can't be created
+	 */
+	public synchronized void start() throws IOException {
+		if(server != null || closed) {
+			throw new IllegalStateException("A Receiver can only be started once.");
+		}
+		new File(socketFile).delete();
+		server = new UnixDomainSocketServer(socketFile, JUDS.SOCK_STREAM, BACKLOG);
+
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "jalop-receiver-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Stops accepting connections, closes the open ones and removes the socket file.
+	 */
+	public void close() {
+		UnixDomainSocketServer s;
+		synchronized (this) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			s = server;
+		}
+		if(s == null) {
+			return;
+		}
+		try {
+			// accept() doesn't return when the socket is closed, so wake it with one last connection.
+			new UnixDomainSocketClient(socketFile, JUDS.SOCK_STREAM).close();
+		} catch (IOException e) {
+			// the acceptor has already stopped
+		}
+		for(UnixDomainSocket connection : connections) {
+			shutdown(connection);
+		}
+		s.close();
+		s.unlink();
+	}
+
+	/**
+	 * Gets the number of connections accepted
+	 *
+	 * @return the number of connections
+	 */
+	public long getAcceptedCount() {
+		return accepted.get();
+	}
+
+	/**
+	 * Gets the number of connections open now
+	 *
+	 * @return the number of open connections
+	 */
+	public int getOpenCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Gets the number of complete records received on all connections
+	 *
+	 * @return the number of records
+	 */
+	public long getRecordCount() {
+		return records.get();
+	}
+
+	/**
+	 * Gets the number of bytes read from all connections, including the
+	 * headers and BREAKs
+	 *
+	 * @return the number of bytes
+	 */
+	public long getByteCount() {
+		return bytes.get();
+	}
+
+	/**
+	 * Gets the number of connections closed because they broke the protocol,
+	 * their handler threw, or they ended part way through a record
+	 *
+	 * @return the number of errors
+	 */
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	private void accept() {
+		while(!closed) {
+			final UnixDomainSocket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			if(closed) {
+				socket.close();
+				return;
+			}
+			accepted.incrementAndGet();
+			connections.add(socket);
+			Thread reader = new Thread(new Runnable() {
+				public void run() {
+					serve(socket);
+				}
+			}, "jalop-receiver-" + accepted.get());
+			reader.setDaemon(true);
+			reader.start();
+		}
+	}
+
+	/*
+	 * Reads one connection until the producer closes it or it breaks the protocol.
+	 */
+	private void serve(UnixDomainSocket socket) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(SendUtils.BUFFER_SIZE);
+		FileDescriptor[] fds = new FileDescriptor[MAX_DESCRIPTORS];
+		UnixDomainSocketInputStream in = (UnixDomainSocketInputStream) socket.getInputStream();
+		RecordDecoder decoder = null;
+		try {
+			decoder = new RecordDecoder(factory.newHandler(), maxDataLength, maxMetaLength);
+			int read;
+			while((read = in.recvmsg(buffer, fds)) >= 0) {
+				for(int i = 0; i < fds.length && fds[i] != null; i++) {
+					decoder.addDescriptor(fds[i]);
+				}
+				buffer.flip();
+				long before = decoder.getRecordCount();
+				decoder.decode(buffer);
+				records.addAndGet(decoder.getRecordCount() - before);
+				bytes.addAndGet(read);
+				buffer.clear();
+			}
+			decoder.finish();
+		} catch (Exception e) {
+			if(!closed) {
+				errors.incrementAndGet();
+			}
+			if(decoder != null) {
+				try {
+					decoder.finish();
+				} catch (Exception ignored) {
+					// the error has already been counted
+				}
+			}
+		} finally {
+			connections.remove(socket);
+			socket.close();
+		}
+	}
+
+	private static void shutdown(UnixDomainSocket socket) {
+		try {
+			socket.getInputStream().close();
+		} catch (IOException e) {
+			// the connection is already closed
+		}
+	}
+}
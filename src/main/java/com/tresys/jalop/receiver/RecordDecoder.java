@@ -0,0 +1,274 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.receiver;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import com.tresys.jalop.common.ConnectionHeader;
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+import com.tresys.jalop.common.JALException;
+import com.tresys.jalop.common.SendUtils;
+
+/**
+ * Decodes the records a producer sends on one connection. Bytes are passed
+ * to {@link #decode(ByteBuffer)} in whatever pieces they were received and
+ * handed on to a {@link RecordHandler} as soon as they are decoded, so no
+ * more than a connection header is ever held between calls.
+ * <p>
+ * Each record is a connection header, then unless it is a JALP_JOURNAL_FD_MSG
+ * the payload and a BREAK, then the application metadata and a BREAK. The
+ * protocol version, message type, lengths and BREAKs are checked, and any
+ * mismatch throws a JALException. The stream can't be decoded after an
+ * exception, so the connection should be closed.
+ */
+public class RecordDecoder {
+
+	/** The only protocol version producers send. */
+	public static final short PROTOCOL_VERSION = 1;
+
+	private static final byte[] BREAK_BYTES = SendUtils.JALP_BREAK_STR.getBytes();
+
+	private enum State { HEADER, PAYLOAD, PAYLOAD_BREAK, METADATA, METADATA_BREAK, FAILED }
+
+	private final RecordHandler handler;
+	private final long maxDataLength;
+	private final long maxMetaLength;
+	private final ByteBuffer header = ByteBuffer.allocate(ConnectionHeader.ENCODED_LENGTH);
+	private final LinkedList<FileDescriptor> descriptors = new LinkedList<FileDescriptor>();
+
+	private State state = State.HEADER;
+	private long remaining;
+	private long remainingMetadata;
+	private int breakMatched;
+	private long records;
+
+	/**
+	 * Constructor
+	 *
+	 * @param handler	the RecordHandler to pass the records to
+	 */
+	public RecordDecoder(RecordHandler handler) {
+		this(handler, Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param handler		the RecordHandler to pass the records to
+	 * @param maxDataLength	the longest payload a record may announce
+	 * @param maxMetaLength	the longest application metadata a record may announce
+	 */
+	public RecordDecoder(RecordHandler handler, long maxDataLength, long maxMetaLength) {
+		this.handler = handler;
+		this.maxDataLength = maxDataLength;
+		this.maxMetaLength = maxMetaLength;
+	}
+
+	/**
+	 * Queues a descriptor received on the connection. A descriptor arrives with
+	 * the bytes of the header it belongs to, so it is given to the next
+	 * JALP_JOURNAL_FD_MSG record that is decoded.
+	 *
+	 * @param fd	the FileDescriptor
+	 */
+	public void addDescriptor(FileDescriptor fd) {
+		descriptors.add(fd);
+	}
+
+	/**
+	 * Decodes all the bytes between the position and the limit of src,
+	 * advancing the position to the limit.
+	 *
+	 * @param src	the bytes received
+	 * @throws Exception	if the bytes don't follow the protocol, or the handler throws
+	 */
+	public void decode(ByteBuffer src) throws Exception {
+		if(state == State.FAILED) {
+			throw new JALException("The stream can't be decoded after an error.");
+		}
+		try {
+			while(src.hasRemaining()) {
+				switch(state) {
+				case HEADER:
+					readHeader(src);
+					break;
+				case PAYLOAD:
+					handler.payload(take(src));
+					if(remaining == 0) {
+						state = State.PAYLOAD_BREAK;
+					}
+					break;
+				case PAYLOAD_BREAK:
+					if(readBreak(src, "payload")) {
+						startMetadata();
+					}
+					break;
+				case METADATA:
+					handler.metadata(take(src));
+					if(remaining == 0) {
+						state = State.METADATA_BREAK;
+					}
+					break;
+				default:
+					if(readBreak(src, "application metadata")) {
+						state = State.HEADER;
+						records++;
+						handler.endRecord();
+					}
+					break;
+				}
+			}
+		} catch (Exception e) {
+			state = State.FAILED;
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks that the stream ended between records, and closes any descriptors
+	 * that were received but not handed on.
+	 *
+	 * @throws JALException	if the stream ended part way through a record
+	 */
+	public void finish() throws JALException {
+		while(!descriptors.isEmpty()) {
+			close(descriptors.removeFirst());
+		}
+		if(!isBetweenRecords()) {
+			throw new JALException("The stream ended part way through a record.");
+		}
+	}
+
+	/**
+	 * Gets whether every byte decoded so far belongs to a complete record
+	 *
+	 * @return true if no record has been started but not finished
+	 */
+	public boolean isBetweenRecords() {
+		return state == State.HEADER && header.position() == 0;
+	}
+
+	/**
+	 * Gets the number of complete records decoded
+	 *
+	 * @return the number of records
+	 */
+	public long getRecordCount() {
+		return records;
+	}
+
+	private void readHeader(ByteBuffer src) throws Exception {
+		int n = Math.min(header.remaining(), src.remaining());
+		ByteBuffer piece = src.duplicate();
+		piece.limit(piece.position() + n);
+		header.put(piece);
+		src.position(src.position() + n);
+		if(header.hasRemaining()) {
+			return;
+		}
+
+		header.flip();
+		ConnectionHeader ch = ConnectionHeader.decode(header);
+		header.clear();
+		MessageType messageType = MessageType.fromType(ch.getMessageType());
+
+		if(ch.getProtocolVersion() != PROTOCOL_VERSION) {
+			throw new JALException("Unsupported protocol version: " + ch.getProtocolVersion());
+		}
+		if(ch.getDataLen() < 0 || ch.getDataLen() > maxDataLength) {
+			throw new JALException("Invalid payload length: " + ch.getDataLen());
+		}
+		if(ch.getMetaLen() < 0 || ch.getMetaLen() > maxMetaLength) {
+			throw new JALException("Invalid application metadata length: " + ch.getMetaLen());
+		}
+
+		FileDescriptor fd = null;
+		if(messageType == MessageType.JALP_JOURNAL_FD_MSG) {
+			if(descriptors.isEmpty()) {
+				throw new JALException("A JALP_JOURNAL_FD_MSG was sent without a file descriptor.");
+			}
+			fd = descriptors.removeFirst();
+		}
+
+		handler.startRecord(ch, fd);
+		remainingMetadata = ch.getMetaLen();
+		if(fd != null) {
+			startMetadata();
+		} else {
+			remaining = ch.getDataLen();
+			state = remaining == 0 ? State.PAYLOAD_BREAK : State.PAYLOAD;
+		}
+	}
+
+	private void startMetadata() {
+		remaining = remainingMetadata;
+		state = remaining == 0 ? State.METADATA_BREAK : State.METADATA;
+	}
+
+	/**
+	 * Takes up to the rest of the current section from src, as a buffer
+	 * sharing src's bytes.
+	 */
+	private ByteBuffer take(ByteBuffer src) {
+		int n = (int) Math.min(remaining, src.remaining());
+		ByteBuffer piece = src.duplicate();
+		piece.limit(piece.position() + n);
+		src.position(src.position() + n);
+		remaining -= n;
+		return piece;
+	}
+
+	/**
+	 * Matches the bytes of src against the BREAK that ends a section.
+	 *
+	 * @return true once the whole BREAK has been read
+	 */
+	private boolean readBreak(ByteBuffer src, String section) throws JALException {
+		while(src.hasRemaining() && breakMatched < BREAK_BYTES.length) {
+			if(src.get() != BREAK_BYTES[breakMatched]) {
+				throw new JALException("Expected a BREAK after the " + section + ".");
+			}
+			breakMatched++;
+		}
+		if(breakMatched < BREAK_BYTES.length) {
+			return false;
+		}
+		breakMatched = 0;
+		return true;
+	}
+
+	private static void close(FileDescriptor fd) {
+		try {
+			new FileInputStream(fd).close();
+		} catch (IOException e) {
+			// nothing more can be done with it
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.receiver;
+
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+
+import com.tresys.jalop.common.ConnectionHeader;
+
+/**
+ * Receives the records decoded from one producer connection by a
+ * {@link RecordDecoder}. For each record startRecord is called first, then
+ * payload and metadata any number of times with consecutive pieces of the
+ * payload and the application metadata, and finally endRecord.
+ * <p>
+ * The buffers passed to payload and metadata are only valid during the call,
+ * so a handler that keeps the bytes must copy them.
+ */
+public interface RecordHandler {
+
+	/**
+	 * Called when the connection header of a record has been read
+	 *
+	 * @param header	the ConnectionHeader of the record
+	 * @param fd		for a JALP_JOURNAL_FD_MSG, the descriptor the payload was passed
+	 * 					as, which the handler must close; otherwise null
+	 * @throws Exception	to reject the record, which closes the connection
+	 */
+	void startRecord(ConnectionHeader header, FileDescriptor fd) throws Exception;
+
+	/**
+	 * Called with the next piece of the payload
+	 *
+	 * @param data	the bytes between the position and the limit
+	 * @throws Exception	to reject the record, which closes the connection
+	 */
+	void payload(ByteBuffer data) throws Exception;
+
+	/**
+	 * Called with the next piece of the application metadata
+	 *
+	 * @param data	the bytes between the position and the limit
+	 * @throws Exception	to reject the record, which closes the connection
+	 */
+	void metadata(ByteBuffer data) throws Exception;
+
+	/**
+	 * Called once the BREAK after the application metadata has been read
+	 *
+	 * @throws Exception	to reject the record, which closes the connection
+	 */
+	void endRecord() throws Exception;
+}
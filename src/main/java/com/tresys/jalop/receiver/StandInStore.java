@@ -0,0 +1,210 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.receiver;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.tresys.jalop.common.ConnectionHeader;
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+
+/**
+ * A stand-in for the JALoP local store, for testing and load testing
+ * producers on one machine. It accepts records on the socket like the local
+ * store, checks that they follow the protocol, and discards them, keeping
+ * only counts. Descriptors passed with JALP_JOURNAL_FD_MSG records are closed
+ * without reading the file.
+ * <p>
+ * Run from the command line it prints the records and bytes received per
+ * second until it is stopped:
+ * <pre>
+ * java -cp jjalop-jar-with-dependencies.jar com.tresys.jalop.receiver.StandInStore [-s socket] [-i seconds]
+ * </pre>
+ */
+public class StandInStore {
+
+	private static final String DEFAULT_SOCKET_FILE = "/var/run/jalop/jalop.sock";
+
+	private final Receiver receiver;
+	private final AtomicLong payloadBytes = new AtomicLong();
+	private final AtomicLong metadataBytes = new AtomicLong();
+	private final AtomicLong[] recordsByType = new AtomicLong[MessageType.values().length];
+
+	/**
+	 * Constructor
+	 *
+	 * @param socketFile	the path of the socket to listen on
+	 */
+	public StandInStore(String socketFile) {
+		for(int i = 0; i < recordsByType.length; i++) {
+			recordsByType[i] = new AtomicLong();
+		}
+		receiver = new Receiver(socketFile, new RecordHandlerFactory() {
+			public RecordHandler newHandler() {
+				return new CountingHandler();
+			}
+		});
+	}
+
+	/**
+	 * Gets the Receiver the store listens with, for its connection and record counts
+	 *
+	 * @return the Receiver
+	 */
+	public Receiver getReceiver() {
+		return receiver;
+	}
+
+	/**
+	 * Starts accepting records
+	 *
+	 * @throws Exception	if the socket can't be created
+	 */
+	public void start() throws Exception {
+		receiver.start();
+	}
+
+	/**
+	 * Stops accepting records and removes the socket file
+	 */
+	public void close() {
+		receiver.close();
+	}
+
+	/**
+	 * Gets the number of payload bytes of the records received. For a
+	 * JALP_JOURNAL_FD_MSG this is the length its header announced.
+	 *
+	 * @return the number of payload bytes
+	 */
+	public long getPayloadBytes() {
+		return payloadBytes.get();
+	}
+
+	/**
+	 * Gets the number of application metadata bytes of the records received
+	 *
+	 * @return the number of metadata bytes
+	 */
+	public long getMetadataBytes() {
+		return metadataBytes.get();
+	}
+
+	/**
+	 * Gets the number of records of one type received
+	 *
+	 * @param messageType	the MessageType
+	 * @return the number of records
+	 */
+	public long getRecordCount(MessageType messageType) {
+		return recordsByType[messageType.ordinal()].get();
+	}
+
+	/**
+	 * Runs a stand-in store until the process is stopped.
+	 *
+	 * @param args	-s the socket to listen on, -i the seconds between reports
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		String socketFile = DEFAULT_SOCKET_FILE;
+		int interval = 1;
+		for(int i = 0; i < args.length; i++) {
+			if("-s".equals(args[i]) && i + 1 < args.length) {
+				socketFile = args[++i];
+			} else if("-i".equals(args[i]) && i + 1 < args.length) {
+				interval = Integer.parseInt(args[++i]);
+			} else {
+				System.err.println("Usage: StandInStore [-s socket] [-i seconds]");
+				System.exit(1);
+			}
+		}
+
+		final StandInStore store = new StandInStore(socketFile);
+		store.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				store.close();
+			}
+		});
+		System.out.println("Listening on " + socketFile);
+
+		Receiver receiver = store.getReceiver();
+		long lastRecords = 0;
+		long lastBytes = 0;
+		long lastPayload = 0;
+		long lastTime = System.nanoTime();
+		while(true) {
+			Thread.sleep(interval * 1000L);
+			long now = System.nanoTime();
+			long records = receiver.getRecordCount();
+			long bytes = receiver.getByteCount();
+			long payload = store.getPayloadBytes();
+			double seconds = (now - lastTime) / 1e9;
+
+			System.out.println(String.format("%.0f records/s, %.2f MB/s payload, %.2f MB/s on the socket,"
+					+ " %d records, %d open connections, %d errors",
+					(records - lastRecords) / seconds,
+					(payload - lastPayload) / seconds / (1024 * 1024),
+					(bytes - lastBytes) / seconds / (1024 * 1024),
+					records, receiver.getOpenCount(), receiver.getErrorCount()));
+
+			lastRecords = records;
+			lastBytes = bytes;
+			lastPayload = payload;
+			lastTime = now;
+		}
+	}
+
+	/**
+	 * Counts the records of one connection into the store's totals.
+	 */
+	private class CountingHandler implements RecordHandler {
+		private MessageType messageType;
+
+		public void startRecord(ConnectionHeader header, FileDescriptor fd) throws Exception {
+			messageType = MessageType.fromType(header.getMessageType());
+			if(fd != null) {
+				new FileInputStream(fd).close();
+				payloadBytes.addAndGet(header.getDataLen());
+			}
+		}
+
+		public void payload(ByteBuffer data) {
+			payloadBytes.addAndGet(data.remaining());
+		}
+
+		public void metadata(ByteBuffer data) {
+			metadataBytes.addAndGet(data.remaining());
+		}
+
+		public void endRecord() {
+			recordsByType[messageType.ordinal()].incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.common;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+
+/**
+ * Tests for the ConnectionHeader wire encoding.
+ */
+public class TestConnectionHeader {
+
+	@Test
+	public void testEncodeWritesNativeOrderLayout() throws Exception {
+		ConnectionHeader ch = new ConnectionHeader((short) 1, MessageType.JALP_JOURNAL_MSG, 0x0102030405060708L, 42);
+		ByteBuffer buffer = ByteBuffer.allocate(ConnectionHeader.ENCODED_LENGTH + 4);
+		buffer.position(4);
+
+		ch.encode(buffer);
+
+		assertEquals(ByteOrder.nativeOrder(), buffer.order());
+		assertEquals(4 + ConnectionHeader.ENCODED_LENGTH, buffer.position());
+		buffer.position(4);
+		assertEquals((short) 1, buffer.getShort());
+		assertEquals((short) 3, buffer.getShort());
+		assertEquals(0x0102030405060708L, buffer.getLong());
+		assertEquals(42, buffer.getLong());
+	}
+
+	@Test
+	public void testDecodeReadsWhatEncodeWrote() throws Exception {
+		ConnectionHeader ch = new ConnectionHeader((short) 1, MessageType.JALP_JOURNAL_FD_MSG, 123456789012L, 77);
+		ByteBuffer buffer = ByteBuffer.allocate(ConnectionHeader.ENCODED_LENGTH);
+		ch.encode(buffer).flip();
+
+		ConnectionHeader decoded = ConnectionHeader.decode(buffer);
+		assertEquals(1, decoded.getProtocolVersion());
+		assertEquals(ch.getMessageType(), decoded.getMessageType());
+		assertEquals(123456789012L, decoded.getDataLen());
+		assertEquals(77, decoded.getMetaLen());
+		assertEquals(MessageType.JALP_JOURNAL_FD_MSG, MessageType.fromType(decoded.getMessageType()));
+	}
+
+	@Test(expected = JALException.class)
+	public void testDecodeThrowsExceptionWithUnknownType() throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(ConnectionHeader.ENCODED_LENGTH).order(ByteOrder.nativeOrder());
+		buffer.putShort((short) 1).putShort((short) 9).putLong(0).putLong(0).flip();
+		ConnectionHeader.decode(buffer);
+	}
+
+	@Test(expected = BufferOverflowException.class)
+	public void testEncodeThrowsExceptionWhenBufferTooSmall() throws Exception {
+		ConnectionHeader ch = new ConnectionHeader((short) 1, MessageType.JALP_LOG_MSG, 1, 2);
+		ch.encode(ByteBuffer.allocate(ConnectionHeader.ENCODED_LENGTH - 1));
+	}
+}
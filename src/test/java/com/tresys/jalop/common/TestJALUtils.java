@@ -24,29 +24,39 @@
 
 package com.tresys.jalop.common;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.List;
 
+import javax.xml.bind.DatatypeConverter;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
@@ -80,11 +90,20 @@ import com.etsy.net.UnixDomainSocketClient;
 import com.tresys.jalop.common.ConnectionHeader.MessageType;
 import com.tresys.jalop.common.JALUtils.DMType;
 import com.tresys.jalop.producer.ApplicationMetadataXML;
+import com.tresys.jalop.producer.CustomXML;
 import com.tresys.jalop.producer.LoggerXML;
+import com.tresys.jalop.producer.ConnectionPool;
 import com.tresys.jalop.producer.Producer;
+import com.tresys.jalop.producer.Request;
+import com.tresys.jalop.producer.SyslogXML;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.ApplicationMetadataType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.FileInfoType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.JournalMetadataType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerSeverityType;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.ObjectFactory;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.SyslogType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.ThreatLevelType;
 
 /**
  * Tests for common utility class.
@@ -129,6 +148,7 @@ public class TestJALUtils {
 				throw new DatatypeConfigurationException();
 			}
 		};
+		RecordIdentity.clear();
 
 		assertTrue(utils.getCurrentTime() == null);
 	}
@@ -323,15 +343,15 @@ public class TestJALUtils {
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, DMType.SHA256, "/path/to/socket");
 		assertNotNull(prod);
 
-		ApplicationMetadataXML xml = prod.getXml();
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
+		ApplicationMetadataXML xml = request.getXml();
 		assertNotNull(xml);
-		xml.prepareSend("Host Name", "Application Name");
 		doc = xml.marshal();
 		assertNotNull(doc);
 
-		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Producer.class);
+		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Request.class);
 		method.setAccessible(true);
-		method.invoke(utils, doc, prod);
+		method.invoke(utils, doc, request);
 
 		Element signature = (Element)doc.getElementsByTagName("Signature").item(0);
 		assertNotNull(signature);
@@ -378,15 +398,15 @@ public class TestJALUtils {
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), cert, DMType.SHA256, "/path/to/socket");
 		assertNotNull(prod);
 
-		ApplicationMetadataXML xml = prod.getXml();
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
+		ApplicationMetadataXML xml = request.getXml();
 		assertNotNull(xml);
-		xml.prepareSend("Host Name", "Application Name");
 		doc = xml.marshal();
 		assertNotNull(doc);
 
-		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Producer.class);
+		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Request.class);
 		method.setAccessible(true);
-		method.invoke(utils, doc, prod);
+		method.invoke(utils, doc, request);
 
 		Element x509Cert = (Element)doc.getElementsByTagName("X509Certificate").item(0);
 		assertNotNull(x509Cert);
@@ -409,15 +429,15 @@ public class TestJALUtils {
 		KeyPair kp = kpg.generateKeyPair();
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, DMType.SHA256, "/path/to/socket");
 
-		ApplicationMetadataXML xml = prod.getXml();
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
+		ApplicationMetadataXML xml = request.getXml();
 		assertNotNull(xml);
-		xml.prepareSend("Host Name", "Application Name");
 		doc = xml.marshal();
 
-		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Producer.class);
+		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Request.class);
 		method.setAccessible(true);
 		try{
-			method.invoke(utils, doc, prod);
+			method.invoke(utils, doc, request);
 		} catch(InvocationTargetException ite) {
 			throw (Exception)ite.getCause();
 		}
@@ -439,15 +459,15 @@ public class TestJALUtils {
 		KeyPair kp = kpg.generateKeyPair();
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, DMType.SHA256, "/path/to/socket");
 
-		ApplicationMetadataXML xml = prod.getXml();
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
+		ApplicationMetadataXML xml = request.getXml();
 		assertNotNull(xml);
-		xml.prepareSend("Host Name", "Application Name");
 		doc = xml.marshal();
 
-		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Producer.class);
+		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Request.class);
 		method.setAccessible(true);
 		try{
-			method.invoke(utils, doc, prod);
+			method.invoke(utils, doc, request);
 		} catch(InvocationTargetException ite) {
 			throw (Exception)ite.getCause();
 		}
@@ -485,15 +505,15 @@ public class TestJALUtils {
 		KeyPair kp = kpg.generateKeyPair();
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, DMType.SHA256, "/path/to/socket");
 
-		ApplicationMetadataXML xml = prod.getXml();
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
+		ApplicationMetadataXML xml = request.getXml();
 		assertNotNull(xml);
-		xml.prepareSend("Host Name", "Application Name");
 		doc = xml.marshal();
 
-		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Producer.class);
+		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Request.class);
 		method.setAccessible(true);
 		try{
-			method.invoke(utils, doc, prod);
+			method.invoke(utils, doc, request);
 		} catch(InvocationTargetException ite) {
 			throw (Exception)ite.getCause();
 		}
@@ -514,15 +534,15 @@ public class TestJALUtils {
 		KeyPair kp = kpg.generateKeyPair();
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, DMType.SHA256, "/path/to/socket");
 
-		ApplicationMetadataXML xml = prod.getXml();
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
+		ApplicationMetadataXML xml = request.getXml();
 		assertNotNull(xml);
-		xml.prepareSend("Host Name", "Application Name");
 		doc = xml.marshal();
 
-		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Producer.class);
+		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Request.class);
 		method.setAccessible(true);
 		try{
-			method.invoke(utils, doc, prod);
+			method.invoke(utils, doc, request);
 		} catch(InvocationTargetException ite) {
 			throw (Exception)ite.getCause();
 		}
@@ -543,15 +563,15 @@ public class TestJALUtils {
 		KeyPair kp = kpg.generateKeyPair();
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, DMType.SHA256, "/path/to/socket");
 
-		ApplicationMetadataXML xml = prod.getXml();
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
+		ApplicationMetadataXML xml = request.getXml();
 		assertNotNull(xml);
-		xml.prepareSend("Host Name", "Application Name");
 		doc = xml.marshal();
 
-		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Producer.class);
+		Method method = JALUtils.class.getDeclaredMethod("sign", Document.class, Request.class);
 		method.setAccessible(true);
 		try{
-			method.invoke(utils, doc, prod);
+			method.invoke(utils, doc, request);
 		} catch(InvocationTargetException ite) {
 			throw (Exception)ite.getCause();
 		}
@@ -601,7 +621,7 @@ public class TestJALUtils {
 
 		new MockUp<SendUtils>() {
 			@Mock
-			void createAndSendHeaders(MessageType messageType, long dataLen, long metaLen, InputStream is, File file, byte[] meta, UnixDomainSocketClient socket) throws Exception {}
+			void createAndSendHeaders(MessageType messageType, long dataLen, long metaLen, InputStream is, File file, FileDescriptor fileDescriptor, byte[] meta, UnixDomainSocketClient socket) throws Exception {}
 		};
 
 		try {
@@ -622,7 +642,7 @@ public class TestJALUtils {
 
 		new MockUp<SendUtils>() {
 			@Mock
-			void createAndSendHeaders(MessageType messageType, long dataLen, long metaLen, InputStream is, File file, byte[] meta, UnixDomainSocketClient socket) throws Exception {}
+			void createAndSendHeaders(MessageType messageType, long dataLen, long metaLen, InputStream is, File file, FileDescriptor fileDescriptor, byte[] meta, UnixDomainSocketClient socket) throws Exception {}
 		};
 
 		try {
@@ -647,7 +667,7 @@ public class TestJALUtils {
 
 		new MockUp<SendUtils>() {
 			@Mock
-			void createAndSendHeaders(MessageType messageType, long dataLen, long metaLen, InputStream is, File file, byte[] meta, UnixDomainSocketClient socket) throws Exception {}
+			void createAndSendHeaders(MessageType messageType, long dataLen, long metaLen, InputStream is, File file, FileDescriptor fileDescriptor, byte[] meta, UnixDomainSocketClient socket) throws Exception {}
 		};
 
 		try {
@@ -686,15 +706,13 @@ public class TestJALUtils {
 		KeyPair kp = kpg.generateKeyPair();
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, DMType.SHA256, "/path/to/socket");
 
-		Field messageType = Producer.class.getDeclaredField("messageType");
-		messageType.setAccessible(true);
-		messageType.set(prod, MessageType.JALP_LOG_MSG);
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
 
 		InputStream is = new ByteArrayInputStream("String buffer".getBytes());
 		try {
-			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Producer.class, InputStream.class});
+			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Request.class, InputStream.class});
 			method.setAccessible(true);
-			method.invoke(null, new Object[]{prod, is});
+			method.invoke(null, new Object[]{request, is});
 		} catch (InvocationTargetException e) {
 			throw((Exception)e.getCause());
 		}
@@ -706,15 +724,13 @@ public class TestJALUtils {
 		KeyPair kp = kpg.generateKeyPair();
 		Producer prod = new Producer(null, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, DMType.SHA256, "/path/to/socket");
 
-		Field messageType = Producer.class.getDeclaredField("messageType");
-		messageType.setAccessible(true);
-		messageType.set(prod, MessageType.JALP_LOG_MSG);
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
 
 		InputStream is = new ByteArrayInputStream("String buffer".getBytes());
 		try {
-			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Producer.class, InputStream.class});
+			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Request.class, InputStream.class});
 			method.setAccessible(true);
-			method.invoke(null, new Object[]{prod, is});
+			method.invoke(null, new Object[]{request, is});
 		} catch (InvocationTargetException e) {
 			throw((Exception)e.getCause());
 		}
@@ -726,15 +742,13 @@ public class TestJALUtils {
 		KeyPair kp = kpg.generateKeyPair();
 		Producer prod = new Producer(null, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, DMType.SHA256, "/path/to/socket");
 
-		Field messageType = Producer.class.getDeclaredField("messageType");
-		messageType.setAccessible(true);
-		messageType.set(prod, MessageType.JALP_AUDIT_MSG);
+		Request request = prod.createRequest(MessageType.JALP_AUDIT_MSG);
 
 		InputStream is = new ByteArrayInputStream("String buffer".getBytes());
 		try {
-			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Producer.class, InputStream.class});
+			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Request.class, InputStream.class});
 			method.setAccessible(true);
-			method.invoke(null, new Object[]{prod, is});
+			method.invoke(null, new Object[]{request, is});
 		} catch (InvocationTargetException e) {
 			throw((Exception)e.getCause());
 		}
@@ -748,15 +762,13 @@ public class TestJALUtils {
 		KeyPair kp = kpg.generateKeyPair();
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, DMType.SHA256, "/path/to/socket");
 
-		Field messageType = Producer.class.getDeclaredField("messageType");
-		messageType.setAccessible(true);
-		messageType.set(prod, MessageType.JALP_LOG_MSG);
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
 
 		InputStream is = new ByteArrayInputStream("String buffer".getBytes());
 		try {
-			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Producer.class, InputStream.class});
+			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Request.class, InputStream.class});
 			method.setAccessible(true);
-			Document doc = (Document) method.invoke(null, new Object[]{prod, is});
+			Document doc = (Document) method.invoke(null, new Object[]{request, is});
 			NodeList manifestList = doc.getElementsByTagName("Manifest");
 			assertTrue(manifestList.getLength() > 0);
 			Node manifest = manifestList.item(0);
@@ -774,14 +786,12 @@ public class TestJALUtils {
 		KeyPair kp = kpg.generateKeyPair();
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, null, "/path/to/socket");
 
-		Field messageType = Producer.class.getDeclaredField("messageType");
-		messageType.setAccessible(true);
-		messageType.set(prod, MessageType.JALP_LOG_MSG);
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
 
 		try {
-			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Producer.class, InputStream.class});
+			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Request.class, InputStream.class});
 			method.setAccessible(true);
-			Document doc = (Document) method.invoke(null, new Object[]{prod, null});
+			Document doc = (Document) method.invoke(null, new Object[]{request, null});
 			NodeList manifest = doc.getElementsByTagName("Manifest");
 			assertTrue(manifest.getLength() < 1);
 		} catch (InvocationTargetException e) {
@@ -797,14 +807,12 @@ public class TestJALUtils {
 		KeyPair kp = kpg.generateKeyPair();
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, DMType.SHA256, "/path/to/socket");
 
-		Field messageType = Producer.class.getDeclaredField("messageType");
-		messageType.setAccessible(true);
-		messageType.set(prod, MessageType.JALP_LOG_MSG);
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
 
 		try {
-			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Producer.class, InputStream.class});
+			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Request.class, InputStream.class});
 			method.setAccessible(true);
-			Document doc = (Document) method.invoke(null, new Object[]{prod, null});
+			Document doc = (Document) method.invoke(null, new Object[]{request, null});
 			NodeList signature = doc.getElementsByTagName("Signature");
 			assertTrue(signature.getLength() > 0);
 		} catch (InvocationTargetException e) {
@@ -817,14 +825,12 @@ public class TestJALUtils {
 		LoggerXML loggerXml = new LoggerXML(logger);
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", null, null, null, DMType.SHA256, "/path/to/socket");
 
-		Field messageType = Producer.class.getDeclaredField("messageType");
-		messageType.setAccessible(true);
-		messageType.set(prod, MessageType.JALP_LOG_MSG);
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
 
 		try {
-			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Producer.class, InputStream.class});
+			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Request.class, InputStream.class});
 			method.setAccessible(true);
-			Document doc = (Document) method.invoke(null, new Object[]{prod, null});
+			Document doc = (Document) method.invoke(null, new Object[]{request, null});
 			NodeList signature = doc.getElementsByTagName("Signature");
 			assertTrue(signature.getLength() < 1);
 		} catch (InvocationTargetException e) {
@@ -835,7 +841,7 @@ public class TestJALUtils {
 	@Test(expected = JALException.class)
 	public void testProcessXMLThrowsExceptionWithNullProducer() throws Exception {
 		try {
-			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Producer.class, InputStream.class});
+			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Request.class, InputStream.class});
 			method.setAccessible(true);
 			method.invoke(null, new Object[]{null, null});
 		} catch (InvocationTargetException e) {
@@ -846,10 +852,11 @@ public class TestJALUtils {
 	@Test(expected = JALException.class)
 	public void testProcessXMLThrowsExceptionWithNullXML() throws Exception {
 		Producer prod = new Producer(null, "hostname", "app_name", null, null, null, DMType.SHA256, "/path/to/socket");
+		Request request = prod.createRequest(MessageType.JALP_AUDIT_MSG);
 		try {
-			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Producer.class, InputStream.class});
+			Method method = JALUtils.class.getDeclaredMethod("processXML", new Class[]{Request.class, InputStream.class});
 			method.setAccessible(true);
-			method.invoke(null, new Object[]{prod, null});
+			method.invoke(null, new Object[]{request, null});
 		} catch (InvocationTargetException e) {
 			throw((Exception)e.getCause());
 		}
@@ -861,9 +868,7 @@ public class TestJALUtils {
 		LoggerXML loggerXml = new LoggerXML(logger);
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", null, null, null, DMType.SHA256, "/path/to/socket");
 
-		Field messageType = Producer.class.getDeclaredField("messageType");
-		messageType.setAccessible(true);
-		messageType.set(prod, MessageType.JALP_LOG_MSG);
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
 
 		new MockUp<JALUtils>() {
 			@Mock
@@ -871,7 +876,7 @@ public class TestJALUtils {
 		};
 
 		File file = new File("test-input/testBuffer");
-		JALUtils.processSend(prod, file);
+		JALUtils.processSend(request, file);
 	}
 
 	@Test
@@ -879,9 +884,7 @@ public class TestJALUtils {
 		LoggerXML loggerXml = new LoggerXML(logger);
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", null, null, null, DMType.SHA256, "/path/to/socket");
 
-		Field messageType = Producer.class.getDeclaredField("messageType");
-		messageType.setAccessible(true);
-		messageType.set(prod, MessageType.JALP_JOURNAL_FD_MSG);
+		Request request = prod.createRequest(MessageType.JALP_JOURNAL_FD_MSG);
 
 		new MockUp<JALUtils>() {
 			@Mock
@@ -889,7 +892,7 @@ public class TestJALUtils {
 		};
 
 		File file = new File("test-input/testBuffer");
-		JALUtils.processSend(prod, file);
+		JALUtils.processSend(request, file);
 	}
 
 	@Test
@@ -897,16 +900,14 @@ public class TestJALUtils {
 		LoggerXML loggerXml = new LoggerXML(logger);
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", null, null, null, DMType.SHA256, "/path/to/socket");
 
-		Field messageType = Producer.class.getDeclaredField("messageType");
-		messageType.setAccessible(true);
-		messageType.set(prod, MessageType.JALP_LOG_MSG);
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
 
 		new MockUp<JALUtils>() {
 			@Mock
 			void send(Document doc, UnixDomainSocketClient socket, InputStream is, File file, long bufferLength, MessageType messageType) throws Exception {}
 		};
 
-		JALUtils.processSend(prod, "String buffer");
+		JALUtils.processSend(request, "String buffer");
 	}
 
 	@Test
@@ -914,16 +915,303 @@ public class TestJALUtils {
 		LoggerXML loggerXml = new LoggerXML(logger);
 		Producer prod = new Producer(loggerXml, "hostname", "app_name", null, null, null, DMType.SHA256, "/path/to/socket");
 
-		Field messageType = Producer.class.getDeclaredField("messageType");
-		messageType.setAccessible(true);
-		messageType.set(prod, MessageType.JALP_LOG_MSG);
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
 
 		new MockUp<JALUtils>() {
 			@Mock
 			void send(Document doc, UnixDomainSocketClient socket, InputStream is, File file, long bufferLength, MessageType messageType) throws Exception {}
 		};
 
-		JALUtils.processSend(prod, (String)null);
+		JALUtils.processSend(request, (String)null);
 	}
 	*/
+
+	@Test
+	public void testSinglePassSendDigestsPayloadWhileSending() throws Exception {
+		LoggerXML loggerXml = new LoggerXML(logger);
+		Producer prod = new Producer(loggerXml, "hostname", "app_name", null, null, null, DMType.SHA256, "/path/to/socket");
+		prod.setSinglePassDigest(true);
+
+		Request request = prod.createRequest(MessageType.JALP_JOURNAL_MSG);
+
+		final byte[][] sent = new byte[1][];
+		new MockUp<ConnectionPool.Lane>() {
+			@Mock
+			UnixDomainSocketClient getSocket() {
+				return null;
+			}
+		};
+		new MockUp<SendUtils>() {
+			@Mock
+			void createAndSendHeaders(MessageType messageType, long dataLen, long metaLen, InputStream is,
+					SendUtils.MetadataSource metaSource, UnixDomainSocketClient socket) throws Exception {
+				byte[] buffer = new byte[SendUtils.BUFFER_SIZE];
+				while(is.read(buffer, 0, buffer.length) > 0) {
+					// drain the payload like a send would
+				}
+				sent[0] = metaSource.getMetadata();
+				assertEquals(metaLen, sent[0].length);
+			}
+		};
+
+		File file = new File("test-input/evenBuffer");
+		JALUtils.processSend(request, file);
+
+		String meta = new String(sent[0]);
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(readFile(file));
+		assertTrue(meta.contains("<DigestValue>" + DatatypeConverter.printBase64Binary(digest) + "</DigestValue>"));
+	}
+
+	@Test
+	public void testSinglePassSendWithSigningLearnsSignatureLength() throws Exception {
+		LoggerXML loggerXml = new LoggerXML(logger);
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		KeyPair kp = kpg.generateKeyPair();
+		Producer prod = new Producer(loggerXml, "hostname", "app_name", kp.getPrivate(), kp.getPublic(), null, DMType.SHA256, "/path/to/socket");
+		prod.setSinglePassDigest(true);
+
+		Request request = prod.createRequest(MessageType.JALP_AUDIT_MSG);
+
+		final int[] twoPass = new int[1];
+		final int[] singlePass = new int[1];
+		new MockUp<ConnectionPool.Lane>() {
+			@Mock
+			UnixDomainSocketClient getSocket() {
+				return null;
+			}
+		};
+		new MockUp<SendUtils>() {
+			@Mock
+			void createAndSendHeaders(MessageType messageType, long dataLen, long metaLen, InputStream is,
+					File file, FileDescriptor fileDescriptor, byte[] meta, UnixDomainSocketClient socket) throws Exception {
+				assertEquals(metaLen, meta.length);
+				twoPass[0]++;
+			}
+
+			@Mock
+			void createAndSendHeaders(MessageType messageType, long dataLen, long metaLen, InputStream is,
+					SendUtils.MetadataSource metaSource, UnixDomainSocketClient socket) throws Exception {
+				byte[] buffer = new byte[SendUtils.BUFFER_SIZE];
+				while(is.read(buffer, 0, buffer.length) > 0) {
+					// drain the payload like a send would
+				}
+				assertEquals(metaLen, metaSource.getMetadata().length);
+				singlePass[0]++;
+			}
+		};
+
+		File file = new File("test-input/testBuffer");
+		JALUtils.processSend(request, file);
+		JALUtils.processSend(request, file);
+		JALUtils.processSend(request, file);
+		assertEquals(1, twoPass[0]);
+		assertEquals(2, singlePass[0]);
+	}
+
+	@Test
+	public void testProcessSendWithStringSendsByteLength() throws Exception {
+		LoggerXML loggerXml = new LoggerXML(logger);
+		Producer prod = new Producer(loggerXml, "hostname", "app_name", null, null, null, DMType.SHA256, "/path/to/socket");
+
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
+
+		final String buffer = "caf\u00e9 buffer";
+		new MockUp<ConnectionPool.Lane>() {
+			@Mock
+			UnixDomainSocketClient getSocket() {
+				return null;
+			}
+		};
+		new MockUp<JALUtils>() {
+			@Mock
+			void send(byte[] appMetaBytes, UnixDomainSocketClient socket, InputStream is, File file, FileDescriptor fileDescriptor, long bufferLength, MessageType messageType) throws Exception {
+				assertEquals(buffer.getBytes().length, bufferLength);
+			}
+		};
+
+		JALUtils.processSend(request, buffer);
+	}
+
+	@Test
+	public void testProcessSendWithLargeJournalBufferSendsMemfd() throws Exception {
+		Producer prod = new Producer(new LoggerXML(logger), "hostname", "app_name", null, null, null, DMType.SHA256, "/path/to/socket");
+		prod.setMemfdThreshold(8);
+
+		final FileDescriptor memfd = new FileDescriptor();
+		final List<MessageType> sent = new ArrayList<MessageType>();
+		final List<FileDescriptor> passed = new ArrayList<FileDescriptor>();
+		new MockUp<UnixDomainSocket>() {
+			@Mock
+			FileDescriptor createSealedMemfd(String name, byte[] data, int offset, int length) {
+				assertEquals("a long journal buffer".length(), length);
+				return memfd;
+			}
+		};
+		new MockUp<JALUtils>() {
+			@Mock
+			void sendRecord(Request request, byte[] appMetaBytes, InputStream is, File file, FileDescriptor fileDescriptor, long bufferLength) {
+				sent.add(request.getMessageType());
+				passed.add(fileDescriptor);
+				if(fileDescriptor == null) {
+					assertNotNull(is);
+				}
+			}
+		};
+
+		JALUtils.processSend(prod.createRequest(MessageType.JALP_JOURNAL_MSG), "a long journal buffer");
+		JALUtils.processSend(prod.createRequest(MessageType.JALP_JOURNAL_MSG), "short");
+		JALUtils.processSend(prod.createRequest(MessageType.JALP_LOG_MSG), "a long log buffer");
+
+		assertEquals(Arrays.asList(MessageType.JALP_JOURNAL_FD_MSG, MessageType.JALP_JOURNAL_MSG, MessageType.JALP_LOG_MSG), sent);
+		assertSame(memfd, passed.get(0));
+		assertNull(passed.get(1));
+		assertNull(passed.get(2));
+	}
+
+	@Test
+	public void testProcessSendWithoutMemfdSendsJournalOnSocket() throws Exception {
+		Producer prod = new Producer(new LoggerXML(logger), "hostname", "app_name", null, null, null, DMType.SHA256, "/path/to/socket");
+		prod.setMemfdThreshold(8);
+
+		final List<MessageType> sent = new ArrayList<MessageType>();
+		new MockUp<UnixDomainSocket>() {
+			@Mock
+			FileDescriptor createSealedMemfd(String name, byte[] data, int offset, int length) {
+				return null;
+			}
+		};
+		new MockUp<JALUtils>() {
+			@Mock
+			void sendRecord(Request request, byte[] appMetaBytes, InputStream is, File file, FileDescriptor fileDescriptor, long bufferLength) {
+				sent.add(request.getMessageType());
+				assertNull(fileDescriptor);
+			}
+		};
+
+		JALUtils.processSend(prod.createRequest(MessageType.JALP_JOURNAL_MSG), "a long journal buffer");
+
+		assertEquals(Arrays.asList(MessageType.JALP_JOURNAL_MSG), sent);
+	}
+
+	@Test
+	public void testWriteMetadataMatchesDocumentForLogger() throws Exception {
+		logger.setLoggerName("LOG4J");
+		logger.setMessage("a <message> & \"quotes\"\t\r\n\u0001\u0085\u00e9\ud83d\ude00");
+		LoggerSeverityType severity = new LoggerSeverityType();
+		severity.setName("IN\"FO\t\n\u0085");
+		severity.setValue(BigInteger.valueOf(20000));
+		logger.setSeverity(severity);
+		LoggerXML loggerXml = new LoggerXML(logger);
+
+		assertWriteMetadataMatchesDocument(loggerXml, DMType.SHA256, MessageType.JALP_LOG_MSG);
+		assertWriteMetadataMatchesDocument(loggerXml, DMType.SHA384, MessageType.JALP_AUDIT_MSG);
+		assertWriteMetadataMatchesDocument(loggerXml, null, MessageType.JALP_LOG_MSG);
+	}
+
+	@Test
+	public void testWriteMetadataMatchesDocumentForSyslogWithJournalMetadata() throws Exception {
+		SyslogType syslog = new SyslogType();
+		syslog.setEntry("entry");
+		syslog.setFacility(1);
+		syslog.setSeverity(2);
+		syslog.setMessageID("message id");
+		syslog.setProcessID(BigInteger.TEN);
+		SyslogXML syslogXml = new SyslogXML(syslog);
+
+		JournalMetadataType jmt = new JournalMetadataType();
+		FileInfoType fileInfo = new FileInfoType();
+		fileInfo.setFileName("file \"name\"");
+		fileInfo.setSize(BigInteger.TEN);
+		fileInfo.setOriginalSize(BigInteger.ONE);
+		fileInfo.setThreatLevel(ThreatLevelType.SAFE);
+		jmt.setFileInfo(fileInfo);
+		syslogXml.setJournalMetadata(jmt);
+
+		assertWriteMetadataMatchesDocument(syslogXml, DMType.SHA512, MessageType.JALP_JOURNAL_MSG);
+	}
+
+	@Test
+	public void testWriteMetadataMatchesDocumentForCustom() throws Exception {
+		CustomXML customXml = new CustomXML("custom & <text>");
+
+		assertWriteMetadataMatchesDocument(customXml, DMType.SHA256, MessageType.JALP_AUDIT_MSG);
+	}
+
+	@Test
+	public void testProcessSendWithoutSigningStreamsMetadata() throws Exception {
+		LoggerXML loggerXml = new LoggerXML(logger);
+		Producer prod = new Producer(loggerXml, "hostname", "app_name", null, null, null, DMType.SHA256, "/path/to/socket");
+
+		Request request = prod.createRequest(MessageType.JALP_LOG_MSG);
+
+		final byte[][] sent = new byte[1][];
+		new MockUp<ConnectionPool.Lane>() {
+			@Mock
+			UnixDomainSocketClient getSocket() {
+				return null;
+			}
+		};
+		new MockUp<ApplicationMetadataXML>() {
+			@Mock
+			Document marshal() throws Exception {
+				throw new AssertionError("unsigned metadata should not be built as a document");
+			}
+		};
+		new MockUp<SendUtils>() {
+			@Mock
+			void createAndSendHeaders(MessageType messageType, long dataLen, long metaLen, InputStream is,
+					File file, FileDescriptor fileDescriptor, byte[] meta, UnixDomainSocketClient socket) throws Exception {
+				assertEquals(metaLen, meta.length);
+				sent[0] = meta;
+			}
+		};
+
+		JALUtils.processSend(request, "String buffer");
+
+		String meta = new String(sent[0], "UTF-8");
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest("String buffer".getBytes());
+		assertTrue(meta.startsWith("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?><ApplicationMetadata "));
+		assertTrue(meta.endsWith("<DigestValue>" + DatatypeConverter.printBase64Binary(digest) + "</DigestValue></Reference></Manifest></ApplicationMetadata>"));
+	}
+
+	/**
+	 * Checks that writeMetadata produces the same bytes as marshaling to a document,
+	 * adding the manifest and transforming the document.
+	 */
+	private static void assertWriteMetadataMatchesDocument(ApplicationMetadataXML xml, DMType dmType, MessageType messageType) throws Exception {
+		xml.prepareSend("hostname", "app_name");
+		byte[] digest = null;
+		if(dmType != null) {
+			digest = MessageDigest.getInstance(dmType == DMType.SHA256 ? "SHA-256" : dmType == DMType.SHA384 ? "SHA-384" : "SHA-512")
+					.digest("payload".getBytes("UTF-8"));
+		}
+
+		Document document = xml.marshal();
+		if(digest != null) {
+			Method createManifest = JALUtils.class.getDeclaredMethod("createManifest", new Class[]{Document.class, DMType.class, byte[].class, MessageType.class});
+			createManifest.setAccessible(true);
+			createManifest.invoke(null, document, dmType, digest, messageType);
+		}
+		Method toBytes = JALUtils.class.getDeclaredMethod("toBytes", new Class[]{Document.class});
+		toBytes.setAccessible(true);
+		byte[] expected = (byte[]) toBytes.invoke(null, document);
+
+		Method writeMetadata = JALUtils.class.getDeclaredMethod("writeMetadata", new Class[]{ApplicationMetadataXML.class, DMType.class, byte[].class, MessageType.class});
+		writeMetadata.setAccessible(true);
+		byte[] actual = (byte[]) writeMetadata.invoke(null, xml, dmType, digest, messageType);
+
+		assertEquals(new String(expected, "UTF-8"), new String(actual, "UTF-8"));
+		assertArrayEquals(expected, actual);
+	}
+
+	private static byte[] readFile(File file) throws Exception {
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		try {
+			dis.readFully(bytes);
+		} finally {
+			dis.close();
+		}
+		return bytes;
+	}
 }
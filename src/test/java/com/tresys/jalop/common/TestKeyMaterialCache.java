@@ -0,0 +1,108 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the key and certificate cache.
+ */
+public class TestKeyMaterialCache {
+
+	@Before
+	public void setup() {
+		KeyMaterialCache.clear();
+	}
+
+	@Test
+	public void testGetKeysReturnsSameInstance() throws Exception {
+		KeyPair kp = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+		File privateFile = write(kp.getPrivate().getEncoded());
+		File publicFile = write(kp.getPublic().getEncoded());
+
+		PrivateKey privateKey = KeyMaterialCache.getPrivateKey(privateFile.getPath());
+		PublicKey publicKey = KeyMaterialCache.getPublicKey(publicFile.getPath());
+
+		assertArrayEquals(kp.getPrivate().getEncoded(), privateKey.getEncoded());
+		assertArrayEquals(kp.getPublic().getEncoded(), publicKey.getEncoded());
+		assertSame(privateKey, KeyMaterialCache.getPrivateKey(privateFile.getPath()));
+		assertSame(publicKey, KeyMaterialCache.getPublicKey(publicFile.getAbsolutePath()));
+	}
+
+	@Test
+	public void testGetPrivateKeyReloadsChangedFile() throws Exception {
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		KeyPair first = kpg.generateKeyPair();
+		KeyPair second = kpg.generateKeyPair();
+		File privateFile = write(first.getPrivate().getEncoded());
+
+		PrivateKey before = KeyMaterialCache.getPrivateKey(privateFile.getPath());
+
+		FileOutputStream out = new FileOutputStream(privateFile);
+		out.write(second.getPrivate().getEncoded());
+		out.close();
+		privateFile.setLastModified(privateFile.lastModified() - 10000);
+
+		PrivateKey after = KeyMaterialCache.getPrivateKey(privateFile.getPath());
+		assertNotSame(before, after);
+		assertArrayEquals(second.getPrivate().getEncoded(), after.getEncoded());
+	}
+
+	@Test
+	public void testGetCertificateReturnsSameInstance() throws Exception {
+		X509Certificate cert = KeyMaterialCache.getCertificate("test-input/cert");
+		assertNotNull(cert);
+		assertSame(cert, KeyMaterialCache.getCertificate("test-input/cert"));
+	}
+
+	@Test(expected = FileNotFoundException.class)
+	public void testGetPublicKeyThrowsExceptionWithMissingFile() throws Exception {
+		KeyMaterialCache.getPublicKey("test-input/doesNotExist");
+	}
+
+	private static File write(byte[] bytes) throws Exception {
+		File file = File.createTempFile("jalop-test", ".der");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(bytes);
+		out.close();
+		return file;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the MetadataWriter class.
+ */
+public class TestMetadataWriter {
+
+	private static final String LS = System.getProperty("line.separator");
+	private MetadataWriter writer;
+
+	@Before
+	public void setup() {
+		writer = new MetadataWriter();
+	}
+
+	private String output() throws Exception {
+		return new String(writer.toByteArray(), "UTF-8");
+	}
+
+	@Test
+	public void testStartDocumentWritesDeclaration() throws Exception {
+		writer.writeStartDocument();
+		assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>", output());
+	}
+
+	@Test(expected = XMLStreamException.class)
+	public void testStartDocumentThrowsExceptionWithOtherEncoding() throws Exception {
+		writer.writeStartDocument("ISO-8859-1", "1.0");
+	}
+
+	@Test
+	public void testNamespacesComeFirstAndAttributesAreSorted() throws Exception {
+		writer.writeStartElement("", "Root", "urn:a");
+		writer.writeAttribute("b", "2");
+		writer.writeAttribute("A", "1");
+		writer.writeNamespace("ns2", "urn:b");
+		writer.writeDefaultNamespace("urn:a");
+		writer.writeEndElement();
+		assertEquals("<Root xmlns=\"urn:a\" xmlns:ns2=\"urn:b\" A=\"1\" b=\"2\"/>", output());
+	}
+
+	@Test
+	public void testEmptyElementClosesBeforeParentEnds() throws Exception {
+		writer.writeStartElement("a");
+		writer.writeEmptyElement("b");
+		writer.writeAttribute("x", "y");
+		writer.writeEndElement();
+		assertEquals("<a><b x=\"y\"/></a>", output());
+	}
+
+	@Test
+	public void testEmptyTextKeepsElementEmpty() throws Exception {
+		writer.writeStartElement("a");
+		writer.writeCharacters("");
+		writer.writeEndElement();
+		assertEquals("<a/>", output());
+	}
+
+	@Test
+	public void testTextIsEscapedLikeTransformer() throws Exception {
+		writer.writeStartElement("a");
+		writer.writeCharacters("<&>\"'\t\r\n\u0001\u0085\u00e9\ud83d\ude00");
+		writer.writeEndElement();
+		assertEquals("<a>&lt;&amp;&gt;\"'\t&#13;" + LS + "&#1;&#133;\u00e9&#128512;</a>", output());
+	}
+
+	@Test
+	public void testAttributeIsEscapedLikeTransformer() throws Exception {
+		writer.writeStartElement("a");
+		writer.writeAttribute("v", "<&>\"'\t\r\n\u0001\u0085\u00e9\ud83d\ude00");
+		writer.writeEndElement();
+		assertEquals("<a v=\"&lt;&amp;&gt;&quot;'&#9;&#13;&#10;&#1;\u0085\u00e9&#128512;\"/>", output());
+	}
+
+	@Test(expected = XMLStreamException.class)
+	public void testUnpairedSurrogateThrowsException() throws Exception {
+		writer.writeStartElement("a");
+		writer.writeCharacters("\ud800x");
+	}
+
+	@Test
+	public void testHeldDocumentElementEndsWithDocument() throws Exception {
+		writer.setHoldDocumentElement(true);
+		writer.writeStartElement("root");
+		writer.writeStartElement("a");
+		writer.writeEndElement();
+		writer.writeEndElement();
+		writer.writeStartElement("b");
+		writer.writeEndElement();
+		writer.writeEndDocument();
+		assertEquals("<root><a/><b/></root>", output());
+	}
+
+	@Test
+	public void testNamespaceScopeEndsWithElement() throws Exception {
+		writer.writeStartElement("", "a", "urn:a");
+		writer.writeNamespace("p", "urn:p");
+		assertEquals("p", writer.getPrefix("urn:p"));
+		writer.writeEndElement();
+		assertEquals(null, writer.getPrefix("urn:p"));
+	}
+
+	@Test
+	public void testResetEmptiesBuffer() throws Exception {
+		writer.writeStartElement("a");
+		writer.writeEndElement();
+		writer.reset();
+		assertEquals(0, writer.size());
+		writer.writeStartElement("b");
+		writer.writeEndElement();
+		assertEquals("<b/>", output());
+	}
+
+	@Test
+	public void testGetMetadataWriterIsPerThreadAndReset() throws Exception {
+		MetadataWriter cached = XMLCache.getMetadataWriter();
+		cached.writeStartElement("a");
+		assertSame(cached, XMLCache.getMetadataWriter());
+		assertEquals(0, cached.size());
+	}
+}
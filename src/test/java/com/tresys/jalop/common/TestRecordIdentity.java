@@ -0,0 +1,117 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import mockit.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for the record timestamps and JIDs.
+ */
+public class TestRecordIdentity {
+
+	@After
+	public void teardown() {
+		RecordIdentity.clear();
+	}
+
+	@Test
+	public void testTimestampsInSameMillisecondAreCopies() throws Exception {
+		long millis = 1349366400123L;
+		XMLGregorianCalendar first = RecordIdentity.timestamp(millis);
+		XMLGregorianCalendar second = RecordIdentity.timestamp(millis);
+
+		assertNotSame(first, second);
+		assertEquals(first, second);
+		assertEquals(millis, first.toGregorianCalendar().getTimeInMillis());
+
+		first.setYear(1999);
+		assertEquals(millis, RecordIdentity.timestamp(millis).toGregorianCalendar().getTimeInMillis());
+	}
+
+	@Test
+	public void testTimestampFollowsTheClock() throws Exception {
+		XMLGregorianCalendar first = RecordIdentity.timestamp(1000L);
+		XMLGregorianCalendar second = RecordIdentity.timestamp(2000L);
+		assertEquals(1000L, second.toGregorianCalendar().getTimeInMillis() - first.toGregorianCalendar().getTimeInMillis());
+	}
+
+	@Test
+	public void testDatatypeFactoryIsLookedUpOnce() throws Exception {
+		RecordIdentity.clear();
+		RecordIdentity.now();
+		new MockUp<DatatypeFactory>() {
+			@Mock
+			DatatypeFactory newInstance() throws DatatypeConfigurationException {
+				throw new DatatypeConfigurationException();
+			}
+		};
+		assertTrue(RecordIdentity.timestamp(5000L) != null);
+	}
+
+	@Test
+	public void testJIDsAreRandomUUIDs() throws Exception {
+		final Set<String> jids = Collections.synchronizedSet(new HashSet<String>());
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					for(int j = 0; j < 500; j++) {
+						jids.add(RecordIdentity.newJID());
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads) {
+			t.join();
+		}
+
+		assertEquals(2000, jids.size());
+		for(String jid : jids) {
+			assertTrue(jid.startsWith("UUID-"));
+			UUID uuid = UUID.fromString(jid.substring(5));
+			assertEquals(4, uuid.version());
+			assertEquals(2, uuid.variant());
+		}
+		assertFalse(jids.contains(RecordIdentity.newJID()));
+	}
+}
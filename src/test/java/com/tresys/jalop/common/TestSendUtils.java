@@ -24,16 +24,28 @@
 
 package com.tresys.jalop.common;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.util.Arrays;
 
 import mockit.*;
@@ -41,7 +53,12 @@ import mockit.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.etsy.net.JUDS;
 import com.etsy.net.MessageHeader;
+import com.etsy.net.UnixDomainSocket;
+import com.etsy.net.UnixDomainSocket.UnixDomainSocketOutputStream;
+import com.etsy.net.UnixDomainSocketClient;
+import com.etsy.net.UnixDomainSocketServer;
 import com.tresys.jalop.common.ConnectionHeader.MessageType;
 
 /**
@@ -161,32 +178,52 @@ public class TestSendUtils {
 	@Test
 	public void testCreateHeaderSuccess() throws Exception {
 		ConnectionHeader ch = new ConnectionHeader((short) 1, MessageType.JALP_AUDIT_MSG, 100, 200);
-		Method method = SendUtils.class.getDeclaredMethod("createHeader", ConnectionHeader.class, File.class);
+		Method method = SendUtils.class.getDeclaredMethod("createHeader", ConnectionHeader.class, File.class, FileDescriptor.class);
 		method.setAccessible(true);
-		MessageHeader mh = (MessageHeader) method.invoke(utils, ch, null);
-		assertEquals(mh.getIov()[0], (short)1);
-		assertEquals(mh.getIov()[1], (short)2);
-		assertEquals(mh.getIov()[2], (long) 100);
-		assertEquals(mh.getIov()[3], (long) 200);
+		MessageHeader mh = (MessageHeader) method.invoke(utils, ch, null, null);
+		assertEquals(1, mh.getBuffers().length);
+		ByteBuffer header = mh.getBuffers()[0].duplicate().order(ByteOrder.nativeOrder());
+		assertTrue(header.isDirect());
+		assertEquals(ConnectionHeader.ENCODED_LENGTH, header.remaining());
+		assertEquals((short) 1, header.getShort());
+		assertEquals((short) 2, header.getShort());
+		assertEquals(100, header.getLong());
+		assertEquals(200, header.getLong());
 	}
 
 	@Test
 	public void testCreateHeaderWithFileSuccess() throws Exception {
 		ConnectionHeader ch = new ConnectionHeader((short) 1, MessageType.JALP_AUDIT_MSG, 100, 200);
 		File file = new File("test-input/testBuffer");
-		Method method = SendUtils.class.getDeclaredMethod("createHeader", ConnectionHeader.class, File.class);
+		Method method = SendUtils.class.getDeclaredMethod("createHeader", ConnectionHeader.class, File.class, FileDescriptor.class);
 		method.setAccessible(true);
-		MessageHeader mh = (MessageHeader) method.invoke(utils, ch, file);
+		MessageHeader mh = (MessageHeader) method.invoke(utils, ch, file, null);
 		assertEquals(mh.getFilePath(), file.getAbsolutePath());
 	}
 
+	@Test
+	public void testCreateHeaderWithFileDescriptorSuccess() throws Exception {
+		ConnectionHeader ch = new ConnectionHeader((short) 1, MessageType.JALP_JOURNAL_FD_MSG, 100, 200);
+		File file = new File("test-input/testBuffer");
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			Method method = SendUtils.class.getDeclaredMethod("createHeader", ConnectionHeader.class, File.class, FileDescriptor.class);
+			method.setAccessible(true);
+			MessageHeader mh = (MessageHeader) method.invoke(utils, ch, null, fis.getFD());
+			assertNull(mh.getFilePath());
+			assertSame(fis.getFD(), mh.getFileDescriptor());
+		} finally {
+			fis.close();
+		}
+	}
+
 	@Test
 	public void testCreateBreakHeaderSuccess() throws Exception {
 		MessageHeader ret = null;
 		Method method = SendUtils.class.getDeclaredMethod("createBreakHeader", null);
 		method.setAccessible(true);
 		ret = (MessageHeader) method.invoke(utils, null);
-		assertTrue(ret.getIov()[0].equals("BREAK"));
+		assertTrue(Arrays.equals(bytes(ret.getBuffers()[0]), "BREAK".getBytes()));
 
 	}
 
@@ -196,8 +233,8 @@ public class TestSendUtils {
 		Method method = SendUtils.class.getDeclaredMethod("createMetaHeader", byte[].class);
 		method.setAccessible(true);
 		ret = (MessageHeader) method.invoke(utils, "HEADER".getBytes());
-		assertTrue(Arrays.equals((byte[]) ret.getIov()[0], "HEADER".getBytes()));
-		assertTrue(ret.getIov()[1].equals("BREAK"));
+		assertTrue(Arrays.equals(bytes(ret.getBuffers()[0]), "HEADER".getBytes()));
+		assertTrue(Arrays.equals(bytes(ret.getBuffers()[1]), "BREAK".getBytes()));
 	}
 
 	@Test
@@ -206,8 +243,8 @@ public class TestSendUtils {
 		Method method = SendUtils.class.getDeclaredMethod("createMetaHeader", byte[].class);
 		method.setAccessible(true);
 		ret = (MessageHeader) method.invoke(utils, "".getBytes());
-		assertTrue(Arrays.equals((byte[]) ret.getIov()[0],  "".getBytes()));
-		assertTrue(ret.getIov()[1].equals("BREAK"));
+		assertTrue(Arrays.equals(bytes(ret.getBuffers()[0]),  "".getBytes()));
+		assertTrue(Arrays.equals(bytes(ret.getBuffers()[1]), "BREAK".getBytes()));
 	}
 
 	@Test
@@ -216,7 +253,7 @@ public class TestSendUtils {
 		Method method = SendUtils.class.getDeclaredMethod("createDataHeader", byte[].class, int.class);
 		method.setAccessible(true);
 		ret = (MessageHeader) method.invoke(utils, "This is data".getBytes(), 12);
-		assertTrue(Arrays.equals((byte[]) ret.getIov()[0], "This is data".getBytes()));
+		assertTrue(Arrays.equals(bytes(ret.getBuffers()[0]), "This is data".getBytes()));
 	}
 
 	@Test
@@ -225,7 +262,7 @@ public class TestSendUtils {
 		Method method = SendUtils.class.getDeclaredMethod("createDataHeader", byte[].class, int.class);
 		method.setAccessible(true);
 		ret = (MessageHeader) method.invoke(utils, "".getBytes(), 0);
-		assertTrue(Arrays.equals((byte[]) ret.getIov()[0], "".getBytes()));
+		assertTrue(Arrays.equals(bytes(ret.getBuffers()[0]), "".getBytes()));
 	}
 
 	@Test
@@ -238,7 +275,7 @@ public class TestSendUtils {
 		Method method = SendUtils.class.getDeclaredMethod("createDataHeader", byte[].class, int.class);
 		method.setAccessible(true);
 		ret = (MessageHeader) method.invoke(utils, bufferBytes, bufferBytes.length);
-		assertTrue(Arrays.equals((byte[]) ret.getIov()[0], bufferBytes));
+		assertTrue(Arrays.equals(bytes(ret.getBuffers()[0]), bufferBytes));
 	}
 
 	@Test(expected = Exception.class)
@@ -260,8 +297,8 @@ public class TestSendUtils {
 			method.setAccessible(true);
 			MessageHeader mh = (MessageHeader)method.invoke(null, new Object[]{null});
 			assertNotNull(mh);
-			assertEquals(1, mh.getIov().length);
-			assertEquals(SendUtils.JALP_BREAK_STR, mh.getIov()[0]);
+			assertEquals(1, mh.getBuffers().length);
+			assertTrue(Arrays.equals(SendUtils.JALP_BREAK_STR.getBytes(), bytes(mh.getBuffers()[0])));
 		} catch (Exception e) {
 			throw e;
 		}
@@ -276,12 +313,492 @@ public class TestSendUtils {
 			method.setAccessible(true);
 			MessageHeader mh = (MessageHeader)method.invoke(null, new Object[]{bufferBytes});
 			assertNotNull(mh);
-			assertEquals(2, mh.getIov().length);
-			assertEquals(bufferBytes, mh.getIov()[0]);
-			assertEquals(SendUtils.JALP_BREAK_STR, mh.getIov()[1]);
+			assertEquals(2, mh.getBuffers().length);
+			assertTrue(Arrays.equals(bufferBytes, bytes(mh.getBuffers()[0])));
+			assertTrue(Arrays.equals(SendUtils.JALP_BREAK_STR.getBytes(), bytes(mh.getBuffers()[1])));
 		} catch (Exception e) {
 			throw e;
 		}
 	}
 
+	@Test
+	public void testCreateAndSendHeadersSendsSmallRecordInOneCall() throws Exception {
+		byte[] data = "abcde".getBytes();
+		byte[] meta = "meta".getBytes();
+
+		SendCounter counter = new SendCounter();
+		byte[] received = sendThroughSocket(MessageType.JALP_LOG_MSG, data, meta);
+
+		assertEquals(1, counter.calls);
+		assertArrayEquals(expectedRecord(MessageType.JALP_LOG_MSG, data, meta), received);
+	}
+
+	@Test
+	public void testCreateAndSendHeadersSendsOneCallPerBuffer() throws Exception {
+		byte[] data = new byte[SendUtils.BUFFER_SIZE * 2 + SendUtils.BUFFER_SIZE / 2];
+		for(int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		byte[] meta = "meta".getBytes();
+
+		SendCounter counter = new SendCounter();
+		byte[] received = sendThroughSocket(MessageType.JALP_JOURNAL_MSG, data, meta);
+
+		assertEquals(3, counter.calls);
+		assertArrayEquals(expectedRecord(MessageType.JALP_JOURNAL_MSG, data, meta), received);
+	}
+
+	@Test
+	public void testCreateAndSendHeadersWorksWithExactMultipleOfBuffer() throws Exception {
+		byte[] data = new byte[SendUtils.BUFFER_SIZE * 2];
+		for(int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 7);
+		}
+		byte[] meta = "meta".getBytes();
+
+		SendCounter counter = new SendCounter();
+		byte[] received = sendThroughSocket(MessageType.JALP_AUDIT_MSG, data, meta);
+
+		assertEquals(2, counter.calls);
+		assertArrayEquals(expectedRecord(MessageType.JALP_AUDIT_MSG, data, meta), received);
+	}
+
+	@Test
+	public void testCreateAndSendHeadersSendsFilePayloadWithSendfile() throws Exception {
+		byte[] data = new byte[SendUtils.BUFFER_SIZE * 2 + SendUtils.BUFFER_SIZE / 2];
+		for(int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 3);
+		}
+		byte[] meta = "meta".getBytes();
+
+		SendCounter counter = new SendCounter();
+		SendfileMock sendfile = new SendfileMock(true);
+		byte[] received = sendFileThroughSocket(data, meta);
+
+		assertEquals(1, sendfile.calls);
+		assertEquals(2, counter.calls);
+		assertArrayEquals(expectedRecord(MessageType.JALP_JOURNAL_MSG, data, meta), received);
+	}
+
+	@Test
+	public void testCreateAndSendHeadersFallsBackWhenSendfileUnavailable() throws Exception {
+		byte[] data = new byte[SendUtils.BUFFER_SIZE * 2 + SendUtils.BUFFER_SIZE / 2];
+		for(int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 5);
+		}
+		byte[] meta = "meta".getBytes();
+
+		SendCounter counter = new SendCounter();
+		SendfileMock sendfile = new SendfileMock(false);
+		byte[] received = sendFileThroughSocket(data, meta);
+
+		assertEquals(1, sendfile.calls);
+		// the headers, then one call per buffer of the payload
+		assertEquals(4, counter.calls);
+		assertArrayEquals(expectedRecord(MessageType.JALP_JOURNAL_MSG, data, meta), received);
+	}
+
+	@Test(expected = IOException.class)
+	public void testCreateAndSendHeadersFailsWhenStreamEndsEarly() throws Exception {
+		byte[] data = "abcde".getBytes();
+		sendThroughSocket(MessageType.JALP_LOG_MSG, data.length + 10, new ByteArrayInputStream(data), "meta".getBytes());
+	}
+
+	@Test(expected = IOException.class)
+	public void testCreateAndSendHeadersFailsWhenFileEndsEarlyWithSendfile() throws Exception {
+		new SendfileMock(true);
+		sendFileThroughSocket(new byte[SendUtils.BUFFER_SIZE], 10, "meta".getBytes());
+	}
+
+	@Test(expected = IOException.class)
+	public void testCreateAndSendHeadersFailsWhenFileEndsEarlyWithoutSendfile() throws Exception {
+		new SendfileMock(false);
+		sendFileThroughSocket(new byte[SendUtils.BUFFER_SIZE], 10, "meta".getBytes());
+	}
+
+	@Test
+	public void testCreateAndSendHeadersSendsFdRecordInOneCall() throws Exception {
+		final File file = new File("test-input/testBuffer");
+		final byte[] meta = "meta".getBytes();
+
+		SendCounter counter = new SendCounter();
+		byte[] received = exchange(new SocketWriter() {
+			public void write(UnixDomainSocketClient client) throws Exception {
+				SendUtils.createAndSendHeaders(MessageType.JALP_JOURNAL_FD_MSG, file.length(), meta.length, null, file, meta, client);
+			}
+		});
+
+		ByteBuffer expected = ByteBuffer.allocate(ConnectionHeader.ENCODED_LENGTH + meta.length + 5);
+		new ConnectionHeader((short) 1, MessageType.JALP_JOURNAL_FD_MSG, file.length(), meta.length).encode(expected);
+		expected.put(meta);
+		expected.put(SendUtils.JALP_BREAK_STR.getBytes());
+
+		assertEquals(1, counter.calls);
+		assertArrayEquals(expected.array(), received);
+	}
+
+	@Test
+	public void testSendmsgWithDirectBuffers() throws Exception {
+		final ByteBuffer header = ByteBuffer.allocateDirect(4);
+		header.putInt(0x01020304).flip();
+		final ByteBuffer body = ByteBuffer.allocateDirect(16);
+		body.put("direct".getBytes()).flip();
+
+		SendCounter counter = new SendCounter();
+		byte[] received = exchange(new SocketWriter() {
+			public void write(UnixDomainSocketClient client) throws Exception {
+				long sent = ((UnixDomainSocketOutputStream) client.getOutputStream()).sendmsg(new ByteBuffer[] { header, body });
+				assertEquals(10, sent);
+			}
+		});
+
+		assertEquals(1, counter.calls);
+		assertEquals(0, header.remaining());
+		assertEquals(0, body.remaining());
+		assertArrayEquals(new byte[] { 1, 2, 3, 4, 'd', 'i', 'r', 'e', 'c', 't' }, received);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSendmsgRejectsHeapBuffers() throws Exception {
+		exchange(new SocketWriter() {
+			public void write(UnixDomainSocketClient client) throws Exception {
+				((UnixDomainSocketOutputStream) client.getOutputStream()).sendmsg(new ByteBuffer[] { ByteBuffer.wrap("heap".getBytes()) });
+			}
+		});
+	}
+
+	@Test
+	public void testCreateAndSendHeadersWritesSameBytesToChannel() throws Exception {
+		final byte[] data = new byte[SendUtils.BUFFER_SIZE * 2 + 17];
+		for(int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 7);
+		}
+		final byte[] meta = "meta".getBytes();
+
+		byte[] written = writeToChannel(new ChannelWriter() {
+			public void write(GatheringByteChannel channel) throws Exception {
+				SendUtils.createAndSendHeaders(MessageType.JALP_LOG_MSG, data.length, meta.length,
+						new ByteArrayInputStream(data), meta, channel);
+			}
+		});
+
+		assertArrayEquals(sendThroughSocket(MessageType.JALP_LOG_MSG, data, meta), written);
+		assertArrayEquals(expectedRecord(MessageType.JALP_LOG_MSG, data, meta), written);
+	}
+
+	@Test
+	public void testCreateAndSendHeadersSurvivesShortChannelWrites() throws Exception {
+		byte[] data = "short payload".getBytes();
+		byte[] meta = "meta".getBytes();
+		TrickleChannel channel = new TrickleChannel(3);
+
+		SendUtils.createAndSendHeaders(MessageType.JALP_LOG_MSG, data.length, meta.length,
+				new ByteArrayInputStream(data), meta, channel);
+		SendUtils.createAndSendHeaders(MessageType.JALP_LOG_MSG, data.length, 0,
+				new ByteArrayInputStream(data), (byte[]) null, channel);
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(expectedRecord(MessageType.JALP_LOG_MSG, data, meta));
+		expected.write(expectedRecord(MessageType.JALP_LOG_MSG, data, new byte[0]));
+		assertArrayEquals(expected.toByteArray(), channel.written.toByteArray());
+	}
+
+	@Test
+	public void testCreateAndSendHeadersWritesFilePayloadToChannel() throws Exception {
+		final byte[] data = new byte[SendUtils.BUFFER_SIZE + SendUtils.BUFFER_SIZE / 2];
+		for(int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 11);
+		}
+		final byte[] meta = "meta".getBytes();
+		File payload = File.createTempFile("jalop-test", ".bin");
+		try {
+			OutputStream os = new FileOutputStream(payload);
+			os.write(data);
+			os.close();
+
+			final FileInputStream fis = new FileInputStream(payload);
+			try {
+				byte[] written = writeToChannel(new ChannelWriter() {
+					public void write(GatheringByteChannel channel) throws Exception {
+						SendUtils.createAndSendHeaders(MessageType.JALP_JOURNAL_MSG, data.length, meta.length,
+								fis, meta, channel);
+					}
+				});
+				assertArrayEquals(expectedRecord(MessageType.JALP_JOURNAL_MSG, data, meta), written);
+				assertEquals(data.length, fis.getChannel().position());
+			} finally {
+				fis.close();
+			}
+		} finally {
+			payload.delete();
+		}
+	}
+
+	@Test
+	public void testCreateAndSendHeadersWritesMetadataSourceToChannel() throws Exception {
+		final byte[] data = "payload".getBytes();
+		final byte[] meta = "late meta".getBytes();
+
+		byte[] written = writeToChannel(new ChannelWriter() {
+			public void write(GatheringByteChannel channel) throws Exception {
+				SendUtils.createAndSendHeaders(MessageType.JALP_AUDIT_MSG, data.length, meta.length,
+						new ByteArrayInputStream(data), new SendUtils.MetadataSource() {
+							public byte[] getMetadata() {
+								return meta;
+							}
+						}, channel);
+			}
+		});
+
+		assertArrayEquals(expectedRecord(MessageType.JALP_AUDIT_MSG, data, meta), written);
+	}
+
+	@Test(expected = JALException.class)
+	public void testCreateAndSendHeadersRejectsFdRecordOnChannel() throws Exception {
+		writeToChannel(new ChannelWriter() {
+			public void write(GatheringByteChannel channel) throws Exception {
+				SendUtils.createAndSendHeaders(MessageType.JALP_JOURNAL_FD_MSG, 0, 0, null, (byte[]) null, channel);
+			}
+		});
+	}
+
+	@Test
+	public void testSendEncodedRecordWritesToChannel() throws Exception {
+		byte[] data = "payload".getBytes();
+		byte[] meta = "meta".getBytes();
+		final ByteBuffer record = ByteBuffer.allocate((int) SendUtils.encodedLength(data.length, meta.length));
+		SendUtils.encodeRecord(MessageType.JALP_LOG_MSG, data.length, new ByteArrayInputStream(data), meta, record);
+		record.flip();
+
+		byte[] written = writeToChannel(new ChannelWriter() {
+			public void write(GatheringByteChannel channel) throws Exception {
+				SendUtils.sendEncodedRecord(record, channel);
+			}
+		});
+
+		assertEquals(0, record.remaining());
+		assertArrayEquals(expectedRecord(MessageType.JALP_LOG_MSG, data, meta), written);
+	}
+
+	/**
+	 * Counts the sendmsg calls made while it is in place, letting each one through.
+	 */
+	private static class SendCounter extends MockUp<UnixDomainSocketOutputStream> {
+		int calls;
+
+		@Mock
+		void sendmsg(Invocation inv, MessageHeader messageHeader) {
+			calls++;
+			inv.proceed();
+		}
+
+		@Mock
+		long sendmsg(Invocation inv, ByteBuffer[] buffers) {
+			calls++;
+			return inv.proceed();
+		}
+	}
+
+	/**
+	 * Counts the sendfile calls made while it is in place. If sendfile is not available
+	 * the calls report that instead of sending.
+	 */
+	private static class SendfileMock extends MockUp<UnixDomainSocketOutputStream> {
+		private final boolean available;
+		int calls;
+
+		SendfileMock(boolean available) {
+			this.available = available;
+		}
+
+		@Mock
+		long sendfile(Invocation inv, FileDescriptor fileDescriptor, long offset, long count) {
+			calls++;
+			if(!available) {
+				return -1;
+			}
+			return inv.proceed();
+		}
+	}
+
+	/**
+	 * Writes to the client end of a test socket.
+	 */
+	private interface SocketWriter {
+		void write(UnixDomainSocketClient client) throws Exception;
+	}
+
+	/**
+	 * Writes to a test channel.
+	 */
+	private interface ChannelWriter {
+		void write(GatheringByteChannel channel) throws Exception;
+	}
+
+	/**
+	 * A channel that takes at most a few bytes per write, like a socket with a
+	 * full send buffer.
+	 */
+	private static class TrickleChannel implements GatheringByteChannel {
+		final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		private final int maxWrite;
+
+		TrickleChannel(int maxWrite) {
+			this.maxWrite = maxWrite;
+		}
+
+		public int write(ByteBuffer src) {
+			int count = Math.min(maxWrite, src.remaining());
+			for(int i = 0; i < count; i++) {
+				written.write(src.get());
+			}
+			return count;
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			for(int i = offset; i < offset + length; i++) {
+				if(srcs[i].hasRemaining()) {
+					return write(srcs[i]);
+				}
+			}
+			return 0;
+		}
+
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	 * Lets writer write to a channel on a temporary file and returns the bytes written.
+	 */
+	private static byte[] writeToChannel(ChannelWriter writer) throws Exception {
+		File file = File.createTempFile("jalop-test", ".channel");
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				writer.write(channel);
+				byte[] written = new byte[(int) channel.size()];
+				raf.seek(0);
+				raf.readFully(written);
+				return written;
+			} finally {
+				raf.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Sends a record over a real Unix domain socket and returns the bytes the other end read.
+	 */
+	private static byte[] sendThroughSocket(MessageType messageType, byte[] data, byte[] meta) throws Exception {
+		return sendThroughSocket(messageType, data.length, new ByteArrayInputStream(data), meta);
+	}
+
+	private static byte[] sendThroughSocket(final MessageType messageType, final long dataLen, final InputStream is, final byte[] meta) throws Exception {
+		return exchange(new SocketWriter() {
+			public void write(UnixDomainSocketClient client) throws Exception {
+				SendUtils.createAndSendHeaders(messageType, dataLen, meta.length, is, null, meta, client);
+			}
+		});
+	}
+
+	/**
+	 * Writes data to a temporary file and sends it as a journal record read from a FileInputStream.
+	 */
+	private static byte[] sendFileThroughSocket(byte[] data, byte[] meta) throws Exception {
+		return sendFileThroughSocket(data, 0, meta);
+	}
+
+	/**
+	 * Sends a file payload whose header announces extra bytes more than the file holds.
+	 */
+	private static byte[] sendFileThroughSocket(byte[] data, long extra, byte[] meta) throws Exception {
+		File payload = File.createTempFile("jalop-test", ".bin");
+		try {
+			OutputStream os = new FileOutputStream(payload);
+			os.write(data);
+			os.close();
+
+			FileInputStream fis = new FileInputStream(payload);
+			try {
+				return sendThroughSocket(MessageType.JALP_JOURNAL_MSG, data.length + extra, fis, meta);
+			} finally {
+				fis.close();
+			}
+		} finally {
+			payload.delete();
+		}
+	}
+
+	/**
+	 * Connects a client to a real Unix domain socket, lets writer use it, and returns the
+	 * bytes the other end read.
+	 */
+	private static byte[] exchange(SocketWriter writer) throws Exception {
+		File socketFile = File.createTempFile("jalop-test", ".sock");
+		socketFile.delete();
+		final UnixDomainSocketServer server = new UnixDomainSocketServer(socketFile.getAbsolutePath(), JUDS.SOCK_STREAM, 1);
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					UnixDomainSocket conn = server.accept();
+					InputStream in = conn.getInputStream();
+					byte[] buffer = new byte[8192];
+					int read;
+					while((read = in.read(buffer, 0, buffer.length)) > 0) {
+						received.write(buffer, 0, read);
+					}
+					conn.close();
+				} catch (Exception e) {
+					// the assertions on the received bytes will fail
+				}
+			}
+		};
+		reader.start();
+
+		UnixDomainSocketClient client = new UnixDomainSocketClient(socketFile.getAbsolutePath(), JUDS.SOCK_STREAM);
+		try {
+			writer.write(client);
+		} finally {
+			client.close();
+			reader.join(10000);
+			server.close();
+			server.unlink();
+		}
+		return received.toByteArray();
+	}
+
+	/**
+	 * Gets the bytes between the position and limit of a buffer without moving it.
+	 */
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] b = new byte[buffer.remaining()];
+		buffer.duplicate().get(b);
+		return b;
+	}
+
+	private static byte[] expectedRecord(MessageType messageType, byte[] data, byte[] meta) {
+		ByteBuffer bb = ByteBuffer.allocate(20 + data.length + meta.length + 10).order(ByteOrder.nativeOrder());
+		bb.putShort((short) 1);
+		bb.putShort(new ConnectionHeader((short) 1, messageType, 0, 0).getMessageType());
+		bb.putLong(data.length);
+		bb.putLong(meta.length);
+		bb.put(data);
+		bb.put(SendUtils.JALP_BREAK_STR.getBytes());
+		bb.put(meta);
+		bb.put(SendUtils.JALP_BREAK_STR.getBytes());
+		return bb.array();
+	}
 }
@@ -0,0 +1,150 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.tresys.jalop.producer.ApplicationMetadataXML;
+import com.tresys.jalop.producer.LoggerXML;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
+
+/**
+ * Tests for the cached signing engine.
+ */
+public class TestSigningEngine {
+
+	private static KeyPair kp;
+	private static X509Certificate cert;
+
+	@BeforeClass
+	public static void setupKeys() throws Exception {
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kp = kpg.generateKeyPair();
+		CertificateFactory cf = CertificateFactory.getInstance("X.509");
+		InputStream in = new FileInputStream("test-input/cert");
+		cert = (X509Certificate)cf.generateCertificate(in);
+		in.close();
+	}
+
+	@Test
+	public void testLaterSignaturesMatchTheFirst() throws Exception {
+		ApplicationMetadataXML xml = preparedXml();
+		SigningEngine engine = new SigningEngine(kp.getPrivate(), kp.getPublic(), cert);
+
+		Document first = xml.marshal();
+		engine.sign(first, xml.getJID());
+		Document second = xml.marshal();
+		engine.sign(second, xml.getJID());
+
+		assertArrayEquals(toBytes(first), toBytes(second));
+		assertNotNull(second.getElementsByTagNameNS(XMLSignature.XMLNS, "X509Certificate").item(0));
+	}
+
+	@Test
+	public void testSignaturesFromOtherThreadsMatch() throws Exception {
+		final ApplicationMetadataXML xml = preparedXml();
+		final SigningEngine engine = new SigningEngine(kp.getPrivate(), kp.getPublic(), null);
+
+		Document doc = xml.marshal();
+		engine.sign(doc, xml.getJID());
+		engine.sign(xml.marshal(), xml.getJID());
+
+		final Document[] other = new Document[1];
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					Document d = xml.marshal();
+					engine.sign(d, xml.getJID());
+					other[0] = d;
+				} catch (Exception e) {
+					// leave other[0] null
+				}
+			}
+		};
+		t.start();
+		t.join();
+
+		assertNotNull(other[0]);
+		assertArrayEquals(toBytes(doc), toBytes(other[0]));
+	}
+
+	@Test
+	public void testReusedSignatureValidates() throws Exception {
+		ApplicationMetadataXML xml = preparedXml();
+		SigningEngine engine = new SigningEngine(kp.getPrivate(), kp.getPublic(), cert);
+		engine.sign(xml.marshal(), xml.getJID());
+
+		xml.prepareSend("Other Host", "Other Application");
+		Document doc = xml.marshal();
+		engine.sign(doc, xml.getJID());
+
+		Element signature = (Element) doc.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature").item(0);
+		DOMValidateContext context = new DOMValidateContext(kp.getPublic(), signature);
+		context.setIdAttributeNS(doc.getDocumentElement(), null, "JID");
+		XMLSignature xmlSignature = XMLSignatureFactory.getInstance("DOM").unmarshalXMLSignature(context);
+		assertTrue(xmlSignature.validate(context));
+		assertEquals("KeyInfo", signature.getLastChild().getLocalName());
+	}
+
+	@Test
+	public void testIsForComparesKeys() throws Exception {
+		SigningEngine engine = new SigningEngine(kp.getPrivate(), kp.getPublic(), cert);
+		assertTrue(engine.isFor(kp.getPrivate(), kp.getPublic(), cert));
+		assertFalse(engine.isFor(kp.getPrivate(), kp.getPublic(), null));
+	}
+
+	private static ApplicationMetadataXML preparedXml() throws Exception {
+		ApplicationMetadataXML xml = new LoggerXML(new LoggerType());
+		xml.prepareSend("Host Name", "Application Name");
+		return xml;
+	}
+
+	private static byte[] toBytes(Document doc) throws Exception {
+		Method method = JALUtils.class.getDeclaredMethod("toBytes", Document.class);
+		method.setAccessible(true);
+		return (byte[]) method.invoke(null, doc);
+	}
+}
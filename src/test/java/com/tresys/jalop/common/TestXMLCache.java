@@ -0,0 +1,114 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Marshaller;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+
+import org.junit.Test;
+
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.ApplicationMetadataType;
+import com.tresys.jalop.schemas.org.w3._2000._09.xmldsig_.ManifestType;
+
+/**
+ * Tests for the XML infrastructure cache.
+ */
+public class TestXMLCache {
+
+	private static final String APP_META_PACKAGE = ApplicationMetadataType.class.getPackage().getName();
+	private static final String DSIG_PACKAGE = ManifestType.class.getPackage().getName();
+
+	@Test
+	public void testGetContextReturnsSameInstance() throws Exception {
+		JAXBContext jc = XMLCache.getContext(APP_META_PACKAGE);
+		assertNotNull(jc);
+		assertSame(jc, XMLCache.getContext(APP_META_PACKAGE));
+		assertNotSame(jc, XMLCache.getContext(DSIG_PACKAGE));
+	}
+
+	@Test
+	public void testGetSchemaReturnsSameInstance() throws Exception {
+		assertNotNull(XMLCache.getSchema(JALUtils.SCHEMA_LOCATION));
+		assertSame(XMLCache.getSchema(JALUtils.SCHEMA_LOCATION), XMLCache.getSchema(JALUtils.SCHEMA_LOCATION));
+	}
+
+	@Test(expected = JALException.class)
+	public void testGetSchemaThrowsExceptionWithMissingResource() throws Exception {
+		XMLCache.getSchema("/com/tresys/jalop/doesNotExist.xsd");
+	}
+
+	@Test
+	public void testGetMarshallerIsPerContext() throws Exception {
+		JAXBContext appMeta = XMLCache.getContext(APP_META_PACKAGE);
+		JAXBContext dsig = XMLCache.getContext(DSIG_PACKAGE);
+		Marshaller m = XMLCache.getMarshaller(appMeta);
+		assertSame(m, XMLCache.getMarshaller(appMeta));
+		assertNotSame(m, XMLCache.getMarshaller(dsig));
+		assertEquals(Boolean.TRUE, m.getProperty(Marshaller.JAXB_FORMATTED_OUTPUT));
+	}
+
+	@Test
+	public void testGetMarshallerIsPerThread() throws Exception {
+		final JAXBContext jc = XMLCache.getContext(APP_META_PACKAGE);
+		final Marshaller[] other = new Marshaller[1];
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					other[0] = XMLCache.getMarshaller(jc);
+				} catch (Exception e) {
+					// leave other[0] null
+				}
+			}
+		};
+		t.start();
+		t.join();
+		assertNotNull(other[0]);
+		assertNotSame(other[0], XMLCache.getMarshaller(jc));
+	}
+
+	@Test
+	public void testGetDocumentBuilderIsNamespaceAware() throws Exception {
+		DocumentBuilder db = XMLCache.getDocumentBuilder();
+		assertSame(db, XMLCache.getDocumentBuilder());
+		assertEquals(true, db.isNamespaceAware());
+	}
+
+	@Test
+	public void testGetTransformerIsReset() throws Exception {
+		Transformer trans = XMLCache.getTransformer();
+		trans.setOutputProperty(OutputKeys.INDENT, "yes");
+		Transformer again = XMLCache.getTransformer();
+		assertSame(trans, again);
+		assertEquals("no", again.getOutputProperty(OutputKeys.INDENT));
+	}
+}
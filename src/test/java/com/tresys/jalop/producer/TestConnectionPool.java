@@ -0,0 +1,311 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.producer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import mockit.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.etsy.net.UnixDomainSocket;
+import com.etsy.net.UnixDomainSocketClient;
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+import com.tresys.jalop.common.ForeignUnixSocket;
+import com.tresys.jalop.common.UnixSocketChannels;
+import com.tresys.jalop.producer.ConnectionPool.Lane;
+import com.tresys.jalop.producer.ConnectionPool.LaneSelection;
+
+/**
+ * Tests for the pool of connections to the local store.
+ */
+public class TestConnectionPool {
+
+	private int connects;
+	private List<UnixDomainSocket> closed;
+	private boolean peerClosed;
+
+	@Before
+	public void setup() {
+		connects = 0;
+		closed = new ArrayList<UnixDomainSocket>();
+		peerClosed = false;
+		new MockUp<UnixDomainSocketClient>() {
+			@Mock
+			public void $init(String socketFile, int socketType) {
+				connects++;
+			}
+		};
+		new MockUp<UnixDomainSocket>() {
+			@Mock
+			public void close(Invocation inv) {
+				closed.add((UnixDomainSocket) inv.getInvokedInstance());
+			}
+
+			@Mock
+			public boolean isPeerClosed() {
+				return peerClosed;
+			}
+		};
+	}
+
+	@Test
+	public void testLaneKeepsItsConnection() throws Exception {
+		ConnectionPool pool = new ConnectionPool("/path/to/socket", 1, LaneSelection.LEAST_BUSY);
+		assertEquals(0, pool.getConnectedCount());
+
+		Lane lane = pool.acquire();
+		UnixDomainSocketClient socket = lane.getSocket();
+		lane.release();
+
+		lane = pool.acquire();
+		assertSame(socket, lane.getSocket());
+		lane.release();
+
+		assertEquals(1, connects);
+		assertEquals(1, pool.getConnectedCount());
+	}
+
+	@Test
+	public void testLeastBusyUsesFreeLane() throws Exception {
+		final ConnectionPool pool = new ConnectionPool("/path/to/socket", 2, LaneSelection.LEAST_BUSY);
+		Lane held = pool.acquire();
+
+		final Lane[] other = new Lane[1];
+		Thread t = new Thread() {
+			public void run() {
+				other[0] = pool.acquire();
+				other[0].release();
+			}
+		};
+		t.start();
+		t.join();
+
+		assertNotSame(held, other[0]);
+		held.release();
+	}
+
+	@Test
+	public void testAcquireWaitsWhenAllLanesAreBusy() throws Exception {
+		final ConnectionPool pool = new ConnectionPool("/path/to/socket", 1, LaneSelection.LEAST_BUSY);
+		Lane held = pool.acquire();
+
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread t = new Thread() {
+			public void run() {
+				pool.acquire().release();
+				acquired.countDown();
+			}
+		};
+		t.start();
+
+		assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+		held.release();
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		t.join();
+	}
+
+	@Test
+	public void testThreadAffineUsesSameLane() throws Exception {
+		ConnectionPool pool = new ConnectionPool("/path/to/socket", 4, LaneSelection.THREAD_AFFINE);
+		Lane first = pool.acquire();
+		first.release();
+		for (int i = 0; i < 10; i++) {
+			Lane lane = pool.acquire();
+			assertSame(first, lane);
+			lane.release();
+		}
+	}
+
+	@Test
+	public void testDiscardedLaneReconnects() throws Exception {
+		ConnectionPool pool = new ConnectionPool("/path/to/socket", 1, LaneSelection.LEAST_BUSY);
+		Lane lane = pool.acquire();
+		UnixDomainSocketClient broken = lane.getSocket();
+		lane.discard();
+		assertEquals(0, pool.getConnectedCount());
+
+		UnixDomainSocketClient socket = lane.getSocket();
+		lane.release();
+
+		assertNotSame(broken, socket);
+		assertEquals(2, connects);
+		assertEquals(1, closed.size());
+		assertSame(broken, closed.get(0));
+	}
+
+	@Test
+	public void testAcquireDiscardsIdleLaneClosedByPeer() throws Exception {
+		ConnectionPool pool = new ConnectionPool("/path/to/socket", 1, LaneSelection.LEAST_BUSY);
+		Lane lane = pool.acquire();
+		UnixDomainSocketClient stale = lane.getSocket();
+		lane.release();
+
+		peerClosed = true;
+		lane = pool.acquire();
+		assertEquals(1, pool.getConnectedCount());
+		lane.release();
+
+		Thread.sleep(TimeUnit.NANOSECONDS.toMillis(ConnectionPool.IDLE_CHECK_NANOS) + 10);
+		lane = pool.acquire();
+		assertEquals(0, pool.getConnectedCount());
+		peerClosed = false;
+		UnixDomainSocketClient socket = lane.getSocket();
+		lane.release();
+
+		assertNotSame(stale, socket);
+		assertEquals(2, connects);
+		assertEquals(1, closed.size());
+		assertSame(stale, closed.get(0));
+	}
+
+	@Test
+	public void testCloseClosesEveryConnection() throws Exception {
+		ConnectionPool pool = new ConnectionPool("/path/to/socket", 3, LaneSelection.THREAD_AFFINE);
+		Lane lane = pool.acquire();
+		lane.getSocket();
+		lane.release();
+
+		pool.close();
+
+		assertEquals(1, closed.size());
+		assertEquals(0, pool.getConnectedCount());
+	}
+
+	@Test
+	public void testJudsLanesSendEverythingOnTheSocket() {
+		ConnectionPool pool = new ConnectionPool("/path/to/socket", 1, LaneSelection.LEAST_BUSY);
+		assertSame(Transport.JUDS, pool.getTransport());
+
+		Lane lane = pool.acquire();
+		for(MessageType type : MessageType.values()) {
+			assertFalse(lane.usesChannel(type));
+		}
+		lane.release();
+	}
+
+	@Test
+	public void testNioLanesSendFdRecordsOnTheSocket() {
+		ConnectionPool pool = new ConnectionPool("/path/to/socket", 1, LaneSelection.LEAST_BUSY, Transport.NIO);
+		assertSame(Transport.NIO, pool.getTransport());
+
+		Lane lane = pool.acquire();
+		assertTrue(lane.usesChannel(MessageType.JALP_LOG_MSG));
+		assertTrue(lane.usesChannel(MessageType.JALP_AUDIT_MSG));
+		assertTrue(lane.usesChannel(MessageType.JALP_JOURNAL_MSG));
+		assertFalse(lane.usesChannel(MessageType.JALP_JOURNAL_FD_MSG));
+		lane.release();
+	}
+
+	@Test
+	public void testNioLaneKeepsItsChannelUntilDiscarded() throws Exception {
+		final List<SocketChannel> opened = new ArrayList<SocketChannel>();
+		new MockUp<UnixSocketChannels>() {
+			@Mock
+			public SocketChannel open(String socketFile) throws Exception {
+				SocketChannel channel = SocketChannel.open();
+				opened.add(channel);
+				return channel;
+			}
+		};
+		ConnectionPool pool = new ConnectionPool("/path/to/socket", 1, LaneSelection.LEAST_BUSY, Transport.NIO);
+
+		Lane lane = pool.acquire();
+		SocketChannel channel = lane.getChannel();
+		assertSame(channel, lane.getChannel());
+		assertEquals(1, pool.getConnectedCount());
+
+		lane.discard();
+		assertFalse(channel.isOpen());
+		assertEquals(0, pool.getConnectedCount());
+		assertNotSame(channel, lane.getChannel());
+		lane.release();
+
+		assertEquals(2, opened.size());
+		assertEquals(0, connects);
+		pool.close();
+	}
+
+	@Test
+	public void testNioLanesSendFdRecordsOnForeignSocketWhenAvailable() {
+		final boolean[] available = { true };
+		new MockUp<ForeignUnixSocket>() {
+			@Mock
+			public boolean isAvailable() {
+				return available[0];
+			}
+		};
+		Lane nio = new ConnectionPool("/path/to/socket", 1, LaneSelection.LEAST_BUSY, Transport.NIO).acquire();
+		Lane juds = new ConnectionPool("/path/to/socket", 1, LaneSelection.LEAST_BUSY).acquire();
+
+		assertTrue(nio.usesForeignSocket(MessageType.JALP_JOURNAL_FD_MSG));
+		assertFalse(nio.usesForeignSocket(MessageType.JALP_LOG_MSG));
+		assertFalse(juds.usesForeignSocket(MessageType.JALP_JOURNAL_FD_MSG));
+
+		available[0] = false;
+		assertFalse(nio.usesForeignSocket(MessageType.JALP_JOURNAL_FD_MSG));
+		nio.release();
+		juds.release();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testJudsLaneHasNoForeignSocket() throws Exception {
+		ConnectionPool pool = new ConnectionPool("/path/to/socket", 1, LaneSelection.LEAST_BUSY);
+		Lane lane = pool.acquire();
+		try {
+			lane.getForeignSocket();
+		} finally {
+			lane.release();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testJudsLaneHasNoChannel() throws Exception {
+		ConnectionPool pool = new ConnectionPool("/path/to/socket", 1, LaneSelection.LEAST_BUSY);
+		Lane lane = pool.acquire();
+		try {
+			lane.getChannel();
+		} finally {
+			lane.release();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPoolSizeMustBePositive() {
+		new ConnectionPool("/path/to/socket", 0, LaneSelection.LEAST_BUSY);
+	}
+}
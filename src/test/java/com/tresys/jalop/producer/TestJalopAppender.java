@@ -24,14 +24,23 @@
 
 package com.tresys.jalop.producer;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import mockit.*;
 
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 import org.apache.log4j.NDC;
@@ -40,6 +49,9 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.etsy.net.UnixDomainSocket;
+import com.etsy.net.UnixDomainSocketClient;
+import com.tresys.jalop.common.JALUtils;
 import com.tresys.jalop.producer.JalopAppender;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
 
@@ -87,11 +99,64 @@ public class TestJalopAppender {
 
 	public final class MockProducer extends MockUp<Producer> {
 		@Mock
-		public void jalpLog(String string) {
+		public void jalpLog(ApplicationMetadataXML xml, String string) {
 			assertTrue(string == null);
 		}
 	}
 
+	/**
+	 * Counts connections to the local store and records the socket each
+	 * record is sent on. The next failures sends throw an IOException.
+	 */
+	public static final class MockConnection extends MockUp<UnixDomainSocketClient> {
+		int connects;
+		int failures;
+		final List<UnixDomainSocketClient> sockets = new ArrayList<UnixDomainSocketClient>();
+
+		@Mock
+		public void $init(String socketFile, int socketType) {
+			connects++;
+		}
+
+		void sendOn(UnixDomainSocketClient socket) throws IOException {
+			sockets.add(socket);
+			if (failures > 0) {
+				failures--;
+				throw new IOException("Broken pipe");
+			}
+		}
+	}
+
+	public static final class MockClose extends MockUp<UnixDomainSocket> {
+		final List<UnixDomainSocket> closed = new ArrayList<UnixDomainSocket>();
+
+		@Mock
+		public void close(Invocation inv) {
+			closed.add((UnixDomainSocket) inv.getInvokedInstance());
+		}
+
+		@Mock
+		public boolean isPeerClosed() {
+			return false;
+		}
+	}
+
+	private MockConnection mockSend() {
+		final MockConnection connection = new MockConnection();
+		new MockUp<JALUtils>() {
+			@Mock
+			public void processSend(Request request, String buffer) throws Exception {
+				ConnectionPool.Lane lane = request.getProducer().getConnectionPool().acquire();
+				try {
+					connection.sendOn(lane.getSocket());
+				} finally {
+					lane.release();
+				}
+			}
+		};
+		return connection;
+	}
+
 	@Before
 	public void setup() {
 		MDC.put("SessionID", mdc);
@@ -242,4 +307,193 @@ public class TestJalopAppender {
 		assertTrue(jalApp.getUseLocation() == true);
 	}
 
+
+	@Test
+	public void testSetGetAsyncOptions() {
+		jalApp.setAsync(true);
+		jalApp.setBufferSize(64);
+		jalApp.setWaitStrategy("yielding");
+		jalApp.setOverflowPolicy("DROP_OLDEST");
+		jalApp.setShutdownTimeout(500);
+		assertTrue(jalApp.getAsync());
+		assertEquals(64, jalApp.getBufferSize());
+		assertEquals("YIELDING", jalApp.getWaitStrategy());
+		assertEquals("DROP_OLDEST", jalApp.getOverflowPolicy());
+		assertEquals(500, jalApp.getShutdownTimeout());
+	}
+
+	@Test
+	public void testSetGetValidationOptions() {
+		jalApp.setValidationPolicy("sampled");
+		jalApp.setValidationSampleRate(10);
+		assertEquals("SAMPLED", jalApp.getValidationPolicy());
+		assertEquals(10, jalApp.getValidationSampleRate());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetValidationSampleRateThrowsExceptionWhenLessThanOne() {
+		jalApp.setValidationSampleRate(0);
+	}
+
+	@Test
+	public void testAsyncAppendSendsAllEventsBeforeClose() throws Exception {
+		final AtomicInteger sent = new AtomicInteger();
+		final Thread caller = Thread.currentThread();
+		new MockUp<Producer>() {
+			@Mock
+			public void jalpLog(ApplicationMetadataXML xml, String string) {
+				assertTrue(Thread.currentThread() != caller);
+				sent.incrementAndGet();
+			}
+		};
+
+		jalApp.setAsync(true);
+		jalApp.setBufferSize(8);
+		jalApp.activateOptions();
+
+		LoggingEvent event = createLoggingEvent();
+		for (int i = 0; i < 100; i++) {
+			jalApp.doAppend(event);
+		}
+		jalApp.close();
+
+		assertEquals(100, sent.get());
+		assertEquals(0, jalApp.getDroppedCount());
+	}
+
+	@Test
+	public void testAsyncAppendDropsNewestWhenFull() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger sent = new AtomicInteger();
+		new MockUp<Producer>() {
+			@Mock
+			public void jalpLog(ApplicationMetadataXML xml, String string) throws Exception {
+				release.await();
+				sent.incrementAndGet();
+			}
+		};
+
+		jalApp.setAsync(true);
+		jalApp.setBufferSize(4);
+		jalApp.setOverflowPolicy("DROP_NEWEST");
+		jalApp.activateOptions();
+
+		LoggingEvent event = createLoggingEvent();
+		for (int i = 0; i < 20; i++) {
+			jalApp.doAppend(event);
+		}
+		release.countDown();
+		jalApp.close();
+
+		assertTrue(jalApp.getDroppedCount() > 0);
+		assertEquals(20, sent.get() + jalApp.getDroppedCount());
+	}
+
+	@Test
+	public void testAsyncAppendDuringCloseIsCountedAsDropped() throws Exception {
+		final AtomicInteger sent = new AtomicInteger();
+		new MockUp<Producer>() {
+			@Mock
+			public void jalpLog(ApplicationMetadataXML xml, String string) {
+				sent.incrementAndGet();
+			}
+		};
+
+		jalApp.setAsync(true);
+		jalApp.activateOptions();
+
+		// The appending thread gets past every check in doAppend and append,
+		// then waits until close() has stopped the worker before queueing.
+		final CountDownLatch appending = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread appender = new Thread() {
+			@Override
+			public void run() {
+				jalApp.doAppend(new LoggingEvent(Logger.class.getName(), log,
+						Level.INFO, message, null) {
+					@Override
+					public String getThreadName() {
+						if (appending.getCount() > 0) {
+							appending.countDown();
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+						}
+						return super.getThreadName();
+					}
+				});
+			}
+		};
+		appender.start();
+		appending.await();
+		jalApp.close();
+		release.countDown();
+		appender.join();
+
+		assertEquals(0, sent.get());
+		assertEquals(1, jalApp.getDroppedCount());
+	}
+
+	@Test
+	public void testAppendReusesConnection() throws Exception {
+		MockConnection connection = mockSend();
+		MockClose close = new MockClose();
+		jalApp.activateOptions();
+
+		LoggingEvent event = createLoggingEvent();
+		for (int i = 0; i < 5; i++) {
+			jalApp.doAppend(event);
+		}
+
+		assertEquals(1, connection.connects);
+		assertEquals(5, connection.sockets.size());
+		for (UnixDomainSocketClient socket : connection.sockets) {
+			assertSame(connection.sockets.get(0), socket);
+		}
+		assertTrue(close.closed.isEmpty());
+	}
+
+	@Test
+	public void testAppendReconnectsAfterBrokenPipe() throws Exception {
+		MockConnection connection = mockSend();
+		MockClose close = new MockClose();
+		jalApp.activateOptions();
+
+		LoggingEvent event = createLoggingEvent();
+		jalApp.doAppend(event);
+		connection.failures = 1;
+		jalApp.doAppend(event);
+		jalApp.doAppend(event);
+
+		assertEquals(2, connection.connects);
+		assertEquals(4, connection.sockets.size());
+		UnixDomainSocketClient broken = connection.sockets.get(1);
+		assertSame(connection.sockets.get(0), broken);
+		assertNotSame(broken, connection.sockets.get(2));
+		assertSame(connection.sockets.get(2), connection.sockets.get(3));
+		assertEquals(1, close.closed.size());
+		assertSame(broken, close.closed.get(0));
+	}
+
+	@Test
+	public void testCloseClosesConnection() throws Exception {
+		MockConnection connection = mockSend();
+		MockClose close = new MockClose();
+		jalApp.setAsync(true);
+		jalApp.activateOptions();
+
+		LoggingEvent event = createLoggingEvent();
+		for (int i = 0; i < 10; i++) {
+			jalApp.doAppend(event);
+		}
+		jalApp.close();
+
+		assertEquals(1, connection.connects);
+		assertEquals(10, connection.sockets.size());
+		assertEquals(1, close.closed.size());
+		assertSame(connection.sockets.get(0), close.closed.get(0));
+	}
+
 }
@@ -24,6 +24,11 @@
 
 package com.tresys.jalop.producer;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.util.GregorianCalendar;
@@ -37,6 +42,7 @@ import mockit.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.tresys.jalop.common.RecordIdentity;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
 
 /**
@@ -86,6 +92,22 @@ public class TestLoggerXML {
 		assertTrue(xmlCal.equals(xml.getLogger().getTimestamp()));
 	}
 
+	@Test
+	public void testPrepareCopyLeavesOriginalUnchanged() throws Exception {
+		logger.setMessage("message");
+		LoggerXML copy = (LoggerXML) loggerXML.prepareCopy("host name", "application name");
+
+		assertNull(loggerXML.getJID());
+		assertNull(logger.getTimestamp());
+		assertNull(logger.getHostname());
+		assertNotSame(logger, copy.getLogger());
+		assertEquals("message", copy.getLogger().getMessage());
+		assertEquals("host name", copy.getLogger().getHostname());
+		assertNotNull(copy.getLogger().getTimestamp());
+		assertNotNull(copy.getJID());
+		assertFalse(copy.getJID().equals(loggerXML.prepareCopy("host name", "application name").getJID()));
+	}
+
 	@Test(expected = DatatypeConfigurationException.class)
 	public void testPrepareSendThrowsExceptionOnFailure() throws Exception {
 		new MockUp<DatatypeFactory>() {
@@ -94,6 +116,7 @@ public class TestLoggerXML {
 				throw new DatatypeConfigurationException();
 			}
 		};
+		RecordIdentity.clear();
 		loggerXML.prepareSend("host name", "application name");
 	}
 
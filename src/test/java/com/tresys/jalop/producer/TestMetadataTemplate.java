@@ -0,0 +1,177 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.producer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLStreamWriter;
+
+import mockit.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tresys.jalop.common.JALUtils;
+import com.tresys.jalop.common.MetadataWriter;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerSeverityType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.MetadataType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.StackFrameType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.StructuredDataType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.SyslogType;
+
+/**
+ * Tests for the pre-encoded logger and syslog metadata.
+ */
+public class TestMetadataTemplate {
+
+	private int marshals;
+
+	@Before
+	public void setup() {
+		MetadataTemplate.clear();
+		marshals = 0;
+		new MockUp<JALUtils>() {
+			@Mock
+			void marshal(Invocation inv, JAXBContext jc, JAXBElement element, XMLStreamWriter writer, boolean validate) throws Exception {
+				marshals++;
+				inv.proceed();
+			}
+		};
+	}
+
+	@Test
+	public void testLoggerRecordsMatchMarshaledOutput() throws Exception {
+		String[] messages = {"first message", "a\"b<c>&d\n\teé\u0085", "😀 third"};
+		for(int i = 0; i < messages.length; i++) {
+			LoggerType logger = new LoggerType();
+			logger.setLoggerName("com.example.Logger");
+			LoggerSeverityType severity = new LoggerSeverityType();
+			severity.setName("INFO");
+			severity.setValue(BigInteger.valueOf(3));
+			logger.setSeverity(severity);
+			logger.setThreadID("thread-" + i + " <&>");
+			logger.setMessage(messages[i]);
+			logger.setProcessID(BigInteger.valueOf(1234));
+			logger.getStructuredData().add(structuredData());
+			LoggerXML xml = new LoggerXML(logger);
+			xml.prepareSend("host", "app");
+
+			assertEquals(marshaled(xml), written(xml));
+		}
+		// Each record is marshaled once to compare with, and building the template marshals twice more.
+		assertEquals(3 + 2, marshals);
+	}
+
+	@Test
+	public void testSyslogRecordsMatchMarshaledOutput() throws Exception {
+		for(int i = 0; i < 3; i++) {
+			SyslogType syslog = new SyslogType();
+			syslog.setFacility(Integer.valueOf(1));
+			syslog.setSeverity(Integer.valueOf(4));
+			syslog.setMessageID("msg");
+			syslog.setEntry("entry \"" + i + "\" & more");
+			syslog.setTimestamp(DatatypeFactory.newInstance().newXMLGregorianCalendar("2012-10-04T1" + i + ":00:00.250-04:00"));
+			SyslogXML xml = new SyslogXML(syslog);
+			xml.prepareSend("host", "app");
+
+			assertEquals(marshaled(xml), written(xml));
+		}
+		assertEquals(3 + 2, marshals);
+	}
+
+	@Test
+	public void testChangedInvariantGetsNewTemplate() throws Exception {
+		LoggerXML first = new LoggerXML(new LoggerType());
+		first.prepareSend("host", "app");
+		LoggerXML second = new LoggerXML(new LoggerType());
+		second.prepareSend("other host", "app");
+
+		assertEquals(marshaled(first), written(first));
+		assertEquals(marshaled(second), written(second));
+		assertEquals(2 + 2 + 2, marshals);
+	}
+
+	@Test
+	public void testRecordWithLocationIsMarshaled() throws Exception {
+		LoggerType logger = new LoggerType();
+		logger.setMessage("message");
+		LoggerType.Location location = new LoggerType.Location();
+		StackFrameType frame = new StackFrameType();
+		frame.setClassName("com.example.Main");
+		location.getStackFrame().add(frame);
+		logger.setLocation(location);
+		LoggerXML xml = new LoggerXML(logger);
+		xml.prepareSend("host", "app");
+
+		assertEquals(marshaled(xml), written(xml));
+		assertEquals(written(xml), written(xml));
+		assertEquals(1 + 3, marshals);
+	}
+
+	@Test
+	public void testEmptyMessageIsMarshaled() throws Exception {
+		LoggerType logger = new LoggerType();
+		logger.setMessage("");
+		LoggerXML xml = new LoggerXML(logger);
+		xml.prepareSend("host", "app");
+
+		assertEquals(marshaled(xml), written(xml));
+		assertEquals(1 + 1, marshals);
+	}
+
+	private static StructuredDataType structuredData() {
+		StructuredDataType sd = new StructuredDataType();
+		sd.setSDID("origin@1");
+		MetadataType field = new MetadataType();
+		field.setKey("ip");
+		field.setValue("192.0.2.1");
+		sd.getField().add(field);
+		return sd;
+	}
+
+	private static String marshaled(ApplicationMetadataXML xml) throws Exception {
+		MetadataWriter writer = new MetadataWriter();
+		writer.writeStartDocument();
+		writer.setHoldDocumentElement(true);
+		xml.marshal(writer);
+		writer.writeEndDocument();
+		return new String(writer.toByteArray(), "UTF-8");
+	}
+
+	private static String written(ApplicationMetadataXML xml) throws Exception {
+		MetadataWriter writer = new MetadataWriter();
+		writer.writeStartDocument();
+		writer.setHoldDocumentElement(true);
+		xml.write(writer);
+		writer.writeEndDocument();
+		return new String(writer.toByteArray(), "UTF-8");
+	}
+}
@@ -25,17 +25,36 @@
 package com.tresys.jalop.producer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.bind.MarshalException;
 
 import mockit.*;
 
@@ -45,6 +64,8 @@ import com.tresys.jalop.common.ConnectionHeader.MessageType;
 import com.tresys.jalop.common.JALException;
 import com.tresys.jalop.common.JALUtils;
 import com.tresys.jalop.common.JALUtils.DMType;
+import com.tresys.jalop.common.MetadataWriter;
+import com.tresys.jalop.common.UnixSocketChannels;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
 
 /**
@@ -151,34 +172,40 @@ public class TestProducer {
 	@Test
 	public void testJalpLogWithStringWorks() throws Exception {
 
+		final MessageType[] sent = new MessageType[1];
 		new MockUp<JALUtils>() {
 			@Mock
-			void processSend(Producer producer, String buffer) throws Exception {}
+			void processSend(Request request, String buffer) throws Exception {
+				sent[0] = request.getMessageType();
+			}
 		};
 
 		Producer prod = new Producer();
 		prod.jalpLog("buffer");
-		assertEquals(prod.getMessageType(), MessageType.JALP_LOG_MSG);
+		assertEquals(MessageType.JALP_LOG_MSG, sent[0]);
 	}
 
 	@Test
 	public void testJalpLogWithFileWorks() throws Exception {
 
+		final MessageType[] sent = new MessageType[1];
 		new MockUp<JALUtils>() {
 			@Mock
-			void processSend(Producer producer, File file) throws Exception {}
+			void processSend(Request request, File file) throws Exception {
+				sent[0] = request.getMessageType();
+			}
 		};
 
 		Producer prod = new Producer();
 		prod.jalpLog(new File("test-input/testBuffer"));
-		assertEquals(prod.getMessageType(), MessageType.JALP_LOG_MSG);
+		assertEquals(MessageType.JALP_LOG_MSG, sent[0]);
 	}
 
 	@Test
 	public void testJalpLogWorksWithBlankBuffer() throws Exception {
 		new MockUp<JALUtils>() {
 			@Mock
-			void processSend(Producer producer, String buffer) throws Exception {
+			void processSend(Request request, String buffer) throws Exception {
 				assertEquals(buffer, "");
 			}
 		};
@@ -191,7 +218,7 @@ public class TestProducer {
 	public void testJalpLogWorksWithNullBuffer() throws Exception {
 		new MockUp<JALUtils>() {
 			@Mock
-			void processSend(Producer producer, String buffer) throws Exception {
+			void processSend(Request request, String buffer) throws Exception {
 				assertNull(buffer);
 			}
 		};
@@ -204,7 +231,7 @@ public class TestProducer {
 	public void testJalpLogWorksWithNullFile() throws Exception {
 		new MockUp<JALUtils>() {
 			@Mock
-			void processSend(Producer producer, File file) throws Exception {
+			void processSend(Request request, File file) throws Exception {
 				assertNull(file);
 			}
 		};
@@ -216,27 +243,33 @@ public class TestProducer {
 	@Test
 	public void testJalpAuditWithStringWorks() throws Exception {
 
+		final MessageType[] sent = new MessageType[1];
 		new MockUp<JALUtils>() {
 			@Mock
-			void processSend(Producer producer, String buffer) throws Exception {}
+			void processSend(Request request, String buffer) throws Exception {
+				sent[0] = request.getMessageType();
+			}
 		};
 
 		Producer prod = new Producer();
 		prod.jalpAudit("buffer");
-		assertEquals(prod.getMessageType(), MessageType.JALP_AUDIT_MSG);
+		assertEquals(MessageType.JALP_AUDIT_MSG, sent[0]);
 	}
 
 	@Test
 	public void testJalpAuditWithFileWorks() throws Exception {
 
+		final MessageType[] sent = new MessageType[1];
 		new MockUp<JALUtils>() {
 			@Mock
-			void processSend(Producer producer, File file) throws Exception {}
+			void processSend(Request request, File file) throws Exception {
+				sent[0] = request.getMessageType();
+			}
 		};
 
 		Producer prod = new Producer();
 		prod.jalpAudit(new File("test-input/testBuffer"));
-		assertEquals(prod.getMessageType(), MessageType.JALP_AUDIT_MSG);
+		assertEquals(MessageType.JALP_AUDIT_MSG, sent[0]);
 	}
 
 	@Test(expected = JALException.class)
@@ -260,27 +293,33 @@ public class TestProducer {
 	@Test
 	public void testJalpJournalWithStringWorks() throws Exception {
 
+		final MessageType[] sent = new MessageType[1];
 		new MockUp<JALUtils>() {
 			@Mock
-			void processSend(Producer producer, String buffer) throws Exception {}
+			void processSend(Request request, String buffer) throws Exception {
+				sent[0] = request.getMessageType();
+			}
 		};
 
 		Producer prod = new Producer();
 		prod.jalpJournal("buffer");
-		assertEquals(prod.getMessageType(), MessageType.JALP_JOURNAL_MSG);
+		assertEquals(MessageType.JALP_JOURNAL_MSG, sent[0]);
 	}
 
 	@Test
 	public void testJalpJournalWithFileWorks() throws Exception {
 
+		final MessageType[] sent = new MessageType[1];
 		new MockUp<JALUtils>() {
 			@Mock
-			void processSend(Producer producer, File file) throws Exception {}
+			void processSend(Request request, File file) throws Exception {
+				sent[0] = request.getMessageType();
+			}
 		};
 
 		Producer prod = new Producer();
 		prod.jalpJournal(new File("test-input/testBuffer"));
-		assertEquals(prod.getMessageType(), MessageType.JALP_JOURNAL_MSG);
+		assertEquals(MessageType.JALP_JOURNAL_MSG, sent[0]);
 	}
 
 	@Test(expected = JALException.class)
@@ -304,14 +343,17 @@ public class TestProducer {
 	@Test
 	public void testJalpJournalFDWorks() throws Exception {
 
+		final MessageType[] sent = new MessageType[1];
 		new MockUp<JALUtils>() {
 			@Mock
-			void processSend(Producer producer, File file) throws Exception {}
+			void processSend(Request request, File file) throws Exception {
+				sent[0] = request.getMessageType();
+			}
 		};
 
 		Producer prod = new Producer();
 		prod.jalpJournalFD(new File("test-input/testBuffer"));
-		assertEquals(prod.getMessageType(), MessageType.JALP_JOURNAL_FD_MSG);
+		assertEquals(MessageType.JALP_JOURNAL_FD_MSG, sent[0]);
 	}
 
 	@Test(expected = JALException.class)
@@ -320,4 +362,320 @@ public class TestProducer {
 		prod.jalpJournalFD((File)null);
 	}
 
-}
\ No newline at end of file
+	@Test
+	public void testOneProducerCanBeSharedByThreads() throws Exception {
+		final Set<String> jids = Collections.synchronizedSet(new HashSet<String>());
+		final AtomicInteger mismatches = new AtomicInteger();
+		new MockUp<JALUtils>() {
+			@Mock
+			void processSend(Request request, String buffer) throws Exception {
+				// Each thread sends its own message type in the buffer
+				if(!request.getMessageType().name().equals(buffer)) {
+					mismatches.incrementAndGet();
+				}
+				jids.add(request.getXml().getJID());
+			}
+		};
+
+		final LoggerType logger = new LoggerType();
+		final Producer prod = new Producer(new LoggerXML(logger));
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			final boolean audit = i % 2 == 0;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < 100; j++) {
+							if (audit) {
+								prod.jalpAudit(MessageType.JALP_AUDIT_MSG.name());
+							} else {
+								prod.jalpJournal(MessageType.JALP_JOURNAL_MSG.name());
+							}
+						}
+					} catch (Exception e) {
+						mismatches.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertEquals(0, mismatches.get());
+		assertEquals(800, jids.size());
+		assertNull(prod.getXml().getJID());
+		assertNull(logger.getTimestamp());
+	}
+
+	@Test
+	public void testSetPoolSizeReplacesConnectionPool() throws Exception {
+		Producer prod = new Producer();
+		ConnectionPool pool = prod.getConnectionPool();
+		assertEquals(1, pool.getSize());
+		assertSame(pool, prod.getConnectionPool());
+
+		prod.setPoolSize(4);
+		prod.setLaneSelection(ConnectionPool.LaneSelection.THREAD_AFFINE);
+		assertEquals(4, prod.getConnectionPool().getSize());
+		assertEquals(ConnectionPool.LaneSelection.THREAD_AFFINE, prod.getConnectionPool().getLaneSelection());
+	}
+
+	@Test
+	public void testSetTransportReplacesConnectionPool() throws Exception {
+		new MockUp<UnixSocketChannels>() {
+			@Mock
+			public boolean isAvailable() {
+				return true;
+			}
+		};
+		Producer prod = new Producer();
+		assertEquals(Transport.JUDS, prod.getTransport());
+		ConnectionPool pool = prod.getConnectionPool();
+		assertEquals(Transport.JUDS, pool.getTransport());
+
+		prod.setTransport(Transport.NIO);
+		assertEquals(Transport.NIO, prod.getTransport());
+		assertNotSame(pool, prod.getConnectionPool());
+		assertEquals(Transport.NIO, prod.getConnectionPool().getTransport());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetTransportNioNeedsUnixSocketChannels() throws Exception {
+		new MockUp<UnixSocketChannels>() {
+			@Mock
+			public boolean isAvailable() {
+				return false;
+			}
+		};
+		new Producer().setTransport(Transport.NIO);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetTransportThrowsExceptionWithNull() throws Exception {
+		new Producer().setTransport(null);
+	}
+
+	@Test
+	public void testMemfdThresholdIsOffByDefaultAndCopiedToRequests() throws Exception {
+		Producer prod = new Producer(new LoggerXML(new LoggerType()));
+		assertEquals(0, prod.getMemfdThreshold());
+		prod.setMemfdThreshold(65536);
+		Request request = prod.createRequest(MessageType.JALP_JOURNAL_MSG);
+		assertEquals(65536, request.getMemfdThreshold());
+
+		Request fdRequest = request.forMessageType(MessageType.JALP_JOURNAL_FD_MSG);
+		assertEquals(MessageType.JALP_JOURNAL_FD_MSG, fdRequest.getMessageType());
+		assertSame(request.getXml(), fdRequest.getXml());
+		assertEquals(65536, fdRequest.getMemfdThreshold());
+	}
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void testGetMessageTypeReturnsTypeOfLastRequest() throws Exception {
+		Producer prod = new Producer(new LoggerXML(new LoggerType()));
+		assertNull(prod.getMessageType());
+		prod.createRequest(MessageType.JALP_AUDIT_MSG);
+		assertEquals(MessageType.JALP_AUDIT_MSG, prod.getMessageType());
+		prod.createRequest(MessageType.JALP_LOG_MSG, null);
+		assertEquals(MessageType.JALP_LOG_MSG, prod.getMessageType());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetMemfdThresholdThrowsExceptionWhenNegative() throws Exception {
+		new Producer().setMemfdThreshold(-1);
+	}
+
+	@Test
+	public void testJalpAuditAsyncSendsOnExecutor() throws Exception {
+		final MessageType[] sent = new MessageType[1];
+		final Thread[] sender = new Thread[1];
+		new MockUp<JALUtils>() {
+			@Mock
+			void processSend(Request request, String buffer) throws Exception {
+				sent[0] = request.getMessageType();
+				sender[0] = Thread.currentThread();
+			}
+		};
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Producer prod = new Producer();
+			prod.setSendExecutor(executor);
+			prod.jalpAuditAsync("buffer").get(5, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(MessageType.JALP_AUDIT_MSG, sent[0]);
+		assertNotSame(Thread.currentThread(), sender[0]);
+	}
+
+	@Test
+	public void testJalpLogAsyncCompletesExceptionallyOnFailure() throws Exception {
+		new MockUp<JALUtils>() {
+			@Mock
+			void processSend(Request request, File file) throws Exception {
+				throw new IOException("Broken pipe");
+			}
+		};
+
+		Producer prod = new Producer();
+		try {
+			prod.jalpLogAsync(new File("test-input/testBuffer")).get(5, TimeUnit.SECONDS);
+			fail("The future should have failed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	public void testJalpJournalAsyncFailsWithNullBuffer() throws Exception {
+		Producer prod = new Producer();
+		prod.setSendExecutor(new Executor() {
+			public void execute(Runnable command) {
+				fail("Nothing should be sent");
+			}
+		});
+
+		CompletableFuture<Void> future = prod.jalpJournalAsync((String)null);
+		assertTrue(future.isCompletedExceptionally());
+		try {
+			future.get();
+			fail("The future should have failed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof JALException);
+		}
+	}
+
+	@Test
+	public void testDefaultSendExecutorIsShared() {
+		assertNotNull(SendExecutors.getDefault());
+		assertSame(SendExecutors.getDefault(), SendExecutors.getDefault());
+	}
+
+	@Test
+	public void testDaemonThreadExecutorQueuesSendsBeyondItsThreads() throws Exception {
+		ExecutorService executor = SendExecutors.newDaemonThreadExecutor(2);
+		try {
+			final CountDownLatch release = new CountDownLatch(1);
+			final CountDownLatch started = new CountDownLatch(2);
+			final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+			final AtomicInteger ran = new AtomicInteger();
+			for (int i = 0; i < 5; i++) {
+				executor.execute(new Runnable() {
+					public void run() {
+						threads.add(Thread.currentThread());
+						assertTrue(Thread.currentThread().isDaemon());
+						started.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						ran.incrementAndGet();
+					}
+				});
+			}
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			assertEquals(2, threads.size());
+			assertEquals(0, ran.get());
+			release.countDown();
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+			assertEquals(5, ran.get());
+			assertEquals(2, threads.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDaemonThreadExecutorThrowsExceptionWithNoThreads() {
+		SendExecutors.newDaemonThreadExecutor(0);
+	}
+
+	@Test
+	public void testValidationPolicyDefaultsToAlways() throws Exception {
+		Producer prod = new Producer();
+		assertEquals(ValidationPolicy.ALWAYS, prod.getValidationPolicy());
+		assertTrue(prod.createRequest(MessageType.JALP_LOG_MSG, new LoggerXML(new LoggerType())).isValidating());
+	}
+
+	@Test
+	public void testSampledValidationChecksOneInEveryRate() throws Exception {
+		Producer prod = new Producer(new LoggerXML(new LoggerType()));
+		prod.setValidationPolicy(ValidationPolicy.SAMPLED);
+		prod.setValidationSampleRate(3);
+
+		boolean[] expected = { true, false, false, true, false, false, true };
+		for(int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], prod.createRequest(MessageType.JALP_LOG_MSG).isValidating());
+		}
+	}
+
+	@Test
+	public void testFirstPerTypeValidationChecksEachTypeOnce() throws Exception {
+		Producer prod = new Producer();
+		prod.setValidationPolicy(ValidationPolicy.FIRST_PER_TYPE);
+		LoggerXML logger = new LoggerXML(new LoggerType());
+
+		assertTrue(prod.createRequest(MessageType.JALP_LOG_MSG, logger).isValidating());
+		assertFalse(prod.createRequest(MessageType.JALP_LOG_MSG, logger).isValidating());
+		assertTrue(prod.createRequest(MessageType.JALP_JOURNAL_MSG, logger).isValidating());
+		assertTrue(prod.createRequest(MessageType.JALP_LOG_MSG, null).isValidating());
+
+		prod.setValidationPolicy(ValidationPolicy.FIRST_PER_TYPE);
+		assertTrue(prod.createRequest(MessageType.JALP_LOG_MSG, logger).isValidating());
+	}
+
+	@Test
+	public void testValidationOffSkipsEveryRecord() throws Exception {
+		Producer prod = new Producer(new LoggerXML(new LoggerType()));
+		prod.setValidationPolicy(ValidationPolicy.OFF);
+		for(int i = 0; i < 3; i++) {
+			assertFalse(prod.createRequest(MessageType.JALP_LOG_MSG).isValidating());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetValidationSampleRateThrowsExceptionBelowOne() {
+		new Producer().setValidationSampleRate(0);
+	}
+
+	@Test
+	public void testValidationMetricsCountFailuresAndSkips() throws Exception {
+		new MockUp<ApplicationMetadataXML>() {
+			@Mock
+			void write(MetadataWriter writer, boolean validate) throws Exception {
+				if(validate) {
+					throw new MarshalException("invalid");
+				}
+			}
+		};
+		new MockUp<JALUtils>() {
+			@Mock
+			void sendRecord(Request request, byte[] appMetaBytes, InputStream is, File file, FileDescriptor fileDescriptor, long bufferLength) {
+			}
+		};
+
+		Producer prod = new Producer(new LoggerXML(new LoggerType()));
+		try {
+			prod.jalpLog("buffer");
+			fail("The invalid metadata should not have been sent");
+		} catch (MarshalException e) {
+			// expected
+		}
+		assertEquals(1, prod.getValidationMetrics().getFailures());
+		assertEquals(0, prod.getValidationMetrics().getValidated());
+
+		prod.setValidationPolicy(ValidationPolicy.OFF);
+		prod.jalpLog("buffer");
+		assertEquals(1, prod.getValidationMetrics().getSkipped());
+		assertEquals(1, prod.getValidationMetrics().getFailures());
+	}
+}
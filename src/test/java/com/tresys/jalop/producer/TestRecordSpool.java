@@ -0,0 +1,407 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.producer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import mockit.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.etsy.net.UnixDomainSocket;
+import com.etsy.net.UnixDomainSocketClient;
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+import com.tresys.jalop.common.JALException;
+import com.tresys.jalop.common.SendUtils;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
+
+/**
+ * Tests for the write-ahead spool.
+ */
+public class TestRecordSpool {
+
+	private File directory;
+	private Producer producer;
+	private List<byte[]> sent;
+	private volatile boolean storeDown;
+	private List<RecordSpool> opened;
+
+	@Before
+	public void setup() throws Exception {
+		directory = File.createTempFile("jalop-spool", "");
+		directory.delete();
+		producer = new Producer();
+		sent = Collections.synchronizedList(new ArrayList<byte[]>());
+		storeDown = false;
+		opened = new ArrayList<RecordSpool>();
+
+		new MockUp<UnixDomainSocketClient>() {
+			@Mock
+			public void $init(String socketFile, int socketType) {
+			}
+		};
+		new MockUp<UnixDomainSocket>() {
+			@Mock
+			public void close() {
+			}
+
+			@Mock
+			public boolean isPeerClosed() {
+				return false;
+			}
+		};
+		new MockUp<SendUtils>() {
+			@Mock
+			public void sendEncodedRecord(ByteBuffer record, UnixDomainSocketClient socket) throws IOException {
+				if(storeDown) {
+					throw new IOException("Broken pipe");
+				}
+				byte[] bytes = new byte[record.remaining()];
+				record.get(bytes);
+				sent.add(bytes);
+			}
+		};
+	}
+
+	@After
+	public void teardown() {
+		for(RecordSpool spool : opened) {
+			spool.close();
+		}
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testAppendedRecordsAreReplayedInOrder() throws Exception {
+		RecordSpool spool = open(4096, 64 * 1024);
+		for(int i = 0; i < 50; i++) {
+			append(spool, "record " + i);
+		}
+
+		assertTrue(spool.awaitEmpty(10000));
+		assertEquals(50, sent.size());
+		for(int i = 0; i < 50; i++) {
+			assertArrayEquals(encode("record " + i), sent.get(i));
+		}
+		assertEquals(50, spool.getAppendedCount());
+		assertEquals(50, spool.getReplayedCount());
+		assertEquals(0, spool.getPendingBytes());
+	}
+
+	@Test
+	public void testRecordsSurviveRestartWhileStoreIsDown() throws Exception {
+		storeDown = true;
+		RecordSpool spool = open(4096, 64 * 1024);
+		for(int i = 0; i < 3; i++) {
+			append(spool, "audit " + i);
+		}
+		spool.close();
+		assertEquals(0, sent.size());
+
+		RecordSpool reopened = open(4096, 64 * 1024);
+		assertEquals(3, reopened.getPendingRecords());
+		storeDown = false;
+		assertTrue(reopened.awaitEmpty(10000));
+		assertEquals(3, sent.size());
+		assertArrayEquals(encode("audit 0"), sent.get(0));
+		assertArrayEquals(encode("audit 2"), sent.get(2));
+	}
+
+	@Test
+	public void testReplayedRecordsAreNotSentAgain() throws Exception {
+		RecordSpool spool = open(4096, 64 * 1024);
+		append(spool, "first");
+		assertTrue(spool.awaitEmpty(10000));
+		storeDown = true;
+		append(spool, "second");
+		spool.close();
+
+		RecordSpool reopened = open(4096, 64 * 1024);
+		assertEquals(1, reopened.getPendingRecords());
+		storeDown = false;
+		assertTrue(reopened.awaitEmpty(10000));
+		assertEquals(2, sent.size());
+		assertArrayEquals(encode("second"), sent.get(1));
+	}
+
+	@Test
+	public void testTornRecordIsDroppedOnRecovery() throws Exception {
+		storeDown = true;
+		RecordSpool spool = open(4096, 64 * 1024);
+		append(spool, "complete");
+		append(spool, "torn");
+		spool.close();
+
+		File segment = directory.listFiles(new java.io.FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".seg");
+			}
+		})[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		long second = 8 + 8 + encode("complete").length;
+		raf.seek(second + 8 + 25);
+		raf.write('X');
+		raf.close();
+
+		RecordSpool reopened = open(4096, 64 * 1024);
+		assertEquals(1, reopened.getPendingRecords());
+		storeDown = false;
+		assertTrue(reopened.awaitEmpty(10000));
+		assertEquals(1, sent.size());
+		assertArrayEquals(encode("complete"), sent.get(0));
+	}
+
+	@Test
+	public void testRecordBeingAppendedAtCrashIsSkippedOnRecovery() throws Exception {
+		storeDown = true;
+		RecordSpool spool = open(4096, 64 * 1024);
+		append(spool, "complete");
+		append(spool, "in flight");
+		append(spool, "published later");
+		spool.close();
+
+		// Put the second slot back the way append leaves it while the record
+		// is still being encoded: a negative length and a CRC of 0.
+		File segment = directory.listFiles(new java.io.FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".seg");
+			}
+		})[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		long second = 8 + 8 + encode("complete").length;
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putInt(-encode("in flight").length).putInt(0);
+		raf.seek(second);
+		raf.write(header.array());
+		raf.close();
+
+		RecordSpool reopened = open(4096, 64 * 1024);
+		assertEquals(2, reopened.getPendingRecords());
+		storeDown = false;
+		assertTrue(reopened.awaitEmpty(10000));
+		assertEquals(2, sent.size());
+		assertArrayEquals(encode("complete"), sent.get(0));
+		assertArrayEquals(encode("published later"), sent.get(1));
+	}
+
+	@Test
+	public void testFullSpoolRejectsRecords() throws Exception {
+		storeDown = true;
+		RecordSpool spool = open(1024, 2048);
+		String payload = new String(new char[600]).replace('\0', 'a');
+		append(spool, payload);
+		append(spool, payload);
+		try {
+			append(spool, payload);
+			fail("Expected the spool to be full");
+		} catch (JALException e) {
+			// expected
+		}
+		assertEquals(1, spool.getRejectedCount());
+		assertEquals(2048, spool.getDiskUsage());
+		assertEquals(2, spool.getPendingRecords());
+	}
+
+	@Test
+	public void testSlowPayloadDoesNotHoldUpOtherAppends() throws Exception {
+		final RecordSpool spool = open(4096, 64 * 1024);
+		final CountDownLatch reading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final byte[] slow = "slow".getBytes("UTF-8");
+		final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+		Thread slowAppender = new Thread() {
+			public void run() {
+				try {
+					spool.append(MessageType.JALP_AUDIT_MSG, new ByteArrayInputStream(slow) {
+						public synchronized int read(byte[] b, int off, int len) {
+							reading.countDown();
+							try {
+								release.await();
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+							}
+							return super.read(b, off, len);
+						}
+					}, slow.length, null);
+				} catch (Exception e) {
+					failures.add(e);
+				}
+			}
+		};
+		slowAppender.start();
+		assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+		Thread fastAppender = new Thread() {
+			public void run() {
+				try {
+					append(spool, "fast");
+				} catch (Exception e) {
+					failures.add(e);
+				}
+			}
+		};
+		fastAppender.start();
+		fastAppender.join(10000);
+		assertFalse(fastAppender.isAlive());
+		assertEquals(1, spool.getAppendedCount());
+
+		// The fast record waits behind the one still being written.
+		Thread.sleep(100);
+		assertEquals(0, sent.size());
+
+		release.countDown();
+		slowAppender.join(10000);
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertTrue(spool.awaitEmpty(10000));
+		assertEquals(2, sent.size());
+		assertArrayEquals(encode("slow"), sent.get(0));
+		assertArrayEquals(encode("fast"), sent.get(1));
+	}
+
+	@Test
+	public void testRecordWithUnreadablePayloadIsSkipped() throws Exception {
+		storeDown = true;
+		RecordSpool spool = open(4096, 64 * 1024);
+		append(spool, "before");
+		try {
+			spool.append(MessageType.JALP_AUDIT_MSG, new InputStream() {
+				public int read() throws IOException {
+					throw new IOException("unreadable");
+				}
+			}, 10, null);
+			fail("Expected the payload to fail");
+		} catch (IOException e) {
+			// expected
+		}
+		append(spool, "after");
+		assertEquals(2, spool.getPendingRecords());
+		spool.close();
+
+		RecordSpool reopened = open(4096, 64 * 1024);
+		assertEquals(2, reopened.getPendingRecords());
+		storeDown = false;
+		assertTrue(reopened.awaitEmpty(10000));
+		append(reopened, "last");
+		assertTrue(reopened.awaitEmpty(10000));
+		assertEquals(3, sent.size());
+		assertArrayEquals(encode("before"), sent.get(0));
+		assertArrayEquals(encode("after"), sent.get(1));
+		assertArrayEquals(encode("last"), sent.get(2));
+	}
+
+	@Test
+	public void testReplayedSegmentsAreReused() throws Exception {
+		RecordSpool spool = open(1024, 4096);
+		String payload = new String(new char[600]).replace('\0', 'a');
+		for(int i = 0; i < 20; i++) {
+			append(spool, payload + i);
+			assertTrue(spool.awaitEmpty(10000));
+		}
+		assertEquals(20, sent.size());
+		assertArrayEquals(encode(payload + 19), sent.get(19));
+		// The current segment and one spare
+		assertEquals(2048, spool.getDiskUsage());
+		assertTrue(new File(directory, "spare").exists());
+		spool.close();
+
+		storeDown = true;
+		RecordSpool reopened = open(1024, 4096);
+		assertEquals(0, reopened.getPendingRecords());
+		assertEquals(2048, reopened.getDiskUsage());
+		append(reopened, "after restart");
+		append(reopened, payload);
+		assertEquals(2048, reopened.getDiskUsage());
+		reopened.close();
+
+		reopened = open(1024, 4096);
+		assertEquals(2, reopened.getPendingRecords());
+		storeDown = false;
+		assertTrue(reopened.awaitEmpty(10000));
+		assertEquals(22, sent.size());
+		assertArrayEquals(encode("after restart"), sent.get(20));
+		assertArrayEquals(encode(payload), sent.get(21));
+	}
+
+	@Test
+	public void testProducerAppendsToSpool() throws Exception {
+		storeDown = true;
+		RecordSpool spool = open(4096, 64 * 1024);
+		producer.setSpool(spool);
+		producer.jalpAudit(new LoggerXML(new LoggerType()), "audit record");
+
+		assertEquals(1, spool.getPendingRecords());
+		for(int i = 0; i < 100 && spool.getReplayFailureCount() == 0; i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(spool.getReplayFailureCount() > 0);
+		assertEquals(0, sent.size());
+
+		storeDown = false;
+		assertTrue(spool.awaitEmpty(10000));
+		assertEquals(1, sent.size());
+	}
+
+	private RecordSpool open(int segmentSize, long maxSize) throws Exception {
+		RecordSpool spool = new RecordSpool(producer, directory, segmentSize, maxSize);
+		opened.add(spool);
+		return spool;
+	}
+
+	private static void append(RecordSpool spool, String payload) throws Exception {
+		byte[] bytes = payload.getBytes("UTF-8");
+		spool.append(MessageType.JALP_AUDIT_MSG, new ByteArrayInputStream(bytes), bytes.length, null);
+	}
+
+	private static byte[] encode(String payload) throws Exception {
+		byte[] bytes = payload.getBytes("UTF-8");
+		ByteBuffer buffer = ByteBuffer.allocate((int) SendUtils.encodedLength(bytes.length, 0));
+		SendUtils.encodeRecord(MessageType.JALP_AUDIT_MSG, bytes.length, new ByteArrayInputStream(bytes), null, buffer);
+		return buffer.array();
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tresys.jalop.producer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Tests for the RingBuffer class.
+ */
+public class TestRingBuffer {
+
+	@Test
+	public void testCapacityIsRoundedToPowerOfTwo() {
+		assertEquals(1, new RingBuffer<String>(1).capacity());
+		assertEquals(8, new RingBuffer<String>(5).capacity());
+		assertEquals(1024, new RingBuffer<String>(1024).capacity());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroCapacityThrowsException() {
+		new RingBuffer<String>(0);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testOfferNullThrowsException() {
+		new RingBuffer<String>(4).offer(null);
+	}
+
+	@Test
+	public void testOfferAndPollAreFifo() {
+		RingBuffer<String> rb = new RingBuffer<String>(4);
+		assertTrue(rb.isEmpty());
+		assertNull(rb.poll());
+		assertTrue(rb.offer("a"));
+		assertTrue(rb.offer("b"));
+		assertEquals(2, rb.size());
+		assertEquals("a", rb.poll());
+		assertEquals("b", rb.poll());
+		assertNull(rb.poll());
+		assertTrue(rb.isEmpty());
+	}
+
+	@Test
+	public void testOfferFailsWhenFull() {
+		RingBuffer<Integer> rb = new RingBuffer<Integer>(4);
+		for(int i = 0; i < 4; i++) {
+			assertTrue(rb.offer(i));
+		}
+		assertFalse(rb.offer(4));
+		assertEquals(Integer.valueOf(0), rb.poll());
+		assertTrue(rb.offer(4));
+		for(int i = 1; i <= 4; i++) {
+			assertEquals(Integer.valueOf(i), rb.poll());
+		}
+	}
+
+	@Test
+	public void testConcurrentProducersLoseNothing() throws Exception {
+		final RingBuffer<Integer> rb = new RingBuffer<Integer>(64);
+		final int threads = 4;
+		final int perThread = 10000;
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] producers = new Thread[threads];
+		for(int t = 0; t < threads; t++) {
+			final int base = t * perThread;
+			producers[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for(int i = 0; i < perThread; i++) {
+						while(!rb.offer(base + i)) {
+							Thread.yield();
+						}
+					}
+				}
+			};
+			producers[t].start();
+		}
+
+		boolean[] seen = new boolean[threads * perThread];
+		int[] last = new int[threads];
+		for(int t = 0; t < threads; t++) {
+			last[t] = -1;
+		}
+		start.countDown();
+		int received = 0;
+		while(received < seen.length) {
+			Integer value = rb.poll();
+			if(value == null) {
+				Thread.yield();
+				continue;
+			}
+			assertFalse(seen[value]);
+			seen[value] = true;
+			int producer = value / perThread;
+			assertTrue(value % perThread > last[producer]);
+			last[producer] = value % perThread;
+			received++;
+		}
+		for(Thread t : producers) {
+			t.join();
+		}
+		assertTrue(rb.isEmpty());
+	}
+}
@@ -37,6 +37,7 @@ import mockit.*;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.tresys.jalop.common.RecordIdentity;
 import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.SyslogType;
 
 /**
@@ -94,6 +95,7 @@ public class TestSyslogXML {
 				throw new DatatypeConfigurationException();
 			}
 		};
+		RecordIdentity.clear();
 		syslogXML.prepareSend("host name", "application name");
 	}
 
@@ -0,0 +1,420 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.receiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.etsy.net.JUDS;
+import com.etsy.net.UnixDomainSocket;
+import com.etsy.net.UnixDomainSocketClient;
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+import com.tresys.jalop.common.ForeignUnixSocket;
+import com.tresys.jalop.common.SendUtils;
+import com.tresys.jalop.common.UnixSocketChannels;
+import com.tresys.jalop.producer.ConnectionPool;
+import com.tresys.jalop.producer.LoggerXML;
+import com.tresys.jalop.producer.Producer;
+import com.tresys.jalop.producer.Transport;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
+
+/**
+ * Tests for the Receiver and StandInStore, with a Producer sending on a real socket.
+ */
+public class TestReceiver {
+
+	private File dir;
+	private String socketFile;
+
+	@Before
+	public void setup() throws Exception {
+		dir = File.createTempFile("jalop-receiver", "");
+		dir.delete();
+		dir.mkdir();
+		socketFile = new File(dir, "jalop.sock").getPath();
+	}
+
+	@After
+	public void cleanup() {
+		for(File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testReceivesRecordsAndPassedDescriptors() throws Exception {
+		final List<TestRecordDecoder.Collector> collectors = new CopyOnWriteArrayList<TestRecordDecoder.Collector>();
+		Receiver receiver = new Receiver(socketFile, new RecordHandlerFactory() {
+			public RecordHandler newHandler() {
+				TestRecordDecoder.Collector collector = new TestRecordDecoder.Collector();
+				collectors.add(collector);
+				return collector;
+			}
+		});
+		receiver.start();
+
+		File payload = new File(dir, "payload");
+		FileOutputStream out = new FileOutputStream(payload);
+		out.write("journal by descriptor".getBytes("UTF-8"));
+		out.close();
+
+		Producer producer = new Producer(new LoggerXML(new LoggerType()));
+		producer.setSocketFile(socketFile);
+		try {
+			producer.jalpLog("log entry");
+			producer.jalpJournalFD(payload);
+			producer.jalpJournal("journal entry");
+			waitForRecords(receiver, 3);
+		} finally {
+			producer.getConnectionPool().close();
+			receiver.close();
+		}
+
+		assertEquals(1, collectors.size());
+		TestRecordDecoder.Collector collector = collectors.get(0);
+		assertEquals(MessageType.JALP_LOG_MSG, collector.types.get(0));
+		assertEquals(MessageType.JALP_JOURNAL_FD_MSG, collector.types.get(1));
+		assertEquals(MessageType.JALP_JOURNAL_MSG, collector.types.get(2));
+		assertArrayEquals("log entry".getBytes("UTF-8"), collector.payloads.get(0));
+		assertArrayEquals("journal entry".getBytes("UTF-8"), collector.payloads.get(2));
+		assertTrue(new String(collector.metadata.get(0), "UTF-8").contains("ApplicationMetadata"));
+
+		assertNotNull(collector.fds.get(1));
+		DataInputStream in = new DataInputStream(new FileInputStream(collector.fds.get(1)));
+		byte[] passed = new byte[(int) payload.length()];
+		in.readFully(passed);
+		in.close();
+		assertArrayEquals("journal by descriptor".getBytes("UTF-8"), passed);
+		assertEquals(0, receiver.getErrorCount());
+	}
+
+	@Test
+	public void testPassedDescriptorsAreNotLeaked() throws Exception {
+		File fdDir = new File("/proc/self/fd");
+		assumeTrue(fdDir.isDirectory());
+		final List<TestRecordDecoder.Collector> collectors = new CopyOnWriteArrayList<TestRecordDecoder.Collector>();
+		Receiver receiver = new Receiver(socketFile, new RecordHandlerFactory() {
+			public RecordHandler newHandler() {
+				TestRecordDecoder.Collector collector = new TestRecordDecoder.Collector();
+				collectors.add(collector);
+				return collector;
+			}
+		});
+		receiver.start();
+
+		File payload = new File(dir, "payload");
+		FileOutputStream out = new FileOutputStream(payload);
+		out.write("journal by descriptor".getBytes("UTF-8"));
+		out.close();
+
+		Producer producer = new Producer(new LoggerXML(new LoggerType()));
+		producer.setSocketFile(socketFile);
+		byte[] meta = "meta".getBytes("UTF-8");
+		int records = 50;
+		int before = fdDir.list().length;
+		UnixDomainSocketClient socket = new UnixDomainSocketClient(socketFile, JUDS.SOCK_STREAM);
+		try {
+			for(int i = 0; i < records; i++) {
+				producer.jalpJournalFD(payload);
+				FileInputStream fileStream = new FileInputStream(payload);
+				try {
+					producer.jalpJournalFD(fileStream);
+				} finally {
+					fileStream.close();
+				}
+				// Sent by path, so the native library opens the file itself.
+				SendUtils.createAndSendHeaders(MessageType.JALP_JOURNAL_FD_MSG, payload.length(), meta.length, null, payload, meta, socket);
+			}
+			waitForRecords(receiver, 3 * records);
+		} finally {
+			socket.close();
+			producer.getConnectionPool().close();
+			receiver.close();
+		}
+
+		for(TestRecordDecoder.Collector collector : collectors) {
+			for(FileDescriptor fd : collector.fds) {
+				assertNotNull(fd);
+				DataInputStream in = new DataInputStream(new FileInputStream(fd));
+				byte[] passed = new byte[(int) payload.length()];
+				in.readFully(passed);
+				in.close();
+				assertArrayEquals("journal by descriptor".getBytes("UTF-8"), passed);
+			}
+		}
+		// Only the sockets may still be open, not a descriptor per record.
+		assertTrue(fdDir.list().length < before + 10);
+		assertEquals(0, receiver.getErrorCount());
+	}
+
+	@Test
+	public void testLargeJournalBuffersArePassedInSealedMemoryFiles() throws Exception {
+		FileDescriptor probe = UnixDomainSocket.createSealedMemfd("probe", new byte[0], 0, 0);
+		assumeTrue(probe != null);
+		new FileInputStream(probe).close();
+
+		final List<TestRecordDecoder.Collector> collectors = new CopyOnWriteArrayList<TestRecordDecoder.Collector>();
+		Receiver receiver = new Receiver(socketFile, new RecordHandlerFactory() {
+			public RecordHandler newHandler() {
+				TestRecordDecoder.Collector collector = new TestRecordDecoder.Collector();
+				collectors.add(collector);
+				return collector;
+			}
+		});
+		receiver.start();
+
+		StringBuilder large = new StringBuilder();
+		while(large.length() < 200000) {
+			large.append("journal entry ");
+		}
+
+		Producer producer = new Producer(new LoggerXML(new LoggerType()));
+		producer.setSocketFile(socketFile);
+		producer.setMemfdThreshold(64 * 1024);
+		try {
+			producer.jalpJournal("small journal entry");
+			producer.jalpJournal(large.toString());
+			waitForRecords(receiver, 2);
+		} finally {
+			producer.getConnectionPool().close();
+			receiver.close();
+		}
+
+		TestRecordDecoder.Collector collector = collectors.get(0);
+		assertEquals(MessageType.JALP_JOURNAL_MSG, collector.types.get(0));
+		assertArrayEquals("small journal entry".getBytes("UTF-8"), collector.payloads.get(0));
+		assertEquals(MessageType.JALP_JOURNAL_FD_MSG, collector.types.get(1));
+		assertTrue(new String(collector.metadata.get(1), "UTF-8").contains("ApplicationMetadata"));
+
+		FileDescriptor fd = collector.fds.get(1);
+		assertNotNull(fd);
+		FileOutputStream writer = new FileOutputStream(fd);
+		try {
+			writer.write('x');
+			fail("The memory file should be sealed against writes");
+		} catch (IOException e) {
+			// expected
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(fd));
+		byte[] passed = new byte[large.length()];
+		in.readFully(passed);
+		assertEquals(-1, in.read());
+		in.close();
+		assertArrayEquals(large.toString().getBytes("UTF-8"), passed);
+		assertEquals(0, receiver.getErrorCount());
+	}
+
+	@Test
+	public void testForeignSocketPassesDescriptors() throws Exception {
+		assumeTrue(ForeignUnixSocket.isAvailable());
+		final List<TestRecordDecoder.Collector> collectors = new CopyOnWriteArrayList<TestRecordDecoder.Collector>();
+		Receiver receiver = new Receiver(socketFile, new RecordHandlerFactory() {
+			public RecordHandler newHandler() {
+				TestRecordDecoder.Collector collector = new TestRecordDecoder.Collector();
+				collectors.add(collector);
+				return collector;
+			}
+		});
+		receiver.start();
+
+		File payload = new File(dir, "payload");
+		FileOutputStream out = new FileOutputStream(payload);
+		out.write("journal by descriptor".getBytes("UTF-8"));
+		out.close();
+		byte[] meta = "meta".getBytes("UTF-8");
+
+		ForeignUnixSocket socket = ForeignUnixSocket.connect(socketFile);
+		try {
+			SendUtils.createAndSendHeaders(MessageType.JALP_JOURNAL_FD_MSG, payload.length(), meta.length, null, payload, meta, socket);
+			FileInputStream fis = new FileInputStream(payload);
+			try {
+				SendUtils.createAndSendHeaders(MessageType.JALP_JOURNAL_MSG, payload.length(), meta.length, fis, null, meta, socket);
+			} finally {
+				fis.close();
+			}
+			waitForRecords(receiver, 2);
+		} finally {
+			socket.close();
+			receiver.close();
+		}
+
+		TestRecordDecoder.Collector collector = collectors.get(0);
+		assertEquals(MessageType.JALP_JOURNAL_FD_MSG, collector.types.get(0));
+		assertEquals(MessageType.JALP_JOURNAL_MSG, collector.types.get(1));
+		assertArrayEquals(meta, collector.metadata.get(0));
+		assertArrayEquals("journal by descriptor".getBytes("UTF-8"), collector.payloads.get(1));
+
+		assertNotNull(collector.fds.get(0));
+		DataInputStream in = new DataInputStream(new FileInputStream(collector.fds.get(0)));
+		byte[] passed = new byte[(int) payload.length()];
+		in.readFully(passed);
+		in.close();
+		assertArrayEquals("journal by descriptor".getBytes("UTF-8"), passed);
+		assertEquals(0, receiver.getErrorCount());
+	}
+
+	@Test
+	public void testStandInStoreCountsConcurrentProducers() throws Exception {
+		StandInStore store = new StandInStore(socketFile);
+		store.start();
+
+		final Producer producer = new Producer(new LoggerXML(new LoggerType()));
+		producer.setSocketFile(socketFile);
+		producer.setPoolSize(4);
+		Thread[] threads = new Thread[4];
+		final int perThread = 25;
+		final List<Exception> failures = new CopyOnWriteArrayList<Exception>();
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for(int j = 0; j < perThread; j++) {
+							producer.jalpLog("entry " + j);
+						}
+					} catch (Exception e) {
+						failures.add(e);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		try {
+			for(Thread t : threads) {
+				t.join();
+			}
+			assertTrue(failures.toString(), failures.isEmpty());
+			waitForRecords(store.getReceiver(), threads.length * perThread);
+		} finally {
+			producer.getConnectionPool().close();
+			store.close();
+		}
+
+		assertEquals(threads.length * perThread, store.getRecordCount(MessageType.JALP_LOG_MSG));
+		assertTrue(store.getReceiver().getAcceptedCount() > 1);
+		assertTrue(store.getMetadataBytes() > 0);
+		assertTrue(store.getPayloadBytes() > 0);
+		assertEquals(0, store.getReceiver().getErrorCount());
+	}
+
+	@Test
+	public void testProducerReconnectsAfterStoreRestarts() throws Exception {
+		sendAcrossStoreRestart(Transport.JUDS);
+	}
+
+	@Test
+	public void testNioProducerReconnectsAfterStoreRestarts() throws Exception {
+		assumeTrue(UnixSocketChannels.isAvailable());
+		sendAcrossStoreRestart(Transport.NIO);
+	}
+
+	/*
+	 * Sends a record, restarts the store, and sends another one. Acquiring a
+	 * lane must notice that the store closed its connection, so the second
+	 * record goes out on a new connection instead of failing.
+	 */
+	private void sendAcrossStoreRestart(Transport transport) throws Exception {
+		Producer producer = new Producer(new LoggerXML(new LoggerType()));
+		producer.setSocketFile(socketFile);
+		producer.setTransport(transport);
+		ConnectionPool pool = producer.getConnectionPool();
+
+		StandInStore store = new StandInStore(socketFile);
+		store.start();
+		try {
+			producer.jalpLog("before restart");
+			waitForRecords(store.getReceiver(), 1);
+		} finally {
+			store.close();
+		}
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while(pool.getConnectedCount() > 0 && System.currentTimeMillis() < deadline) {
+			pool.acquire().release();
+			Thread.sleep(10);
+		}
+		assertEquals(0, pool.getConnectedCount());
+
+		store = new StandInStore(socketFile);
+		store.start();
+		try {
+			producer.jalpLog("after restart");
+			waitForRecords(store.getReceiver(), 1);
+		} finally {
+			pool.close();
+			store.close();
+		}
+		assertEquals(0, store.getReceiver().getErrorCount());
+	}
+
+	@Test
+	public void testConnectionBreakingProtocolIsClosed() throws Exception {
+		Receiver receiver = new Receiver(socketFile, new RecordHandlerFactory() {
+			public RecordHandler newHandler() {
+				return new TestRecordDecoder.Collector();
+			}
+		});
+		receiver.start();
+		try {
+			UnixDomainSocketClient client = new UnixDomainSocketClient(socketFile, JUDS.SOCK_STREAM);
+			client.getOutputStream().write(new byte[] { 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9 });
+			long deadline = System.currentTimeMillis() + 5000;
+			while(receiver.getErrorCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			client.close();
+			assertEquals(1, receiver.getErrorCount());
+			assertEquals(0, receiver.getRecordCount());
+		} finally {
+			receiver.close();
+		}
+	}
+
+	private static void waitForRecords(Receiver receiver, long count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(receiver.getRecordCount() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, receiver.getRecordCount());
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.receiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.tresys.jalop.common.ConnectionHeader;
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+import com.tresys.jalop.common.JALException;
+import com.tresys.jalop.common.SendUtils;
+
+/**
+ * Tests for the incremental record decoder.
+ */
+public class TestRecordDecoder {
+
+	@Test
+	public void testDecodesRecordsInAnyPieces() throws Exception {
+		byte[] stream = concat(encode(MessageType.JALP_LOG_MSG, "payload one", "<meta/>"),
+				encode(MessageType.JALP_JOURNAL_MSG, "", "<journal/>"),
+				encode(MessageType.JALP_AUDIT_MSG, "<audit/>", null));
+
+		for(int pieceSize : new int[] { 1, 3, 7, 20, stream.length }) {
+			Collector collector = new Collector();
+			RecordDecoder decoder = new RecordDecoder(collector);
+			for(int i = 0; i < stream.length; i += pieceSize) {
+				decoder.decode(ByteBuffer.wrap(stream, i, Math.min(pieceSize, stream.length - i)));
+			}
+			decoder.finish();
+
+			assertEquals(3, decoder.getRecordCount());
+			assertEquals(3, collector.ended);
+			assertEquals(MessageType.JALP_LOG_MSG, collector.types.get(0));
+			assertEquals(MessageType.JALP_JOURNAL_MSG, collector.types.get(1));
+			assertEquals(MessageType.JALP_AUDIT_MSG, collector.types.get(2));
+			assertArrayEquals(bytes("payload one"), collector.payloads.get(0));
+			assertArrayEquals(bytes(""), collector.payloads.get(1));
+			assertArrayEquals(bytes("<audit/>"), collector.payloads.get(2));
+			assertArrayEquals(bytes("<meta/>"), collector.metadata.get(0));
+			assertArrayEquals(bytes("<journal/>"), collector.metadata.get(1));
+			assertArrayEquals(bytes(""), collector.metadata.get(2));
+		}
+	}
+
+	@Test
+	public void testFdRecordTakesQueuedDescriptor() throws Exception {
+		byte[] meta = bytes("<fd/>");
+		ByteBuffer buffer = ByteBuffer.allocate(ConnectionHeader.ENCODED_LENGTH + meta.length + 5);
+		new ConnectionHeader((short) 1, MessageType.JALP_JOURNAL_FD_MSG, 4096, meta.length).encode(buffer);
+		buffer.put(meta).put(bytes(SendUtils.JALP_BREAK_STR)).flip();
+
+		Collector collector = new Collector();
+		RecordDecoder decoder = new RecordDecoder(collector);
+		FileDescriptor fd = new FileDescriptor();
+		decoder.addDescriptor(fd);
+		decoder.decode(buffer);
+
+		assertEquals(1, decoder.getRecordCount());
+		assertEquals(fd, collector.fds.get(0));
+		assertEquals(4096, collector.headers.get(0).getDataLen());
+		assertArrayEquals(meta, collector.metadata.get(0));
+		assertArrayEquals(new byte[0], collector.payloads.get(0));
+		assertTrue(decoder.isBetweenRecords());
+	}
+
+	@Test(expected = JALException.class)
+	public void testFdRecordWithoutDescriptorThrowsException() throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(ConnectionHeader.ENCODED_LENGTH);
+		new ConnectionHeader((short) 1, MessageType.JALP_JOURNAL_FD_MSG, 1, 0).encode(buffer).flip();
+		new RecordDecoder(new Collector()).decode(buffer);
+	}
+
+	@Test
+	public void testMissingBreakThrowsException() throws Exception {
+		byte[] record = encode(MessageType.JALP_LOG_MSG, "abc", "<m/>");
+		record[ConnectionHeader.ENCODED_LENGTH + 3] = 'X';
+		Collector collector = new Collector();
+		RecordDecoder decoder = new RecordDecoder(collector);
+		try {
+			decoder.decode(ByteBuffer.wrap(record));
+			fail("The missing BREAK should have been found");
+		} catch (JALException e) {
+			// expected
+		}
+		assertEquals(0, collector.ended);
+		try {
+			decoder.decode(ByteBuffer.wrap(encode(MessageType.JALP_LOG_MSG, "abc", null)));
+			fail("The decoder should not be usable after an error");
+		} catch (JALException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = JALException.class)
+	public void testUnsupportedVersionThrowsException() throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(ConnectionHeader.ENCODED_LENGTH);
+		new ConnectionHeader((short) 2, MessageType.JALP_LOG_MSG, 0, 0).encode(buffer).flip();
+		new RecordDecoder(new Collector()).decode(buffer);
+	}
+
+	@Test
+	public void testLengthsOverTheLimitThrowException() throws Exception {
+		byte[] record = encode(MessageType.JALP_LOG_MSG, "0123456789", "<m/>");
+		try {
+			new RecordDecoder(new Collector(), 9, 100).decode(ByteBuffer.wrap(record));
+			fail("The payload length should have been rejected");
+		} catch (JALException e) {
+			// expected
+		}
+		try {
+			new RecordDecoder(new Collector(), 100, 3).decode(ByteBuffer.wrap(record));
+			fail("The metadata length should have been rejected");
+		} catch (JALException e) {
+			// expected
+		}
+
+		ByteBuffer negative = ByteBuffer.allocate(ConnectionHeader.ENCODED_LENGTH).order(ByteOrder.nativeOrder());
+		negative.putShort((short) 1).putShort((short) 1).putLong(-1).putLong(0).flip();
+		try {
+			new RecordDecoder(new Collector()).decode(negative);
+			fail("The negative length should have been rejected");
+		} catch (JALException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testFinishThrowsExceptionPartWayThroughRecord() throws Exception {
+		byte[] record = encode(MessageType.JALP_LOG_MSG, "abc", "<m/>");
+		RecordDecoder decoder = new RecordDecoder(new Collector());
+		decoder.decode(ByteBuffer.wrap(record, 0, record.length - 1));
+		assertFalse(decoder.isBetweenRecords());
+		try {
+			decoder.finish();
+			fail("The partial record should have been found");
+		} catch (JALException e) {
+			// expected
+		}
+	}
+
+	private static byte[] encode(MessageType type, String payload, String meta) throws Exception {
+		byte[] data = bytes(payload);
+		byte[] metaBytes = meta == null ? null : bytes(meta);
+		ByteBuffer buffer = ByteBuffer.allocate((int) SendUtils.encodedLength(data.length, metaBytes == null ? 0 : metaBytes.length));
+		SendUtils.encodeRecord(type, data.length, new ByteArrayInputStream(data), metaBytes, buffer);
+		return buffer.array();
+	}
+
+	private static byte[] concat(byte[]... arrays) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for(byte[] array : arrays) {
+			out.write(array, 0, array.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] bytes(String s) throws Exception {
+		return s.getBytes("UTF-8");
+	}
+
+	/**
+	 * Keeps every record it is given.
+	 */
+	static class Collector implements RecordHandler {
+		final List<ConnectionHeader> headers = new ArrayList<ConnectionHeader>();
+		final List<MessageType> types = new ArrayList<MessageType>();
+		final List<FileDescriptor> fds = new ArrayList<FileDescriptor>();
+		final List<byte[]> payloads = new ArrayList<byte[]>();
+		final List<byte[]> metadata = new ArrayList<byte[]>();
+		int ended;
+		private ByteArrayOutputStream payload;
+		private ByteArrayOutputStream meta;
+
+		public void startRecord(ConnectionHeader header, FileDescriptor fd) {
+			assertNull(payload);
+			headers.add(header);
+			types.add(MessageType.fromType(header.getMessageType()));
+			fds.add(fd);
+			payload = new ByteArrayOutputStream();
+			meta = new ByteArrayOutputStream();
+		}
+
+		public void payload(ByteBuffer data) {
+			byte[] b = new byte[data.remaining()];
+			data.get(b);
+			payload.write(b, 0, b.length);
+		}
+
+		public void metadata(ByteBuffer data) {
+			byte[] b = new byte[data.remaining()];
+			data.get(b);
+			meta.write(b, 0, b.length);
+		}
+
+		public void endRecord() {
+			payloads.add(payload.toByteArray());
+			metadata.add(meta.toByteArray());
+			payload = null;
+			meta = null;
+			ended++;
+		}
+	}
+}
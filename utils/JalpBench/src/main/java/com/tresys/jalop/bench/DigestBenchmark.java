@@ -0,0 +1,93 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+import com.tresys.jalop.common.JALUtils.DMType;
+import com.tresys.jalop.producer.LoggerXML;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
+
+/**
+ * Benchmarks the digest stages of JALUtils.processSend: digesting the
+ * payload with each DMType, and adding the manifest for the digest to the
+ * application metadata.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DigestBenchmark {
+
+	@Param({ "SHA256", "SHA384", "SHA512" })
+	public DMType dmType;
+
+	@Param({ "100", "10240", "1048576", "104857600", "1073741824" })
+	public long size;
+
+	private Payload payload;
+	private byte[] digest;
+	private LoggerXML xml;
+	private Document doc;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		payload = new Payload(size);
+		digest = Stages.createDigest(payload.open(), dmType);
+		xml = new LoggerXML(new LoggerType());
+		xml.prepareSend("bench-host", "jalpbench");
+	}
+
+	/*
+	 * The manifest is appended to the document, so each one needs a document of its own.
+	 */
+	@Setup(Level.Invocation)
+	public void marshal() throws Exception {
+		doc = xml.marshal(false);
+	}
+
+	@Benchmark
+	public byte[] createDigest() throws Exception {
+		return Stages.createDigest(payload.open(), dmType);
+	}
+
+	@Benchmark
+	public Document createManifest() throws Exception {
+		Stages.createManifest(doc, dmType, digest, MessageType.JALP_JOURNAL_MSG);
+		return doc;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with 1, 2, 4 ... up to --max-threads threads (the
+ * number of processors by default), with the gc profiler for allocation
+ * rates. Every other argument is passed on to JMH, so a run can be narrowed
+ * with a regular expression or -p, e.g.
+ * <pre>
+ * java -jar target/benchmarks.jar --max-threads=8 SendBenchmark -p size=100,1048576
+ * </pre>
+ * Giving -t runs only that thread count. The results of each thread count are
+ * written to jalpbench-&lt;threads&gt;t.json unless -rff is given.
+ */
+public class JalpBench {
+
+	private static final String MAX_THREADS = "--max-threads=";
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		List<String> jmhArgs = new ArrayList<String>();
+		for(String arg : args) {
+			if(arg.startsWith(MAX_THREADS)) {
+				maxThreads = Integer.parseInt(arg.substring(MAX_THREADS.length()));
+			} else {
+				jmhArgs.add(arg);
+			}
+		}
+
+		String[] rest = jmhArgs.toArray(new String[jmhArgs.size()]);
+		CommandLineOptions cli = new CommandLineOptions(rest);
+		if(cli.shouldHelp() || cli.shouldList() || cli.shouldListWithParams()
+				|| cli.shouldListProfilers() || cli.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(rest);
+			return;
+		}
+
+		if(cli.getThreads().hasValue()) {
+			run(cli, cli.getThreads().get());
+			return;
+		}
+		for(int threads = 1; ; threads *= 2) {
+			run(cli, Math.min(threads, maxThreads));
+			if(threads >= maxThreads) {
+				break;
+			}
+		}
+	}
+
+	private static void run(CommandLineOptions cli, int threads) throws Exception {
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cli).threads(threads);
+		if(cli.getProfilers().isEmpty()) {
+			options.addProfiler(GCProfiler.class);
+		}
+		if(!cli.getResult().hasValue()) {
+			options.result("jalpbench-" + threads + "t.json").resultFormat(ResultFormatType.JSON);
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.bench;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+
+import com.tresys.jalop.common.MetadataWriter;
+import com.tresys.jalop.common.SigningEngine;
+import com.tresys.jalop.common.XMLCache;
+import com.tresys.jalop.producer.ApplicationMetadataXML;
+import com.tresys.jalop.producer.LoggerXML;
+import com.tresys.jalop.producer.SyslogXML;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.SyslogType;
+
+/**
+ * Benchmarks the application metadata stages of JALUtils.processSend:
+ * preparing the xml, marshaling it, serializing the document and signing it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MetadataBenchmark {
+
+	private static final String HOST_NAME = "bench-host";
+	private static final String APPLICATION_NAME = "jalpbench";
+
+	@Param({ "logger", "syslog" })
+	public String xmlType;
+
+	private ApplicationMetadataXML xml;
+	private SigningEngine engine;
+	private Document marshaled;
+	private Document unsigned;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		if("logger".equals(xmlType)) {
+			LoggerType logger = new LoggerType();
+			logger.setLoggerName("jalpbench");
+			logger.setMessage("benchmark record");
+			xml = new LoggerXML(logger);
+		} else {
+			SyslogType syslog = new SyslogType();
+			syslog.setEntry("benchmark record");
+			xml = new SyslogXML(syslog);
+		}
+		xml.prepareSend(HOST_NAME, APPLICATION_NAME);
+
+		KeyPair kp = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+		engine = new SigningEngine(kp.getPrivate(), kp.getPublic(), null);
+		marshaled = xml.marshal();
+	}
+
+	/*
+	 * Signing adds to the document, so each signature needs a document of its own.
+	 * Marshaling takes far longer than the timer's resolution, so per invocation
+	 * setup doesn't distort the result.
+	 */
+	@Setup(Level.Invocation)
+	public void marshalUnsigned() throws Exception {
+		unsigned = xml.marshal(false);
+	}
+
+	@Benchmark
+	public ApplicationMetadataXML prepareSend() throws Exception {
+		xml.prepareSend(HOST_NAME, APPLICATION_NAME);
+		return xml;
+	}
+
+	@Benchmark
+	public ApplicationMetadataXML prepareCopy() throws Exception {
+		return xml.prepareCopy(HOST_NAME, APPLICATION_NAME);
+	}
+
+	@Benchmark
+	public Document marshal() throws Exception {
+		return xml.marshal();
+	}
+
+	@Benchmark
+	public Document marshalWithoutValidation() throws Exception {
+		return xml.marshal(false);
+	}
+
+	@Benchmark
+	public byte[] writeMetadata() throws Exception {
+		MetadataWriter writer = XMLCache.getMetadataWriter();
+		writer.writeStartDocument();
+		xml.write(writer);
+		writer.writeEndDocument();
+		return writer.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] toBytes() throws Exception {
+		return Stages.toBytes(marshaled);
+	}
+
+	@Benchmark
+	public Document sign() throws Exception {
+		engine.sign(unsigned, xml.getJID());
+		return unsigned;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Payloads of a given size. Streams repeat one small block instead of
+ * holding the whole payload, so the sizes up to 1GB cost no more memory
+ * than the small ones.
+ */
+public final class Payload {
+
+	private static final int BLOCK_SIZE = 65536;
+
+	private final long size;
+	private final byte[] block;
+
+	/**
+	 * Constructor
+	 *
+	 * @param size	the length of the payload in bytes
+	 */
+	public Payload(long size) {
+		this.size = size;
+		this.block = new byte[(int) Math.min(size, BLOCK_SIZE)];
+		new Random(size).nextBytes(block);
+		// Keep the bytes printable so the same payload can be used as a log or audit buffer.
+		for(int i = 0; i < block.length; i++) {
+			block[i] = (byte) ('a' + (block[i] & 0x0f));
+		}
+	}
+
+	/**
+	 * Gets the length of the payload
+	 *
+	 * @return the size in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Opens a new stream over the payload
+	 *
+	 * @return an InputStream that reads size bytes
+	 */
+	public InputStream open() {
+		return new InputStream() {
+			private long remaining = size;
+
+			public int read() {
+				if(remaining == 0) {
+					return -1;
+				}
+				int b = block[(int) ((size - remaining) % block.length)] & 0xff;
+				remaining--;
+				return b;
+			}
+
+			public int read(byte[] b, int off, int len) {
+				if(remaining == 0) {
+					return -1;
+				}
+				int pos = (int) ((size - remaining) % block.length);
+				int n = (int) Math.min(Math.min(len, block.length - pos), remaining);
+				System.arraycopy(block, pos, b, off, n);
+				remaining -= n;
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * Gets the payload as a String. Only sensible for small sizes.
+	 *
+	 * @return the payload
+	 */
+	public String asString() {
+		if(size > Integer.MAX_VALUE / 2) {
+			throw new IllegalStateException("A payload of " + size + " bytes is too large for a String");
+		}
+		StringBuilder sb = new StringBuilder((int) size);
+		for(long i = 0; i < size; i++) {
+			sb.append((char) block[(int) (i % block.length)]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the payload to a temporary file, which is deleted on exit.
+	 *
+	 * @return the File
+	 * @throws IOException
+	 */
+	public File toFile() throws IOException {
+		File file = File.createTempFile("jalpbench", ".payload");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			for(long written = 0; written < size; written += block.length) {
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
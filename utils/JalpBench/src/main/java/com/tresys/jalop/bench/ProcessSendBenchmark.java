@@ -0,0 +1,122 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.bench;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+import com.tresys.jalop.common.JALUtils.DMType;
+import com.tresys.jalop.producer.LoggerXML;
+import com.tresys.jalop.producer.Producer;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
+
+/**
+ * Benchmarks a whole JALUtils.processSend through a Producer shared by all
+ * of the benchmark's threads, sending to a {@link SocketSink}. The
+ * Producer's pool has a connection per thread.
+ * <p>
+ * The payload is read from a file, so sizes beyond what fits in a String
+ * can be given with -p size=...; the defaults keep the temporary files small.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProcessSendBenchmark {
+
+	@Param({ "JALP_LOG_MSG", "JALP_AUDIT_MSG", "JALP_JOURNAL_MSG", "JALP_JOURNAL_FD_MSG" })
+	public MessageType messageType;
+
+	@Param({ "100", "10240", "1048576" })
+	public long size;
+
+	@Param({ "false", "true" })
+	public boolean signed;
+
+	private SocketSink sink;
+	private Producer producer;
+	private File file;
+
+	@Setup(Level.Trial)
+	public void setup(BenchmarkParams params) throws Exception {
+		sink = new SocketSink();
+		file = new Payload(size).toFile();
+
+		LoggerType logger = new LoggerType();
+		logger.setLoggerName("jalpbench");
+		logger.setMessage("benchmark record");
+		producer = new Producer(new LoggerXML(logger));
+		producer.setHostName("bench-host");
+		producer.setApplicationName("jalpbench");
+		producer.setSocketFile(sink.getSocketFile());
+		producer.setPoolSize(params.getThreads());
+		producer.setDigestMethod(DMType.SHA256);
+		if(signed) {
+			KeyPair kp = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+			producer.setPrivateKey(kp.getPrivate());
+			producer.setPublicKey(kp.getPublic());
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		producer.getConnectionPool().close();
+		sink.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public void processSend() throws Exception {
+		switch(messageType) {
+		case JALP_LOG_MSG:
+			producer.jalpLog(file);
+			break;
+		case JALP_AUDIT_MSG:
+			producer.jalpAudit(file);
+			break;
+		case JALP_JOURNAL_MSG:
+			producer.jalpJournal(file);
+			break;
+		default:
+			producer.jalpJournalFD(file);
+			break;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.bench;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.etsy.net.JUDS;
+import com.etsy.net.UnixDomainSocketClient;
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+import com.tresys.jalop.common.SendUtils;
+import com.tresys.jalop.producer.LoggerXML;
+import com.tresys.jalop.schemas.mil.dod.jalop_1_0.applicationmetadatatypes.LoggerType;
+
+/**
+ * Benchmarks SendUtils.createAndSendHeaders, the framing and writing of a
+ * record, against a {@link SocketSink}. Each thread has its own connection,
+ * as it would with a Producer whose pool has a lane per thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SendBenchmark {
+
+	@Param({ "JALP_LOG_MSG", "JALP_AUDIT_MSG", "JALP_JOURNAL_MSG", "JALP_JOURNAL_FD_MSG" })
+	public MessageType messageType;
+
+	@Param({ "100", "10240", "1048576", "104857600", "1073741824" })
+	public long size;
+
+	private Payload payload;
+	private File file;
+	private byte[] meta;
+	private UnixDomainSocketClient socket;
+
+	@Setup(Level.Trial)
+	public void setup(Sink sink) throws Exception {
+		payload = new Payload(size);
+		if(messageType == MessageType.JALP_JOURNAL_FD_MSG) {
+			file = payload.toFile();
+		}
+		LoggerXML xml = new LoggerXML(new LoggerType());
+		xml.prepareSend("bench-host", "jalpbench");
+		meta = Stages.toBytes(xml.marshal());
+		socket = new UnixDomainSocketClient(sink.sink.getSocketFile(), JUDS.SOCK_STREAM);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		socket.close();
+		if(file != null) {
+			file.delete();
+		}
+	}
+
+	@Benchmark
+	public void createAndSendHeaders() throws Exception {
+		if(file != null) {
+			SendUtils.createAndSendHeaders(messageType, size, meta.length, null, file, meta, socket);
+		} else {
+			SendUtils.createAndSendHeaders(messageType, size, meta.length, payload.open(), null, meta, socket);
+		}
+	}
+
+	/**
+	 * The socket sink shared by every thread of a trial.
+	 */
+	@State(Scope.Benchmark)
+	public static class Sink {
+		SocketSink sink;
+
+		@Setup(Level.Trial)
+		public void open() throws Exception {
+			sink = new SocketSink();
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			sink.close();
+		}
+	}
+}
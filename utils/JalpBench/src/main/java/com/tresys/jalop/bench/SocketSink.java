@@ -0,0 +1,144 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.etsy.net.JUDS;
+import com.etsy.net.UnixDomainSocket;
+import com.etsy.net.UnixDomainSocketClient;
+import com.etsy.net.UnixDomainSocketServer;
+
+/**
+ * A local stand-in for the JALoP local store. It listens on a socket in a
+ * temporary directory and reads and discards everything sent to it, so the
+ * benchmarks measure the producer side of the socket without a real store.
+ */
+public class SocketSink {
+
+	private final File dir;
+	private final String socketFile;
+	private final UnixDomainSocketServer server;
+	private final AtomicLong received = new AtomicLong();
+	private volatile boolean closed;
+
+	/**
+	 * Creates the socket and starts accepting connections.
+	 *
+	 * @throws IOException	if the socket can't be created
+	 */
+	public SocketSink() throws IOException {
+		dir = File.createTempFile("jalpbench", "");
+		if(!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Unable to create " + dir);
+		}
+		socketFile = new File(dir, "jalop.sock").getPath();
+		server = new UnixDomainSocketServer(socketFile, JUDS.SOCK_STREAM, 64);
+
+		Thread acceptor = new Thread("jalpbench-accept") {
+			public void run() {
+				accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Gets the path producers should connect to
+	 *
+	 * @return the socket file
+	 */
+	public String getSocketFile() {
+		return socketFile;
+	}
+
+	/**
+	 * Gets the number of bytes read from all connections so far
+	 *
+	 * @return the number of bytes received
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * Stops accepting connections and removes the socket file. Connections
+	 * that are still open are drained until their producers close them.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			// accept() doesn't return when the socket is closed, so wake it with one last connection.
+			new UnixDomainSocketClient(socketFile, JUDS.SOCK_STREAM).close();
+		} catch (IOException e) {
+			// the acceptor has already stopped
+		}
+		server.close();
+		server.unlink();
+		dir.delete();
+	}
+
+	private void accept() {
+		while(!closed) {
+			final UnixDomainSocket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			if(closed) {
+				socket.close();
+				return;
+			}
+			Thread drainer = new Thread("jalpbench-drain") {
+				public void run() {
+					drain(socket);
+				}
+			};
+			drainer.setDaemon(true);
+			drainer.start();
+		}
+	}
+
+	private void drain(UnixDomainSocket socket) {
+		byte[] buffer = new byte[65536];
+		InputStream in = socket.getInputStream();
+		try {
+			int read;
+			while((read = in.read(buffer, 0, buffer.length)) > 0) {
+				received.addAndGet(read);
+			}
+		} catch (IOException e) {
+			// the producer went away
+		} finally {
+			socket.close();
+		}
+	}
+}
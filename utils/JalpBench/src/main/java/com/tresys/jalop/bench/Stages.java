@@ -0,0 +1,92 @@
+/*
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ *
+ * All other source code is copyright Tresys Technology and licensed as below.
+ *
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ *
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.tresys.jalop.bench;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.w3c.dom.Document;
+
+import com.tresys.jalop.common.ConnectionHeader.MessageType;
+import com.tresys.jalop.common.JALUtils;
+import com.tresys.jalop.common.JALUtils.DMType;
+
+/**
+ * Calls the stages of JALUtils.processSend that are private to JALUtils,
+ * so each one can be measured on its own. The methods are looked up once.
+ */
+final class Stages {
+
+	private static final Method CREATE_DIGEST = method("createDigest", InputStream.class, DMType.class);
+	private static final Method CREATE_MANIFEST = method("createManifest", Document.class, DMType.class, byte[].class, MessageType.class);
+	private static final Method TO_BYTES = method("toBytes", Document.class);
+
+	private Stages() {
+	}
+
+	/**
+	 * Digests a payload, see JALUtils.createDigest.
+	 */
+	static byte[] createDigest(InputStream is, DMType dmType) throws Exception {
+		return (byte[]) invoke(CREATE_DIGEST, is, dmType);
+	}
+
+	/**
+	 * Appends a manifest for an already computed digest to doc, see JALUtils.createManifest.
+	 */
+	static void createManifest(Document doc, DMType dmType, byte[] digest, MessageType messageType) throws Exception {
+		invoke(CREATE_MANIFEST, doc, dmType, digest, messageType);
+	}
+
+	/**
+	 * Serializes a document the way JALUtils.send does, see JALUtils.toBytes.
+	 */
+	static byte[] toBytes(Document doc) throws Exception {
+		return (byte[]) invoke(TO_BYTES, doc);
+	}
+
+	private static Method method(String name, Class<?>... parameterTypes) {
+		try {
+			Method m = JALUtils.class.getDeclaredMethod(name, parameterTypes);
+			m.setAccessible(true);
+			return m;
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException("JALUtils." + name + " was not found", e);
+		}
+	}
+
+	private static Object invoke(Method m, Object... args) throws Exception {
+		try {
+			return m.invoke(null, args);
+		} catch (InvocationTargetException e) {
+			if(e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+}
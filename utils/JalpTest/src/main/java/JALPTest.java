@@ -25,22 +25,11 @@
  */
 
 import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream.GetField;
-import java.security.KeyFactory;
-import java.security.PrivateKey;
-import java.security.PublicKey;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
-import java.security.spec.KeySpec;
-import java.security.spec.PKCS8EncodedKeySpec;
-import java.security.spec.X509EncodedKeySpec;
 import java.lang.OutOfMemoryError;
 
 import javax.xml.bind.JAXBContext;
@@ -53,6 +42,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.PosixParser;
 
 import com.tresys.jalop.common.JALUtils.DMType;
+import com.tresys.jalop.common.KeyMaterialCache;
 import com.tresys.jalop.producer.ApplicationMetadataXML;
 import com.tresys.jalop.producer.CustomXML;
 import com.tresys.jalop.producer.Producer;
@@ -129,7 +119,11 @@ public class JALPTest {
 			}
 
 			producer = createProducer(xml, socketPath, privateKeyPath, publicKeyPath, certPath, hasDigest);
-			callSend(producer, type, input, file);
+			if(cmd.hasOption("L")) {
+				callLoad(producer, cmd, type, input, file);
+			} else {
+				callSend(producer, type, input, file);
+			}
 
 		} catch (IOException e) {
 			if (producer != null) {
@@ -200,36 +194,12 @@ public class JALPTest {
 		producer.setSocketFile(socketPath);
 
 		if(privateKeyPath != null && !"".equals(privateKeyPath)) {
-
-			File privateKeyFile = new File(privateKeyPath);
-			DataInputStream privateDis = new DataInputStream(new FileInputStream(privateKeyFile));
-			byte[] privateKeyBytes = new byte[(int)privateKeyFile.length()];
-			privateDis.readFully(privateKeyBytes);
-			privateDis.close();
-
-			KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-			KeySpec privateKs = new PKCS8EncodedKeySpec(privateKeyBytes);
-			PrivateKey privateKey = keyFactory.generatePrivate(privateKs);
-
-			File publicKeyFile = new File(publicKeyPath);
-			DataInputStream publicDis = new DataInputStream(new FileInputStream(publicKeyFile));
-			byte[] publicKeyBytes = new byte[(int)publicKeyFile.length()];
-			publicDis.readFully(publicKeyBytes);
-			publicDis.close();
-
-			KeySpec publicKs = new X509EncodedKeySpec(publicKeyBytes);
-			PublicKey publicKey = keyFactory.generatePublic(publicKs);
-
-			producer.setPrivateKey(privateKey);
-			producer.setPublicKey(publicKey);
+			producer.setPrivateKey(KeyMaterialCache.getPrivateKey(privateKeyPath));
+			producer.setPublicKey(KeyMaterialCache.getPublicKey(publicKeyPath));
 		}
 
 		if(certPath != null && !"".equals(certPath)) {
-			InputStream inputStream = new FileInputStream(certPath);
-			CertificateFactory cf = CertificateFactory.getInstance("X.509");
-			X509Certificate cert = (X509Certificate)cf.generateCertificate(inputStream);
-			inputStream.close();
-			producer.setCertificate(cert);
+			producer.setCertificate(KeyMaterialCache.getCertificate(certPath));
 		}
 
 		if(hasDigest) {
@@ -275,6 +245,36 @@ public class JALPTest {
 		}
 	}
 
+	/**
+	 * Sends records from many threads through the Producer and prints the
+	 * throughput and latency for each record type.
+	 *
+	 * @param producer	the Producer
+	 * @param cmd		the command line, for the load options
+	 * @param type		the type input, one or more of l, a, j, f separated by commas
+	 * @param input		a String that is a buffer, or null for synthetic payloads
+	 * @param file		a File which contains the buffer, or null for synthetic payloads
+	 * @throws Exception
+	 */
+	private static void callLoad(Producer producer, CommandLine cmd, String type, String input, File file) throws Exception {
+		LoadGenerator load = new LoadGenerator(producer, type);
+		int threads = Integer.parseInt(cmd.getOptionValue("n", "1"));
+		load.setThreads(threads);
+		load.setRate(Double.parseDouble(cmd.getOptionValue("r", "0")));
+		load.setCount(Long.parseLong(cmd.getOptionValue("m", "0")));
+		load.setDuration(Double.parseDouble(cmd.getOptionValue("T", "10")));
+		load.setWarmup(Double.parseDouble(cmd.getOptionValue("w", "0")));
+		load.setPayloadSizes(cmd.getOptionValue("z", "1024"));
+		load.setInput(input);
+		load.setFile(file);
+		producer.setPoolSize(Integer.parseInt(cmd.getOptionValue("P", Integer.toString(threads))));
+		try {
+			load.run();
+		} finally {
+			producer.closeConnections();
+		}
+	}
+
 	static final String usage = "Usage:\n"
 		+"-a      (optional) the full, or relative path to a file to use for generating the application metadata.\n"
 		+"-p      The full or relative path to a file that should be used as the payload for this particular record.\n"
@@ -285,7 +285,15 @@ public class JALPTest {
         +"-k      The full or relative path to a private key file to be used for signing. Must also specify '-a'.\n"
         +"-b      The full or relative path to a public key file to be used for signing. Must also specify '-a'.\n"
         +"-c      The full or relative path to a certificate file to be used for signing. Requires '-k'.\n"
-        +"-d      Calculates and adds a SHA256 digest of the payload to the application metadata. Must also specify '-a'.\n";
+        +"-d      Calculates and adds a SHA256 digest of the payload to the application metadata. Must also specify '-a'.\n"
+        +"-L, --load      Sends records from many threads and prints the throughput and latency percentiles for each type. The type may list several types separated by commas. Without '-p' or '-s' the payloads are synthetic.\n"
+        +"-n, --threads=N The number of threads sending records in load mode. Defaults to 1.\n"
+        +"-r, --rate=R    The records per second to send across all threads in load mode. Defaults to 0, as fast as possible.\n"
+        +"-m, --count=N   The number of records to send in load mode. Defaults to no limit.\n"
+        +"-T, --duration=S        The seconds to send for in load mode, including the warm up. Defaults to 10.\n"
+        +"-w, --warmup=S  The seconds to send for in load mode before records are counted. Defaults to 0.\n"
+        +"-z, --size=SIZE The size of synthetic payloads in load mode: N bytes, MIN-MAX for evenly spread sizes, or exp:MEAN for exponentially spread sizes. Defaults to 1024.\n"
+        +"-P, --pool=N    The number of connections to the JALoP socket in load mode. Defaults to the number of threads.\n";
 
 	/**
 	 * Prints an error message along with proper usage.
@@ -317,6 +325,14 @@ public class JALPTest {
 		options.addOption("b", true, "The full or relative path to a public key file to be used for signing. Must also specify '-a'.");
 		options.addOption("c", true, "The full or relative path to a certificate file to be used for signing. Requires '-k'.");
 		options.addOption("d", false, "Calculates and adds a SHA256 digest of the payload to the application metadata. Must also specify '-a'.");
+		options.addOption("L", "load", false, "Sends records from many threads and prints the throughput and latency percentiles for each type.");
+		options.addOption("n", "threads", true, "The number of threads sending records in load mode.");
+		options.addOption("r", "rate", true, "The records per second to send across all threads in load mode.");
+		options.addOption("m", "count", true, "The number of records to send in load mode.");
+		options.addOption("T", "duration", true, "The seconds to send for in load mode, including the warm up.");
+		options.addOption("w", "warmup", true, "The seconds to send for in load mode before records are counted.");
+		options.addOption("z", "size", true, "The size of synthetic payloads in load mode: N, MIN-MAX or exp:MEAN.");
+		options.addOption("P", "pool", true, "The number of connections to the JALoP socket in load mode.");
 		return options;
 	}
 }
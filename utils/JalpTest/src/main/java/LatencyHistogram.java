@@ -0,0 +1,131 @@
+/**
+ * LatencyHistogram counts latencies for JALPTest load runs.
+ * <p>
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ * <p>
+ * All other source code is copyright Tresys Technology and licensed as below.
+ * <p>
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ * <p>
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Counts latencies in buckets that are at most 1/64th of their value wide,
+ * so percentiles can be read without keeping every sample. Each sending
+ * thread fills its own histogram; they are merged for the report.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 64;
+	private static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = LINEAR_BUCKETS + (Long.SIZE - 8) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long total;
+	private long max;
+
+	/**
+	 * Records one latency.
+	 *
+	 * @param nanos	the latency in nanoseconds, negative values count as 0
+	 */
+	public void record(long nanos) {
+		long value = Math.max(nanos, 0);
+		counts[index(value)]++;
+		total++;
+		if(value > max) {
+			max = value;
+		}
+	}
+
+	/**
+	 * Adds the counts from another histogram to this one.
+	 *
+	 * @param other	the histogram to add
+	 */
+	public void add(LatencyHistogram other) {
+		for(int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * Gets the number of latencies recorded
+	 *
+	 * @return the count
+	 */
+	public long getCount() {
+		return total;
+	}
+
+	/**
+	 * Gets the largest latency recorded
+	 *
+	 * @return the maximum in nanoseconds
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Gets the latency that the given fraction of the recorded latencies
+	 * are at or below.
+	 *
+	 * @param fraction	the percentile as a fraction, e.g. 0.999
+	 * @return	the middle of the bucket holding the percentile in
+	 * 			nanoseconds, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double fraction) {
+		if(total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if(seen >= rank) {
+				return Math.min(middle(i), max);
+			}
+		}
+		return max;
+	}
+
+	/*
+	 * Values below LINEAR_BUCKETS get a bucket each. Larger values are
+	 * split by their highest bit into SUB_BUCKETS buckets per power of two.
+	 */
+	private static int index(long value) {
+		if(value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - 6;
+		int top = (int) (value >>> shift);
+		return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+	}
+
+	private static long middle(int index) {
+		if(index < LINEAR_BUCKETS) {
+			return index;
+		}
+		int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+		long top = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return (top << shift) + ((1L << shift) >> 1);
+	}
+}
@@ -0,0 +1,523 @@
+/**
+ * LoadGenerator sends records from many threads for JALPTest.
+ * <p>
+ * Source code in 3rd-party is licensed and owned by their respective
+ * copyright holders.
+ * <p>
+ * All other source code is copyright Tresys Technology and licensed as below.
+ * <p>
+ * Copyright (c) 2012 Tresys Technology LLC, Columbia, Maryland, USA
+ * <p>
+ * This software was developed by Tresys Technology LLC
+ * with U.S. Government sponsorship.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.tresys.jalop.producer.Producer;
+
+/**
+ * Sends records through one Producer from a number of threads, either at a
+ * target rate or as fast as they can be sent, and reports the throughput
+ * and the latency percentiles for each record type.
+ * <p>
+ * At a target rate each record has a scheduled send time and its latency is
+ * measured from that time, so records that wait behind a slow send are
+ * counted as slow rather than left out.
+ */
+public class LoadGenerator {
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	/** The number of files written for payloads that are sent as files */
+	static final int PAYLOAD_FILES = 16;
+
+	/**
+	 * The record types that can be sent, by their JALPTest type letter.
+	 */
+	enum RecordType {
+		LOG("l", "log"),
+		AUDIT("a", "audit"),
+		JOURNAL("j", "journal"),
+		JOURNAL_FD("f", "journal fd");
+
+		private final String letter;
+		private final String label;
+
+		private RecordType(String letter, String label) {
+			this.letter = letter;
+			this.label = label;
+		}
+
+		static RecordType fromLetter(String letter) {
+			for(RecordType type : values()) {
+				if(type.letter.equals(letter)) {
+					return type;
+				}
+			}
+			throw new IllegalArgumentException("record type of 'j', 'a', 'l', or 'f', must be specified.");
+		}
+	}
+
+	/**
+	 * The sizes of the synthetic payloads. A size is given as N for a fixed
+	 * size, MIN-MAX for sizes spread evenly between MIN and MAX, or exp:MEAN
+	 * for sizes with an exponential distribution around MEAN, capped at 16
+	 * times MEAN.
+	 */
+	static class PayloadSizes {
+		private final int min;
+		private final int max;
+		private final double mean;
+
+		private PayloadSizes(int min, int max, double mean) {
+			this.min = min;
+			this.max = max;
+			this.mean = mean;
+		}
+
+		static PayloadSizes parse(String spec) {
+			try {
+				if(spec.startsWith("exp:")) {
+					int mean = Integer.parseInt(spec.substring(4));
+					check(mean);
+					return new PayloadSizes(1, (int) Math.min(16L * mean, Integer.MAX_VALUE / 2), mean);
+				}
+				int dash = spec.indexOf('-');
+				if(dash > 0) {
+					int min = Integer.parseInt(spec.substring(0, dash));
+					int max = Integer.parseInt(spec.substring(dash + 1));
+					check(min);
+					if(max < min) {
+						throw new IllegalArgumentException("payload size range " + spec + " is empty");
+					}
+					return new PayloadSizes(min, max, 0);
+				}
+				int size = Integer.parseInt(spec);
+				check(size);
+				return new PayloadSizes(size, size, 0);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("payload size must be N, MIN-MAX or exp:MEAN, not " + spec);
+			}
+		}
+
+		private static void check(int size) {
+			if(size < 1) {
+				throw new IllegalArgumentException("payload sizes must be at least 1 byte");
+			}
+		}
+
+		int getMax() {
+			return max;
+		}
+
+		int next(Random random) {
+			if(mean > 0) {
+				double size = -mean * Math.log(1 - random.nextDouble());
+				return (int) Math.max(min, Math.min(max, Math.round(size)));
+			}
+			if(min == max) {
+				return min;
+			}
+			return min + random.nextInt(max - min + 1);
+		}
+	}
+
+	/*
+	 * What one thread saw for one record type.
+	 */
+	private static class Stats {
+		final LatencyHistogram latencies = new LatencyHistogram();
+		long bytes;
+		long errors;
+
+		void add(Stats other) {
+			latencies.add(other.latencies);
+			bytes += other.bytes;
+			errors += other.errors;
+		}
+	}
+
+	private final Producer producer;
+	private final List<RecordType> types;
+	private int threads = 1;
+	private double rate;
+	private long count;
+	private double duration = 10;
+	private double warmup;
+	private PayloadSizes sizes = PayloadSizes.parse("1024");
+	private String input;
+	private File file;
+
+	private volatile String firstError;
+
+	/**
+	 * Creates a LoadGenerator that sends through the given Producer.
+	 *
+	 * @param producer	the Producer, already set up with its metadata, keys
+	 * 					and digest method
+	 * @param types		the JALPTest type letters of the records to send,
+	 * 					separated by commas; each thread cycles through them
+	 */
+	public LoadGenerator(Producer producer, String types) {
+		if(types == null) {
+			throw new IllegalArgumentException("record type of 'j', 'a', 'l', or 'f', must be specified.");
+		}
+		this.producer = producer;
+		this.types = new ArrayList<RecordType>();
+		for(String letter : types.split(",")) {
+			this.types.add(RecordType.fromLetter(letter.trim()));
+		}
+	}
+
+	/**
+	 * Sets the number of sending threads. The default is 1.
+	 *
+	 * @param threads	the number of threads, at least 1
+	 */
+	public void setThreads(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the target number of records per second, shared by all the
+	 * threads. The default, 0, sends as fast as possible.
+	 *
+	 * @param rate	the records per second, or 0
+	 */
+	public void setRate(double rate) {
+		if(rate < 0) {
+			throw new IllegalArgumentException("rate must not be negative");
+		}
+		this.rate = rate;
+	}
+
+	/**
+	 * Sets the number of records to send, after which the run stops even
+	 * if the duration has not passed. The default, 0, has no limit.
+	 *
+	 * @param count	the number of records, or 0
+	 */
+	public void setCount(long count) {
+		if(count < 0) {
+			throw new IllegalArgumentException("count must not be negative");
+		}
+		this.count = count;
+	}
+
+	/**
+	 * Sets how long to send for, including the warm up. The default is 10
+	 * seconds.
+	 *
+	 * @param duration	the seconds to run for, more than 0
+	 */
+	public void setDuration(double duration) {
+		if(duration <= 0) {
+			throw new IllegalArgumentException("duration must be more than 0 seconds");
+		}
+		this.duration = duration;
+	}
+
+	/**
+	 * Sets how long to send for before records are counted, so the JIT
+	 * and the local store can settle. The default is 0.
+	 *
+	 * @param warmup	the seconds to leave out of the report
+	 */
+	public void setWarmup(double warmup) {
+		if(warmup < 0) {
+			throw new IllegalArgumentException("warmup must not be negative");
+		}
+		this.warmup = warmup;
+	}
+
+	/**
+	 * Sets the sizes of the synthetic payloads. The default is 1024 bytes.
+	 *
+	 * @param sizes	N, MIN-MAX or exp:MEAN
+	 */
+	public void setPayloadSizes(String sizes) {
+		this.sizes = PayloadSizes.parse(sizes);
+	}
+
+	/**
+	 * Sends the given buffer as every payload instead of synthetic ones.
+	 *
+	 * @param input	the payload
+	 */
+	public void setInput(String input) {
+		this.input = input;
+	}
+
+	/**
+	 * Sends the given file as every payload instead of synthetic ones.
+	 *
+	 * @param file	the payload
+	 */
+	public void setFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Sends records until the duration has passed or the count has been
+	 * sent, then prints the report.
+	 *
+	 * @throws Exception	if the payloads can't be made
+	 */
+	public void run() throws Exception {
+		final String block = input != null ? input : (file != null ? null : createBlock(sizes.getMax()));
+		final List<File> files = createPayloadFiles();
+		try {
+			final int typeCount = RecordType.values().length;
+			final Stats[][] stats = new Stats[threads][typeCount];
+			final AtomicLong remaining = new AtomicLong(count > 0 ? count : Long.MAX_VALUE);
+			final CountDownLatch ready = new CountDownLatch(threads);
+			final CountDownLatch go = new CountDownLatch(1);
+			final long[] times = new long[3];
+			final long interval = rate > 0 ? (long) (threads * NANOS_PER_SECOND / rate) : 0;
+
+			Thread[] workers = new Thread[threads];
+			for(int t = 0; t < threads; t++) {
+				final int index = t;
+				for(int i = 0; i < typeCount; i++) {
+					stats[t][i] = new Stats();
+				}
+				workers[t] = new Thread("jalptest-load-" + t) {
+					@Override
+					public void run() {
+						ready.countDown();
+						try {
+							go.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						send(index, stats[index], block, files, remaining, times[0], times[1], times[2], interval);
+					}
+				};
+				workers[t].start();
+			}
+
+			ready.await();
+			long start = System.nanoTime();
+			times[0] = start;
+			times[1] = start + (long) (warmup * NANOS_PER_SECOND);
+			times[2] = start + (long) (duration * NANOS_PER_SECOND);
+			go.countDown();
+			for(Thread worker : workers) {
+				worker.join();
+			}
+			long end = Math.min(System.nanoTime(), times[2]);
+
+			report(stats, Math.max(end - times[1], 1));
+		} finally {
+			for(File payload : files) {
+				payload.delete();
+			}
+		}
+	}
+
+	/*
+	 * The loop each sending thread runs. A scheduled send time is kept when
+	 * there is a target rate; otherwise each record starts when the last
+	 * one finished.
+	 */
+	private void send(int index, Stats[] stats, String block, List<File> files, AtomicLong remaining,
+			long start, long measureFrom, long deadline, long interval) {
+		Random random = new Random(index * 31L + System.nanoTime());
+		long scheduled = start + interval * index / threads;
+		int next = index % types.size();
+
+		while(remaining.getAndDecrement() > 0) {
+			long begin;
+			if(interval > 0) {
+				long wait = scheduled - System.nanoTime();
+				if(wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				begin = scheduled;
+				scheduled += interval;
+			} else {
+				begin = System.nanoTime();
+			}
+			if(begin >= deadline) {
+				break;
+			}
+
+			RecordType type = types.get(next);
+			next = (next + 1) % types.size();
+
+			long size;
+			boolean failed = false;
+			try {
+				if(file != null) {
+					size = file.length();
+					send(type, null, file);
+				} else if(type == RecordType.JOURNAL_FD) {
+					File payload = files.get(random.nextInt(files.size()));
+					size = payload.length();
+					send(type, null, payload);
+				} else {
+					String payload = input != null ? input : block.substring(0, sizes.next(random));
+					size = payload.length();
+					if(interval == 0) {
+						begin = System.nanoTime();
+					}
+					send(type, payload, null);
+				}
+			} catch (Exception e) {
+				if(firstError == null) {
+					firstError = e.toString();
+				}
+				size = 0;
+				failed = true;
+			}
+			long finished = System.nanoTime();
+
+			if(begin >= measureFrom) {
+				Stats typeStats = stats[type.ordinal()];
+				if(failed) {
+					typeStats.errors++;
+				} else {
+					typeStats.latencies.record(finished - begin);
+					typeStats.bytes += size;
+				}
+			}
+		}
+	}
+
+	private void send(RecordType type, String buffer, File payload) throws Exception {
+		switch(type) {
+		case LOG:
+			if(payload != null) {
+				producer.jalpLog(payload);
+			} else {
+				producer.jalpLog(buffer);
+			}
+			break;
+		case AUDIT:
+			if(payload != null) {
+				producer.jalpAudit(payload);
+			} else {
+				producer.jalpAudit(buffer);
+			}
+			break;
+		case JOURNAL:
+			if(payload != null) {
+				producer.jalpJournal(payload);
+			} else {
+				producer.jalpJournal(buffer);
+			}
+			break;
+		case JOURNAL_FD:
+			producer.jalpJournalFD(payload);
+			break;
+		}
+	}
+
+	/*
+	 * Prints a line per record type and one for all of them.
+	 */
+	private void report(Stats[][] stats, long elapsed) {
+		double seconds = (double) elapsed / NANOS_PER_SECOND;
+		System.out.println(String.format("%d threads, %s, %.1f seconds measured",
+				threads, rate > 0 ? String.format("target %.0f records/s", rate) : "flat out", seconds));
+		System.out.println(String.format("%-11s %10s %8s %12s %10s %10s %10s %10s %10s",
+				"type", "records", "errors", "records/s", "MB/s", "p50 us", "p99 us", "p999 us", "max us"));
+
+		Stats all = new Stats();
+		for(RecordType type : RecordType.values()) {
+			if(!types.contains(type)) {
+				continue;
+			}
+			Stats total = new Stats();
+			for(Stats[] threadStats : stats) {
+				total.add(threadStats[type.ordinal()]);
+			}
+			all.add(total);
+			printLine(type.label, total, seconds);
+		}
+		if(types.size() > 1) {
+			printLine("all", all, seconds);
+		}
+		if(firstError != null) {
+			System.out.println("First error: " + firstError);
+		}
+	}
+
+	private static void printLine(String label, Stats stats, double seconds) {
+		LatencyHistogram latencies = stats.latencies;
+		System.out.println(String.format("%-11s %10d %8d %12.0f %10.2f %10.1f %10.1f %10.1f %10.1f",
+				label, latencies.getCount(), stats.errors,
+				latencies.getCount() / seconds, stats.bytes / seconds / (1024 * 1024),
+				latencies.getPercentile(0.50) / 1000.0, latencies.getPercentile(0.99) / 1000.0,
+				latencies.getPercentile(0.999) / 1000.0, latencies.getMax() / 1000.0));
+	}
+
+	/*
+	 * Synthetic payloads are prefixes of one block of printable lines.
+	 */
+	static String createBlock(int size) {
+		StringBuilder sb = new StringBuilder(size);
+		String line = "JALPTest load generator synthetic payload line 0123456789 abcdefghijklmnopqrstuvwxyz\n";
+		while(sb.length() < size) {
+			sb.append(line, 0, Math.min(line.length(), size - sb.length()));
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Journal records sent by file descriptor need a file, so a few are
+	 * written up front with sizes drawn from the payload sizes.
+	 */
+	private List<File> createPayloadFiles() throws IOException {
+		List<File> files = new ArrayList<File>();
+		if(file != null || !types.contains(RecordType.JOURNAL_FD)) {
+			return files;
+		}
+		Random random = new Random();
+		int fileCount = input != null ? 1 : PAYLOAD_FILES;
+		try {
+			for(int i = 0; i < fileCount; i++) {
+				String contents = input != null ? input : createBlock(sizes.next(random));
+				File payload = File.createTempFile("jalptest-load", ".payload");
+				files.add(payload);
+				OutputStream out = new FileOutputStream(payload);
+				try {
+					out.write(contents.getBytes("utf-8"));
+				} finally {
+					out.close();
+				}
+			}
+		} catch (IOException e) {
+			for(File payload : files) {
+				payload.delete();
+			}
+			throw e;
+		}
+		return files;
+	}
+}